@@ -51,7 +51,7 @@ public class Aggregate extends Operator {
         Type aFieldType = child.getTupleDesc().getFieldType(afield);
         if (aFieldType == Type.INT_TYPE) {
             this.aggregator = new IntegerAggregator(gfield, gFieldType, afield, aop);
-        } else if (aFieldType == Type.STRING_TYPE) {
+        } else if (aFieldType.isString()) {
             this.aggregator = new StringAggregator(gfield, gFieldType, afield, aop);
         } else {
             throw new IllegalArgumentException("Unsupported field type for aggregation: " + aFieldType);
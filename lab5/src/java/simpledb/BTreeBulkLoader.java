@@ -0,0 +1,690 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile bottom-up from an unsorted stream of
+ * tuples, instead of inserting them one by one with BTreeFile.insertTuple.
+ * <p>
+ * Tuples passed to {@link #add} are sorted on the key field with an external
+ * merge sort: runs of at most runSize tuples are sorted in memory and spilled
+ * to temporary files, then merged. A merge reads at most fanIn runs at once,
+ * through read buffers that share a fixed amount of memory, so that each run
+ * is read in long sequential chunks; when there are more runs, they are first
+ * merged fanIn at a time into longer runs, in as many passes as needed. Since the number of tuples is known once
+ * they have all been added, {@link #finish} can lay out the whole tree up
+ * front: the root pointer page, then the leaves in key order, then each
+ * internal level, with every page written once, sequentially, and with its
+ * parent and sibling pointers already set. Only the first key of every page
+ * is kept in memory.
+ * <p>
+ * Leaves are packed to fillFactor of their capacity, leaving room for later
+ * inserts without immediate splits. Tuples are spread evenly over the pages of
+ * each level, so that no page but the root ends up less than half full.
+ * Pages of a tree keyed on a string field store their keys compressed, so
+ * their capacity depends on the keys: the sorted tuples are then read twice,
+ * once to pack each page to fillFactor of its size in bytes, and once to
+ * write the pages.
+ */
+public class BTreeBulkLoader {
+
+	/** Default fraction of each page filled by the loader */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/** Default number of tuples sorted in memory per run */
+	public static final int DEFAULT_RUN_SIZE = 100000;
+
+	/** Default largest number of runs merged at once */
+	public static final int DEFAULT_FAN_IN = 64;
+
+	/** Number of pages buffered in memory per sequential write */
+	private static final int WRITE_BUFFER_PAGES = 64;
+
+	/** Bytes of read buffers shared by the runs of a merge */
+	private static final int MERGE_BUFFER_BYTES = 16 << 20;
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final int keyField;
+	private final double fillFactor;
+	private final int runSize;
+	private final int fanIn;
+	private final Comparator<Tuple> comparator;
+
+	private ArrayList<Tuple> run;
+	private final ArrayList<File> runFiles = new ArrayList<File>();
+	private long numTuples = 0;
+	private int mergePasses = 0;
+	private boolean finished = false;
+
+	/**
+	 * Create a loader for the specified B+ tree, with the default fill factor
+	 * and run size.
+	 *
+	 * @param bf - an empty BTreeFile, already added to the Catalog
+	 */
+	public BTreeBulkLoader(BTreeFile bf) {
+		this(bf, DEFAULT_FILL_FACTOR, DEFAULT_RUN_SIZE);
+	}
+
+	/**
+	 * Create a loader for the specified B+ tree.
+	 *
+	 * @param bf - an empty BTreeFile, already added to the Catalog
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param runSize - the number of tuples to sort in memory at a time
+	 */
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor, int runSize) {
+		this(bf, fillFactor, runSize, DEFAULT_FAN_IN);
+	}
+
+	/**
+	 * Create a loader for the specified B+ tree.
+	 *
+	 * @param bf - an empty BTreeFile, already added to the Catalog
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param runSize - the number of tuples to sort in memory at a time
+	 * @param fanIn - the largest number of sorted runs to merge at once, at
+	 *        least 2
+	 */
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor, int runSize, int fanIn) {
+		if (fillFactor < 0.5 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		if (runSize < 1)
+			throw new IllegalArgumentException("run size must be positive: " + runSize);
+		if (fanIn < 2)
+			throw new IllegalArgumentException("fan-in must be at least 2: " + fanIn);
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.keyField = bf.keyField();
+		this.fillFactor = fillFactor;
+		this.runSize = runSize;
+		this.fanIn = fanIn;
+		this.comparator = new BTreeFileEncoder.TupleComparator(keyField);
+		this.run = new ArrayList<Tuple>();
+	}
+
+	/**
+	 * Add a tuple to be loaded into the B+ tree.
+	 *
+	 * @param t - the tuple to add; must match the TupleDesc of the BTreeFile
+	 * @throws DbException if the tuple does not match the TupleDesc of the file
+	 *         or the loader is already finished
+	 */
+	public void add(Tuple t) throws DbException, IOException {
+		if (finished)
+			throw new DbException("bulk load already finished");
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in bulk load into " + bf.getFile());
+		run.add(t);
+		numTuples++;
+		if (run.size() >= runSize) {
+			spillRun();
+		}
+	}
+
+	/**
+	 * Add all the tuples returned by the specified iterator.
+	 *
+	 * @param it - the iterator; it is opened and closed by this method
+	 */
+	public void addAll(DbIterator it)
+			throws DbException, IOException, TransactionAbortedException {
+		it.open();
+		while (it.hasNext()) {
+			add(it.next());
+		}
+		it.close();
+	}
+
+	/**
+	 * Add all the tuples of a text file with one tuple per line, in the format
+	 * read by {@link HeapFileEncoder}.
+	 *
+	 * @param inFile - the text file
+	 * @param fieldSeparator - the character separating fields on a line
+	 */
+	public void addAll(File inFile, char fieldSeparator) throws DbException, IOException {
+		BufferedReader br = new BufferedReader(new FileReader(inFile));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+				if (values.length != td.numFields())
+					throw new DbException("expected " + td.numFields() + " fields in line: " + line);
+				Tuple t = new Tuple(td);
+				for (int i = 0; i < values.length; i++) {
+					String s = values[i].trim();
+					if (td.getFieldType(i) == Type.INT_TYPE) {
+						try {
+							t.setField(i, new IntField(Integer.parseInt(s)));
+						} catch (NumberFormatException e) {
+							throw new DbException("bad integer " + s + " in line: " + line);
+						}
+					} else if (td.getFieldType(i) == Type.VARCHAR_TYPE) {
+						t.setField(i, new VarcharField(s, Type.STRING_LEN));
+					} else {
+						t.setField(i, new StringField(s, Type.STRING_LEN));
+					}
+				}
+				add(t);
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Sort the remaining tuples and write out the B+ tree. The loader cannot
+	 * be used anymore afterwards.
+	 *
+	 * @return the loaded BTreeFile
+	 * @throws DbException if the BTreeFile is not empty
+	 */
+	public BTreeFile finish() throws DbException, IOException {
+		if (finished)
+			throw new DbException("bulk load already finished");
+		finished = true;
+		if (bf.getFile().length() > 0)
+			throw new DbException("bulk load into non-empty file " + bf.getFile());
+
+		ArrayList<RunReader> readers = new ArrayList<RunReader>();
+		try {
+			if (runFiles.isEmpty()) {
+				Collections.sort(run, comparator);
+			} else {
+				spillRun();
+				reduceRuns();
+			}
+			writeTree(readers);
+		} finally {
+			for (RunReader r : readers) {
+				r.close();
+			}
+			for (File f : runFiles) {
+				f.delete();
+			}
+			run = null;
+		}
+		return bf;
+	}
+
+	/**
+	 * @return a new stream of all the tuples in key order, adding the readers
+	 *         of the runs it merges to readers
+	 */
+	private Iterator<Tuple> sorted(ArrayList<RunReader> readers) throws IOException {
+		if (runFiles.isEmpty())
+			return run.iterator();
+		ArrayList<RunReader> merged = new ArrayList<RunReader>();
+		for (File f : runFiles) {
+			RunReader r = new RunReader(f, readBufferSize(runFiles.size()));
+			readers.add(r);
+			merged.add(r);
+		}
+		return new MergeIterator(merged);
+	}
+
+	/**
+	 * @return the size of the read buffer of each of n runs merged at once
+	 */
+	private static int readBufferSize(int n) {
+		return Math.max(BufferPool.getPageSize(), MERGE_BUFFER_BYTES / n);
+	}
+
+	/**
+	 * @return the number of passes that merged runs into longer runs, before
+	 *         the final merge
+	 */
+	int mergePasses() {
+		return mergePasses;
+	}
+
+	/**
+	 * Merge the sorted runs fanIn at a time into longer runs, in as many
+	 * passes as needed for at most fanIn runs to be left
+	 */
+	private void reduceRuns() throws IOException {
+		while (runFiles.size() > fanIn) {
+			ArrayList<File> merged = new ArrayList<File>();
+			for (int i = 0; i < runFiles.size(); i += fanIn) {
+				List<File> group = runFiles.subList(i, Math.min(i + fanIn, runFiles.size()));
+				merged.add(group.size() == 1 ? group.get(0) : mergeRuns(group));
+			}
+			runFiles.clear();
+			runFiles.addAll(merged);
+			mergePasses++;
+		}
+	}
+
+	/**
+	 * Merge sorted runs into a new run, deleting them
+	 *
+	 * @return the file of the new run
+	 */
+	private File mergeRuns(List<File> group) throws IOException {
+		ArrayList<RunReader> readers = new ArrayList<RunReader>();
+		try {
+			for (File f : group) {
+				readers.add(new RunReader(f, readBufferSize(group.size())));
+			}
+			return writeRun(new MergeIterator(readers));
+		} finally {
+			for (RunReader r : readers) {
+				r.close();
+			}
+			for (File f : group) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Sort the current run and write it to a temporary file
+	 */
+	private void spillRun() throws IOException {
+		if (run.isEmpty())
+			return;
+		Collections.sort(run, comparator);
+		runFiles.add(writeRun(run.iterator()));
+		run = new ArrayList<Tuple>();
+	}
+
+	/**
+	 * Write sorted tuples to a new temporary file
+	 *
+	 * @return the file
+	 */
+	private File writeRun(Iterator<Tuple> sorted) throws IOException {
+		File f = File.createTempFile("btreerun", ".dat");
+		f.deleteOnExit();
+		DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f), BufferPool.getPageSize() * WRITE_BUFFER_PAGES));
+		try {
+			while (sorted.hasNext()) {
+				Tuple t = sorted.next();
+				for (int i = 0; i < td.numFields(); i++) {
+					t.getField(i).serialize(dos);
+				}
+			}
+		} finally {
+			dos.close();
+		}
+		return f;
+	}
+
+	/**
+	 * Compute the number of pages on each level of the tree, from the leaves
+	 * up to the root, given the capacity and minimum occupancy of leaf and
+	 * internal pages (in tuples and children respectively). An empty tree
+	 * still has a single, empty leaf.
+	 */
+	static ArrayList<Long> levelSizes(long numTuples, int leafCapacity, int leafMinimum,
+			int internalCapacity, int internalMinimum) {
+		ArrayList<Long> levels = new ArrayList<Long>();
+		long pages = pageCount(numTuples, leafCapacity, leafMinimum);
+		levels.add(pages);
+		while (pages > 1) {
+			pages = pageCount(pages, internalCapacity, internalMinimum);
+			levels.add(pages);
+		}
+		return levels;
+	}
+
+	/**
+	 * @return the number of pages to spread n items over, so that each page
+	 *         holds at most capacity items, or failing that, at least minimum
+	 *         items. Dropping a page when the pages would be under-full keeps
+	 *         them below twice the minimum, so still within the page size.
+	 */
+	static long pageCount(long n, int capacity, int minimum) {
+		long pages = Math.max(1, (n + capacity - 1) / capacity);
+		if (pages > 1 && n / pages < minimum)
+			pages--;
+		return pages;
+	}
+
+	/**
+	 * @return the index of the first of n items spread evenly over p pages
+	 *         that goes on page i
+	 */
+	static long pageStart(long i, long n, long p) {
+		return i * n / p;
+	}
+
+	/**
+	 * Lay out the tree with a fixed number of tuples per leaf and children per
+	 * internal page, spread evenly over the pages of each level.
+	 *
+	 * @return for each level from the leaves up, the index of the first item
+	 *         of each page, followed by the number of items
+	 */
+	private ArrayList<long[]> planFixed() throws DbException, IOException {
+		int tableid = bf.getId();
+		int maxTuples = new BTreeLeafPage(new BTreePageId(tableid, 1, BTreePageId.LEAF),
+				BTreePage.createEmptyPageData(), keyField).getMaxTuples();
+		int maxChildren = new BTreeInternalPage(new BTreePageId(tableid, 1, BTreePageId.INTERNAL),
+				BTreePage.createEmptyPageData(), keyField).getMaxEntries() + 1;
+		int leafMinimum = Math.max(1, maxTuples / 2);
+		int internalMinimum = Math.max(2, (maxChildren - 1) / 2 + 1);
+		int leafCapacity = Math.max(leafMinimum, (int) (maxTuples * fillFactor));
+		int internalCapacity = Math.max(internalMinimum, (int) (maxChildren * fillFactor));
+
+		ArrayList<Long> levels = levelSizes(numTuples, leafCapacity, leafMinimum,
+				internalCapacity, internalMinimum);
+		ArrayList<long[]> starts = new ArrayList<long[]>();
+		long n = numTuples;
+		for (long p : levels) {
+			if (p > Integer.MAX_VALUE)
+				throw new DbException("too many pages for a BTreeFile: " + p);
+			long[] level = new long[(int) p + 1];
+			for (int i = 0; i <= p; i++) {
+				level[i] = pageStart(i, n, p);
+			}
+			starts.add(level);
+			n = p;
+		}
+		return starts;
+	}
+
+	/**
+	 * Lay out a tree whose pages store their keys compressed, packing each
+	 * page with as many items as fit in fillFactor of the page by their
+	 * encoded size. Keys are counted in full, as the pages count them for
+	 * {@link BTreeLeafPage#getNumEmptySlots} and
+	 * {@link BTreeInternalPage#getNumEmptySlots}, so every page written can
+	 * hold its items.
+	 *
+	 * @param sorted - the tuples in key order
+	 * @return for each level from the leaves up, the index of the first item
+	 *         of each page, followed by the number of items
+	 */
+	private ArrayList<long[]> planCompressed(Iterator<Tuple> sorted) {
+		int budget = (int) (BufferPool.getPageSize() * fillFactor);
+		Type[] types = typeArray();
+		int leafSlots = BTreeLeafPage.numSlots(types, keyField);
+		Packer leaves = new Packer(budget - BTreeLeafPage.compressedOverhead(leafSlots), leafSlots, 1);
+		while (sorted.hasNext()) {
+			Tuple t = sorted.next();
+			leaves.add(t.getField(keyField), BTreeLeafPage.compressedTupleSize(t, td, keyField, 0));
+		}
+		ArrayList<long[]> starts = new ArrayList<long[]>();
+		starts.add(leaves.finish());
+		ArrayList<Field> keys = leaves.firstKeys;
+
+		// each child is counted with a full entry, which overcounts the key
+		// left of the first child of every page
+		int internalSlots = BTreeInternalPage.numSlots(td.getFieldType(keyField));
+		while (keys.size() > 1) {
+			Packer internal = new Packer(budget - BTreeInternalPage.compressedOverhead(internalSlots),
+					internalSlots, 2);
+			for (Field key : keys) {
+				internal.add(key, BTreeInternalPage.compressedEntrySize(key));
+			}
+			starts.add(internal.finish());
+			keys = internal.firstKeys;
+		}
+		return starts;
+	}
+
+	/**
+	 * Write out the root pointer page, the leaves and the internal levels of the
+	 * tree, in page number order
+	 *
+	 * @param readers - collects the readers of the sorted runs, for the caller
+	 *        to close
+	 */
+	private void writeTree(ArrayList<RunReader> readers) throws DbException, IOException {
+		int tableid = bf.getId();
+		int pageSize = BufferPool.getPageSize();
+		ArrayList<long[]> starts = BTreePage.compressesKeys(td.getFieldType(keyField))
+				? planCompressed(sorted(readers)) : planFixed();
+		Iterator<Tuple> sorted = sorted(readers);
+
+		int numLevels = starts.size();
+		long[] firstPage = new long[numLevels];
+		long totalPages = 0;
+		for (int l = 0; l < numLevels; l++) {
+			firstPage[l] = totalPages + 1;
+			totalPages += starts.get(l).length - 1;
+		}
+		if (totalPages > Integer.MAX_VALUE)
+			throw new DbException("too many pages for a BTreeFile: " + totalPages);
+		int rootCategory = numLevels == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(bf.getFile()), pageSize * WRITE_BUFFER_PAGES);
+		try {
+			os.write(BTreeFileEncoder.convertToRootPtrPage((int) totalPages, rootCategory, 0));
+
+			// the leaves, keeping the first key of each for the level above
+			long[] leafStarts = starts.get(0);
+			long numLeaves = leafStarts.length - 1;
+			ArrayList<Field> firstKeys = new ArrayList<Field>();
+			ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+			for (int i = 0; i < numLeaves; i++) {
+				long size = leafStarts[i + 1] - leafStarts[i];
+				tuples.clear();
+				while (tuples.size() < size) {
+					tuples.add(sorted.next());
+				}
+				if (size > 0)
+					firstKeys.add(tuples.get(0).getField(keyField));
+
+				BTreePageId pid = new BTreePageId(tableid, (int) (firstPage[0] + i), BTreePageId.LEAF);
+				BTreeLeafPage page = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(tuples,
+						pageSize, td.numFields(), typeArray(), keyField), keyField);
+				page.setParentId(parentId(0, i, starts, firstPage, rootPtrId));
+				page.setLeftSiblingId(i == 0 ? null
+						: new BTreePageId(tableid, pid.pageNumber() - 1, BTreePageId.LEAF));
+				page.setRightSiblingId(i == numLeaves - 1 ? null
+						: new BTreePageId(tableid, pid.pageNumber() + 1, BTreePageId.LEAF));
+				os.write(page.getPageData());
+			}
+
+			// the internal levels, from the bottom up
+			Type keyType = td.getFieldType(keyField);
+			for (int l = 1; l < numLevels; l++) {
+				long[] childStarts = starts.get(l);
+				long numPages = childStarts.length - 1;
+				int childCategory = (l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+				ArrayList<Field> pageKeys = new ArrayList<Field>();
+				for (int i = 0; i < numPages; i++) {
+					long start = childStarts[i];
+					long end = childStarts[i + 1];
+					ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+					for (long c = start + 1; c < end; c++) {
+						entries.add(new BTreeEntry(firstKeys.get((int) c),
+								new BTreePageId(tableid, (int) (firstPage[l - 1] + c - 1), childCategory),
+								new BTreePageId(tableid, (int) (firstPage[l - 1] + c), childCategory)));
+					}
+					pageKeys.add(firstKeys.get((int) start));
+
+					BTreePageId pid = new BTreePageId(tableid, (int) (firstPage[l] + i), BTreePageId.INTERNAL);
+					BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(
+							entries, pageSize, keyType, childCategory), keyField);
+					page.setParentId(parentId(l, i, starts, firstPage, rootPtrId));
+					os.write(page.getPageData());
+				}
+				firstKeys = pageKeys;
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * @return the id of the parent of page i on level l
+	 */
+	private BTreePageId parentId(int l, long i, ArrayList<long[]> starts, long[] firstPage, BTreePageId rootPtrId) {
+		if (l == starts.size() - 1)
+			return rootPtrId;
+		long[] parents = starts.get(l + 1);
+		int parent = Arrays.binarySearch(parents, 0, parents.length - 1, i);
+		if (parent < 0)
+			parent = -parent - 2;
+		return new BTreePageId(bf.getId(), (int) (firstPage[l + 1] + parent), BTreePageId.INTERNAL);
+	}
+
+	private Type[] typeArray() {
+		Type[] types = new Type[td.numFields()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+		return types;
+	}
+
+	/**
+	 * Packs a sorted stream of items of varying size into pages, starting a new
+	 * page when the next item does not fit in the budget of the current one,
+	 * then moves items from the second to last page to the last one while
+	 * that evens them out, so the last page is not left nearly empty
+	 */
+	private static class Packer {
+		private final int budget;
+		private final int maxItems;
+		private final int minItems;
+		private final ArrayList<Long> starts = new ArrayList<Long>();
+		/** The key of the first item of each page */
+		final ArrayList<Field> firstKeys = new ArrayList<Field>();
+		// the items of the second to last page, and the size of the last two
+		private ArrayList<Integer> prevSizes = new ArrayList<Integer>();
+		private ArrayList<Field> prevKeys = new ArrayList<Field>();
+		private ArrayList<Integer> lastSizes = new ArrayList<Integer>();
+		private ArrayList<Field> lastKeys = new ArrayList<Field>();
+		private int prevBytes = 0;
+		private int lastBytes = 0;
+		private long n = 0;
+
+		Packer(int budget, int maxItems, int minItems) {
+			this.budget = budget;
+			this.maxItems = maxItems;
+			this.minItems = minItems;
+		}
+
+		void add(Field key, int size) {
+			if (starts.isEmpty() || lastSizes.size() >= maxItems || lastBytes + size > budget) {
+				starts.add(n);
+				firstKeys.add(key);
+				prevSizes = lastSizes;
+				prevKeys = lastKeys;
+				prevBytes = lastBytes;
+				lastSizes = new ArrayList<Integer>();
+				lastKeys = new ArrayList<Field>();
+				lastBytes = 0;
+			}
+			lastSizes.add(size);
+			lastKeys.add(key);
+			lastBytes += size;
+			n++;
+		}
+
+		/**
+		 * @return the index of the first item of each page, followed by the
+		 *         number of items; a single empty page if there are none
+		 */
+		long[] finish() {
+			if (starts.isEmpty())
+				return new long[] { 0, 0 };
+			int last = starts.size() - 1;
+			int count = lastSizes.size();
+			while (last > 0 && prevSizes.size() > minItems && count < maxItems) {
+				int size = prevSizes.get(prevSizes.size() - 1);
+				if (lastBytes + size > budget || (count >= minItems && lastBytes + size > prevBytes - size))
+					break;
+				prevSizes.remove(prevSizes.size() - 1);
+				prevBytes -= size;
+				lastBytes += size;
+				count++;
+				starts.set(last, starts.get(last) - 1);
+				firstKeys.set(last, prevKeys.remove(prevKeys.size() - 1));
+			}
+			long[] result = new long[starts.size() + 1];
+			for (int i = 0; i < starts.size(); i++) {
+				result[i] = starts.get(i);
+			}
+			result[starts.size()] = n;
+			return result;
+		}
+	}
+
+	/**
+	 * Reads back the tuples of a sorted run, one at a time, closing the run
+	 * once it is read to the end
+	 */
+	private class RunReader {
+		private final DataInputStream dis;
+		Tuple current;
+
+		RunReader(File f, int bufferSize) throws IOException {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f), bufferSize));
+			advance();
+		}
+
+		void advance() throws IOException {
+			if (dis.available() == 0) {
+				current = null;
+				dis.close();
+				return;
+			}
+			Tuple t = new Tuple(td);
+			try {
+				for (int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(dis));
+				}
+			} catch (java.text.ParseException e) {
+				throw new IOException("corrupt sort run", e);
+			}
+			current = t;
+		}
+
+		void close() throws IOException {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Merges sorted runs into a single sorted stream of tuples
+	 */
+	private class MergeIterator implements Iterator<Tuple> {
+		private final PriorityQueue<RunReader> heap;
+
+		MergeIterator(ArrayList<RunReader> readers) {
+			heap = new PriorityQueue<RunReader>(Math.max(1, readers.size()), new Comparator<RunReader>() {
+				public int compare(RunReader r1, RunReader r2) {
+					return comparator.compare(r1.current, r2.current);
+				}
+			});
+			for (RunReader r : readers) {
+				if (r.current != null)
+					heap.add(r);
+			}
+		}
+
+		public boolean hasNext() {
+			return !heap.isEmpty();
+		}
+
+		public Tuple next() {
+			RunReader r = heap.poll();
+			if (r == null)
+				throw new NoSuchElementException();
+			Tuple t = r.current;
+			try {
+				r.advance();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			if (r.current != null)
+				heap.add(r);
+			return t;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
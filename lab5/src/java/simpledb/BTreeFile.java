@@ -18,13 +18,19 @@ import java.util.*;
  * @see simpledb.BTreeHeaderPage#BTreeHeaderPage
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
  */
-public class BTreeFile implements DbFile {
+public class BTreeFile implements IndexFile {
 
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid;
 	private int keyField;
 
+	/** Number of optimistic descents tried before locking the path to the leaf */
+	private static final int OPTIMISTIC_ATTEMPTS = 2;
+
+	/** Depth beyond which a descent must have followed a stale pointer */
+	private static final int MAX_DEPTH = 64;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 *
@@ -93,8 +99,7 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+				return readPage(id, pageBuf);
 			} else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
 				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber() - 1) * BufferPool.getPageSize()) !=
@@ -111,16 +116,7 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				if (id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				} else if (id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				} else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return readPage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -135,6 +131,31 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Create a page from its data, read from disk earlier.
+	 *
+	 * @param pid - the id of the page
+	 * @param data - the data of the page, as on disk
+	 * @return the page
+	 */
+	@Override
+	public Page readPage(PageId pid, byte[] data) {
+		BTreePageId id = (BTreePageId) pid;
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				return new BTreeRootPtrPage(id, data);
+			} else if (id.pgcateg() == BTreePageId.INTERNAL) {
+				return new BTreeInternalPage(id, data, keyField);
+			} else if (id.pgcateg() == BTreePageId.LEAF) {
+				return new BTreeLeafPage(id, data, keyField);
+			} else { // id.pgcateg() == BTreePageId.HEADER
+				return new BTreeHeaderPage(id, data);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should
 	 * be called from the BufferPool when pages are flushed to disk
@@ -171,6 +192,61 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Returns the number of levels in this B+ tree, counting the leaf level, by following
+	 * the left-most child pointers from the root. An empty file has height 0. Internal pages
+	 * are locked with READ_ONLY permission along the way.
+	 *
+	 * @param tid - the transaction id
+	 * @return the height of the tree
+	 */
+	public int height(TransactionId tid) throws DbException, TransactionAbortedException {
+		if (f.length() == 0) {
+			return 0;
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		int height = 0;
+		while (pid != null) {
+			height++;
+			if (pid.pgcateg() != BTreePageId.INTERNAL) {
+				break;
+			}
+			BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			pid = page.findChildId(null);
+		}
+		return height;
+	}
+
+	/**
+	 * Returns the number of leaf pages in this B+ tree, by following the right sibling
+	 * pointers from the left-most leaf. An empty file has no leaf pages. The pages are
+	 * locked with READ_ONLY permission along the way.
+	 *
+	 * @param tid - the transaction id
+	 * @return the number of leaf pages
+	 */
+	public int numLeafPages(TransactionId tid) throws DbException, TransactionAbortedException {
+		if (f.length() == 0) {
+			return 0;
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		if (rootPtr.getRootId() == null) {
+			return 0;
+		}
+		BTreeLeafPage leaf = findLeafPage(tid, Permissions.READ_ONLY, null);
+		int leaves = 1;
+		while (leaf.getRightSiblingId() != null) {
+			leaf = (BTreeLeafPage) Database.getBufferPool().getPage(
+					tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+			leaves++;
+		}
+		return leaves;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -184,55 +260,203 @@ public class BTreeFile implements DbFile {
 	 * @param pid        - the current page being searched
 	 * @param perm       - the permissions with which to lock the leaf page
 	 * @param f          - the field to search for
+	 * @param last       - whether to find the right-most page possibly containing f instead, or
+	 *                     the right-most leaf page if f is null
 	 * @return the left-most leaf page possibly containing the key field f
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm, Field searchField)
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm, Field searchField,
+									   boolean last)
 			throws DbException, TransactionAbortedException {
 		// Return immediately if the page is not an internal page
 		if (pid.pgcateg() != BTreePageId.INTERNAL) {
 			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
 		}
 
-		// Fetch the current internal page
+		// Fetch the current internal page and binary search it for the correct child
 		BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		BTreeEntry lastEntry = null;
+		BTreePageId childId = internalPage.findChildId(searchField, last);
+		if (childId == null) {
+			throw new DbException("Unable to find appropriate leaf page");
+		}
+		return findLeafPage(tid, dirtypages, childId, perm, searchField, last);
+	}
 
-		// Iterate through entries to find the correct child
-		Iterator<BTreeEntry> entryIterator = internalPage.iterator();
-		while (entryIterator.hasNext()) {
-			BTreeEntry currentEntry = entryIterator.next();
-			lastEntry = currentEntry; // Track the last entry processed
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, starting from the root pointer page.
+	 * <p>
+	 * The descent is optimistic: internal pages are only latched, each one until its
+	 * child is latched, and only the leaf is locked with permission perm. Under its
+	 * latch, each page on the path is checked not to be write locked by another
+	 * transaction, i.e. not to hold uncommitted structure changes, and its version is
+	 * noted. Once the leaf is locked, the descent is validated by checking that the
+	 * pages on the path are still cached at the same versions, and retried if one of
+	 * them changed since. When a page on the path is write locked by another
+	 * transaction, or the descent cannot be validated, it falls back to locking every
+	 * page on the path with READ_ONLY permission. Structure changes in one part of
+	 * the tree thus leave descents to other parts of the tree optimistic.
+	 *
+	 * @param tid        - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm       - the permissions with which to lock the leaf page
+	 * @param f          - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, dirtypages, perm, f, false);
+	}
 
-			// Determine if we should go to the left child of the current entry
-			if (searchField == null || currentEntry.getKey().compare(Op.GREATER_THAN_OR_EQ, searchField)) {
-				return findLeafPage(tid, dirtypages, currentEntry.getLeftChild(), perm, searchField);
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f, or the
+	 * right-most one if last is set, as {@link #findLeafPage(TransactionId, HashMap, Permissions, Field)}
+	 * does.
+	 *
+	 * @param last - whether to find the right-most leaf page possibly containing f, or the
+	 *               right-most leaf page if f is null
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm, Field f,
+									   boolean last)
+			throws DbException, TransactionAbortedException {
+		for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+			BTreeLeafPage leaf = findLeafPageOptimistic(tid, dirtypages, perm, f, last);
+			if (leaf != null) {
+				return leaf;
 			}
 		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), perm, f, last);
+	}
 
-		// If no left child pointer was taken, go to the right child of the last entry
-		if (lastEntry != null) {
-			return findLeafPage(tid, dirtypages, lastEntry.getRightChild(), perm, searchField);
+	/**
+	 * One optimistic descent from the root pointer page to the leaf page for f.
+	 *
+	 * @return the locked leaf page, or null if the descent could not be validated
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f, boolean last) throws DbException, TransactionAbortedException {
+		// snapshots read prior versions of pages, which peeking does not
+		if (Database.getBufferPool().isSnapshot(tid)) {
+			return null;
 		}
 
-		// In case of an empty page or an error in finding an entry
-		throw new DbException("Unable to find appropriate leaf page");
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr;
+		BTreePageId rootId;
+		BTreePageId pid;
+		ArrayList<BTreeInternalPage> path = new ArrayList<BTreeInternalPage>();
+		ArrayList<Long> versions = new ArrayList<Long>();
+		BTreeInternalPage latched = null;
+		try {
+			rootPtr = (BTreeRootPtrPage) peekPage(dirtypages, rootPtrId);
+			if (Database.getBufferPool().isLockedExclusivelyByOther(tid, rootPtrId)) {
+				return null;
+			}
+			rootId = rootPtr.getRootId();
+			pid = rootId;
+			for (int depth = 0; pid != null && pid.pgcateg() == BTreePageId.INTERNAL; depth++) {
+				if (depth == MAX_DEPTH) {
+					return null;
+				}
+				BTreeInternalPage page = (BTreeInternalPage) peekPage(dirtypages, pid);
+				// latch the child before letting go of its parent
+				page.latch.readLock().lock();
+				if (latched != null) {
+					latched.latch.readLock().unlock();
+				}
+				latched = page;
+				if (Database.getBufferPool().isLockedExclusivelyByOther(tid, pid)) {
+					return null;
+				}
+				path.add(page);
+				versions.add(page.getVersion());
+				pid = page.findChildId(f, last);
+			}
+		} catch (RuntimeException e) {
+			// a page freed under the descent may have been reused as another
+			// kind of page, whose data then fails to parse as the page the
+			// descent expected; the validation would reject the descent anyway
+			if (!(e.getCause() instanceof IOException)) {
+				throw e;
+			}
+			return null;
+		} finally {
+			if (latched != null) {
+				latched.latch.readLock().unlock();
+			}
+		}
+		if (pid == null || pid.pgcateg() != BTreePageId.LEAF) {
+			return null;
+		}
+
+		// lock the leaf without holding any latch, then check that the pages
+		// on the path did not change since the descent read them
+		boolean held = Database.getBufferPool().holdsLock(tid, pid);
+		boolean dirty = dirtypages.containsKey(pid);
+		BTreeLeafPage leaf = null;
+		try {
+			leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			boolean valid = peekPage(dirtypages, rootPtrId) == rootPtr && rootId.equals(rootPtr.getRootId());
+			for (int i = 0; valid && i < path.size(); i++) {
+				BTreeInternalPage page = path.get(i);
+				valid = peekPage(dirtypages, page.getId()) == page && page.getVersion() == versions.get(i);
+			}
+			if (valid) {
+				return leaf;
+			}
+		} catch (RuntimeException e) {
+			// the leaf was freed and reused, as above
+			if (!(e.getCause() instanceof IOException)) {
+				throw e;
+			}
+		}
+		if (!dirty) {
+			dirtypages.remove(pid);
+		}
+		if (!held && Database.getBufferPool().holdsLock(tid, pid)) {
+			Database.getBufferPool().releasePage(tid, pid);
+		}
+		return null;
 	}
 
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
+	 * Get a page without locking it, from the local cache or the BufferPool
+	 */
+	private Page peekPage(HashMap<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().peekPage(pid);
+	}
+
+	/**
+	 * Convenience method to find a leaf page from the root, when there is no
+	 * dirtypages HashMap. Used by the BTreeFile iterators.
 	 *
 	 * @param tid  - the transaction id
-	 * @param pid  - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f    - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-							   Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
 			throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
+	}
+
+	/**
+	 * Convenience method to find the right-most leaf page possibly containing the key
+	 * field f from the root, or the right-most leaf page if f is null. Used by the
+	 * descending BTreeFile iterators.
+	 *
+	 * @param tid  - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f    - the field to search for, or null
+	 * @return the right-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f, true);
 	}
 
 	/**
@@ -281,7 +505,8 @@ public class BTreeFile implements DbFile {
 			page.deleteTuple(bTreeTuple);
 			newLeaf.insertTuple(bTreeTuple);
 		}
-		Field boundKeyField = tuple.getField(keyField);
+		Field boundKeyField = BTreePage.separator(tuple.getField(keyField),
+				entries.get(entries.size() - 1).getField(keyField));
 		BTreeEntry boundEntry = new BTreeEntry(boundKeyField, page.getId(), newLeaf.getId());
 
 		// Update sibling of the leaf pages
@@ -402,8 +627,9 @@ public class BTreeFile implements DbFile {
 					Permissions.READ_WRITE);
 		}
 
-		// split the parent if needed
-		if (parent.getNumEmptySlots() == 0) {
+		// split the parent if needed, more than once if compressed keys
+		// leave the half it should go in full
+		while (parent.getNumEmptySlots() == 0) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
 		}
 
@@ -505,20 +731,20 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		createRootPtrPageIfEmpty();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if (((BTreeRootPtrPage) peekPage(dirtypages, rootPtrId)).getRootId() == null) {
+			// the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			if (rootPtr.getRootId() == null) {
+				rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			}
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if (leafPage.getNumEmptySlots() == 0) {
+		// and split the leaf page if there is no more room for the tuple
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+		while (!leafPage.hasRoomFor(t)) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
 		}
 
@@ -605,7 +831,7 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if (leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if (leftSibling.getNumEmptySlots() >= maxEmptySlots && leftSibling.hasRoomFor(page)) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			} else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
@@ -614,7 +840,7 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if (rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if (rightSibling.getNumEmptySlots() >= maxEmptySlots && page.hasRoomFor(rightSibling)) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			} else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
@@ -624,8 +850,11 @@ public class BTreeFile implements DbFile {
 
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
-	 * half full.  Update the parent's entry so that the key matches the key field of the first
-	 * tuple in the right-hand page.
+	 * half full.  Update the parent's entry so that the key separates the last tuple in the
+	 * left-hand page from the first tuple in the right-hand page.
+	 * <p>
+	 * If keys are compressed, fewer tuples are moved if they do not all fit on the page, and
+	 * none if the parent has no room for the new key.
 	 *
 	 * @param page           - the leaf page which is less than half full
 	 * @param sibling        - the sibling which has tuples to spare
@@ -645,21 +874,33 @@ public class BTreeFile implements DbFile {
 		int tupleNum = page.getNumTuples();
 		int siblingTupleNum = sibling.getNumTuples();
 		int moveNum = (siblingTupleNum - tupleNum) / 2;
+		if (moveNum <= 0) {
+			return;
+		}
+		// the tuples to move, and the first tuple staying on the sibling
 		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
-		Tuple toMoveTuple = null;
 		ArrayList<Tuple> toMoveTupleList = new ArrayList<>();
-		for (int i = 0; i < moveNum; ++i) {
-			toMoveTuple = it.next();
-			toMoveTupleList.add(toMoveTuple);
+		for (int i = 0; i <= moveNum; ++i) {
+			toMoveTupleList.add(it.next());
 		}
-		for (Tuple tuple : toMoveTupleList) {
+		while (moveNum > 0 && !page.hasRoomFor(toMoveTupleList.subList(0, moveNum))) {
+			moveNum--;
+		}
+		if (moveNum == 0) {
+			return;
+		}
+		Field moved = toMoveTupleList.get(moveNum - 1).getField(keyField);
+		Field staying = toMoveTupleList.get(moveNum).getField(keyField);
+		Field key = isRightSibling ? BTreePage.separator(moved, staying) : BTreePage.separator(staying, moved);
+		if (!parent.hasRoomForKey(entry.getKey(), key)) {
+			return;
+		}
+		for (Tuple tuple : toMoveTupleList.subList(0, moveNum)) {
 			sibling.deleteTuple(tuple);
 			page.insertTuple(tuple);
 		}
-		entry.setKey(isRightSibling ? page.reverseIterator().next().getField(keyField) : sibling.reverseIterator().next().getField(keyField) );
+		entry.setKey(key);
 		parent.updateEntry(entry);
-
-
 	}
 
 	/**
@@ -693,7 +934,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if (leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if (leftSibling.getNumEmptySlots() >= maxEmptySlots && leftSibling.hasRoomFor(page, leftEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			} else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
@@ -702,7 +943,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if (rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if (rightSibling.getNumEmptySlots() >= maxEmptySlots && page.hasRoomFor(rightSibling, rightEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			} else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
@@ -710,6 +951,40 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Get the number of entries to rotate from a sibling through the parent entry to an internal page,
+	 * at most n. If keys are compressed, that is fewer if the keys do not all fit on the page, and
+	 * none if the parent has no room for the key pushed up.
+	 *
+	 * @param page        - the internal page which is less than half full
+	 * @param parent      - the parent of the page and its sibling
+	 * @param parentEntry - the entry in the parent pointing to the two internal pages
+	 * @param it          - the entries of the sibling, from the one nearest to the page on
+	 * @param n           - the number of entries to rotate if they fit
+	 * @return the number of entries to rotate, or 0 if none can be
+	 */
+	private int entriesToSteal(BTreeInternalPage page, BTreeInternalPage parent, BTreeEntry parentEntry,
+							   Iterator<BTreeEntry> it, int n) {
+		ArrayList<Field> keys = new ArrayList<>();
+		for (int i = 0; i < n; ++i) {
+			keys.add(it.next().getKey());
+		}
+		// the key pulled down and all the keys moved but the last one go to the page
+		int size = page.entrySize(parentEntry.getKey());
+		for (int i = 0; i < n - 1; ++i) {
+			size += page.entrySize(keys.get(i));
+		}
+		for (int k = n; k > 0; --k) {
+			if (size <= page.getFreeBytes() && parent.hasRoomForKey(parentEntry.getKey(), keys.get(k - 1))) {
+				return k;
+			}
+			if (k > 1) {
+				size -= page.entrySize(keys.get(k - 2));
+			}
+		}
+		return 0;
+	}
+
 	/**
 	 * Steal entries from the left sibling and copy them to the given page so that both pages are at least
 	 * half full. Keys can be thought of as rotating through the parent entry, so the original key in the
@@ -733,7 +1008,10 @@ public class BTreeFile implements DbFile {
 		// some code goes here
 		int entryNum = page.getNumEntries();
 		int siblingEntryNum = leftSibling.getNumEntries();
-		int toMoveNum = (siblingEntryNum - entryNum) / 2;
+		int toMoveNum = entriesToSteal(page, parent, parentEntry, leftSibling.reverseIterator(), (siblingEntryNum - entryNum) / 2);
+		if (toMoveNum == 0) {
+			return;
+		}
 		BTreePageId leftPageLastChild = leftSibling.reverseIterator().next().getRightChild();
 		BTreePageId rightPageFirstChild = page.iterator().next().getLeftChild();
 
@@ -790,7 +1068,10 @@ public class BTreeFile implements DbFile {
 		// pointers of all children in the entries that were moved.
 		int entryNum = page.getNumEntries();
 		int siblingEntryNum = rightSibling.getNumEntries();
-		int toMoveNum = (siblingEntryNum - entryNum) / 2;
+		int toMoveNum = entriesToSteal(page, parent, parentEntry, rightSibling.iterator(), (siblingEntryNum - entryNum) / 2);
+		if (toMoveNum == 0) {
+			return;
+		}
 		BTreePageId leftPageLastChild = page.reverseIterator().next().getRightChild();
 		BTreePageId rightPageFirstChild = rightSibling.iterator().next().getLeftChild();
 		Iterator<BTreeEntry> it = rightSibling.iterator();
@@ -967,7 +1248,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries() / 2; // ceiling
-		if (parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if (parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged
 			// page will become the new root
@@ -1030,23 +1311,28 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized (this) {
-			if (f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootPtrPageIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty
+	 */
+	private synchronized void createRootPtrPageIfEmpty() throws IOException {
+		if (f.length() == 0) {
+			// create the root pointer page and the root page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			bw.write(emptyRootPtrData);
+			bw.write(emptyLeafData);
+			bw.close();
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1238,6 +1524,35 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples of this file whose key lies between two bounds, in ascending or
+	 * descending key order. The iterator starts at the leaf holding the bound it starts
+	 * from, follows the sibling pointers of the leaves in the order of the scan, and
+	 * stops at the first key past the other bound, so it reads only the leaves of the
+	 * range, and only as many of them as the tuples taken from it need.
+	 *
+	 * @param tid        - the transaction id
+	 * @param lower      - a GREATER_THAN or GREATER_THAN_OR_EQ predicate the keys satisfy,
+	 *                     or null if the range has no lower bound
+	 * @param upper      - a LESS_THAN or LESS_THAN_OR_EQ predicate the keys satisfy, or null
+	 *                     if the range has no upper bound
+	 * @param descending - whether to return the tuples in descending key order
+	 * @return an iterator for the tuples in the range
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+										boolean descending) {
+		return new BTreeSearchIterator(this, tid, lower, upper, descending);
+	}
+
+	/**
+	 * Returns whether the tree answers predicates with the specified operator by
+	 * reading only the leaves that hold the matching keys, which it does for all
+	 * but NOT_EQUALS and LIKE
+	 */
+	public boolean supports(Predicate.Op op) {
+		return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method
 	 * will acquire a read lock on the affected pages of the file, and may block until
@@ -1250,6 +1565,47 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for the tuples in this B+ tree file that satisfy all of the
+	 * specified predicates, holding only the specified fields. If some of the
+	 * predicates bound the key field, only the leaves between the bounds
+	 * are read; the other predicates and the projection are applied to the
+	 * tuples of those leaves.
+	 *
+	 * @see #indexIterator(TransactionId, IndexPredicate, IndexPredicate, boolean)
+	 */
+	@Override
+	public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+		return iterator(tid, preds, fields, false);
+	}
+
+	/**
+	 * Get an iterator for the tuples in this B+ tree file that satisfy all of the
+	 * specified predicates, holding only the specified fields, in ascending or
+	 * descending key order, as {@link #iterator(TransactionId, Predicate[], int[])}
+	 * does.
+	 *
+	 * @param descending - whether to return the tuples in descending key order
+	 */
+	public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields, boolean descending) {
+		IndexPredicate lower = null;
+		IndexPredicate upper = null;
+		for (int k = 0; preds != null && k < preds.length; k++) {
+			Predicate p = preds[k];
+			if (p.getField() != keyField)
+				continue;
+			IndexPredicate ipred = new IndexPredicate(p.getOp(), p.getOperand());
+			lower = BTreeSearchIterator.tighterLowerBound(lower, BTreeSearchIterator.lowerBound(ipred));
+			upper = BTreeSearchIterator.tighterUpperBound(upper, BTreeSearchIterator.upperBound(ipred));
+		}
+		DbFileIterator it;
+		if (lower == null && upper == null && !descending)
+			it = iterator(tid);
+		else
+			it = indexIterator(tid, lower, upper, descending);
+		return new FilteredDbFileIterator(it, preds, fields, td);
+	}
+
 }
 
 /**
@@ -1278,10 +1634,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1334,7 +1687,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File, whose keys lie in a range, in ascending or descending key order
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
@@ -1344,6 +1697,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	IndexPredicate lower;
+	IndexPredicate upper;
+	boolean descending;
 
 	/**
 	 * Constructor for this iterator
@@ -1353,63 +1709,143 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * @param ipred - the predicate to filter on
 	 */
 	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this(f, tid, lowerBound(ipred), upperBound(ipred), false);
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Constructor for an iterator over a range of keys
+	 *
+	 * @param f          - the BTreeFile containing the tuples
+	 * @param tid        - the transaction id
+	 * @param lower      - the predicate bounding the keys from below, or null
+	 * @param upper      - the predicate bounding the keys from above, or null
+	 * @param descending - whether to return the tuples in descending key order
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate lower, IndexPredicate upper,
+							   boolean descending) {
 		this.f = f;
 		this.tid = tid;
-		this.ipred = ipred;
+		this.lower = lower;
+		this.upper = upper;
+		this.descending = descending;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * @return the predicate bounding from below the keys matching ipred, or null
+	 *         if they are not bounded from below
+	 */
+	static IndexPredicate lowerBound(IndexPredicate ipred) {
+		switch (ipred.getOp()) {
+		case EQUALS:
+			return new IndexPredicate(Op.GREATER_THAN_OR_EQ, ipred.getField());
+		case GREATER_THAN:
+		case GREATER_THAN_OR_EQ:
+			return ipred;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the predicate bounding from above the keys matching ipred, or null
+	 *         if they are not bounded from above
+	 */
+	static IndexPredicate upperBound(IndexPredicate ipred) {
+		switch (ipred.getOp()) {
+		case EQUALS:
+			return new IndexPredicate(Op.LESS_THAN_OR_EQ, ipred.getField());
+		case LESS_THAN:
+		case LESS_THAN_OR_EQ:
+			return ipred;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the tighter of two lower bounds, either of which may be null if
+	 *         there is none: the one with the greater key, or the strict one if
+	 *         their keys are equal
+	 */
+	static IndexPredicate tighterLowerBound(IndexPredicate a, IndexPredicate b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		if (b.getField().compare(Op.GREATER_THAN, a.getField())
+				|| (b.getField().equals(a.getField()) && b.getOp() == Op.GREATER_THAN))
+			return b;
+		return a;
+	}
+
+	/**
+	 * @return the tighter of two upper bounds, either of which may be null if
+	 *         there is none: the one with the smaller key, or the strict one if
+	 *         their keys are equal
+	 */
+	static IndexPredicate tighterUpperBound(IndexPredicate a, IndexPredicate b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		if (b.getField().compare(Op.LESS_THAN, a.getField())
+				|| (b.getField().equals(a.getField()) && b.getOp() == Op.LESS_THAN))
+			return b;
+		return a;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the leaf page holding the bound the
+	 * scan starts from
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+		if (descending) {
+			curp = f.findLastLeafPage(tid, Permissions.READ_ONLY, upper == null ? null : upper.getField());
+			it = curp.reverseIterator();
 		} else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, lower == null ? null : lower.getField());
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
-	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * Read the next tuple either from the current page if it has more tuples in the
+	 * range or from the next page by following the sibling pointer in the direction
+	 * of the scan.
 	 *
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 			NoSuchElementException {
+		// the bound the scan starts from, and the one it stops at
+		IndexPredicate first = descending ? upper : lower;
+		IndexPredicate last = descending ? lower : upper;
 		while (it != null) {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				} else if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				} else if (ipred.getOp() == Op.EQUALS &&
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
+				Field key = t.getField(f.keyField());
+				if (last != null && !key.compare(last.getOp(), last.getField())) {
+					// the keys are now past the range, so we have reached the end
 					return null;
+				} else if (first != null && !key.compare(first.getOp(), first.getField())) {
+					// the leaf found may start before the range
+					continue;
+				} else if (ipred == null || key.compare(ipred.getOp(), ipred.getField())) {
+					return t;
 				}
 			}
 
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
+			BTreePageId nextp = descending ? curp.getLeftSiblingId() : curp.getRightSiblingId();
+			// if there are no more pages in the direction of the scan, end the iteration
 			if (nextp == null) {
 				return null;
 			} else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				it = descending ? curp.reverseIterator() : curp.iterator();
 			}
 		}
 
@@ -1431,4 +1867,4 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 	}
-}
\ No newline at end of file
+}
@@ -506,6 +506,8 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		if (BTreePage.compressesKeys(typeAr[keyField]))
+			return convertToCompressedLeafPage(tuples, npagebytes, typeAr, keyField);
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -569,6 +571,50 @@ public class BTreeFileEncoder {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Convert a set of tuples to a byte array in the compressed format of a
+	 * BTreeLeafPage keyed on a string field, holding as many of the tuples,
+	 * in key order, as fit by their encoded size. Their keys are counted in
+	 * full, as {@link BTreeLeafPage#getNumEmptySlots} counts them.
+	 */
+	private static byte[] convertToCompressedLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+			Type[] typeAr, int keyField) throws IOException {
+		TupleDesc td = new TupleDesc(typeAr);
+		int nslots = BTreeLeafPage.numSlots(typeAr, keyField);
+		Collections.sort(tuples, new TupleComparator(keyField));
+		int size = BTreeLeafPage.compressedOverhead(nslots);
+		int recordcount = 0;
+		while (recordcount < tuples.size() && recordcount < nslots) {
+			size += BTreeLeafPage.compressedTupleSize(tuples.get(recordcount), td, keyField, 0);
+			if (size > npagebytes)
+				break;
+			recordcount++;
+		}
+
+		byte[] header = header(nslots, recordcount);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeInt(0); // left sibling pointer
+		dos.writeInt(0); // right sibling pointer
+		dos.write(header);
+
+		Tuple[] used = tuples.subList(0, recordcount).toArray(new Tuple[0]);
+		BTreeLeafPage.writeCompressedTuples(dos, used, header, td, keyField);
+		return BTreeLeafPage.pad(baos, dos, npagebytes);
+	}
+
+	// a page header of nslots bits, whose first count bits are set
+	private static byte[] header(int nslots, int count) {
+		int nheaderbytes = nslots / 8;
+		if (nheaderbytes * 8 < nslots)
+			nheaderbytes++;  //ceiling
+		byte[] header = new byte[nheaderbytes];
+		for (int i = 0; i < count; i++)
+			header[i / 8] |= (1 << (i % 8));
+		return header;
+	}
+
 	/**
 	 *  Comparator to sort BTreeEntry objects by key
 	 */
@@ -624,6 +670,8 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if (BTreePage.compressesKeys(keyType))
+			return convertToCompressedInternalPage(entries, npagebytes, keyType, childPageCategory);
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -697,6 +745,42 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the compressed format of a
+	 * BTreeInternalPage keyed on a string field, holding as many of the
+	 * entries, in key order, as fit by their encoded size
+	 */
+	private static byte[] convertToCompressedInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			Type keyType, int childPageCategory) throws IOException {
+		int nslots = BTreeInternalPage.numSlots(keyType);
+		Collections.sort(entries, new EntryComparator());
+		int size = BTreeInternalPage.compressedOverhead(nslots);
+		int entrycount = 0;
+		while (entrycount < entries.size() && entrycount < nslots - 1) {
+			size += BTreeInternalPage.compressedEntrySize(entries.get(entrycount).getKey());
+			if (size > npagebytes)
+				break;
+			entrycount++;
+		}
+
+		byte[] header = header(nslots, entrycount + 1);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+		dos.write(header);
+
+		Field[] keys = new Field[nslots];
+		int[] children = new int[nslots];
+		children[0] = entries.get(0).getLeftChild().pageNumber();
+		for (int e = 0; e < entrycount; e++) {
+			keys[e + 1] = entries.get(e).getKey();
+			children[e + 1] = entries.get(e).getRightChild().pageNumber();
+		}
+		BTreeInternalPage.writeCompressedEntries(dos, keys, children, header);
+		return BTreeLeafPage.pad(baos, dos, npagebytes);
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -18,6 +18,7 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final boolean compressed;
 	
 	private int childCategory; // either leaf or internal
 
@@ -36,7 +37,8 @@ public class BTreeInternalPage extends BTreePage {
 			assert(prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
-		if (checkOccupancy && depth > 0) {
+		// compressed pages hold a variable number of entries
+		if (checkOccupancy && depth > 0 && !compressed) {
 			assert (getNumEntries() >= getMaxEntries() / 2);
 		}
 	}
@@ -57,6 +59,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * If the key field is a string, keys are compressed (see
+	 * {@link BTreePage#compressesKeys}): the header is followed by the keys in
+	 * the used slots only, each after a length byte, and then by the child
+	 * pointers in the used slots only. Such a page has {@link #numSlots} slots.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,7 +73,8 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.compressed = compressesKeys(td.getFieldType(keyField));
+		this.numSlots = numSlots(td.getFieldType(keyField));
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -92,8 +99,12 @@ public class BTreeInternalPage extends BTreePage {
 			// start from 1 because the first key slot is not used
 			// since a node with m keys has m+1 pointers
 			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
+			for (int i=1; i<keys.length; i++) {
+				if (compressed)
+					keys[i] = isSlotUsed(i) ? stringKey(td.getFieldType(keyField), readKeyChars(dis, "")) : null;
+				else
+					keys[i] = readNextKey(dis,i);
+			}
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
@@ -101,8 +112,12 @@ public class BTreeInternalPage extends BTreePage {
 		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
+			for (int i=0; i<children.length; i++) {
+				if (compressed)
+					children[i] = isSlotUsed(i) ? dis.readInt() : -1;
+				else
+					children[i] = readNextChild(dis,i);
+			}
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
@@ -115,7 +130,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return maxEntries(td.getFieldType(keyField));
+	}
+
+	private static int maxEntries(Type keyType) {
+		int keySize = keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -129,13 +148,102 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
-		int hb = (slotsPerPage / 8);
-		if (hb * 8 < slotsPerPage) hb++;
+		int hb = (numSlots / 8);
+		if (hb * 8 < numSlots) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * Retrieve the number of slots of this page, more than
+	 * {@link #getMaxEntries()} + 1 if keys are compressed.
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * Retrieve the number of slots of an internal page of a B+ tree keyed on
+	 * a field of the specified type, including the slot of the extra child
+	 * pointer. Unless keys are compressed, that is one more than the maximum
+	 * number of entries. A compressed page has enough slots for entries with
+	 * short keys, but few enough header bytes that the maximum number of
+	 * entries of the largest size still fit.
+	 */
+	static int numSlots(Type keyType) {
+		int maxEntries = maxEntries(keyType);
+		if (!compressesKeys(keyType))
+			return maxEntries + 1;
+		// the smallest entries have empty keys
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		int slots = (BufferPool.getPageSize()*8 - extraBits) / ((1 + INDEX_SIZE) * 8 + 1) + 1;
+		return Math.min(slots, 16 * (maxEntries + 1));
+	}
+
+	/**
+	 * @return the number of bytes an entry with the specified key takes on
+	 *         this page, including its child pointer
+	 */
+	int entrySize(Field key) {
+		if (compressed)
+			return compressedEntrySize(key);
+		return td.getFieldType(keyField).getLen() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes an entry with the specified key takes in
+	 *         the compressed layout, including its child pointer
+	 */
+	static int compressedEntrySize(Field key) {
+		return 1 + ((StringField) key).getValue().length() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes a page with the specified number of slots
+	 *         takes in the compressed layout besides its entries: the parent
+	 *         pointer, the child page category, the header and the extra
+	 *         child pointer
+	 */
+	static int compressedOverhead(int numSlots) {
+		return INDEX_SIZE + 1 + (numSlots + 7) / 8 + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes left for entries on this page
+	 */
+	int getFreeBytes() {
+		if (!compressed)
+			return countEmptySlots() * entrySize(null);
+		int used = compressedOverhead(numSlots);
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				used += entrySize(keys[i]);
+		}
+		return BufferPool.getPageSize() - used;
+	}
+
+	/**
+	 * @return true if an entry's key can be replaced by the specified key
+	 */
+	boolean hasRoomForKey(Field oldKey, Field newKey) {
+		return !compressed || entrySize(newKey) - entrySize(oldKey) <= getFreeBytes();
+	}
+
+	/**
+	 * @return true if the entries of another page, and an entry with the
+	 *         specified key, fit on this page, as when the pages are merged
+	 */
+	boolean hasRoomFor(BTreeInternalPage other, Field key) {
+		if (countEmptySlots() < other.getNumEntries() + 1)
+			return false;
+		int size = entrySize(key);
+		for (int i=1; i<other.numSlots; i++) {
+			if (other.isSlotUsed(i))
+				size += entrySize(other.keys[i]);
+		}
+		return size <= getFreeBytes();
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -262,6 +370,11 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (compressed) {
+			writeCompressedEntries(dos, keys, children, header);
+			return BTreeLeafPage.pad(baos, dos, len);
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -333,6 +446,25 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Write the keys and then the child pointers in the used slots of a page
+	 * in the compressed layout.
+	 */
+	static void writeCompressedEntries(DataOutputStream dos, Field[] keys, int[] children, byte[] header) {
+		try {
+			for (int i=1; i<keys.length; i++) {
+				if (isSlotUsed(header, i))
+					writeKeyChars(dos, ((StringField) keys[i]).getValue(), 0);
+			}
+			for (int i=0; i<children.length; i++) {
+				if (isSlotUsed(header, i))
+					dos.writeInt(children[i]);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -345,6 +477,16 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+		latch.writeLock().lock();
+		try {
+			version++;
+			deleteEntryLatched(e, deleteRightChild);
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	private void deleteEntryLatched(BTreeEntry e, boolean deleteRightChild) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete entry with null rid");
@@ -352,6 +494,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null entry.");
+		BTreeKeyDirectory d = getKeyDirectory();
+		d.remove(d.rank(rid.tupleno()));
 		if(deleteRightChild) {
 			markSlotUsed(rid.tupleno(), false); 
 		}
@@ -402,6 +546,16 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
+		latch.writeLock().lock();
+		try {
+			version++;
+			updateEntryLatched(e);
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	private void updateEntryLatched(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -409,6 +563,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to update null entry.");
+		if (compressed && entrySize(e.getKey()) - entrySize(keys[rid.tupleno()]) > getFreeBytes())
+			throw new DbException("no room on the page for the updated key " + e.getKey());
 		
 		for(int i = rid.tupleno() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -431,6 +587,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
 		keys[rid.tupleno()] = e.getKey();
+		BTreeKeyDirectory d = getKeyDirectory();
+		d.setKey(d.rank(rid.tupleno()), e.getKey());
 	}
 
 	/**
@@ -441,6 +599,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
+		latch.writeLock().lock();
+		try {
+			version++;
+			insertEntryLatched(e);
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+
+	private void insertEntryLatched(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
@@ -456,13 +624,18 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if (compressed && entrySize(e.getKey()) > getFreeBytes())
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
+		BTreeKeyDirectory d = getKeyDirectory();
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			d.insert(0, 1, e.getKey());
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
@@ -539,6 +712,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
+		d.insert(d.rank(goodSlot), goodSlot, e.getKey());
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().pageNumber();
@@ -555,6 +729,7 @@ public class BTreeInternalPage extends BTreePage {
 			keys[to] = keys[from];
 			children[to] = children[from];
 			markSlotUsed(from, false);
+			getKeyDirectory().move(from, to);
 		}
 	}
 
@@ -562,13 +737,22 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - countEmptySlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. If keys are compressed,
+	 * that is the number of entries of the largest size that fit on this
+	 * page.
 	 */
 	public int getNumEmptySlots() {
+		int cnt = countEmptySlots();
+		if (compressed)
+			cnt = Math.min(cnt, Math.max(0, getFreeBytes() / (1 + Type.STRING_LEN + INDEX_SIZE)));
+		return cnt;
+	}
+
+	private int countEmptySlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -582,6 +766,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
+		return isSlotUsed(header, i);
+	}
+
+	private static boolean isSlotUsed(byte[] header, int i) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 		return (header[headerbyte] & (1 << headerbit)) != 0;
@@ -601,6 +789,65 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	protected BTreeKeyDirectory buildKeyDirectory() {
+		BTreeKeyDirectory d = new BTreeKeyDirectory(td.getFieldType(keyField), numSlots - 1);
+		// start from 1 because the first key slot is not used
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				d.add(i, keys[i]);
+		}
+		return d;
+	}
+
+	/**
+	 * Find the child page to descend into when searching for the left-most
+	 * occurrence of a key: the left child of the first entry whose key is
+	 * greater than or equal to f, or the right child of the last entry if
+	 * there is none. Binary searches the keys without creating any entries.
+	 * @param f - the key to search for, or null to find the left-most child
+	 * @return the id of the child page, or null if the page is empty
+	 */
+	public BTreePageId findChildId(Field f) {
+		return findChildId(f, false);
+	}
+
+	/**
+	 * Find the child page to descend into when searching for the left-most
+	 * occurrence of a key, as {@link #findChildId(Field)} does, or for the
+	 * right-most one: the left child of the first entry whose key is greater
+	 * than f, or the right child of the last entry if there is none.
+	 * @param f - the key to search for, or null to find the left-most or
+	 *        right-most child
+	 * @param last - whether to search for the right-most occurrence
+	 * @return the id of the child page, or null if the page is empty
+	 */
+	public BTreePageId findChildId(Field f, boolean last) {
+		latch.readLock().lock();
+		try {
+			BTreeKeyDirectory d = getKeyDirectory();
+			if (d.size() == 0)
+				return null;
+			int i;
+			if (f == null)
+				i = last ? d.size() : 0;
+			else
+				i = last ? d.upperBound(f) : d.lowerBound(f);
+			int childSlot;
+			if (i == d.size()) {
+				childSlot = d.slot(i - 1);
+			}
+			else {
+				// the left child is in the closest used slot before the key
+				childSlot = d.slot(i) - 1;
+				while (childSlot > 0 && !isSlotUsed(childSlot))
+					childSlot--;
+			}
+			return new BTreePageId(pid.getTableId(), children[childSlot], childCategory);
+		} finally {
+			latch.readLock().unlock();
+		}
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -743,7 +990,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -0,0 +1,176 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeKeyDirectory is a sorted, densely packed copy of the keys on a
+ * BTreePage, along with the slot each key is stored in. Slots on a page may
+ * be interleaved with empty ones, so the directory lets the page binary search
+ * its keys instead of walking every slot. Keys of type INT_TYPE are kept in a
+ * primitive int array, so that a search compares ints and allocates nothing.
+ * <p>
+ * A page builds its directory once, on its first search or change, and then
+ * keeps it up to date as keys are inserted, deleted, updated or moved between
+ * slots, shifting the arrays in place. Changes thus cost O(log n) comparisons
+ * to find the key plus an array copy, and allocate nothing.
+ *
+ * @see BTreePage#getKeyDirectory()
+ */
+class BTreeKeyDirectory {
+	private final int[] slots;
+	private final int[] intKeys;
+	private final Field[] keys;
+	private int size = 0;
+
+	/**
+	 * Create an empty directory.
+	 *
+	 * @param keyType - the type of the keys
+	 * @param capacity - the maximum number of keys that will be added
+	 */
+	BTreeKeyDirectory(Type keyType, int capacity) {
+		this.slots = new int[capacity];
+		if (keyType == Type.INT_TYPE) {
+			this.intKeys = new int[capacity];
+			this.keys = null;
+		} else {
+			this.intKeys = null;
+			this.keys = new Field[capacity];
+		}
+	}
+
+	/**
+	 * Append a key. Keys must be added in slot order, which is also key order.
+	 *
+	 * @param slot - the slot the key is stored in
+	 * @param key - the key
+	 */
+	void add(int slot, Field key) {
+		insert(size, slot, key);
+	}
+
+	/**
+	 * Insert a key at the specified index, shifting the keys after it.
+	 *
+	 * @param i - the index of the key, so that keys stay in slot order
+	 * @param slot - the slot the key is stored in
+	 * @param key - the key
+	 */
+	void insert(int i, int slot, Field key) {
+		System.arraycopy(slots, i, slots, i + 1, size - i);
+		if (intKeys != null)
+			System.arraycopy(intKeys, i, intKeys, i + 1, size - i);
+		else
+			System.arraycopy(keys, i, keys, i + 1, size - i);
+		slots[i] = slot;
+		size++;
+		setKey(i, key);
+	}
+
+	/**
+	 * Remove the key at the specified index, shifting the keys after it.
+	 */
+	void remove(int i) {
+		System.arraycopy(slots, i + 1, slots, i, size - i - 1);
+		if (intKeys != null) {
+			System.arraycopy(intKeys, i + 1, intKeys, i, size - i - 1);
+		} else {
+			System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+			keys[size - 1] = null;
+		}
+		size--;
+	}
+
+	/**
+	 * Replace the key at the specified index, which must keep the keys in
+	 * order.
+	 */
+	void setKey(int i, Field key) {
+		if (intKeys != null)
+			intKeys[i] = ((IntField) key).getValue();
+		else
+			keys[i] = key;
+	}
+
+	/**
+	 * Record that a key moved to another slot, with no used slot in between.
+	 *
+	 * @param from - the slot the key was stored in
+	 * @param to - the slot the key is now stored in
+	 */
+	void move(int from, int to) {
+		slots[rank(from)] = to;
+	}
+
+	/**
+	 * @return the number of keys stored in slots before the specified slot,
+	 *         which is the index of the key stored in it if there is one
+	 */
+	int rank(int slot) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (slots[mid] < slot)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the number of keys in the directory
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the slot of the ith smallest key
+	 */
+	int slot(int i) {
+		return slots[i];
+	}
+
+	/**
+	 * @return the index of the first key greater than or equal to f, or size()
+	 *         if there is none
+	 */
+	int lowerBound(Field f) {
+		return search(f, false);
+	}
+
+	/**
+	 * @return the index of the first key strictly greater than f, or size() if
+	 *         there is none
+	 */
+	int upperBound(Field f) {
+		return search(f, true);
+	}
+
+	private int search(Field f, boolean strict) {
+		int lo = 0;
+		int hi = size;
+		if (intKeys != null) {
+			int v = ((IntField) f).getValue();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (intKeys[mid] < v || (strict && intKeys[mid] == v))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+		} else {
+			Op op = strict ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid].compare(op, f))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+		}
+		return lo;
+	}
+}
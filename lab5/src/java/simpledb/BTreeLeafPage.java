@@ -15,6 +15,7 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
+	private final boolean compressed;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -35,7 +36,8 @@ public class BTreeLeafPage extends BTreePage {
 			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
-		if (checkoccupancy && depth > 0) {
+		// compressed pages hold a variable number of tuples
+		if (checkoccupancy && depth > 0 && !compressed) {
 			assert(getNumTuples() >= getMaxTuples()/2);
 		}
 	}
@@ -53,6 +55,12 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * If the key field is a string, keys are compressed (see
+	 * {@link BTreePage#compressesKeys}): the header is followed by the prefix
+	 * common to all the keys on the page, after a length byte, and then by the
+	 * tuples in the used slots only, each as the rest of its key, after a
+	 * length byte, and its other fields in their compact encoding (see
+	 * {@link Type#serializeCompact}). Such a page has {@link #numSlots} slots.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -63,7 +71,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxTuples();
+		this.compressed = compressesKeys(td.getFieldType(keyField));
+		this.numSlots = numSlots(types(td), keyField);
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -96,8 +105,15 @@ public class BTreeLeafPage extends BTreePage {
 		tuples = new Tuple[numSlots];
 		try{
 			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
+			if (compressed) {
+				String prefix = readKeyChars(dis, "");
+				for (int i=0; i<tuples.length; i++)
+					tuples[i] = isSlotUsed(i) ? readCompressedTuple(dis, i, prefix) : null;
+			}
+			else {
+				for (int i=0; i<tuples.length; i++)
+					tuples[i] = readNextTuple(dis,i);
+			}
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
@@ -110,20 +126,60 @@ public class BTreeLeafPage extends BTreePage {
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
 	public int getMaxTuples() {        
-		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		return maxTuples(td.getSize());
+	}
+
+	private static int maxTuples(int tupleSize) {
+		int bitsPerTupleIncludingHeader = tupleSize * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
 
+	/**
+	 * Retrieve the number of tuple slots of this page, more than
+	 * {@link #getMaxTuples()} if keys are compressed.
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * Retrieve the number of tuple slots of a leaf page of a B+ tree of tuples
+	 * of the specified types, keyed on keyField. Unless keys are compressed,
+	 * that is the maximum number of tuples. A compressed page has enough slots
+	 * for tuples with short keys, but few enough header bytes that the maximum
+	 * number of tuples of the largest size still fit.
+	 */
+	static int numSlots(Type[] types, int keyField) {
+		int tupleSize = 0;
+		for (Type t : types)
+			tupleSize += t.getLen();
+		int maxTuples = maxTuples(tupleSize);
+		if (!compressesKeys(types[keyField]))
+			return maxTuples;
+		// the smallest tuples have empty keys, and one byte holds the length
+		// of the common prefix
+		int minTupleSize = 1 + tupleSize - types[keyField].getLen();
+		int extraBits = 3 * INDEX_SIZE * 8 + 8;
+		int slots = (BufferPool.getPageSize()*8 - extraBits) / (minTupleSize * 8 + 1);
+		return Math.min(slots, 16 * maxTuples);
+	}
+
+	static Type[] types(TupleDesc td) {
+		Type[] types = new Type[td.numFields()];
+		for (int i=0; i<types.length; i++)
+			types[i] = td.getFieldType(i);
+		return types;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
-		int hb = (tuplesPerPage / 8);
-		if (hb * 8 < tuplesPerPage) hb++;
+		int hb = (numSlots / 8);
+		if (hb * 8 < numSlots) hb++;
 
 		return hb;
 	}
@@ -187,6 +243,25 @@ public class BTreeLeafPage extends BTreePage {
 		return t;
 	}
 
+	/**
+	 * Read a tuple stored in the compressed layout.
+	 */
+	private Tuple readCompressedTuple(DataInputStream dis, int slotId, String prefix) throws NoSuchElementException {
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			t.setField(keyField, stringKey(td.getFieldType(keyField), readKeyChars(dis, prefix)));
+			for (int j=0; j<td.numFields(); j++) {
+				if (j != keyField)
+					t.setField(j, td.getFieldType(j).parseCompact(dis));
+			}
+		} catch (IOException | java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+		return t;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -233,6 +308,11 @@ public class BTreeLeafPage extends BTreePage {
 			}
 		}
 
+		if (compressed) {
+			writeCompressedTuples(dos, tuples, header, td, keyField);
+			return pad(baos, dos, len);
+		}
+
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
@@ -279,6 +359,138 @@ public class BTreeLeafPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Write the tuples in the used slots of a page in the compressed layout:
+	 * the prefix common to their keys, and then each tuple.
+	 */
+	static void writeCompressedTuples(DataOutputStream dos, Tuple[] tuples, byte[] header, TupleDesc td,
+			int keyField) {
+		String prefix = null;
+		for (int i=0; i<tuples.length; i++) {
+			if (isSlotUsed(header, i))
+				prefix = commonPrefix(prefix, ((StringField) tuples[i].getField(keyField)).getValue());
+		}
+		if (prefix == null)
+			prefix = "";
+		try {
+			writeKeyChars(dos, prefix, 0);
+			for (int i=0; i<tuples.length; i++) {
+				if (!isSlotUsed(header, i))
+					continue;
+				writeKeyChars(dos, ((StringField) tuples[i].getField(keyField)).getValue(), prefix.length());
+				for (int j=0; j<td.numFields(); j++) {
+					if (j != keyField)
+						td.getFieldType(j).serializeCompact(tuples[i].getField(j), dos);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String commonPrefix(String prefix, String s) {
+		if (prefix == null)
+			return s;
+		int n = 0;
+		while (n < prefix.length() && n < s.length() && prefix.charAt(n) == s.charAt(n))
+			n++;
+		return prefix.substring(0, n);
+	}
+
+	// pad the page written so far with zeroes
+	static byte[] pad(ByteArrayOutputStream baos, DataOutputStream dos, int len) {
+		try {
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (baos.size() > len)
+			throw new IllegalStateException("page contents of " + baos.size() + " bytes overflow the page");
+		byte[] data = new byte[len];
+		System.arraycopy(baos.toByteArray(), 0, data, 0, baos.size());
+		return data;
+	}
+
+	/**
+	 * @return the number of bytes this page would take in the compressed
+	 *         layout, holding extra tuples as well as its own
+	 * @param extra - tuples the page would also hold
+	 * @param sharePrefix - whether keys are stored after their common prefix,
+	 *        or in full, as when a key without that prefix is added later
+	 */
+	private int compressedSize(Collection<Tuple> extra, boolean sharePrefix) {
+		ArrayList<Tuple> all = new ArrayList<Tuple>(extra);
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				all.add(tuples[i]);
+		}
+		String prefix = null;
+		if (sharePrefix) {
+			for (Tuple t : all)
+				prefix = commonPrefix(prefix, ((StringField) t.getField(keyField)).getValue());
+		}
+		int prefixLength = prefix == null ? 0 : prefix.length();
+		int size = compressedOverhead(numSlots) + prefixLength;
+		for (Tuple t : all)
+			size += compressedTupleSize(t, td, keyField, prefixLength);
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes a page with the specified number of slots
+	 *         takes in the compressed layout besides its tuples and the
+	 *         prefix of their keys: the pointers, the header and the length
+	 *         of the prefix
+	 */
+	static int compressedOverhead(int numSlots) {
+		return 3 * INDEX_SIZE + (numSlots + 7) / 8 + 1;
+	}
+
+	/**
+	 * @return the number of bytes a tuple takes in the compressed layout,
+	 *         stored after a prefix of its key of the specified length
+	 */
+	static int compressedTupleSize(Tuple t, TupleDesc td, int keyField, int prefixLength) {
+		int size = 1 + ((StringField) t.getField(keyField)).getValue().length() - prefixLength;
+		for (int j=0; j<td.numFields(); j++) {
+			if (j != keyField)
+				size += td.getFieldType(j).getCompactLen(t.getField(j));
+		}
+		return size;
+	}
+
+	// the size of the largest tuple in the compressed layout
+	private int maxCompressedTupleSize() {
+		return 1 + Type.STRING_LEN + td.getSize() - td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * @return true if the tuple fits on this page
+	 */
+	public boolean hasRoomFor(Tuple t) {
+		return hasRoomFor(Collections.singletonList(t));
+	}
+
+	/**
+	 * @return true if all the tuples of another page fit on this page
+	 */
+	public boolean hasRoomFor(BTreeLeafPage other) {
+		ArrayList<Tuple> ts = new ArrayList<Tuple>();
+		Iterator<Tuple> it = other.iterator();
+		while (it.hasNext())
+			ts.add(it.next());
+		return hasRoomFor(ts);
+	}
+
+	/**
+	 * @return true if all the specified tuples fit on this page
+	 */
+	boolean hasRoomFor(Collection<Tuple> ts) {
+		if (countEmptySlots() < ts.size())
+			return false;
+		return !compressed || compressedSize(ts, true) <= BufferPool.getPageSize();
+	}
+
 	/**
 	 * Delete the specified tuple from the page;  the tuple should be updated to reflect
 	 *   that it is no longer stored on any page.
@@ -294,7 +506,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null tuple.");
+		BTreeKeyDirectory d = getKeyDirectory();
 		markSlotUsed(rid.tupleno(), false);
+		d.remove(d.rank(rid.tupleno()));
 		t.setRecordId(null);
 	}
 
@@ -321,18 +535,13 @@ public class BTreeLeafPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
+		if (compressed && !hasRoomFor(t))
+			throw new DbException("called addTuple on page with no room for the tuple.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		BTreeKeyDirectory d = getKeyDirectory();
+		int greater = d.upperBound(t.getField(keyField));
+		int lessOrEqKey = (greater == 0) ? -1 : d.slot(greater - 1);
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -352,6 +561,7 @@ public class BTreeLeafPage extends BTreePage {
 
 		// insert new record into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
+		d.insert(greater, goodSlot, t.getField(keyField));
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
@@ -369,6 +579,7 @@ public class BTreeLeafPage extends BTreePage {
 			tuples[to] = tuples[from];
 			tuples[to].setRecordId(rid);
 			markSlotUsed(from, false);
+			getKeyDirectory().move(from, to);
 		}
 	}
 
@@ -438,13 +649,25 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		return numSlots - countEmptySlots();
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. If keys are compressed,
+	 * that is the number of tuples of the largest size that fit on this page
+	 * whatever their keys, so inserts should check {@link #hasRoomFor(Tuple)}
+	 * instead.
 	 */
 	public int getNumEmptySlots() {
+		int cnt = countEmptySlots();
+		if (compressed) {
+			int free = BufferPool.getPageSize() - compressedSize(Collections.<Tuple>emptyList(), false);
+			cnt = Math.min(cnt, Math.max(0, free / maxCompressedTupleSize()));
+		}
+		return cnt;
+	}
+
+	private int countEmptySlots() {
 		int cnt = 0;
 		for(int i=0; i<numSlots; i++)
 			if(!isSlotUsed(i))
@@ -456,6 +679,10 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
+		return isSlotUsed(header, i);
+	}
+
+	private static boolean isSlotUsed(byte[] header, int i) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 		return (header[headerbyte] & (1 << headerbit)) != 0;
@@ -475,6 +702,15 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	protected BTreeKeyDirectory buildKeyDirectory() {
+		BTreeKeyDirectory d = new BTreeKeyDirectory(td.getFieldType(keyField), numSlots);
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				d.add(i, tuples[i].getField(keyField));
+		}
+		return d;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -575,7 +811,7 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = p.getNumSlots() - 1;
 	}
 
 	public boolean hasNext() {
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.*;
 
 import simpledb.Predicate.Op;
@@ -27,6 +28,23 @@ public abstract class BTreePage implements Page {
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
+	private volatile BTreeKeyDirectory keyDirectory = null;
+
+	/**
+	 * Short-duration latch on the in-memory contents of this page, separate from
+	 * the transaction locks of the BufferPool. Writers hold it exclusively while
+	 * changing the keys or child pointers of the page, and optimistic descents
+	 * hold it shared while reading them.
+	 */
+	protected final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+	/**
+	 * Version of the keys and child pointers of this page in memory, incremented
+	 * by writers under the exclusive latch each time they change, so that an
+	 * optimistic descent can tell whether the page changed since it read it.
+	 */
+	protected volatile long version = 0;
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -131,6 +149,98 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * Get a sorted directory of the keys on this page, building it on first
+	 * use. Pages keep it up to date as their keys change, so it must be got
+	 * before a change and updated after it.
+	 * @return the key directory of this page
+	 */
+	BTreeKeyDirectory getKeyDirectory() {
+		BTreeKeyDirectory d = keyDirectory;
+		if (d == null) {
+			d = buildKeyDirectory();
+			keyDirectory = d;
+		}
+		return d;
+	}
+
+	/**
+	 * @return the version of the keys and child pointers of this page
+	 */
+	long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Build a directory of the keys currently on this page, in slot order
+	 */
+	protected abstract BTreeKeyDirectory buildKeyDirectory();
+
+	/**
+	 * Whether the pages of a B+ tree keyed on a field of the specified type
+	 * store their keys compressed. String keys are then stored with a length
+	 * byte and only the characters they have, instead of padded to
+	 * {@link Type#STRING_LEN} characters: a leaf page stores the prefix
+	 * common to all its keys once, and only the rest of each key, and an
+	 * internal page holds separators that {@link BTreeFile} truncates to the
+	 * shortest prefix still telling its children apart (see
+	 * {@link #separator}). A page then holds a variable number of entries,
+	 * so {@link #getNumEmptySlots} counts the entries of the largest size that
+	 * are sure to fit.
+	 */
+	static boolean compressesKeys(Type keyType) {
+		return keyType.isString();
+	}
+
+	/**
+	 * @return the shortest key s such that lower <= s <= upper, to separate
+	 *         a page whose last key is lower from a right sibling whose first
+	 *         key is upper; lower itself unless keys are compressed
+	 * @param lower - the last key of the left page
+	 * @param upper - the first key of the right page, or null if unknown
+	 */
+	static Field separator(Field lower, Field upper) {
+		if (upper == null || !compressesKeys(lower.getType()))
+			return lower;
+		String l = ((StringField) lower).getValue();
+		String u = ((StringField) upper).getValue();
+		int common = 0;
+		while (common < l.length() && common < u.length() && l.charAt(common) == u.charAt(common))
+			common++;
+		// lower is a prefix of upper, and so the shortest such key
+		if (common == l.length() || common == u.length())
+			return lower;
+		return stringKey(lower.getType(), u.substring(0, common + 1));
+	}
+
+	/**
+	 * @return a key of the specified string type holding s
+	 */
+	static Field stringKey(Type keyType, String s) {
+		if (keyType == Type.VARCHAR_TYPE)
+			return new VarcharField(s, Type.STRING_LEN);
+		return new StringField(s, Type.STRING_LEN);
+	}
+
+	/**
+	 * Write the characters of s from index from on, after a length byte, as
+	 * compressed pages store their keys
+	 */
+	static void writeKeyChars(DataOutputStream dos, String s, int from) throws IOException {
+		dos.writeByte(s.length() - from);
+		dos.writeBytes(s.substring(from));
+	}
+
+	/**
+	 * Read the characters written by {@link #writeKeyChars}
+	 * @return prefix followed by the characters read
+	 */
+	static String readKeyChars(DataInputStream dis, String prefix) throws IOException {
+		byte bs[] = new byte[dis.readUnsignedByte()];
+		dis.readFully(bs);
+		return prefix + new String(bs);
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
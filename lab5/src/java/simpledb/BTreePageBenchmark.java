@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * BTreePageBenchmark measures the work done on each page of a B+ tree
+ * descent and insert, on pages with int keys: finding the child of a full
+ * internal page by walking its entries, as descents did before pages kept a
+ * key directory, and by binary searching the directory with
+ * {@link BTreeInternalPage#findChildId}, then inserting a tuple into a leaf
+ * page and deleting it again, which keeps the directory of the leaf up to
+ * date. The time and the bytes allocated per operation are reported for each.
+ * Run it as
+ * <pre>
+ * java -classpath dist/simpledb.jar simpledb.SimpleDb btreebenchmark [operations]
+ * </pre>
+ * where operations is the number of operations timed for each.
+ */
+public class BTreePageBenchmark {
+
+    /** Number of distinct keys searched for, created before timing */
+    private static final int LOOKUP_KEYS = 1024;
+
+    public static void main(String[] args) throws DbException, IOException {
+        if (args.length > 1) {
+            System.err.println("Usage: btreebenchmark [operations]");
+            return;
+        }
+        final int operations = args.length == 1 ? Integer.parseInt(args[0]) : 10000000;
+
+        // pages take their tuple descriptor from the catalog
+        File f = File.createTempFile("btreebenchmark", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = new BTreeFile(f, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(bf, "btreebenchmark");
+        final BTreeInternalPage internal = fullInternalPage(bf.getId());
+        final BTreeLeafPage leaf = halfFullLeafPage(bf.getId());
+        Random rand = new Random(0);
+        final Field[] lookups = new Field[LOOKUP_KEYS];
+        final Tuple[] inserts = new Tuple[LOOKUP_KEYS];
+        for (int i = 0; i < LOOKUP_KEYS; i++) {
+            int key = rand.nextInt(2 * internal.getMaxEntries());
+            lookups[i] = new IntField(key);
+            inserts[i] = tuple(key);
+        }
+        System.out.println("Searching an internal page of " + internal.getNumEntries() + " entries and a leaf page of "
+                + leaf.getNumTuples() + " tuples, " + operations + " times each");
+
+        run("walk entries", operations, new Operation() {
+            public long run(int i) {
+                return walk(internal, lookups[i % LOOKUP_KEYS]).pageNumber();
+            }
+        });
+        run("findChildId", operations, new Operation() {
+            public long run(int i) {
+                return internal.findChildId(lookups[i % LOOKUP_KEYS]).pageNumber();
+            }
+        });
+        run("leaf insert+delete", operations, new Operation() {
+            public long run(int i) throws DbException {
+                Tuple t = inserts[i % LOOKUP_KEYS];
+                leaf.insertTuple(t);
+                leaf.deleteTuple(t);
+                return leaf.getNumTuples();
+            }
+        });
+    }
+
+    private interface Operation {
+        long run(int i) throws DbException;
+    }
+
+    // time an operation after running it as many times to warm up the code
+    private static void run(String name, int operations, Operation op) throws DbException {
+        long sink = 0;
+        for (int i = 0; i < operations; i++)
+            sink += op.run(i);
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++)
+            sink += op.run(i);
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+        System.out.printf("%-20s %8.1f ns/op %8.1f bytes/op (%d)%n", name, (double) elapsed / operations,
+                (double) bytes / operations, sink % 10);
+    }
+
+    // the child to descend into for f, found by walking the entries of the page
+    private static BTreePageId walk(BTreeInternalPage page, Field f) {
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            if (e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+                return e.getLeftChild();
+        }
+        return e.getRightChild();
+    }
+
+    // an internal page holding as many entries as fit, with the even keys
+    private static BTreeInternalPage fullInternalPage(int tableid) throws IOException {
+        BTreePageId pid = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+        int n = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0).getMaxEntries();
+        ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+        for (int i = 0; i < n; i++) {
+            entries.add(new BTreeEntry(new IntField(2 * i), new BTreePageId(tableid, i + 2, BTreePageId.LEAF),
+                    new BTreePageId(tableid, i + 3, BTreePageId.LEAF)));
+        }
+        return new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(entries,
+                BufferPool.getPageSize(), Type.INT_TYPE, BTreePageId.LEAF), 0);
+    }
+
+    // a leaf page filled to half its capacity, with the even keys
+    private static BTreeLeafPage halfFullLeafPage(int tableid) throws IOException {
+        BTreePageId pid = new BTreePageId(tableid, 1, BTreePageId.LEAF);
+        int n = new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), 0).getMaxTuples() / 2;
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            tuples.add(tuple(2 * i));
+        Type[] types = { Type.INT_TYPE, Type.INT_TYPE };
+        return new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(tuples,
+                BufferPool.getPageSize(), 2, types, 0), 0);
+    }
+
+    private static Tuple tuple(int key) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(key));
+        return t;
+    }
+
+    // the bytes allocated by this thread so far, or 0 if the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
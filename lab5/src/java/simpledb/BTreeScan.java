@@ -4,7 +4,7 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, in ascending or descending key order
  */
 public class BTreeScan implements DbIterator {
 
@@ -14,6 +14,8 @@ public class BTreeScan implements DbIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private Predicate[] preds = null;
+	private boolean descending = false;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -43,6 +45,37 @@ public class BTreeScan implements DbIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a B+ tree scan over the specified table, returning the tuples
+	 * that satisfy all of the specified predicates in ascending or descending
+	 * key order. The predicates that bound the key field limit the leaves
+	 * read to those of the range they define.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan, stored in a {@link BTreeFile}.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @param preds
+	 *            predicates over fields of the table, or null
+	 * @param descending
+	 *            whether to return the tuples in descending key order
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, Predicate[] preds, boolean descending) {
+		this.tid = tid;
+		this.preds = preds;
+		this.descending = descending;
+		reset(tableid,tableAlias);
+	}
+
+	/**
+	 * @return whether this scan returns the tuples in descending key order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -76,11 +109,14 @@ public class BTreeScan implements DbIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(preds != null || descending) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).iterator(tid, preds, null, descending);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = ((IndexFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BitmapIndex maps each distinct value of one field of a {@link HeapFile}
+ * table to a {@link RoaringBitmap} of the positions of the tuples holding
+ * it, the position of a tuple being its page number times the number of
+ * slots of a page, plus its slot. Such an index is meant for fields with few
+ * distinct values, such as status codes or flags, for which a predicate
+ * matches many tuples: the bitmaps of several predicates are combined with
+ * AND and OR by a {@link BitmapScan}, which then reads only the pages of the
+ * positions left, in page order.
+ * <p>
+ * The bitmaps are only kept in memory: an index is not persisted, and is
+ * rebuilt from its table by {@link #create} whenever the database is opened,
+ * after recovery, like the registration of a {@link SecondaryIndex}.
+ * <p>
+ * The bitmaps hold exactly the positions of the tuples written by committed
+ * and running transactions. {@link BufferPool#insertTuple} sets the bit of
+ * each tuple it inserts once the tuple is on its page, and the bit is cleared
+ * again if the transaction aborts. {@link BufferPool#deleteTuple} records
+ * the bit of the tuple it deletes, which is cleared when the transaction
+ * commits, so that transactions locking the page meanwhile still find the
+ * tuple if the delete aborts. Both happen in
+ * {@link BufferPool#transactionComplete} before the locks of the transaction
+ * are released, so before any other transaction reuses the slot.
+ */
+public class BitmapIndex {
+
+    private final int tableId;
+    private final int field;
+    private final int slotsPerPage;
+    private final HashMap<Field, RoaringBitmap> bitmaps = new HashMap<Field, RoaringBitmap>();
+    // the values each running transaction inserted, whose bits are cleared
+    // if it aborts, and those it deleted, whose bits are cleared once it
+    // commits, by position
+    private final HashMap<TransactionId, HashMap<Integer, Field>> inserted = new HashMap<TransactionId, HashMap<Integer, Field>>();
+    private final HashMap<TransactionId, HashMap<Integer, Field>> deleted = new HashMap<TransactionId, HashMap<Integer, Field>>();
+
+    /**
+     * Constructor; the index is empty.
+     *
+     * @param tableId
+     *            the id of the indexed HeapFile table
+     * @param field
+     *            the index of the indexed field in the table
+     */
+    public BitmapIndex(int tableId, int field) {
+        this.tableId = tableId;
+        this.field = field;
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        this.slotsPerPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+    }
+
+    /**
+     * Creates a bitmap index over the specified field of a table, registers
+     * it in the catalog and sets the bit of every tuple currently in the
+     * table. The table must not be modified while its index is being built.
+     *
+     * @param tableId
+     *            the id of the table to index
+     * @param field
+     *            the index of the field to index
+     * @return the new index
+     */
+    public static BitmapIndex create(int tableId, int field)
+            throws DbException, IOException, TransactionAbortedException {
+        BitmapIndex index = new BitmapIndex(tableId, field);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            index.set(t.getField(field), index.positionOf(t.getRecordId()));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().addBitmapIndex(index);
+        return index;
+    }
+
+    /** @return the id of the indexed table */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the index of the indexed field */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the position of a tuple of the indexed table
+     */
+    int positionOf(RecordId rid) {
+        return rid.getPageId().pageNumber() * slotsPerPage + rid.tupleno();
+    }
+
+    /**
+     * @return the id of the tuple at a position of the indexed table
+     */
+    RecordId recordIdAt(int position) {
+        return new RecordId(new HeapPageId(tableId, position / slotsPerPage), position % slotsPerPage);
+    }
+
+    /**
+     * @return the number of distinct values the index has bitmaps for
+     */
+    public synchronized int numValues() {
+        return bitmaps.size();
+    }
+
+    private void set(Field value, int position) {
+        RoaringBitmap bitmap = bitmaps.get(value);
+        if (bitmap == null) {
+            bitmap = new RoaringBitmap();
+            bitmaps.put(value, bitmap);
+        }
+        bitmap.add(position);
+    }
+
+    private void clear(Field value, int position) {
+        RoaringBitmap bitmap = bitmaps.get(value);
+        if (bitmap == null)
+            return;
+        bitmap.remove(position);
+        if (bitmap.isEmpty())
+            bitmaps.remove(value);
+    }
+
+    private static HashMap<Integer, Field> changesOf(HashMap<TransactionId, HashMap<Integer, Field>> changes,
+            TransactionId tid) {
+        HashMap<Integer, Field> c = changes.get(tid);
+        if (c == null) {
+            c = new HashMap<Integer, Field>();
+            changes.put(tid, c);
+        }
+        return c;
+    }
+
+    /**
+     * Sets the bit of a tuple a transaction inserted into the indexed table,
+     * so that its RecordId is set.
+     */
+    synchronized void insert(TransactionId tid, Tuple t) {
+        Field value = t.getField(field);
+        int position = positionOf(t.getRecordId());
+        // the tuple the transaction deleted there is back, with its bit
+        if (value.equals(changesOf(deleted, tid).get(position))) {
+            deleted.get(tid).remove(position);
+            return;
+        }
+        set(value, position);
+        changesOf(inserted, tid).put(position, value);
+    }
+
+    /**
+     * Records the bit of a tuple a transaction deleted from the indexed
+     * table, to be cleared when the transaction commits.
+     *
+     * @param rid the RecordId the tuple had before it was deleted
+     */
+    synchronized void delete(TransactionId tid, Tuple t, RecordId rid) {
+        Field value = t.getField(field);
+        int position = positionOf(rid);
+        // a tuple the transaction inserted was never seen by others
+        if (changesOf(inserted, tid).remove(position) != null) {
+            clear(value, position);
+            return;
+        }
+        changesOf(deleted, tid).put(position, value);
+    }
+
+    /**
+     * Clears the bits of the tuples a transaction deleted if it commits, or
+     * of those it inserted if it aborts. Must be called before the locks of
+     * the transaction are released.
+     */
+    synchronized void transactionComplete(TransactionId tid, boolean commit) {
+        HashMap<Integer, Field> ins = inserted.remove(tid);
+        HashMap<Integer, Field> del = deleted.remove(tid);
+        HashMap<Integer, Field> cleared = commit ? del : ins;
+        if (cleared == null)
+            return;
+        for (Map.Entry<Integer, Field> e : cleared.entrySet())
+            clear(e.getValue(), e.getKey());
+    }
+
+    /**
+     * Get the positions of the tuples whose indexed field matches a
+     * predicate: the union of the bitmaps of the values matching it, each of
+     * which is checked since the index has few of them.
+     *
+     * @return a new bitmap, which the caller may change
+     */
+    public synchronized RoaringBitmap lookup(Predicate.Op op, Field operand) {
+        if (op == Predicate.Op.EQUALS) {
+            RoaringBitmap bitmap = bitmaps.get(operand);
+            return bitmap == null ? new RoaringBitmap() : bitmap.copy();
+        }
+        RoaringBitmap result = new RoaringBitmap();
+        for (Map.Entry<Field, RoaringBitmap> e : bitmaps.entrySet()) {
+            if (e.getKey().compare(op, operand))
+                result = RoaringBitmap.or(result, e.getValue());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BitmapScan is an operator which reads the tuples of a HeapFile table that
+ * match a conjunction of predicates and of disjunctions of predicates, by
+ * combining the {@link BitmapIndex BitmapIndexes} of the table before
+ * reading any page: the bitmaps of the values matching each predicate of a
+ * disjunction are ORed, and those of the predicates and disjunctions ANDed.
+ * The pages of the positions left are then read in page order, each once,
+ * and their tuples checked against every predicate, including those over
+ * fields without a bitmap index.
+ * <p>
+ * The bitmaps describe the latest state of the table, so a transaction
+ * reading a snapshot (see {@link BufferPool#beginSnapshot}) reads every page
+ * of the table instead, and checks its tuples the same way.
+ */
+public class BitmapScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableId;
+    private final String tableAlias;
+    private final Predicate[] preds;
+    private final Predicate[][] disjunctions;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan of the tuples of a table matching every predicate of
+     * preds and at least one predicate of each disjunction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableId
+     *            the id of the table to scan
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName
+     * @param preds
+     *            predicates over fields of the table, or null
+     * @param disjunctions
+     *            disjunctions of predicates over fields of the table, or
+     *            null
+     * @throws IllegalArgumentException
+     *             if neither a predicate nor a disjunction can be answered
+     *             with the bitmap indexes of the table
+     */
+    public BitmapScan(TransactionId tid, int tableId, String tableAlias, Predicate[] preds,
+            Predicate[][] disjunctions) {
+        this.tid = tid;
+        this.tableId = tableId;
+        this.tableAlias = tableAlias;
+        this.preds = preds == null ? new Predicate[0] : preds;
+        this.disjunctions = disjunctions == null ? new Predicate[0][] : disjunctions;
+        boolean indexed = false;
+        for (Predicate p : this.preds)
+            indexed |= canAnswer(tableId, new Predicate[] { p });
+        for (Predicate[] d : this.disjunctions)
+            indexed |= canAnswer(tableId, d);
+        if (!indexed)
+            throw new IllegalArgumentException("no bitmap index of table " + tableId + " answers the predicates");
+
+        TupleDesc base = Database.getCatalog().getTupleDesc(tableId);
+        String[] names = new String[base.numFields()];
+        Type[] types = new Type[base.numFields()];
+        for (int i = 0; i < base.numFields(); i++) {
+            names[i] = tableAlias + "." + base.getFieldName(i);
+            types[i] = base.getFieldType(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return whether every predicate of a disjunction is over a field with
+     *         a bitmap index, so that the indexes can answer it
+     */
+    public static boolean canAnswer(int tableId, Predicate[] disjunction) {
+        if (disjunction.length == 0)
+            return false;
+        for (Predicate p : disjunction) {
+            if (Database.getCatalog().getBitmapIndex(tableId, p.getField()) == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the actual name of the table the operator scans in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableId);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the positions of the tuples that may match, combining the
+     *         bitmaps of the predicates and disjunctions the indexes answer
+     */
+    RoaringBitmap positions() {
+        RoaringBitmap result = null;
+        for (Predicate p : preds) {
+            if (canAnswer(tableId, new Predicate[] { p })) {
+                RoaringBitmap b = lookup(p);
+                result = result == null ? b : RoaringBitmap.and(result, b);
+            }
+        }
+        for (Predicate[] d : disjunctions) {
+            if (!canAnswer(tableId, d))
+                continue;
+            RoaringBitmap union = new RoaringBitmap();
+            for (Predicate p : d)
+                union = RoaringBitmap.or(union, lookup(p));
+            result = result == null ? union : RoaringBitmap.and(result, union);
+        }
+        return result;
+    }
+
+    private RoaringBitmap lookup(Predicate p) {
+        return Database.getCatalog().getBitmapIndex(tableId, p.getField()).lookup(p.getOp(), p.getOperand());
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        it = new BitmapScanIterator();
+        it.open();
+        isOpen = true;
+    }
+
+    /**
+     * @return the TupleDesc of the underlying table, with field names prefixed
+     *         with the tableAlias string from the constructor
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Reads the tuples at the positions the bitmaps leave, a page at a time,
+     * or all the tuples of the table for a snapshot.
+     */
+    private class BitmapScanIterator extends AbstractDbFileIterator {
+        private PrimitiveIterator.OfInt positions;
+        // the index whose numbering of positions is used
+        private BitmapIndex layout;
+        private HeapPage page;
+        private DbFileIterator snapshot;
+
+        public void open() throws DbException, TransactionAbortedException {
+            if (Database.getBufferPool().isSnapshot(tid)) {
+                snapshot = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+                snapshot.open();
+                return;
+            }
+            positions = positions().iterator();
+            layout = Database.getCatalog().getBitmapIndexes(tableId).get(0);
+            page = null;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (snapshot != null && snapshot.hasNext()) {
+                Tuple t = snapshot.next();
+                if (matches(t))
+                    return t;
+            }
+            while (positions != null && positions.hasNext()) {
+                RecordId rid = layout.recordIdAt(positions.nextInt());
+                if (page == null || !page.getId().equals(rid.getPageId()))
+                    page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+                // the slot of an insert that aborted since the bitmaps were
+                // read is empty
+                Tuple t = page.getTuple(rid.tupleno());
+                if (t != null && matches(t))
+                    return t;
+            }
+            return null;
+        }
+
+        private boolean matches(Tuple t) {
+            for (Predicate p : preds) {
+                if (!p.filter(t))
+                    return false;
+            }
+            for (Predicate[] d : disjunctions) {
+                boolean any = false;
+                for (int k = 0; k < d.length && !any; k++)
+                    any = d[k].filter(t);
+                if (!any)
+                    return false;
+            }
+            return true;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (snapshot != null)
+                snapshot.close();
+            snapshot = null;
+            positions = null;
+            page = null;
+        }
+    }
+}
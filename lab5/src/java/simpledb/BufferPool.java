@@ -3,6 +3,7 @@ package simpledb;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,6 +13,31 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages are cached in a fixed table of frames, one per page of the pool,
+ * found through an index from page id to frame. Iterators that read a page
+ * over several calls pin it with {@link #pinPage} and unpin it with
+ * {@link #unpinPage}; pinned pages are never evicted. Locks are taken by a
+ * {@link LockManager}, on pages under intention locks on their tables, and
+ * escalated to a table lock when a transaction locks many pages of a table.
+ * <p>
+ * The frames are split into shards by the hash of the page id, each with its
+ * own index, free frame list, clock and lock, so that misses and evictions
+ * of pages of different shards proceed in parallel. A shard that has no
+ * frame to spare takes one from another shard. Page operations never hold
+ * the monitor of the pool itself, which {@link LogFile} uses to exclude
+ * them from recovery.
+ * <p>
+ * Read-only transactions may run as snapshots, started with
+ * {@link #beginSnapshot}, which take no locks and read every page as it was
+ * committed when they began, from the prior versions of pages that commits
+ * keep in a {@link VersionStore} while snapshots need them.
+ * <p>
+ * In off-heap mode, the data of clean pages evicted from the frames is kept
+ * in an {@link OffHeapPageStore}, a second level cache of page data outside
+ * the Java heap split into stripes like the frames are split into shards, and
+ * pages read again are rebuilt from it instead of from disk, so that a large
+ * pool costs little heap and garbage collection time.
  *
  * @Threadsafe, all fields are final
  */
@@ -30,92 +56,150 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private final int maxNumPages;
-    private ConcurrentHashMap<PageId, Page> pageCache;
-    private int counter = 0;
-
-    private class PageLock {
-        private Set<TransactionId> sharedLock = ConcurrentHashMap.newKeySet();
-        private TransactionId exclusiveLock = null;
-        public PageId pageId;
-
-        PageLock(PageId pid) {
-            pageId = pid;
-        }
-
-        boolean requireLock(Permissions perm, TransactionId tid) {
-            if (perm.equals(Permissions.READ_ONLY)) return requireShared(tid);
-            return requireExclusive(tid);
-        }
-
-        private boolean requireShared(TransactionId tid) {
-            if (exclusiveLock != null && !exclusiveLock.equals(tid)) return false;
-            if (!sharedLock.contains(tid)) sharedLock.add(tid);
-            return true;
-        }
+    /**
+     * Maximum number of shards of a pool, see {@link #BufferPool(int, int, int)}
+     */
+    public static final int MAX_SHARDS = 64;
 
-        private boolean requireExclusive(TransactionId tid) {
-            if (exclusiveLock != null && !exclusiveLock.equals(tid)) return false;
-            if (sharedLock.size() > 1 || (sharedLock.size() == 1 && !sharedLock.contains(tid))) return false;
-            exclusiveLock = tid;
-            sharedLock.clear();
-            return true;
-        }
+    // pools get a shard for every this many pages, up to DEFAULT_SHARDS
+    private static final int PAGES_PER_SHARD = 16;
+    private static final int DEFAULT_SHARDS = 16;
 
-        void releaseLock(TransactionId tid) {
-            assert exclusiveLock == null || tid.equals(exclusiveLock);
-            if (exclusiveLock != null && tid.equals(exclusiveLock)) exclusiveLock = null;
-            else sharedLock.remove(tid);
-        }
+    private final int maxNumPages;
+    private final Shard[] shards;
+    // the data of evicted pages, or null if the pool is not off-heap
+    private final OffHeapPageStore offHeap;
 
-        boolean holdsLock(TransactionId tid) {
-            return (exclusiveLock != null && tid.equals(exclusiveLock)) || sharedLock.contains(tid);
+    /**
+     * A frame of the pool, holding a cached page and the pins on it. Frames
+     * are reused for other pages, so the page and its id are only read or
+     * changed while synchronized on the frame.
+     */
+    private static class Frame {
+        PageId pid = null;
+        Page page = null;
+        // whether the page was used since the clock last passed the frame
+        boolean referenced = false;
+        // the LSN of the last update of the page logged, or -1
+        long lsn = -1;
+        // number of pins each transaction holds on the page
+        final HashMap<TransactionId, Integer> pins = new HashMap<>();
+
+        boolean holds(PageId pid) {
+            return pid.equals(this.pid);
         }
+    }
 
-        boolean exclusive() {
-            return exclusiveLock != null;
+    /**
+     * A shard of the pool: the frames of the pages whose ids hash to it. The
+     * index is read without the lock; everything else is only used while
+     * holding it.
+     */
+    private class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        final ConcurrentHashMap<PageId, Frame> index = new ConcurrentHashMap<>();
+        // the frames of this shard holding a page, in clock order, and
+        // those holding none
+        final ArrayList<Frame> frames = new ArrayList<>();
+        final ArrayDeque<Frame> free = new ArrayDeque<>();
+        // the next frame the clock looks at for a page to evict
+        int clockHand = 0;
+
+        /**
+         * Remove a frame from this shard to hold another page, a free one or
+         * that of the first page after the clock hand that is neither pinned,
+         * dirty nor recently used, which is evicted. Pages are only written
+         * in NO STEAL mode when their transaction commits, so dirty pages are
+         * never evicted.
+         *
+         * @return the frame, or null if every page is pinned or dirty
+         */
+        Frame take() {
+            Frame frame = free.poll();
+            if (frame != null)
+                return frame;
+            // the first pass clears the referenced bits, the second finds a
+            // page to evict if any unpinned clean page exists
+            for (int n = 0; n < 2 * frames.size(); n++) {
+                if (clockHand >= frames.size())
+                    clockHand = 0;
+                frame = frames.get(clockHand);
+                synchronized (frame) {
+                    if (!frame.pins.isEmpty() || frame.page.isDirty() != null) {
+                        clockHand++;
+                        continue;
+                    }
+                    if (frame.referenced) {
+                        frame.referenced = false;
+                        clockHand++;
+                        continue;
+                    }
+                    if (offHeap != null)
+                        offHeap.put(frame.pid, frame.page.getPageData());
+                    index.remove(frame.pid);
+                    frame.pid = null;
+                    frame.page = null;
+                }
+                frames.remove(clockHand);
+                return frame;
+            }
+            return null;
         }
 
-        Set<TransactionId> relatedTransactions() {
-            Set<TransactionId> transactionIds = new HashSet<>(sharedLock);
-            if (exclusiveLock != null) transactionIds.add(exclusiveLock);
-            return transactionIds;
+        /**
+         * Find a frame to hold another page of this shard, taking one from
+         * another shard if this one has none to spare. The lock of this
+         * shard is released meanwhile, so that shards taking frames from each
+         * other cannot deadlock; callers look up their page again afterwards.
+         */
+        Frame obtain() throws DbException {
+            Frame frame = take();
+            if (frame != null)
+                return frame;
+            lock.unlock();
+            try {
+                return takeFromOtherShard(this);
+            } finally {
+                lock.lock();
+            }
         }
 
-    }
-
-    private class DependencyGraph {
-        private ConcurrentHashMap<TransactionId, HashSet<TransactionId>> edges = new ConcurrentHashMap<>();
-
-        synchronized void updateEdges(TransactionId requestor, PageId pid) {
-            HashSet<TransactionId> requestEdges = edges.computeIfAbsent(requestor, k -> new HashSet<>());
-            requestEdges.clear();
-            if (pid != null) {
-                Set<TransactionId> owners = lockManager.get(pid).relatedTransactions();
-                requestEdges.addAll(owners);
+        /**
+         * Put a page into an empty frame, which becomes a frame of this shard.
+         */
+        Frame install(PageId pid, Page page, Frame frame) {
+            synchronized (frame) {
+                frame.pid = pid;
+                frame.page = page;
+                frame.referenced = true;
+                frame.lsn = -1;
             }
+            frames.add(frame);
+            index.put(pid, frame);
+            return frame;
         }
 
-        synchronized boolean findCycle(TransactionId start) {
-            HashSet<TransactionId> visited = new HashSet<>();
-            Queue<TransactionId> bfsQueue = new LinkedList<>();
-            bfsQueue.add(start);
-            visited.add(start);
-            while (!bfsQueue.isEmpty()) {
-                TransactionId curPoint = bfsQueue.poll();
-                HashSet<TransactionId> curEdges = edges.getOrDefault(curPoint, new HashSet<>());
-                for (TransactionId toPoint : curEdges) {
-                    if (toPoint.equals(start)) return true;
-                    if (visited.add(toPoint)) bfsQueue.add(toPoint);
-                }
+        /**
+         * Empty the frame of a page, keeping the frame in this shard.
+         */
+        void remove(PageId pid) {
+            Frame frame = index.remove(pid);
+            if (frame == null)
+                return;
+            synchronized (frame) {
+                frame.pid = null;
+                frame.page = null;
+                frame.pins.clear();
             }
-            return false;
+            frames.remove(frame);
+            free.add(frame);
         }
     }
 
-    private ConcurrentHashMap<PageId, PageLock> lockManager;
-    private ConcurrentHashMap<TransactionId, Set<PageId>> transactionLockHolder;
-    private DependencyGraph dependencyGraph;
+    // the page and table locks of the transactions
+    private final LockManager lockManager = new LockManager();
+    // the snapshots, and the page versions they read
+    private final VersionStore versions = new VersionStore();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -123,12 +207,50 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, 0);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages on the Java heap,
+     * and the data of up to offHeapPages more pages off the heap.
+     *
+     * @param numPages maximum number of pages in the frames of this pool.
+     * @param offHeapPages maximum number of pages kept off the heap, or 0 for
+     *        an on-heap pool.
+     */
+    public BufferPool(int numPages, int offHeapPages) {
+        this(numPages, offHeapPages, defaultShards(numPages));
+    }
+
+    /**
+     * @return the number of shards of a pool of numPages pages, unless the
+     *         constructor is given another
+     */
+    static int defaultShards(int numPages) {
+        return Math.max(1, Math.min(DEFAULT_SHARDS, numPages / PAGES_PER_SHARD));
+    }
+
+    /**
+     * Creates a BufferPool whose frames are split into the specified number
+     * of shards.
+     *
+     * @param numPages maximum number of pages in the frames of this pool.
+     * @param offHeapPages maximum number of pages kept off the heap, or 0 for
+     *        an on-heap pool.
+     * @param numShards the number of shards, between 1 and MAX_SHARDS and at
+     *        most numPages.
+     */
+    public BufferPool(int numPages, int offHeapPages, int numShards) {
         // some code goes here
+        if (numShards < 1 || numShards > MAX_SHARDS || numShards > numPages)
+            throw new IllegalArgumentException("bad number of shards " + numShards);
         maxNumPages = numPages;
-        pageCache = new ConcurrentHashMap<>();
-        lockManager = new ConcurrentHashMap<>();
-        transactionLockHolder = new ConcurrentHashMap<>();
-        dependencyGraph = new DependencyGraph();
+        offHeap = offHeapPages > 0 ? new OffHeapPageStore(offHeapPages, getPageSize(), numShards) : null;
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard();
+        for (int i = 0; i < numPages; i++)
+            shards[i % numShards].free.add(new Frame());
     }
 
     public static int getPageSize() {
@@ -164,38 +286,206 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        lockManager.putIfAbsent(pid, new PageLock(pid));
-        boolean lockAcquired;
-        synchronized (lockManager.get(pid)) {
-            lockAcquired = lockManager.get(pid).requireLock(perm, tid);
-        }
+        if (versions.isSnapshot(tid))
+            return snapshotPage(tid, pid, perm);
+        acquireLock(tid, pid, perm);
+        return peekPage(pid);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage}, but without waiting
+     * for a lock: if another transaction holds a conflicting lock, the
+     * request is aborted right away. Transactions that take all their locks
+     * this way never wait for others, so they are the ones aborted rather
+     * than the ones they would deadlock with, and may retry later.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @throws TransactionAbortedException if the lock is not granted at once
+     */
+    public Page getPageNoWait(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid))
+            return snapshotPage(tid, pid, perm);
+        lockManager.acquire(tid, pid, perm, false);
+        return peekPage(pid);
+    }
+
+    /**
+     * Start a snapshot for a read-only transaction, which from then on reads
+     * pages without locks, as they were committed when it began, until it
+     * completes. Snapshots may not write pages.
+     *
+     * @param tid the ID of a transaction that has not read any page yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
 
-        while (!lockAcquired) {
-            Thread.yield();
-            dependencyGraph.updateEdges(tid, pid);
-            if (dependencyGraph.findCycle(tid)) {
-                throw new TransactionAbortedException();
+    /**
+     * @return whether a transaction reads a snapshot, see {@link #beginSnapshot}
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
+    // the page pid as the snapshot tid reads it
+    private Page snapshotPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (perm != Permissions.READ_ONLY)
+            throw new DbException("snapshot transactions cannot write");
+        // the committed image, read before the versions, which commits add
+        // before changing it
+        Page current = peekPage(pid).getBeforeImage();
+        Page version = versions.find(tid, pid);
+        return version != null ? version : current;
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage}, and pin it, so that
+     * it is not evicted until the transaction unpins it with
+     * {@link #unpinPage} or completes. Pins nest. Snapshot pages are not
+     * cached, so they are returned like {@link #getPage} returns them.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid))
+            return snapshotPage(tid, pid, perm);
+        acquireLock(tid, pid, perm);
+        while (true) {
+            Frame frame = frameFor(pid);
+            synchronized (frame) {
+                // the frame may have been reused since it was found
+                if (frame.holds(pid)) {
+                    frame.pins.merge(tid, 1, Integer::sum);
+                    frame.referenced = true;
+                    return frame.page;
+                }
             }
-            Thread.yield();
-            synchronized (lockManager.get(pid)) {
-                lockAcquired = lockManager.get(pid).requireLock(perm, tid);
+        }
+    }
+
+    /**
+     * Release one pin of a transaction on a page, taken by {@link #pinPage}.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the pinned page
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Frame frame = cachedFrame(pid);
+        if (frame == null)
+            return;
+        synchronized (frame) {
+            if (frame.holds(pid))
+                frame.pins.computeIfPresent(tid, (k, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+
+    // block until tid holds a lock on pid with the specified permissions
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquire(tid, pid, perm);
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table before
+     * it tries to escalate them to a table lock.
+     */
+    void setLockEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    /**
+     * Retrieve the specified page without acquiring any lock on it, reading it
+     * into the buffer pool like {@link #getPage} if it is not cached yet.
+     * <p>
+     * The page may hold uncommitted changes of another transaction, or be
+     * changed while the caller reads it, so this is only meant for callers
+     * that validate what they read, such as the optimistic descents of
+     * {@link BTreeFile}.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page peekPage(PageId pid) throws DbException {
+        while (true) {
+            Frame frame = frameFor(pid);
+            synchronized (frame) {
+                // the frame may have been reused since it was found
+                if (frame.holds(pid)) {
+                    frame.referenced = true;
+                    return frame.page;
+                }
             }
         }
-        dependencyGraph.updateEdges(tid, null);
+    }
+
+    private Shard shardOf(PageId pid) {
+        return shards[(pid.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
 
-        transactionLockHolder.putIfAbsent(tid, new HashSet<>());
-        transactionLockHolder.get(tid).add(pid);
+    // the frame holding pid, or null if the page is not cached
+    private Frame cachedFrame(PageId pid) {
+        return shardOf(pid).index.get(pid);
+    }
 
-        Page requestedPage = pageCache.get(pid);
-        if (requestedPage == null) {
-            while (pageCache.size() >= maxNumPages) {
-                evictPage();
+    // the frame holding pid, reading the page into a frame if it is not
+    // cached
+    private Frame frameFor(PageId pid) throws DbException {
+        Shard shard = shardOf(pid);
+        Frame frame = shard.index.get(pid);
+        if (frame != null)
+            return frame;
+        shard.lock.lock();
+        try {
+            frame = shard.index.get(pid);
+            if (frame != null)
+                return frame;
+            Frame empty = shard.obtain();
+            frame = shard.index.get(pid);
+            if (frame != null) {
+                shard.free.add(empty);
+                return frame;
             }
-            requestedPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            pageCache.put(pid, requestedPage);
-            requestedPage.setBeforeImage();
+            Page page;
+            try {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                byte[] data = offHeap == null ? null : offHeap.get(pid);
+                page = data == null ? null : file.readPage(pid, data);
+                if (page == null)
+                    page = file.readPage(pid);
+            } catch (RuntimeException e) {
+                shard.free.add(empty);
+                throw e;
+            }
+            page.setBeforeImage();
+            return shard.install(pid, page, empty);
+        } finally {
+            shard.lock.unlock();
         }
-        return requestedPage;
+    }
+
+    /**
+     * Take a frame from a shard other than the specified one. The caller
+     * must not hold the lock of any shard.
+     */
+    private Frame takeFromOtherShard(Shard shard) throws DbException {
+        for (Shard other : shards) {
+            if (other == shard)
+                continue;
+            other.lock.lock();
+            try {
+                Frame frame = other.take();
+                if (frame != null)
+                    return frame;
+            } finally {
+                other.lock.unlock();
+            }
+        }
+        throw new DbException("None page can be evicted for NO STEAL POLICY!");
     }
 
     /**
@@ -210,10 +500,7 @@ public class BufferPool {
     public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        synchronized (lockManager.get(pid)) {
-            lockManager.get(pid).releaseLock(tid);
-        }
-        transactionLockHolder.get(tid).remove(pid);
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -233,11 +520,16 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        boolean flag = false;
-        synchronized (lockManager.get(p)) {
-            flag = lockManager.get(p).holdsLock(tid);
-        }
-        return flag;
+        return lockManager.holdsLock(tid, p);
+    }
+
+    /**
+     * Return true if a transaction other than the specified one holds an
+     * exclusive lock on the specified page, so that the page may hold changes
+     * it has not committed yet
+     */
+    public boolean isLockedExclusivelyByOther(TransactionId tid, PageId p) {
+        return lockManager.lockedExclusivelyByOther(tid, p);
     }
 
     /**
@@ -251,27 +543,72 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Set<PageId> pagesLockedByTransaction = transactionLockHolder.get(tid);
-        transactionLockHolder.remove(tid);
-        if (pagesLockedByTransaction == null) return;
-
-        for (PageId pid : pagesLockedByTransaction) {
-            Page cachedPage = pageCache.get(pid);
-            if (cachedPage != null && lockManager.get(pid).exclusive()) {
-                if (commit) {
-                    if (cachedPage.isDirty() != null) {
-                        flushPage(pid);
-                        cachedPage.setBeforeImage();
-                    }
-                } else {
-                    assert cachedPage.getBeforeImage() != null;
-                    pageCache.put(pid, cachedPage.getBeforeImage());
+        if (commit)
+            commitPages(tid);
+        Set<PageId> written = lockManager.writtenPagesOf(tid);
+        for (PageId pid : lockManager.pagesOf(tid)) {
+            Frame frame = cachedFrame(pid);
+            if (frame != null) {
+                synchronized (frame) {
+                    if (!frame.holds(pid))
+                        frame = null;
+                    else
+                        frame.pins.remove(tid);
                 }
             }
-            synchronized (lockManager.get(pid)) {
-                lockManager.get(pid).releaseLock(tid);
+            if (!commit && frame != null && written.contains(pid)) {
+                assert frame.page.getBeforeImage() != null;
+                synchronized (frame) {
+                    frame.page = frame.page.getBeforeImage();
+                }
             }
         }
+        for (BitmapIndex index : Database.getCatalog().getBitmapIndexes())
+            index.transactionComplete(tid, commit);
+        lockManager.releaseAll(tid);
+        versions.endSnapshot(tid);
+    }
+
+    // write the pages tid dirtied and make them their committed images,
+    // keeping the images they replace for the snapshots that may read them
+    private void commitPages(TransactionId tid) throws IOException {
+        long timestamp = versions.beginCommit();
+        try {
+            LogFile log = Database.getLogFile();
+            ArrayList<Page> dirty = new ArrayList<>();
+            long last = -1;
+            for (PageId pid : lockManager.writtenPagesOf(tid)) {
+                Frame frame = cachedFrame(pid);
+                if (frame == null)
+                    continue;
+                Page page;
+                synchronized (frame) {
+                    if (!frame.holds(pid))
+                        continue;
+                    page = frame.page;
+                }
+                if (page.isDirty() == null)
+                    continue;
+                long lsn = log.logWrite(tid, page.getBeforeImage(), page);
+                synchronized (frame) {
+                    if (frame.holds(pid))
+                        frame.lsn = lsn;
+                }
+                dirty.add(page);
+                last = lsn;
+            }
+            if (dirty.isEmpty())
+                return;
+            // write ahead, with one force for all the pages
+            log.flushTo(last);
+            for (Page page : dirty) {
+                versions.keep(page.getId(), page.getBeforeImage(), timestamp);
+                writePage(page.getId());
+                page.setBeforeImage();
+            }
+        } finally {
+            versions.endCommit();
+        }
     }
 
     /**
@@ -284,6 +621,10 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * Adds the tuple's entry to every {@link SecondaryIndex} of the table, and
+     * sets its bit in every {@link BitmapIndex} of the table. A tuple that an
+     * index cannot hold is rejected before the table is changed.
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -293,8 +634,17 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.checkInsert(t);
+        }
         ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
         handleDirtyPages(tid, pages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            handleDirtyPages(tid, index.insert(tid, t));
+        }
+        for (BitmapIndex index : Database.getCatalog().getBitmapIndexes(tableId)) {
+            index.insert(tid, t);
+        }
     }
 
     /**
@@ -306,6 +656,10 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * Removes the tuple's entry from every {@link SecondaryIndex} of the table;
+     * its bits in the {@link BitmapIndex BitmapIndexes} of the table are
+     * cleared once the delete is committed.
      *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
@@ -314,21 +668,44 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        int tableId = t.getRecordId().getPageId().getTableId();
+        RecordId rid = t.getRecordId();
+        int tableId = rid.getPageId().getTableId();
 
         ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
         handleDirtyPages(tid, pages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            handleDirtyPages(tid, index.delete(tid, t));
+        }
+        for (BitmapIndex index : Database.getCatalog().getBitmapIndexes(tableId)) {
+            index.delete(tid, t, rid);
+        }
 
     }
 
     private void handleDirtyPages(TransactionId tid, List<Page> dirtypages) throws DbException {
         for (Page page : dirtypages) {
             PageId pid = page.getId();
-            while (!pageCache.containsKey(pid) && pageCache.size() >= maxNumPages) {
-                evictPage();
-            }
             page.markDirty(true, tid);
-            pageCache.put(pid, page);
+            Shard shard = shardOf(pid);
+            shard.lock.lock();
+            try {
+                Frame frame = shard.index.get(pid);
+                if (frame == null) {
+                    Frame empty = shard.obtain();
+                    frame = shard.index.get(pid);
+                    if (frame == null)
+                        shard.install(pid, page, empty);
+                    else
+                        shard.free.add(empty);
+                }
+                if (frame != null) {
+                    synchronized (frame) {
+                        frame.page = page;
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
         }
     }
 
@@ -337,11 +714,13 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      * break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pageId : pageCache.keySet()) {
-            flushPage(pageId);
+        for (Shard shard : shards) {
+            for (PageId pageId : shard.index.keySet()) {
+                flushPage(pageId);
+            }
         }
     }
 
@@ -354,10 +733,18 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        remove(pid);
+        if (offHeap != null)
+            offHeap.remove(pid);
+        Shard shard = shardOf(pid);
+        shard.lock.lock();
+        try {
+            shard.remove(pid);
+        } finally {
+            shard.lock.unlock();
+        }
     }
 
     /**
@@ -365,53 +752,87 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = pageCache.get(pid);
-        if (page == null) throw new IOException();
-        if (page.isDirty() == null) return;
-        page.markDirty(false, null);
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        Frame frame = cachedFrame(pid);
+        if (frame == null) throw new IOException();
+        Page page = frame.page;
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null) return;
+        long lsn = Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+        synchronized (frame) {
+            if (frame.holds(pid))
+                frame.lsn = lsn;
+        }
+        writePage(pid);
+    }
+
+    // write a page whose update the caller logged to disk
+    private void writePage(PageId pid) throws IOException {
+        // write ahead: the updates of the page are on disk in the log before
+        // the page is. This is done without the lock of the shard, since the
+        // log file discards pages while holding its monitor.
+        Frame logged = cachedFrame(pid);
+        if (logged != null) {
+            long lsn;
+            synchronized (logged) {
+                lsn = logged.holds(pid) ? logged.lsn : -1;
+            }
+            if (lsn >= 0)
+                Database.getLogFile().flushTo(lsn);
+        }
+        Shard shard = shardOf(pid);
+        shard.lock.lock();
+        try {
+            Frame frame = shard.index.get(pid);
+            if (frame == null) throw new IOException();
+            Page page = frame.page;
+            if (page.isDirty() == null) return;
+            page.markDirty(false, null);
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            if (offHeap != null)
+                offHeap.remove(pid);
+        } finally {
+            shard.lock.unlock();
+        }
     }
 
     /**
-     * Write all pages of the specified transaction to disk.
+     * Write all pages of the specified transaction to disk. The pages become
+     * committed, so this is only called when the transaction commits.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        commitPages(tid);
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * @return the number of pages some transaction holds a lock on
      */
-    private synchronized void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        for (Map.Entry<PageId, Page> entry : pageCache.entrySet()) {
-            PageId pid = entry.getKey();
-            synchronized (pageCache.get(pid)) {
-                if (pageCache.get(pid).isDirty() == null) {
-                    evict(pid);
-                    return;
-                }
-            }
-        }
-        throw new DbException("None page can be evicted for NO STEAL POLICY!");
+    int numLockedPages() {
+        return lockManager.numLockedPages();
     }
 
-    private void evict(PageId evictPageId) {
-        try {
-            flushPage(evictPageId);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        remove(evictPageId);
+    /**
+     * @return the mode of the lock of a transaction on a table, or null
+     */
+    LockManager.LockMode tableLockMode(TransactionId tid, int tableId) {
+        return lockManager.tableMode(tid, tableId);
+    }
+
+    /**
+     * @return the number of page versions kept for snapshots
+     */
+    int numPageVersions() {
+        return versions.size();
     }
 
-    private void remove(PageId evictPageId) {
-        pageCache.remove(evictPageId);
+    /**
+     * @return the number of pages kept off the heap
+     */
+    int numOffHeapPages() {
+        return offHeap == null ? 0 : offHeap.size();
     }
-}
\ No newline at end of file
+}
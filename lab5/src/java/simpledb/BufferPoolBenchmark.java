@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * BufferPoolBenchmark measures the read-only throughput of a buffer pool
+ * configuration: 1, 2, 4 and up to 64 threads each scan a heap file a number
+ * of times, in transactions of their own, and the tuples read per second and
+ * the garbage collection work are reported for each number of threads. Run
+ * it as
+ * <pre>
+ * java -classpath dist/simpledb.jar simpledb.SimpleDb benchmark table.dat columns pages offHeapPages [passes [shards]]
+ * </pre>
+ * where pages is the number of on-heap frames of the pool, offHeapPages the
+ * number of pages kept off the heap, 0 for an on-heap pool, and shards the
+ * number of shards of the pool.
+ */
+public class BufferPoolBenchmark {
+
+    public static void main(String[] args)
+            throws DbException, TransactionAbortedException, IOException {
+        if (args.length < 4 || args.length > 6) {
+            System.err.println("Usage: benchmark table.dat columns pages offHeapPages [passes [shards]]");
+            return;
+        }
+        File tableFile = new File(args[0]);
+        int columns = Integer.parseInt(args[1]);
+        int pages = Integer.parseInt(args[2]);
+        int offHeapPages = Integer.parseInt(args[3]);
+        int passes = args.length >= 5 ? Integer.parseInt(args[4]) : 10;
+        int shards = args.length == 6 ? Integer.parseInt(args[5]) : 0;
+
+        final HeapFile table = Utility.openHeapFile(columns, tableFile);
+        System.out.println("Scanning " + table.numPages() + " pages " + passes + " times per thread through "
+                + pages + " frames" + (shards > 0 ? " in " + shards + " shards" : "")
+                + " and " + offHeapPages + " off-heap pages");
+
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            Database.resetBufferPool(pages, offHeapPages,
+                    shards > 0 ? shards : BufferPool.defaultShards(pages));
+            // warm up the pool and the code
+            scan(table);
+
+            final int[] tuples = new int[threads];
+            final Exception[] errors = new Exception[threads];
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final int worker = i;
+                workers[i] = new Thread(() -> {
+                    try {
+                        for (int pass = 0; pass < passes; pass++)
+                            tuples[worker] += scan(table);
+                    } catch (Exception e) {
+                        errors[worker] = e;
+                    }
+                });
+            }
+            long gcCount = gcCount();
+            long gcTime = gcTime();
+            long start = System.nanoTime();
+            for (Thread t : workers)
+                t.start();
+            long total = 0;
+            for (int i = 0; i < threads; i++) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                if (errors[i] != null)
+                    throw new RuntimeException(errors[i]);
+                total += tuples[i];
+            }
+            long elapsed = System.nanoTime() - start;
+            Runtime rt = Runtime.getRuntime();
+            System.out.printf("%2d threads: %.0f tuples/s, %d GCs taking %d ms, %d MB heap used%n",
+                    threads, total / (elapsed / 1e9), gcCount() - gcCount, gcTime() - gcTime,
+                    (rt.totalMemory() - rt.freeMemory()) >> 20);
+        }
+    }
+
+    /** The largest number of threads the benchmark runs */
+    static final int MAX_THREADS = 64;
+
+    // scan every tuple of the table in its own transaction
+    static int scan(DbFile table) throws DbException, TransactionAbortedException, IOException {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += Math.max(0, gc.getCollectionCount());
+        return n;
+    }
+
+    private static long gcTime() {
+        long t = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            t += Math.max(0, gc.getCollectionTime());
+        return t;
+    }
+}
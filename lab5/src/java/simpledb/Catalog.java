@@ -19,6 +19,8 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Catalog {
 
     private final ConcurrentHashMap<Integer,Table> hashTable;
+    private final ConcurrentHashMap<Integer,List<SecondaryIndex>> indexes;
+    private final ConcurrentHashMap<Integer,List<BitmapIndex>> bitmapIndexes;
 
     private static class Table{
         private static final long serialVersionUID = 1L;
@@ -45,6 +47,8 @@ public class Catalog {
     public Catalog() {
         // some code goes here
         hashTable = new ConcurrentHashMap<Integer,Table>();
+        indexes = new ConcurrentHashMap<Integer,List<SecondaryIndex>>();
+        bitmapIndexes = new ConcurrentHashMap<Integer,List<BitmapIndex>>();
     }
 
     /**
@@ -67,6 +71,8 @@ public class Catalog {
         });
         if(oldId != null){
             hashTable.remove(oldId);
+            indexes.remove(oldId);
+            bitmapIndexes.remove(oldId);
         }
         Table t = new Table(file,name,pkeyField);
         hashTable.put(file.getId(),t);
@@ -167,10 +173,105 @@ public class Catalog {
         }
     }
 
+    /**
+     * Add a secondary index to the catalog. The B+ tree holding its entries is
+     * added as a table named tableName_fieldName_idx, and from now on every
+     * insert into or delete from the indexed table through the BufferPool also
+     * updates the index.
+     * @param index the index to add
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     * @throws IllegalArgumentException if the indexed table is not a HeapFile,
+     *     whose RecordIds are stable, or already has an index on those fields
+     */
+    public void addIndex(SecondaryIndex index) {
+        int tableid = index.getTableId();
+        if (!(getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("secondary indexes need a HeapFile table " + tableid);
+        for (SecondaryIndex other : getIndexes(tableid)) {
+            if (java.util.Arrays.equals(other.getKeyFields(), index.getKeyFields()))
+                throw new IllegalArgumentException("fields " + java.util.Arrays.toString(index.getKeyFields())
+                        + " of table " + tableid + " are already indexed");
+        }
+        StringBuilder name = new StringBuilder(getTableName(tableid));
+        for (int field : index.getKeyFields())
+            name.append("_").append(getTupleDesc(tableid).getFieldName(field));
+        addTable(index.getFile(), name + "_idx");
+        indexes.computeIfAbsent(tableid, k -> new java.util.concurrent.CopyOnWriteArrayList<SecondaryIndex>()).add(index);
+    }
+
+    /**
+     * @return the secondary indexes of the specified table, possibly empty
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> l = indexes.get(tableid);
+        return l == null ? Collections.<SecondaryIndex>emptyList() : l;
+    }
+
+    /**
+     * @return the secondary index on the specified field alone of the
+     *     specified table, or null if that field is not indexed alone
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (!index.isComposite() && index.getField() == field)
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * Add a bitmap index to the catalog. From now on every insert into the
+     * indexed table through the BufferPool sets the bit of the tuple.
+     * @param index the index to add
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     * @throws IllegalArgumentException if the indexed table is not a HeapFile,
+     *     whose RecordIds are stable, or already has a bitmap index on that field
+     */
+    public void addBitmapIndex(BitmapIndex index) {
+        int tableid = index.getTableId();
+        if (!(getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("bitmap indexes need a HeapFile table " + tableid);
+        if (getBitmapIndex(tableid, index.getField()) != null)
+            throw new IllegalArgumentException("field " + index.getField() + " of table " + tableid + " already has a bitmap index");
+        bitmapIndexes.computeIfAbsent(tableid, k -> new java.util.concurrent.CopyOnWriteArrayList<BitmapIndex>()).add(index);
+    }
+
+    /**
+     * @return the bitmap indexes of the specified table, possibly empty
+     */
+    public List<BitmapIndex> getBitmapIndexes(int tableid) {
+        List<BitmapIndex> l = bitmapIndexes.get(tableid);
+        return l == null ? Collections.<BitmapIndex>emptyList() : l;
+    }
+
+    /**
+     * @return the bitmap indexes of all the tables
+     */
+    public List<BitmapIndex> getBitmapIndexes() {
+        ArrayList<BitmapIndex> all = new ArrayList<BitmapIndex>();
+        for (List<BitmapIndex> l : bitmapIndexes.values())
+            all.addAll(l);
+        return all;
+    }
+
+    /**
+     * @return the bitmap index on the specified field of the specified
+     *     table, or null if that field has none
+     */
+    public BitmapIndex getBitmapIndex(int tableid, int field) {
+        for (BitmapIndex index : getBitmapIndexes(tableid)) {
+            if (index.getField() == field)
+                return index;
+        }
+        return null;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
         hashTable.clear();
+        indexes.clear();
+        bitmapIndexes.clear();
     }
 
     /**
@@ -184,7 +285,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [slotted|pax]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -199,6 +300,8 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().toLowerCase().equals("varchar"))
+                        types.add(Type.VARCHAR_TYPE);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -215,7 +318,19 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String storage = line.substring(line.indexOf(")") + 1).trim();
+                DbFile tabHf;
+                if (storage.equals(""))
+                    tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, true);
+                else if (storage.toLowerCase().equals("slotted"))
+                    tabHf = new SlottedHeapFile(new File(baseFolder+"/"+name + ".dat"), t, true);
+                else if (storage.toLowerCase().equals("pax"))
+                    tabHf = new PaxFile(new File(baseFolder+"/"+name + ".dat"), t, true);
+                else {
+                    System.out.println("Unknown storage " + storage);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
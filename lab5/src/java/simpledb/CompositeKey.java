@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * CompositeKey encodes the values of several fields into a single
+ * {@link StringField} whose order is the lexicographic order of the values,
+ * so that a B+ tree keyed on one field can hold a key over several. An int is
+ * encoded as the 8 hex digits of its value with the sign bit flipped, and a
+ * string as its characters followed by a terminator that sorts before any of
+ * them; the keys whose first fields equal some values are then exactly the
+ * keys starting with the encoding of those values.
+ * <p>
+ * Keys only hold 7-bit characters, as StringFields store them. The
+ * characters of a string from FIRST to LAST are stored as themselves, and
+ * the others escaped so that the encoding keeps their order: those below
+ * FIRST as LOW and one more character, and those above LAST, including
+ * every non-ASCII character, as HIGH and three base 64 digits. A key must be
+ * shorter than {@link Type#STRING_LEN} characters; {@link #checkTypes} tells
+ * whether keys of some types can be, and {@link #encode} rejects values whose
+ * key is too long.
+ */
+class CompositeKey {
+
+    // ends the encoding of a string
+    private static final char TERMINATOR = '\u0001';
+    // start the escapes of characters below FIRST and above LAST
+    private static final char LOW = '\u0002';
+    private static final char HIGH = '\u007e';
+    // the range of characters stored as themselves
+    private static final char FIRST = '\u0003';
+    private static final char LAST = '\u007c';
+    // the first of the 64 digits of the escapes above LAST
+    private static final char DIGITS = ' ';
+    // sorts after every character of an encoding
+    private static final char AFTER = '\u007f';
+    private static final String HEX = "0123456789ABCDEF";
+
+    private CompositeKey() {
+    }
+
+    /**
+     * Check that keys of the specified types can be short enough to be
+     * stored: that the ints and the terminators of the strings leave room.
+     *
+     * @throws DbException if every key of those types is too long
+     */
+    static void checkTypes(Type[] types) throws DbException {
+        int length = 0;
+        for (Type t : types)
+            length += t == Type.INT_TYPE ? 8 : 1;
+        if (length >= Type.STRING_LEN)
+            throw new DbException("composite keys of " + types.length + " fields are longer than "
+                    + (Type.STRING_LEN - 1) + " characters");
+    }
+
+    /**
+     * @return the key encoding the specified values, in order
+     * @throws DbException if the key is too long
+     */
+    static StringField encode(Field[] values) throws DbException {
+        StringBuilder sb = new StringBuilder();
+        for (Field f : values)
+            append(sb, f);
+        // one character is left for the bounds of key ranges
+        if (sb.length() >= Type.STRING_LEN)
+            throw new DbException("composite key of " + Arrays.toString(values) + " is longer than "
+                    + (Type.STRING_LEN - 1) + " characters");
+        return new StringField(sb.toString(), Type.STRING_LEN);
+    }
+
+    private static void append(StringBuilder sb, Field f) {
+        if (f.getType() == Type.INT_TYPE) {
+            int v = ((IntField) f).getValue() ^ Integer.MIN_VALUE;
+            for (int shift = 28; shift >= 0; shift -= 4)
+                sb.append(HEX.charAt((v >>> shift) & 0xF));
+            return;
+        }
+        String s = ((StringField) f).getValue();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < FIRST) {
+                sb.append(LOW).append((char) (FIRST + c));
+            } else if (c > LAST) {
+                int v = c - LAST - 1;
+                sb.append(HIGH);
+                for (int shift = 12; shift >= 0; shift -= 6)
+                    sb.append((char) (DIGITS + ((v >>> shift) & 0x3F)));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append(TERMINATOR);
+    }
+
+    /**
+     * @return the values a key encodes, of the specified types
+     */
+    static Field[] decode(StringField key, Type[] types) {
+        String s = key.getValue();
+        Field[] values = new Field[types.length];
+        int pos = 0;
+        for (int k = 0; k < types.length; k++) {
+            if (types[k] == Type.INT_TYPE) {
+                int v = (int) Long.parseLong(s.substring(pos, pos + 8), 16);
+                values[k] = new IntField(v ^ Integer.MIN_VALUE);
+                pos += 8;
+            } else {
+                StringBuilder value = new StringBuilder();
+                for (char c = s.charAt(pos++); c != TERMINATOR; c = s.charAt(pos++)) {
+                    if (c == LOW) {
+                        c = (char) (s.charAt(pos++) - FIRST);
+                    } else if (c == HIGH) {
+                        int v = 0;
+                        for (int d = 0; d < 3; d++)
+                            v = (v << 6) | (s.charAt(pos++) - DIGITS);
+                        c = (char) (LAST + 1 + v);
+                    }
+                    value.append(c);
+                }
+                values[k] = types[k] == Type.VARCHAR_TYPE ? new VarcharField(value.toString(), Type.STRING_LEN)
+                        : new StringField(value.toString(), Type.STRING_LEN);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the range of the keys whose first fields equal the values of a
+     * prefix, and whose next field, if value is not null, satisfies
+     * <tt>field op value</tt>.
+     *
+     * @param prefix
+     *            the values of the first fields of the keys
+     * @param op
+     *            EQUALS or a range operator, ignored if value is null
+     * @param value
+     *            the value the next field is compared with, or null
+     * @return the lowest key of the range, and the key every key of the range
+     *         is less than
+     */
+    static StringField[] range(Field[] prefix, Predicate.Op op, Field value) {
+        StringBuilder sb = new StringBuilder();
+        for (Field f : prefix)
+            append(sb, f);
+        String p = sb.toString();
+        if (value == null)
+            return bounds(p, p + AFTER);
+        append(sb, value);
+        String e = sb.toString();
+        switch (op) {
+        case EQUALS:
+            return bounds(e, e + AFTER);
+        case GREATER_THAN:
+            return bounds(e + AFTER, p + AFTER);
+        case GREATER_THAN_OR_EQ:
+            return bounds(e, p + AFTER);
+        case LESS_THAN:
+            return bounds(p, e);
+        case LESS_THAN_OR_EQ:
+            return bounds(p, e + AFTER);
+        default:
+            throw new IllegalArgumentException("no key range for " + op);
+        }
+    }
+
+    private static StringField[] bounds(String lower, String upper) {
+        return new StringField[] { new StringField(lower, Type.STRING_LEN), new StringField(upper, Type.STRING_LEN) };
+    }
+}
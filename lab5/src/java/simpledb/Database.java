@@ -55,11 +55,31 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, 0);
+    }
+
+    /**
+     * Create a new instance of the buffer pool that also keeps offHeapPages
+     * pages off the Java heap, and return it
+     *
+     * @see BufferPool#BufferPool(int, int)
+     */
+    public static BufferPool resetBufferPool(int pages, int offHeapPages) {
+        return resetBufferPool(pages, offHeapPages, BufferPool.defaultShards(pages));
+    }
+
+    /**
+     * Create a new instance of the buffer pool whose frames are split into
+     * the specified number of shards, and return it
+     *
+     * @see BufferPool#BufferPool(int, int, int)
+     */
+    public static BufferPool resetBufferPool(int pages, int offHeapPages, int shards) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, offHeapPages, shards));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -19,6 +19,20 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Create the specified page from data read from disk earlier, without
+     * reading it again. The {@link BufferPool} uses this to rebuild pages kept
+     * off the Java heap, see {@link OffHeapPageStore}.
+     *
+     * @param id the id of the page
+     * @param data the data of the page, as on disk
+     * @return the page, or null if this file cannot create pages from their
+     *         data, in which case the page is read with {@link #readPage}
+     */
+    public default Page readPage(PageId id, byte[] data) {
+        return null;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -68,6 +82,25 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the tuples stored in this DbFile that satisfy
+     * all of the specified predicates, holding only the specified fields.
+     * Files may evaluate the predicates on their pages, before building
+     * tuples; by default the tuples of {@link #iterator(TransactionId)} are
+     * filtered and projected.
+     *
+     * @param tid the transaction the scan runs in
+     * @param preds predicates over fields of this file, or null
+     * @param fields the indexes of the fields to return, in output order, or
+     *        null for all of them
+     * @return an iterator over the matching tuples, whose TupleDesc holds the
+     *         specified fields with the names they have in this file, and
+     *         whose RecordIds are those of the stored tuples
+     */
+    public default DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+        return new FilteredDbFileIterator(iterator(tid), preds, fields, getTupleDesc());
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
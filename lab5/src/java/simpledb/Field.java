@@ -23,7 +23,7 @@ public interface Field extends Serializable{
     public boolean compare(Predicate.Op op, Field value);
 
     /**
-     * Returns the type of this field (see {@link Type#INT_TYPE} or {@link Type#STRING_TYPE}
+     * Returns the type of this field (see {@link Type#INT_TYPE}, {@link Type#STRING_TYPE} or {@link Type#VARCHAR_TYPE}
      * @return type of this field
      */
     public Type getType();
@@ -0,0 +1,80 @@
+package simpledb;
+
+/**
+ * FilteredDbFileIterator applies pushed-down predicates and a projection to
+ * the tuples of another DbFileIterator. It is the default implementation of
+ * {@link DbFile#iterator(TransactionId, Predicate[], int[])} for files that
+ * cannot do better on their pages.
+ */
+class FilteredDbFileIterator extends AbstractDbFileIterator {
+
+    private final DbFileIterator child;
+    private final Predicate[] preds;
+    private final int[] fields;
+    private final TupleDesc outTd;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param child  - the iterator over whole tuples of the table
+     * @param preds  - predicates over fields of the table, or null
+     * @param fields - the indexes of the fields to return, or null for all
+     * @param td     - the TupleDesc of the table
+     */
+    FilteredDbFileIterator(DbFileIterator child, Predicate[] preds, int[] fields, TupleDesc td) {
+        this.child = child;
+        this.preds = preds;
+        this.fields = fields;
+        this.outTd = project(td, fields);
+    }
+
+    /**
+     * @return the TupleDesc of the specified fields of td, in order, or td if
+     *         fields is null
+     */
+    static TupleDesc project(TupleDesc td, int[] fields) {
+        if (fields == null)
+            return td;
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            types[k] = td.getFieldType(fields[k]);
+            names[k] = td.getFieldName(fields[k]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            boolean match = true;
+            for (int k = 0; preds != null && k < preds.length && match; k++)
+                match = preds[k].filter(t);
+            if (!match)
+                continue;
+            if (fields == null)
+                return t;
+            Tuple projected = new Tuple(outTd);
+            for (int k = 0; k < fields.length; k++)
+                projected.setField(k, t.getField(fields[k]));
+            projected.setRecordId(t.getRecordId());
+            return projected;
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        child.rewind();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+}
@@ -0,0 +1,229 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records how much room each page of a HeapFile has, so that
+ * HeapFile.insertTuple can go straight to a page with room instead of
+ * scanning the file from its first page. HeapFile counts room in empty slots;
+ * SlottedHeapFile, whose records vary in size, counts it in units of free
+ * bytes.
+ * <p>
+ * The map keeps one byte per page: 0 for a full page, the amount of room
+ * capped at MAX_COUNT otherwise, or UNKNOWN for pages it has not seen
+ * yet. It lives in memory, and files that persist their maps also keep it in
+ * a side file next to the heap file, created by the first page write and
+ * updated there whenever a page is written, so that it matches the pages on
+ * disk; see {@link SideFiles}. In memory it also follows inserts and deletes
+ * that are not committed yet, which can leave it slightly off after an abort;
+ * callers must check a page still has room after locking it, and report what
+ * they find with {@link #update}.
+ * <p>
+ * The side file starts with a header like that of the {@link ZoneMap}: the
+ * length of the heap file and a generation, which is odd while pages are
+ * being written. Heap files call {@link #beginWrite} before writing a page and
+ * {@link #write} after it; a side file whose header does not match the heap
+ * file, or that was left in the middle of a write, is discarded when the map
+ * is created.
+ */
+class FreeSpaceMap {
+
+    /** Entry of a page whose free space is not known */
+    static final int UNKNOWN = 0xFF;
+
+    /** Largest amount of room recorded for a page */
+    static final int MAX_COUNT = 0xFE;
+
+    // the format of the side file, at its start
+    private static final int MAGIC = 0x46534d01;
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+
+    private final File file;
+    private final File heapFile;
+    private byte[] counts = null;
+    private int numPages = 0;
+    // no page before this one has any room
+    private int firstFree = 0;
+
+    // the generation in the header of the side file, and the number of page
+    // writes begun and not recorded yet
+    private long generation = 0;
+    private int writing = 0;
+
+    /**
+     * Create the free space map stored in the specified side file. If the file
+     * is missing or does not match the heap file, every page starts out
+     * UNKNOWN, and a mismatched file is deleted.
+     *
+     * @param file the side file, or null to keep the map in memory only
+     * @param heapFile the heap file the map describes
+     */
+    FreeSpaceMap(File file, File heapFile) {
+        this.file = file;
+        this.heapFile = heapFile;
+        counts = new byte[0];
+        if (file != null && file.exists()) {
+            boolean valid = false;
+            try {
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (file.length() >= HEADER_SIZE && dis.readInt() == MAGIC
+                            && dis.readLong() == heapFile.length()) {
+                        generation = dis.readLong();
+                        if (generation % 2 == 0) {
+                            counts = new byte[(int) (file.length() - HEADER_SIZE)];
+                            dis.readFully(counts);
+                            numPages = counts.length;
+                            valid = true;
+                        }
+                    }
+                } finally {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                valid = false;
+            }
+            if (!valid) {
+                counts = new byte[0];
+                numPages = 0;
+                generation = 0;
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the side file in which the map of heapFile is stored
+     */
+    static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Find a page that may have an empty slot.
+     *
+     * @param pages the number of pages in the heap file
+     * @return the number of a page that has room or whose free space is
+     *         unknown, or -1 if every page is full
+     */
+    synchronized int findPage(int pages) {
+        return findPage(pages, 1);
+    }
+
+    /**
+     * Find a page that may have at least the specified amount of room.
+     *
+     * @param pages the number of pages in the heap file
+     * @param minimum the room needed, at most MAX_COUNT
+     * @return the number of a page that has that much room or whose free
+     *         space is unknown, or -1 if there is none
+     */
+    synchronized int findPage(int pages, int minimum) {
+        ensureCapacity(pages);
+        boolean full = true;
+        for (int i = firstFree; i < pages; i++) {
+            int count = counts[i] & 0xFF;
+            if (full && count != 0) {
+                firstFree = i;
+                full = false;
+            }
+            if (count >= minimum)
+                return i;
+        }
+        if (full)
+            firstFree = pages;
+        return -1;
+    }
+
+    /**
+     * Record the room of a page in memory.
+     *
+     * @param pageNo the page number
+     * @param room the number of empty slots on the page, or units of free
+     *        space for variable-length records
+     */
+    synchronized void update(int pageNo, int room) {
+        ensureCapacity(pageNo + 1);
+        counts[pageNo] = (byte) Math.min(room, MAX_COUNT);
+        if (room > 0 && pageNo < firstFree)
+            firstFree = pageNo;
+    }
+
+    /**
+     * Mark the side file as being written, before a page of the heap file is
+     * written, so that the map is discarded if the page write is not followed
+     * by {@link #write}.
+     */
+    synchronized void beginWrite() throws IOException {
+        writing++;
+        if (file == null || generation % 2 == 1)
+            return;
+        generation++;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            writeHeader(raf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Record the room of a page that was just written to disk, in memory and
+     * in the side file, along with the new length of the heap file.
+     *
+     * @param pageNo the page number
+     * @param room the room on the page as written
+     */
+    synchronized void write(int pageNo, int room) throws IOException {
+        update(pageNo, room);
+        if (writing > 0)
+            writing--;
+        if (file == null)
+            return;
+        if (writing == 0 && generation % 2 == 1)
+            generation++;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long offset = HEADER_SIZE + pageNo;
+            if (raf.length() < offset) {
+                // pages the side file has never seen are unknown
+                raf.setLength(Math.max(raf.length(), HEADER_SIZE));
+                byte[] unknown = new byte[(int) (offset - raf.length())];
+                Arrays.fill(unknown, (byte) UNKNOWN);
+                raf.seek(raf.length());
+                raf.write(unknown);
+            }
+            raf.seek(offset);
+            raf.write(counts[pageNo]);
+            writeHeader(raf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeHeader(RandomAccessFile raf) throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeLong(heapFile.length());
+        raf.writeLong(generation);
+    }
+
+    /**
+     * @return the entry of a page: its room, capped at MAX_COUNT, or UNKNOWN
+     */
+    synchronized int get(int pageNo) {
+        if (pageNo >= numPages)
+            return UNKNOWN;
+        return counts[pageNo] & 0xFF;
+    }
+
+    private void ensureCapacity(int pages) {
+        if (pages <= numPages)
+            return;
+        if (pages > counts.length)
+            counts = Arrays.copyOf(counts, Math.max(pages, counts.length * 2));
+        Arrays.fill(counts, numPages, pages, (byte) UNKNOWN);
+        numPages = pages;
+    }
+}
@@ -0,0 +1,217 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashBucketPage stores tuples of a bucket of a {@link HashFile}: the primary
+ * page of the bucket, or one of the overflow pages chained after it.
+ * <p>
+ * The format of a bucket page is the page number of the next page of the
+ * bucket, or 0 if this is the last one, then a header with one bit per slot
+ * saying whether the slot is used, then the slots, each as big as a tuple of
+ * the file. Free overflow pages are chained through the same pointer, from
+ * the free list of the {@link HashHeaderPage}.
+ */
+public class HashBucketPage implements Page {
+
+    private static final int POINTER_SIZE = 4;
+
+    private final HashPageId pid;
+    private final TupleDesc td;
+    private final int numSlots;
+    private final byte[] header;
+    private final Tuple[] tuples;
+    private int next;
+    private TransactionId dirtier;
+    private boolean dirty = false;
+
+    private byte[] oldData;
+
+    /**
+     * Create a bucket page from its data on disk.
+     *
+     * @param id the id of the page
+     * @param data the data of the page
+     * @param td the TupleDesc of the tuples of the file
+     */
+    public HashBucketPage(HashPageId id, byte[] data, TupleDesc td) throws IOException {
+        this.pid = id;
+        this.td = td;
+        this.numSlots = getMaxTuples(td);
+        this.header = new byte[(numSlots + 7) / 8];
+        this.tuples = new Tuple[numSlots];
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        next = dis.readInt();
+        dis.readFully(header);
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                dis.skipBytes(td.getSize());
+                continue;
+            }
+            Tuple t = new Tuple(td);
+            try {
+                for (int j = 0; j < td.numFields(); j++)
+                    t.setField(j, td.getFieldType(j).parse(dis));
+            } catch (java.text.ParseException e) {
+                throw new IOException("cannot parse tuple " + i + " of " + id, e);
+            }
+            t.setRecordId(new RecordId(pid, i));
+            tuples[i] = t;
+        }
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of tuples a bucket page of a file with the specified
+     *         TupleDesc holds
+     */
+    public static int getMaxTuples(TupleDesc td) {
+        return ((BufferPool.getPageSize() - POINTER_SIZE) * 8) / (td.getSize() * 8 + 1);
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /** @return the page number of the next page of the bucket, or 0 */
+    public int getNext() {
+        return next;
+    }
+
+    /** Set the page number of the next page of the bucket, or 0 */
+    public void setNext(int pageNo) {
+        next = pageNo;
+    }
+
+    private boolean isSlotUsed(int i) {
+        return (header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean used) {
+        if (used)
+            header[i / 8] |= (byte) (1 << (i % 8));
+        else
+            header[i / 8] &= (byte) ~(1 << (i % 8));
+    }
+
+    /** @return the number of empty slots of this page */
+    public int getNumEmptySlots() {
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Add a tuple to this page, setting its RecordId.
+     *
+     * @throws DbException if the page is full or the tuple has another
+     *         TupleDesc
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tupledesc is mismatch");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                markSlotUsed(i, true);
+                tuples[i] = t;
+                t.setRecordId(new RecordId(pid, i));
+                return;
+            }
+        }
+        throw new DbException("page " + pid + " is full");
+    }
+
+    /**
+     * Delete a tuple from this page.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on page " + pid);
+        int i = rid.tupleno();
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            throw new DbException("tuple slot is already empty");
+        markSlotUsed(i, false);
+        tuples[i] = null;
+        t.setRecordId(null);
+    }
+
+    /**
+     * Remove every tuple from this page.
+     */
+    void clear() {
+        Arrays.fill(header, (byte) 0);
+        Arrays.fill(tuples, null);
+    }
+
+    /**
+     * @return an iterator over the tuples of this page, which must not be
+     *         changed while it is used
+     */
+    public Iterator<Tuple> iterator() {
+        ArrayList<Tuple> used = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                used.add(tuples[i]);
+        }
+        return used.iterator();
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(next);
+            dos.write(header);
+            byte[] empty = new byte[td.getSize()];
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(empty);
+                    continue;
+                }
+                for (int j = 0; j < td.numFields(); j++)
+                    tuples[i].getField(j).serialize(dos);
+            }
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of an empty bucket page
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    public HashBucketPage getBeforeImage() {
+        try {
+            return new HashBucketPage(pid, oldData, td);
+        } catch (IOException e) {
+            // we parsed it OK before
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData().clone();
+    }
+}
@@ -0,0 +1,377 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is a disk-based hash index, which stores the tuples of a table in
+ * buckets by the hash of a key field, so that finding the tuples with a key
+ * reads the header page and the pages of one bucket, usually a single one.
+ * <p>
+ * The file grows by linear hashing: the number of buckets grows one at a
+ * time, by splitting the bucket the split pointer of the
+ * {@link HashHeaderPage} designates, whenever an insert needs a new overflow
+ * page. Splitting moves the tuples of the bucket whose hash has the next bit
+ * set to the new bucket, and frees the overflow pages it empties. Buckets
+ * never merge; deleting tuples leaves their slots free for later inserts.
+ * <p>
+ * All pages are read and written through the {@link BufferPool}. Every
+ * operation locks the header page with READ_ONLY permission, and a split
+ * locks it with READ_WRITE permission, so splits wait for the transactions
+ * that use the file.
+ *
+ * @see HashHeaderPage
+ * @see HashBucketPage
+ */
+public class HashFile implements IndexFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+
+    /**
+     * Constructs a hash file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this file
+     * @param key the field the file is keyed on
+     * @param td the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    public int getId() {
+        return tableid;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public int keyField() {
+        return keyField;
+    }
+
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * @return true for EQUALS, the only predicate a hash answers
+     */
+    public boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS;
+    }
+
+    /**
+     * @return the hash of a key, with its bits mixed so that the low bits
+     *         that pick buckets depend on all of them
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public Page readPage(PageId pid) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            long offset = (long) pid.pageNumber() * data.length;
+            if (offset + data.length > raf.length())
+                throw new IllegalArgumentException("Read past end of table");
+            raf.seek(offset);
+            raf.readFully(data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return readPage(pid, data);
+    }
+
+    @Override
+    public Page readPage(PageId pid, byte[] data) {
+        HashPageId id = (HashPageId) pid;
+        try {
+            if (id.isHeader())
+                return new HashHeaderPage(id, data);
+            return new HashBucketPage(id, data, td);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writePage(Page page) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+            raf.write(page.getPageData());
+        }
+    }
+
+    // create the header page and the page of bucket 0 if the file is empty
+    private synchronized void createIfEmpty() throws IOException {
+        if (f.length() == 0) {
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(f, true))) {
+                os.write(HashHeaderPage.createEmptyPageData());
+                os.write(HashBucketPage.createEmptyPageData());
+            }
+        }
+    }
+
+    // append empty pages to the file, returning the number of the first
+    private synchronized int appendPages(int n) throws IOException {
+        int first = numPages();
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(f, true))) {
+            for (int i = 0; i < n; i++)
+                os.write(HashBucketPage.createEmptyPageData());
+        }
+        return first;
+    }
+
+    // get a page through the buffer pool, or from the pages this operation
+    // already dirtied, which pages locked READ_WRITE join
+    private Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        HashPageId pid = new HashPageId(tableid, pageNo);
+        Page p = dirtypages.get(pid);
+        if (p != null)
+            return p;
+        p = Database.getBufferPool().getPage(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE)
+            dirtypages.put(pid, p);
+        return p;
+    }
+
+    HashHeaderPage getHeader(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm)
+            throws DbException, IOException, TransactionAbortedException {
+        createIfEmpty();
+        return (HashHeaderPage) getPage(tid, dirtypages, 0, perm);
+    }
+
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tupledesc is mismatch");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        HashHeaderPage header = getHeader(tid, dirtypages, Permissions.READ_ONLY);
+        int bucket = header.bucketOf(hash(t.getField(keyField)));
+        if (insertIntoBucket(tid, dirtypages, bucket, t) && header.canSplit())
+            split(tid, dirtypages);
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Insert a tuple into the first page of a bucket with room, adding an
+     * overflow page to the bucket if it is full.
+     *
+     * @return whether an overflow page was added
+     */
+    private boolean insertIntoBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, int bucket, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        HashHeaderPage header = getHeader(tid, dirtypages, Permissions.READ_ONLY);
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, header.primaryPage(bucket),
+                Permissions.READ_WRITE);
+        while (page.getNumEmptySlots() == 0 && page.getNext() != 0)
+            page = (HashBucketPage) getPage(tid, dirtypages, page.getNext(), Permissions.READ_WRITE);
+        boolean overflowed = false;
+        if (page.getNumEmptySlots() == 0) {
+            HashBucketPage overflow = allocateOverflowPage(tid, dirtypages);
+            page.setNext(overflow.getId().pageNumber());
+            page = overflow;
+            overflowed = true;
+        }
+        page.insertTuple(t);
+        return overflowed;
+    }
+
+    // take a page from the free list, or append one to the file
+    private HashBucketPage allocateOverflowPage(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        HashHeaderPage header = getHeader(tid, dirtypages, Permissions.READ_ONLY);
+        if (header.getFreeList() == 0)
+            return (HashBucketPage) getPage(tid, dirtypages, appendPages(1), Permissions.READ_WRITE);
+        header = getHeader(tid, dirtypages, Permissions.READ_WRITE);
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, header.getFreeList(),
+                Permissions.READ_WRITE);
+        header.setFreeList(page.getNext());
+        page.setNext(0);
+        return page;
+    }
+
+    /**
+     * Split the bucket the split pointer designates: move the tuples that
+     * belong to the new bucket once the pointer advances, and free the
+     * overflow pages left empty.
+     */
+    private void split(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        HashHeaderPage header = getHeader(tid, dirtypages, Permissions.READ_WRITE);
+        int from = header.getSplit();
+        int to = header.getSplitTarget();
+        if (!header.splitTargetAllocated()) {
+            // the buckets of the next level are as many as those of this one
+            header.allocateSplitGroup(appendPages(to));
+        }
+        header.advanceSplit();
+
+        ArrayList<Tuple> moved = new ArrayList<Tuple>();
+        HashBucketPage prev = null;
+        int pageNo = header.primaryPage(from);
+        while (pageNo != 0) {
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pageNo, Permissions.READ_WRITE);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (header.bucketOf(hash(t.getField(keyField))) == to) {
+                    page.deleteTuple(t);
+                    moved.add(t);
+                }
+            }
+            int next = page.getNext();
+            if (prev != null && page.getNumEmptySlots() == HashBucketPage.getMaxTuples(td)) {
+                prev.setNext(next);
+                page.setNext(header.getFreeList());
+                header.setFreeList(pageNo);
+            } else {
+                prev = page;
+            }
+            pageNo = next;
+        }
+        for (Tuple t : moved)
+            insertIntoBucket(tid, dirtypages, to, t);
+    }
+
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tuple is not a member of this file");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        getHeader(tid, dirtypages, Permissions.READ_ONLY);
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, rid.getPageId().pageNumber(),
+                Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Get an iterator over all the tuples of this file, bucket by bucket.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(this, tid, null);
+    }
+
+    /**
+     * Get the tuples whose key matches a predicate. An EQUALS predicate reads
+     * the pages of the bucket of its key only; other predicates read every
+     * bucket.
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(this, tid, ipred);
+    }
+
+    /**
+     * Get the tuples that satisfy all of the specified predicates, holding
+     * only the specified fields. If one of the predicates is an equality on
+     * the key field, only the bucket of its key is read.
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+        DbFileIterator it = null;
+        for (int k = 0; preds != null && k < preds.length && it == null; k++) {
+            Predicate p = preds[k];
+            if (p.getField() == keyField && supports(p.getOp()))
+                it = indexIterator(tid, new IndexPredicate(p.getOp(), p.getOperand()));
+        }
+        if (it == null)
+            it = iterator(tid);
+        return new FilteredDbFileIterator(it, preds, fields, td);
+    }
+
+    /**
+     * Read the pages of a bucket, or of every bucket, with READ_ONLY
+     * permission.
+     */
+    private static class HashFileIterator extends AbstractDbFileIterator {
+        private final HashFile file;
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private HashHeaderPage header;
+        private int bucket;
+        private int lastBucket;
+        private HashBucketPage page;
+        private Iterator<Tuple> it;
+
+        HashFileIterator(HashFile file, TransactionId tid, IndexPredicate ipred) {
+            this.file = file;
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            try {
+                header = file.getHeader(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY);
+            } catch (IOException e) {
+                throw new DbException("cannot create hash file: " + e.getMessage());
+            }
+            if (ipred != null && file.supports(ipred.getOp())) {
+                bucket = header.bucketOf(hash(ipred.getField()));
+                lastBucket = bucket;
+            } else {
+                bucket = 0;
+                lastBucket = header.numBuckets() - 1;
+            }
+            read(header.primaryPage(bucket));
+        }
+
+        private void read(int pageNo) throws DbException, TransactionAbortedException {
+            page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+                    new HashPageId(file.getId(), pageNo), Permissions.READ_ONLY);
+            it = page.iterator();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (it != null) {
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (ipred == null || t.getField(file.keyField()).compare(ipred.getOp(), ipred.getField()))
+                        return t;
+                }
+                if (page.getNext() != 0) {
+                    read(page.getNext());
+                } else if (bucket < lastBucket) {
+                    bucket++;
+                    read(header.primaryPage(bucket));
+                } else {
+                    it = null;
+                }
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+            page = null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashHeaderPage is page 0 of a {@link HashFile}. It holds the state of the
+ * linear hashing of the file: the level and the split pointer, which give the
+ * number of buckets, the page number at which each group of buckets starts,
+ * and the head of the list of free overflow pages.
+ * <p>
+ * Bucket 0 is group 0, and buckets 2^(g-1) to 2^g - 1 are group g, stored on
+ * consecutive pages allocated together when the first bucket of the group is
+ * split into, so that the primary page of a bucket is found without a
+ * directory.
+ */
+public class HashHeaderPage implements Page {
+
+    /** Maximum number of bucket groups, and so of doublings of the file */
+    static final int MAX_GROUPS = 32;
+
+    private final HashPageId pid;
+    private TransactionId dirtier;
+    private boolean dirty = false;
+
+    private int level;
+    private int split;
+    private int freeList;
+    private final int[] groupStart = new int[MAX_GROUPS];
+
+    private byte[] oldData;
+
+    /**
+     * Create a header page from its data on disk: the level, the split
+     * pointer, the first free overflow page or 0, then the page number at
+     * which each group starts, 0 for groups not allocated yet. A page of
+     * zeros is the header of a file with one bucket, on page 1.
+     */
+    public HashHeaderPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        level = dis.readInt();
+        split = dis.readInt();
+        freeList = dis.readInt();
+        for (int g = 0; g < MAX_GROUPS; g++)
+            groupStart[g] = dis.readInt();
+        if (groupStart[0] == 0)
+            groupStart[0] = 1;
+        setBeforeImage();
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /** @return the number of buckets of the file */
+    public int numBuckets() {
+        return (1 << level) + split;
+    }
+
+    /**
+     * @return the bucket of a key with the specified hash
+     */
+    public int bucketOf(int hash) {
+        int bucket = hash & ((1 << level) - 1);
+        if (bucket < split)
+            bucket = hash & ((1 << (level + 1)) - 1);
+        return bucket;
+    }
+
+    /**
+     * @return the page number of the primary page of a bucket
+     */
+    public int primaryPage(int bucket) {
+        if (bucket == 0)
+            return groupStart[0];
+        int group = 32 - Integer.numberOfLeadingZeros(bucket);
+        return groupStart[group] + bucket - (1 << (group - 1));
+    }
+
+    /** @return the bucket split next */
+    int getSplit() {
+        return split;
+    }
+
+    /** @return the bucket the next split creates */
+    int getSplitTarget() {
+        return split + (1 << level);
+    }
+
+    /**
+     * @return whether the group of the bucket the next split creates has
+     *         pages yet
+     */
+    boolean splitTargetAllocated() {
+        return groupStart[level + 1] != 0;
+    }
+
+    /**
+     * Record that the group of the bucket the next split creates starts at a
+     * page.
+     */
+    void allocateSplitGroup(int firstPage) {
+        groupStart[level + 1] = firstPage;
+    }
+
+    /**
+     * Move the split pointer past the bucket just split, to the next level
+     * once every bucket of this level is split.
+     */
+    void advanceSplit() {
+        split++;
+        if (split == 1 << level) {
+            level++;
+            split = 0;
+        }
+    }
+
+    /** @return whether the file may split again */
+    boolean canSplit() {
+        return level + 1 < MAX_GROUPS - 1;
+    }
+
+    /** @return the first free overflow page, or 0 if there is none */
+    int getFreeList() {
+        return freeList;
+    }
+
+    void setFreeList(int pageNo) {
+        freeList = pageNo;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(level);
+            dos.writeInt(split);
+            dos.writeInt(freeList);
+            for (int g = 0; g < MAX_GROUPS; g++)
+                dos.writeInt(groupStart[g]);
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of the header page of an empty file
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    public HashHeaderPage getBeforeImage() {
+        try {
+            return new HashHeaderPage(pid, oldData);
+        } catch (IOException e) {
+            // we parsed it OK before
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData().clone();
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+/**
+ * Unique identifier for HashHeaderPage and HashBucketPage objects. Page 0 of
+ * a {@link HashFile} is its header page, and every other page is a bucket
+ * page.
+ */
+public class HashPageId implements PageId {
+
+    private final int tableId;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific hash file.
+     *
+     * @param tableId The table that is being referenced
+     * @param pgNo The page number in that table.
+     */
+    public HashPageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the table getTableId() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    /** @return whether this is the id of the header page of its file */
+    public boolean isHeader() {
+        return pgNo == 0;
+    }
+
+    public int hashCode() {
+        return tableId * 31 + pgNo;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against
+     * @return true if o is a HashPageId of the same page
+     */
+    public boolean equals(Object o) {
+        if (!(o instanceof HashPageId))
+            return false;
+        HashPageId p = (HashPageId) o;
+        return p.tableId == tableId && p.pgNo == pgNo;
+    }
+
+    public String toString() {
+        return "HashPageId(" + tableId + ", " + pgNo + ")";
+    }
+
+    /**
+     * Return a representation of this object as an array of integers, for
+     * writing to disk. Like a HeapPageId, it holds the table id and the page
+     * number; the log tells the two apart by the file of the table.
+     */
+    public int[] serialize() {
+        return new int[] { tableId, pgNo };
+    }
+}
@@ -17,6 +17,8 @@ import java.util.*;
 public class HeapFile implements DbFile {
     private File file;
     private TupleDesc tupleDesc;
+    private final FreeSpaceMap freeSpace;
+    private final ZoneMap zoneMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -26,9 +28,31 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose free space
+     * map and zone map are also kept in side files next to it if persistMaps
+     * is set, so that they survive a restart. Only durable tables, such as
+     * those of a catalog schema, should persist their maps: the side files
+     * outlive the heap file unless whoever drops it deletes them too.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the TupleDesc of the tuples stored in the file
+     * @param persistMaps
+     *            whether to keep the maps in side files
+     * @see SideFiles
+     */
+    public HeapFile(File f, TupleDesc td, boolean persistMaps) {
         // some code goes here
         file = f;
         tupleDesc = td;
+        freeSpace = new FreeSpaceMap(persistMaps ? FreeSpaceMap.fileFor(f) : null, f);
+        zoneMap = new ZoneMap(persistMaps ? ZoneMap.fileFor(f) : null, f, td);
     }
 
     /**
@@ -74,17 +98,30 @@ public class HeapFile implements DbFile {
         int offset = pid.pageNumber() * length;
         if (offset + length > file.length()) throw new IllegalArgumentException();
 
-        RandomAccessFile randomAccessFile;
         byte[] data = new byte[length];
-        HeapPage page;
-        try {
-            randomAccessFile = new RandomAccessFile(file, "r");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
             randomAccessFile.seek(offset);
             randomAccessFile.readFully(data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException();
+        }
+        return readPage(pid, data);
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid, byte[] data) {
+        HeapPage page;
+        try {
             page = new HeapPage((HeapPageId) pid, data);
         } catch (IOException e) {
             throw new IllegalArgumentException();
         }
+        freeSpace.update(pid.pageNumber(), page.getNumEmptySlots());
+        // bounds the map already has are still valid, and finding them again
+        // would parse every tuple of the page
+        if (!zoneMap.isKnown(pid.pageNumber()))
+            zoneMap.update(pid.pageNumber(), page.iterator());
         return page;
     }
 
@@ -96,14 +133,16 @@ public class HeapFile implements DbFile {
         int length = BufferPool.getPageSize();
         int offset = pid.pageNumber() * length;
 
-        RandomAccessFile randomAccessFile;
-        try {
-            randomAccessFile = new RandomAccessFile(file, "rw");
+        freeSpace.beginWrite();
+        zoneMap.beginWrite();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
             randomAccessFile.seek(offset);
             randomAccessFile.write(page.getPageData());
         } catch (IOException e) {
             throw new IllegalArgumentException();
         }
+        freeSpace.write(pid.pageNumber(), ((HeapPage) page).getNumEmptySlots());
+        zoneMap.write(pid.pageNumber(), ((HeapPage) page).iterator());
     }
 
     /**
@@ -114,21 +153,34 @@ public class HeapFile implements DbFile {
         return (int) (file.length() / BufferPool.getPageSize());
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * Inserts the tuple into a page with an empty slot, found through the
+     * free space map of this file, or into a new page appended to the file if
+     * every page is full.
+     *
+     * @see FreeSpaceMap
+     */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
         HeapPageId pid;
         HeapPage page;
-        for (int i = 0; i < numPages(); ++i) {
-            pid = new HeapPageId(getId(), i);
+        int pageNo;
+        while ((pageNo = freeSpace.findPage(numPages())) >= 0) {
+            pid = new HeapPageId(getId(), pageNo);
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
             page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
             if (page.getNumEmptySlots() > 0) {
                 page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
                 page.insertTuple(t);
+                freeSpace.update(pageNo, page.getNumEmptySlots());
+                zoneMap.widen(pageNo, t);
                 return new ArrayList<Page>(Collections.singletonList(page));
-            } else {
+            }
+            // the map was out of date
+            freeSpace.update(pageNo, 0);
+            if (!held) {
                 Database.getBufferPool().releasePage(tid, pid);
             }
         }
@@ -137,6 +189,8 @@ public class HeapFile implements DbFile {
         writePage(page);
         page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         page.insertTuple(t);
+        freeSpace.update(pid.pageNumber(), page.getNumEmptySlots());
+        zoneMap.widen(pid.pageNumber(), t);
 
         return new ArrayList<Page>(Collections.singletonList(page));
     }
@@ -148,6 +202,7 @@ public class HeapFile implements DbFile {
         PageId pid = t.getRecordId().getPageId();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
+        freeSpace.update(pid.pageNumber(), page.getNumEmptySlots());
         return new ArrayList<>(Collections.singleton(page));
         // not necessary for lab1
     }
@@ -155,9 +210,28 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
+        return iterator(tid, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the specified predicates, holding only the specified fields. Pages whose
+     * zone map shows that none of their tuples can match are skipped without
+     * reading them, unless tid reads a snapshot, and on the pages that are read the predicates are
+     * evaluated on the page data, so that only matching tuples are built.
+     *
+     * @see ZoneMap
+     * @see HeapPage#iterator(Predicate[], int[], TupleDesc)
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+        TupleDesc outTd = FilteredDbFileIterator.project(getTupleDesc(), fields);
+        boolean snapshot = Database.getBufferPool().isSnapshot(tid);
         DbFileIterator heapFileIterator = new DbFileIterator() {
             private int currentPid;
             private Iterator<Tuple> tupleIterator;
+            // the page being read, pinned in the buffer pool, or null
+            private PageId pinned;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
@@ -169,9 +243,7 @@ public class HeapFile implements DbFile {
                 if (tupleIterator == null) return false;
                 while (!tupleIterator.hasNext() && currentPid < numPages() - 1) {
                     ++currentPid;
-                    PageId pageId = new HeapPageId(getId(), currentPid);
-                    HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                    tupleIterator = currentPage.iterator();
+                    tupleIterator = pageIterator(currentPid);
                 }
                 return tupleIterator.hasNext();
             }
@@ -191,13 +263,32 @@ public class HeapFile implements DbFile {
             }
             private void reset() throws DbException, TransactionAbortedException {
                 currentPid = 0;
-                PageId pageId = new HeapPageId(getId(), currentPid);
-                HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                tupleIterator = currentPage.iterator();
+                tupleIterator = pageIterator(currentPid);
+            }
+            private Iterator<Tuple> pageIterator(int pageNo) throws DbException, TransactionAbortedException {
+                unpin();
+                // the zone map describes the current pages, which a
+                // snapshot may not read
+                if (!snapshot && !zoneMap.mayMatch(pageNo, preds))
+                    return Collections.<Tuple>emptyIterator();
+                PageId pageId = new HeapPageId(getId(), pageNo);
+                HeapPage currentPage = (HeapPage) Database.getBufferPool().pinPage(tid, pageId, Permissions.READ_ONLY);
+                pinned = pageId;
+                if (preds == null && fields == null)
+                    return currentPage.iterator();
+                return currentPage.iterator(preds, fields, outTd);
+            }
+
+            private void unpin() {
+                if (pinned != null) {
+                    Database.getBufferPool().unpinPage(tid, pinned);
+                    pinned = null;
+                }
             }
 
             @Override
             public void close() {
+                unpin();
                 currentPid = 0;
                 tupleIterator = null;
             }
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -106,6 +107,8 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    // the side files of a file being replaced describe its old pages
+    SideFiles.delete(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -145,7 +148,7 @@ public class HeapFileEncoder {
                     System.out.println ("BAD LINE : " + s);
                 }
             }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
+            else   if (typeAr[fieldNo].isString()) {
                 s = s.trim();
                 int overflow = Type.STRING_LEN - s.length();
                 if (overflow < 0) {
@@ -223,4 +226,41 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Convert the specified input text file into a binary page file in the
+   * format of PaxFile, with the same tuples on each page as the heap page file
+   * {@link #convert(File, File, int, int, Type[], char)} would produce.
+   *
+   * @see PaxPage
+   * @see PaxFile
+   * @param inFile The input file to read data from
+   * @param outFile The output file to write data to
+   * @param npagebytes The number of bytes per page in the output file
+   * @param numFields the number of fields in each input line/output tuple
+   * @throws IOException if the input/output file can't be opened or a
+   *   malformed input line is encountered
+   */
+  public static void convertToPax(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      File heapFile = File.createTempFile("tempTable", ".dat");
+      heapFile.deleteOnExit();
+      convert(inFile, heapFile, npagebytes, numFields, typeAr, fieldSeparator);
+
+      Type[] types = Arrays.copyOf(typeAr, numFields);
+      DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(heapFile)));
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+      SideFiles.delete(outFile);
+      try {
+          byte[] page = new byte[npagebytes];
+          for (long n = heapFile.length() / npagebytes; n > 0; n--) {
+              dis.readFully(page);
+              os.write(PaxPage.fromHeapPageData(page, types));
+          }
+      } finally {
+          dis.close();
+          os.close();
+      }
+      heapFile.delete();
+  }
 }
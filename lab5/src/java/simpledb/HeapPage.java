@@ -22,6 +22,14 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
     TransactionId dirtyTid = null;
+    // kept up to date by markSlotUsed
+    private int numEmptySlots;
+    // the data the page was read from, until the page is first changed
+    private byte[] data;
+    // whether tuples holds the parsed tuples of the page
+    private volatile boolean parsed = false;
+    // offset of each field in a record
+    private final int[] fieldOffsets;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
@@ -38,6 +46,9 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Tuples are only parsed from the data when they are first needed; scans
+     * with pushed-down predicates evaluate them on the data directly, see
+     * {@link #iterator(Predicate[], int[], TupleDesc)}.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -46,24 +57,46 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        header = Arrays.copyOf(data, getHeaderSize());
+        for (int i=0; i<numSlots; i++)
+            if (!isSlotUsed(i))
+                numEmptySlots++;
+
         tuples = new Tuple[numSlots];
-        try{
+        this.data = data;
+
+        setBeforeImage();
+    }
+
+    /**
+     * Parse the tuples of this page from its data, if that was not done yet.
+     */
+    private synchronized void ensureParsed() {
+        if (parsed)
+            return;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            dis.skipBytes(header.length);
             // allocate and read the actual records of this page
             for (int i=0; i<tuples.length; i++)
                 tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch(NoSuchElementException e){
             e.printStackTrace();
         }
-        dis.close();
+        parsed = true;
+    }
 
-        setBeforeImage();
+    // parse the tuples, and drop the data, which is about to be out of date
+    private void startChange() {
+        ensureParsed();
+        data = null;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -106,9 +139,12 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        // the data the page was read from is never changed, so it can be
+        // shared rather than copied
+        byte[] raw = data;
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = raw != null ? raw : getPageData();
         }
     }
 
@@ -166,6 +202,11 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        // the data is dropped on the first change, so while it is still here
+        // it holds exactly the contents of the page
+        byte[] raw = data;
+        if (raw != null)
+            return raw.clone();
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -255,6 +296,7 @@ public class HeapPage implements Page {
             throw new DbException("Page ID not match for deletion");
         int tupId = recordId.tupleno();
         if (!isSlotUsed(tupId)) throw new DbException("Tuple not on this page or already empty");
+        startChange();
         markSlotUsed(tupId, false);
     }
 
@@ -271,6 +313,7 @@ public class HeapPage implements Page {
         int emptyNum = getNumEmptySlots();
         if (emptyNum == 0) throw new DbException("Not enough place in page");
         if (!t.getTupleDesc().equals(td)) throw new DbException("Tuple Desc not match");
+        startChange();
         for (int i = 0; i < numSlots; ++i) {
             if (!isSlotUsed(i)) {
                 t.setRecordId(new RecordId(pid, i));
@@ -305,14 +348,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int cnt = 0;
-        for(int i=0;i<numSlots;++i){
-            if(!isSlotUsed(i)){
-                ++cnt;
-            }
-        }
-        return cnt;
-
+        return numEmptySlots;
     }
 
     /**
@@ -335,10 +371,22 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        if (isSlotUsed(i) == value) return;
         int byteId = i / 8;
         int bitId = i % 8;
         if (value) header[byteId] |= 1 << bitId;
         else header[byteId] &= ~(1 << bitId);
+        numEmptySlots += value ? -1 : 1;
+    }
+
+    /**
+     * @return the tuple stored in slot i, or null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            return null;
+        ensureParsed();
+        return tuples[i];
     }
 
     /**
@@ -347,6 +395,7 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        ensureParsed();
         ArrayList<Tuple> filledTuples = new ArrayList<Tuple>();
         for (int i=0;i<numSlots;i++) {
             if (isSlotUsed(i)) {
@@ -357,5 +406,80 @@ public class HeapPage implements Page {
 
     }
 
-}
+    /**
+     * Iterate over the tuples on this page that satisfy all of the specified
+     * predicates, reading only the specified fields. While the page is
+     * unchanged since it was read, predicates are evaluated on its data, and
+     * only the tuples that satisfy them are parsed.
+     *
+     * @param preds predicates over fields of the table, or null
+     * @param fields the indexes of the fields to read, in output order, or
+     *        null for all of them
+     * @param outTd the TupleDesc of the returned tuples
+     * @return an iterator over the matching tuples, with the RecordIds of the
+     *         stored tuples
+     */
+    Iterator<Tuple> iterator(Predicate[] preds, int[] fields, TupleDesc outTd) {
+        ArrayList<Tuple> matches = new ArrayList<Tuple>();
+        byte[] raw = data;
+        if (raw == null) {
+            // changed since it was read, so the parsed tuples are current
+            for (int i=0; i<numSlots; i++) {
+                if (isSlotUsed(i) && satisfies(tuples[i], preds))
+                    matches.add(project(tuples[i], fields, outTd));
+            }
+            return matches.iterator();
+        }
+
+        int tupleSize = td.getSize();
+        int offset = header.length;
+        for (int i=0; i<numSlots; i++, offset += tupleSize) {
+            if (!isSlotUsed(i))
+                continue;
+            boolean match = true;
+            for (int k=0; preds != null && k<preds.length && match; k++) {
+                int f = preds[k].getField();
+                match = preds[k].filter(raw, offset + fieldOffsets[f], td.getFieldType(f));
+            }
+            if (match)
+                matches.add(fields == null && parsed ? tuples[i] : readFields(raw, offset, i, fields, outTd));
+        }
+        return matches.iterator();
+    }
 
+    private static boolean satisfies(Tuple t, Predicate[] preds) {
+        for (int k=0; preds != null && k<preds.length; k++) {
+            if (!preds[k].filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    private static Tuple project(Tuple t, int[] fields, TupleDesc outTd) {
+        if (fields == null)
+            return t;
+        Tuple projected = new Tuple(outTd);
+        for (int k=0; k<fields.length; k++)
+            projected.setField(k, t.getField(fields[k]));
+        projected.setRecordId(t.getRecordId());
+        return projected;
+    }
+
+    // parse some of the fields of the record at the specified offset of raw
+    private Tuple readFields(byte[] raw, int offset, int slotId, int[] fields, TupleDesc outTd) {
+        Tuple t = new Tuple(outTd);
+        t.setRecordId(new RecordId(pid, slotId));
+        int n = fields == null ? td.numFields() : fields.length;
+        try {
+            for (int k=0; k<n; k++) {
+                int f = fields == null ? k : fields[k];
+                Type type = td.getFieldType(f);
+                t.setField(k, type.parse(new DataInputStream(
+                        new ByteArrayInputStream(raw, offset + fieldOffsets[f], type.getLen()))));
+            }
+        } catch (java.text.ParseException e) {
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+}
@@ -0,0 +1,38 @@
+package simpledb;
+
+/**
+ * The interface of DbFiles that find their tuples by the value of a key field
+ * without reading the whole file, {@link BTreeFile} and {@link HashFile}.
+ * Such a file may store a table, read by a {@link BTreeScan}, or back a
+ * {@link SecondaryIndex} on a HeapFile table, read by an {@link IndexScan}.
+ */
+public interface IndexFile extends DbFile {
+
+    /**
+     * @return the index of the field the file is keyed on
+     */
+    public int keyField();
+
+    /**
+     * @return the number of pages of the file
+     */
+    public int numPages();
+
+    /**
+     * Get the tuples of the file whose key matches a predicate. Predicates
+     * the file does not support are answered by reading every tuple.
+     *
+     * @param tid the transaction id
+     * @param ipred the predicate on the key field
+     * @return an iterator over the matching tuples
+     * @see #supports
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred);
+
+    /**
+     * @return whether {@link #indexIterator} answers predicates with the
+     *         specified operator by reading only the part of the file that
+     *         holds the matching keys
+     */
+    public boolean supports(Predicate.Op op);
+}
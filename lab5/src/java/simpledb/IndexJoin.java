@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexJoin joins the tuples of its outer child to those of a table with an
+ * index on the join field: for each outer tuple it looks up the tuples of
+ * the table whose field equals the outer join field, through the table's own
+ * {@link IndexFile} or a {@link SecondaryIndex}, rather than reading the
+ * whole table. It is chosen by the {@link JoinOptimizer} for equality joins
+ * whose outer side is small.
+ * <p>
+ * The inner table is described by a {@link SeqScan}, whose predicates and
+ * fields are applied to the tuples looked up, so that the join returns the
+ * same tuples as a {@link Join} of the outer child and the scan.
+ */
+public class IndexJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate predicate;
+    private DbIterator child1;
+    private SeqScan child2;
+    private TupleDesc schema1, schema2, joinSchema;
+    private Tuple tuple1 = null;
+    private DbFileIterator matches = null;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The equality predicate to join the children on; its second
+     *            field is a field of the tuples of child2
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The scan of the right(inner) table, whose join field must
+     *            be indexed
+     * @throws IllegalArgumentException
+     *             if the predicate is not an equality, or the join field of
+     *             the inner table is not indexed
+     * @see #canLookUp
+     */
+    public IndexJoin(JoinPredicate p, DbIterator child1, SeqScan child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("index joins need an equality predicate, not " + p.getOperator());
+        if (!canLookUp(child2, p.getField2()))
+            throw new IllegalArgumentException("field " + p.getField2() + " of " + child2.getTableName()
+                    + " is not indexed");
+        this.predicate = p;
+        setChildren(new DbIterator[] { child1, child2 });
+    }
+
+    /**
+     * @return whether the tuples a scan returns can be looked up by a field,
+     *         the table being keyed on it or having a {@link SecondaryIndex}
+     *         on it that answers equality predicates
+     */
+    public static boolean canLookUp(SeqScan scan, int field) {
+        int tableField = tableField(scan, field);
+        SecondaryIndex index = Database.getCatalog().getIndex(scan.getTableId(), tableField);
+        if (index != null)
+            return index.getFile().supports(Predicate.Op.EQUALS);
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return file instanceof IndexFile && ((IndexFile) file).keyField() == tableField
+                && ((IndexFile) file).supports(Predicate.Op.EQUALS);
+    }
+
+    // the field of the table a field of the tuples of a scan holds
+    private static int tableField(SeqScan scan, int field) {
+        return scan.getFields() == null ? field : scan.getFields()[field];
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table
+     *         name
+     */
+    public String getJoinField1Name() {
+        return schema1.getFieldName(predicate.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table
+     *         name
+     */
+    public String getJoinField2Name() {
+        return schema2.getFieldName(predicate.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return joinSchema;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        tuple1 = null;
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeMatches();
+        tuple1 = null;
+        child1.rewind();
+    }
+
+    private void closeMatches() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+    }
+
+    // the tuples of the inner table matching an outer tuple
+    private DbFileIterator lookup(Tuple outer) throws DbException, TransactionAbortedException {
+        int tableId = child2.getTableId();
+        TransactionId tid = child2.getTransactionId();
+        int field = tableField(child2, predicate.getField2());
+        IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, outer.getField(predicate.getField1()));
+        SecondaryIndex index = Database.getCatalog().getIndex(tableId, field);
+        DbFileIterator it = index != null ? index.indexIterator(tid, ipred)
+                : ((IndexFile) Database.getCatalog().getDatabaseFile(tableId)).indexIterator(tid, ipred);
+        it = new FilteredDbFileIterator(it, child2.getPredicates(), child2.getFields(),
+                Database.getCatalog().getTupleDesc(tableId));
+        it.open();
+        return it;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, the concatenation of an
+     * outer tuple and an inner tuple it matches, like {@link Join#fetchNext}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext())
+                return Tuple.merge(tuple1, matches.next(), schema1, schema2, joinSchema);
+            closeMatches();
+            if (!child1.hasNext())
+                return null;
+            tuple1 = child1.next();
+            matches = lookup(tuple1);
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = (SeqScan) children[1];
+        schema1 = child1.getTupleDesc();
+        schema2 = child2.getTupleDesc();
+        joinSchema = TupleDesc.merge(schema1, schema2);
+    }
+}
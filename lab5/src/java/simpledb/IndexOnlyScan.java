@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an operator which answers a scan of some fields of a
+ * HeapFile table from the entries of a {@link SecondaryIndex} alone, when the
+ * index holds all of those fields as key or included fields: the table itself
+ * is never read. Only the entries in the key range bounded by the predicates
+ * over the key fields (see {@link SecondaryIndex#rangePredicates}) are read,
+ * and each is checked against every predicate.
+ */
+public class IndexOnlyScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final String tableAlias;
+    private final int[] fields;
+    private final Predicate[] preds;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan of some fields of the tuples of a table matching every
+     * predicate, through one of its secondary indexes.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the secondary index to read
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields named tableAlias.fieldName
+     * @param fields
+     *            the indexes of the fields of the table to return
+     * @param preds
+     *            predicates over fields of the table, or null
+     * @throws IllegalArgumentException
+     *             if the index does not hold a returned field or a field a
+     *             predicate is over
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, int[] fields,
+            Predicate[] preds) {
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.fields = fields.clone();
+        this.preds = preds == null ? new Predicate[0] : preds;
+        int[] predFields = new int[this.preds.length];
+        for (int i = 0; i < predFields.length; i++)
+            predFields[i] = this.preds[i].getField();
+        if (!index.covers(fields) || !index.covers(predFields))
+            throw new IllegalArgumentException("the index does not hold every field the scan reads");
+
+        TupleDesc base = Database.getCatalog().getTupleDesc(index.getTableId());
+        String[] names = new String[fields.length];
+        Type[] types = new Type[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            names[i] = tableAlias + "." + base.getFieldName(fields[i]);
+            types[i] = base.getFieldType(fields[i]);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the actual name of the table the operator scans in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /** @return the index this operator reads */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        it = new IndexOnlyScanIterator();
+        it.open();
+        isOpen = true;
+    }
+
+    /**
+     * @return the TupleDesc of the returned fields of the underlying table,
+     *         with field names prefixed with the tableAlias string from the
+     *         constructor
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Rebuilds the returned fields of the matching tuples from the entries in
+     * the key range.
+     */
+    private class IndexOnlyScanIterator extends AbstractDbFileIterator {
+        private DbFileIterator entries;
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries = index.entryIterator(tid, preds);
+            entries.open();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (entries != null && entries.hasNext()) {
+                Tuple t = index.tableTuple(entries.next());
+                if (!matches(t))
+                    continue;
+                Tuple out = new Tuple(td);
+                for (int i = 0; i < fields.length; i++)
+                    out.setField(i, t.getField(fields[i]));
+                out.setRecordId(t.getRecordId());
+                return out;
+            }
+            return null;
+        }
+
+        private boolean matches(Tuple t) {
+            for (Predicate p : preds) {
+                if (!p.filter(t))
+                    return false;
+            }
+            return true;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (entries != null)
+                entries.close();
+            entries = null;
+        }
+    }
+}
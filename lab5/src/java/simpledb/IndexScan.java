@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an operator which reads the tuples of a HeapFile table that
+ * match a predicate by looking them up in a {@link SecondaryIndex} on one of
+ * its fields, then fetching each of them by RecordId.
+ */
+public class IndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final String tableAlias;
+    private final TupleDesc td;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates a scan of the tuples matching ipred through the specified index.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index on the table to scan
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName
+     * @param ipred
+     *            The predicate on the indexed field to match
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.tableAlias = tableAlias;
+
+        TupleDesc base = Database.getCatalog().getTupleDesc(index.getTableId());
+        String[] names = new String[base.numFields()];
+        Type[] types = new Type[base.numFields()];
+        for (int i = 0; i < base.numFields(); i++) {
+            names[i] = tableAlias + "." + base.getFieldName(i);
+            types[i] = base.getFieldType(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the actual name of the table the operator scans in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the index this operator reads
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        it = index.indexIterator(tid, ipred);
+        it.open();
+        isOpen = true;
+    }
+
+    /**
+     * @return the TupleDesc of the underlying table, with field names prefixed
+     *         with the tableAlias string from the constructor
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -109,6 +109,23 @@ public class IntHistogram {
         return 1.0;
     }
 
+    /**
+     * @return the expected selectivity of an equality predicate whose value
+     *     is drawn from the values histogrammed: a value falls in each bucket
+     *     with the fraction of the values the bucket holds, and matches
+     *     1/width of them.
+     */
+    public double avgEqualsSelectivity() {
+        if (totalTuples == 0)
+            return 0;
+        double sel = 0;
+        for (int h : histogram) {
+            double fraction = h / (double) totalTuples;
+            sel += fraction * fraction / width;
+        }
+        return sel;
+    }
+
     private int leftBound(int i) {
         return min + i * width;
     }
@@ -68,7 +68,11 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.indexJoin && plan2 instanceof SeqScan
+                && IndexJoin.canLookUp((SeqScan) plan2, t2id))
+            j = new IndexJoin(p, plan1, (SeqScan) plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
@@ -115,6 +119,48 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * Estimate the cost of a join as an {@link IndexJoin}, which reads the
+     * outer side once and looks up the tuples of the inner table matching
+     * each outer tuple through an index on the inner join field.
+     *
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed; t2 is the inner table
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param stats
+     *            The table stats, referenced by table names, not alias
+     * @return An estimate of the cost of the index join, or Double.MAX_VALUE
+     *         if it is not an equality join, or if the plan of the inner
+     *         table is not one {@link #instantiateJoin} can turn into an
+     *         IndexJoin: a SeqScan whose join field has an index that answers
+     *         equalities
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1,
+            Map<String, TableStats> stats) {
+        if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS || j.t2Alias == null)
+            return Double.MAX_VALUE;
+        int tableId = p.getTableId(j.t2Alias);
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        int field;
+        DbIterator inner = p.getSubplan(j.t2Alias);
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(j.f2PureName);
+            if (!(inner instanceof SeqScan) || !IndexJoin.canLookUp((SeqScan) inner,
+                    inner.getTupleDesc().fieldNameToIndex(j.f2QuantifiedName)))
+                return Double.MAX_VALUE;
+        } catch (NoSuchElementException e) {
+            return Double.MAX_VALUE;
+        }
+        double lookupCost = s == null ? Double.MAX_VALUE : s.estimateIndexLookupCost(field);
+        if (lookupCost == Double.MAX_VALUE)
+            return Double.MAX_VALUE;
+        return cost1 + card1 * lookupCost + card1;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -267,7 +313,10 @@ public class JoinOptimizer {
                 }
             }
         }
-        // Retrieve the best order for the full set of joins
+        // Retrieve the best order for the full set of joins; a single-table
+        // query has no joins and so nothing in the cache
+        if (joins.isEmpty())
+            return joins;
         return planCache.getOrder(new HashSet<>(joins));
     }
 
@@ -401,6 +450,22 @@ public class JoinOptimizer {
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+
+        // an index join looks up the inner side, which must be a base table
+        if (news.isEmpty() || doesJoin(prevBest, j.t1Alias)) {
+            double cost = estimateIndexJoinCost(j, t1card, t1cost, stats);
+            if (cost < cost1) {
+                j = j.asIndexJoin();
+                cost1 = cost;
+            }
+        }
+        if (news.isEmpty() || doesJoin(prevBest, j.t2Alias)) {
+            double cost = estimateIndexJoinCost(j2, t2card, t2cost, stats);
+            if (cost < cost2) {
+                j2 = j2.asIndexJoin();
+                cost2 = cost;
+            }
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
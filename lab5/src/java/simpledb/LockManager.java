@@ -0,0 +1,464 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager implements the strict two-phase locking of the
+ * {@link BufferPool} at two granularities, tables and pages.
+ * <p>
+ * Before locking a page, a transaction takes an intention lock on its table,
+ * IS to read the page and IX to write it. Once a transaction holds more than
+ * a threshold of page locks on one table, the table lock is escalated to S,
+ * or to X if the transaction writes the table, if no other transaction's lock
+ * conflicts, and the page locks are released: the table lock covers every
+ * page of the table from then on. A large scan thus ends up holding a single
+ * lock instead of one per page. A transaction that cannot escalate keeps
+ * locking pages.
+ * <p>
+ * Transactions that wait for a lock record which transactions they wait for
+ * in a wait-for graph, and are aborted when they would wait in a cycle.
+ * Locks no transaction holds are dropped, so the lock tables only hold the
+ * locks in use.
+ */
+class LockManager {
+
+    /** Default number of page locks on one table above which a transaction escalates */
+    static final int DEFAULT_ESCALATION_THRESHOLD = 256;
+
+    /**
+     * The lock modes of tables: intention shared, intention exclusive, shared,
+     * shared with intention exclusive, and exclusive.
+     */
+    enum LockMode {
+        IS, IX, S, SIX, X;
+
+        // COMPATIBLE[a][b]: whether a and b may be held by two transactions
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        // COVERS[a][b]: whether holding a grants everything b grants
+        private static final boolean[][] COVERS = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  false, false, false, false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  true,  true,  true,  false },
+            /* X   */ { true,  true,  true,  true,  true },
+        };
+
+        boolean compatible(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        boolean covers(LockMode other) {
+            return COVERS[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode that covers both this mode and other */
+        LockMode combine(LockMode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            // IX and S
+            return SIX;
+        }
+    }
+
+    private static class PageLock {
+        private final Set<TransactionId> sharedLock = new HashSet<>();
+        private TransactionId exclusiveLock = null;
+
+        boolean requireLock(Permissions perm, TransactionId tid) {
+            if (perm.equals(Permissions.READ_ONLY)) return requireShared(tid);
+            return requireExclusive(tid);
+        }
+
+        private boolean requireShared(TransactionId tid) {
+            if (exclusiveLock != null) return exclusiveLock.equals(tid);
+            sharedLock.add(tid);
+            return true;
+        }
+
+        private boolean requireExclusive(TransactionId tid) {
+            if (exclusiveLock != null && !exclusiveLock.equals(tid)) return false;
+            if (sharedLock.size() > 1 || (sharedLock.size() == 1 && !sharedLock.contains(tid))) return false;
+            exclusiveLock = tid;
+            sharedLock.clear();
+            return true;
+        }
+
+        void releaseLock(TransactionId tid) {
+            if (tid.equals(exclusiveLock)) exclusiveLock = null;
+            else sharedLock.remove(tid);
+        }
+
+        boolean holdsLock(TransactionId tid) {
+            return tid.equals(exclusiveLock) || sharedLock.contains(tid);
+        }
+
+        boolean free() {
+            return exclusiveLock == null && sharedLock.isEmpty();
+        }
+
+        Set<TransactionId> relatedTransactions() {
+            Set<TransactionId> transactionIds = new HashSet<>(sharedLock);
+            if (exclusiveLock != null) transactionIds.add(exclusiveLock);
+            return transactionIds;
+        }
+    }
+
+    private static class TableLock {
+        private final HashMap<TransactionId, LockMode> holders = new HashMap<>();
+
+        // the mode tid would hold after being granted mode
+        LockMode target(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            return held == null ? mode : held.combine(mode);
+        }
+
+        boolean requireLock(LockMode mode, TransactionId tid) {
+            LockMode target = target(tid, mode);
+            if (!conflicting(tid, target).isEmpty())
+                return false;
+            holders.put(tid, target);
+            return true;
+        }
+
+        // the other transactions whose modes are not compatible with mode
+        Set<TransactionId> conflicting(TransactionId tid, LockMode mode) {
+            Set<TransactionId> transactionIds = new HashSet<>();
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !mode.compatible(e.getValue()))
+                    transactionIds.add(e.getKey());
+            }
+            return transactionIds;
+        }
+    }
+
+    /** The locks of one transaction, only used while synchronized on it */
+    private static class TransactionLocks {
+        // the pages used under a page or table lock, and those written
+        final Set<PageId> pages = new HashSet<>();
+        final Set<PageId> written = new HashSet<>();
+        // the mode held on each table, and the page locks held in each
+        final HashMap<Integer, LockMode> tables = new HashMap<>();
+        final HashMap<Integer, Set<PageId>> pageLocks = new HashMap<>();
+    }
+
+    private class DependencyGraph {
+        private final HashMap<TransactionId, Set<TransactionId>> edges = new HashMap<>();
+
+        synchronized void updateEdges(TransactionId requestor, Set<TransactionId> owners) {
+            if (owners == null)
+                edges.remove(requestor);
+            else
+                edges.put(requestor, owners);
+        }
+
+        synchronized boolean findCycle(TransactionId start) {
+            HashSet<TransactionId> visited = new HashSet<>();
+            Queue<TransactionId> bfsQueue = new LinkedList<>();
+            bfsQueue.add(start);
+            visited.add(start);
+            while (!bfsQueue.isEmpty()) {
+                TransactionId curPoint = bfsQueue.poll();
+                for (TransactionId toPoint : edges.getOrDefault(curPoint, Collections.emptySet())) {
+                    if (toPoint.equals(start)) return true;
+                    if (visited.add(toPoint)) bfsQueue.add(toPoint);
+                }
+            }
+            return false;
+        }
+    }
+
+    // the locks some transaction holds; locks are only used inside compute
+    // methods of the maps, which drop free ones
+    private final ConcurrentHashMap<PageId, PageLock> pageLocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, TableLock> tableLocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TransactionId, TransactionLocks> transactions = new ConcurrentHashMap<>();
+    private final DependencyGraph dependencyGraph = new DependencyGraph();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    /**
+     * Set the number of page locks on one table above which a transaction
+     * escalates to a table lock.
+     */
+    void setEscalationThreshold(int threshold) {
+        escalationThreshold = threshold;
+    }
+
+    /**
+     * Block until a transaction holds a lock on a page that grants the
+     * specified permissions, either on the page itself or on its table.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *         deadlock
+     */
+    void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        acquire(tid, pid, perm, true);
+    }
+
+    /**
+     * Take a lock like {@link #acquire(TransactionId, PageId, Permissions)},
+     * or fail right away if wait is not set and another transaction holds a
+     * conflicting lock.
+     *
+     * @throws TransactionAbortedException if the lock is not granted
+     */
+    void acquire(TransactionId tid, PageId pid, Permissions perm, boolean wait) throws TransactionAbortedException {
+        TransactionLocks txn = transactions.computeIfAbsent(tid, k -> new TransactionLocks());
+        int table = pid.getTableId();
+        LockMode need = perm == Permissions.READ_ONLY ? LockMode.S : LockMode.X;
+        LockMode held;
+        synchronized (txn) {
+            held = txn.tables.get(table);
+        }
+        if (held == null || !held.covers(need)) {
+            LockMode intention = need == LockMode.S ? LockMode.IS : LockMode.IX;
+            if (held == null || !held.covers(intention))
+                held = acquireTable(tid, txn, table, intention, wait);
+            if (!held.covers(need)) {
+                acquirePage(tid, pid, perm, wait);
+                boolean escalate;
+                synchronized (txn) {
+                    Set<PageId> locked = txn.pageLocks.computeIfAbsent(table, k -> new HashSet<>());
+                    escalate = locked.add(pid) && locked.size() > escalationThreshold;
+                }
+                if (escalate)
+                    escalate(tid, txn, table);
+            }
+        }
+        synchronized (txn) {
+            txn.pages.add(pid);
+            if (perm == Permissions.READ_WRITE)
+                txn.written.add(pid);
+        }
+    }
+
+    private LockMode acquireTable(TransactionId tid, TransactionLocks txn, int table, LockMode mode,
+            boolean wait) throws TransactionAbortedException {
+        LockMode[] granted = new LockMode[1];
+        waitFor(tid, () -> {
+            Set<TransactionId> owners = new HashSet<>();
+            tableLocks.compute(table, (k, lock) -> {
+                if (lock == null)
+                    lock = new TableLock();
+                if (lock.requireLock(mode, tid))
+                    granted[0] = lock.holders.get(tid);
+                else
+                    owners.addAll(lock.conflicting(tid, lock.target(tid, mode)));
+                return lock.holders.isEmpty() ? null : lock;
+            });
+            return granted[0] != null ? null : owners;
+        }, wait);
+        synchronized (txn) {
+            txn.tables.put(table, granted[0]);
+        }
+        return granted[0];
+    }
+
+    private void acquirePage(TransactionId tid, PageId pid, Permissions perm, boolean wait)
+            throws TransactionAbortedException {
+        waitFor(tid, () -> {
+            Set<TransactionId> owners = new HashSet<>();
+            boolean[] acquired = new boolean[1];
+            pageLocks.compute(pid, (k, lock) -> {
+                if (lock == null)
+                    lock = new PageLock();
+                acquired[0] = lock.requireLock(perm, tid);
+                if (!acquired[0])
+                    owners.addAll(lock.relatedTransactions());
+                return lock.free() ? null : lock;
+            });
+            return acquired[0] ? null : owners;
+        }, wait);
+    }
+
+    /** An attempt to take a lock, returning null or the transactions it waits for */
+    private interface Attempt {
+        Set<TransactionId> tryAcquire();
+    }
+
+    // retry an attempt until it succeeds, aborting on a deadlock, or abort
+    // right away if the attempt fails and wait is not set
+    private void waitFor(TransactionId tid, Attempt attempt, boolean wait) throws TransactionAbortedException {
+        Set<TransactionId> owners;
+        while ((owners = attempt.tryAcquire()) != null) {
+            if (!wait)
+                throw new TransactionAbortedException();
+            Thread.yield();
+            owners.remove(tid);
+            dependencyGraph.updateEdges(tid, owners);
+            if (dependencyGraph.findCycle(tid)) {
+                dependencyGraph.updateEdges(tid, null);
+                throw new TransactionAbortedException();
+            }
+            Thread.yield();
+        }
+        dependencyGraph.updateEdges(tid, null);
+    }
+
+    // try to replace the page locks of tid on a table by a table lock,
+    // without waiting
+    private void escalate(TransactionId tid, TransactionLocks txn, int table) {
+        LockMode held;
+        synchronized (txn) {
+            held = txn.tables.get(table);
+        }
+        LockMode target = held.covers(LockMode.IX) ? LockMode.X : LockMode.S;
+        boolean[] granted = new boolean[1];
+        tableLocks.computeIfPresent(table, (k, lock) -> {
+            granted[0] = lock.requireLock(target, tid);
+            return lock;
+        });
+        if (!granted[0])
+            return;
+        Set<PageId> locked;
+        synchronized (txn) {
+            txn.tables.put(table, held.combine(target));
+            locked = txn.pageLocks.remove(table);
+        }
+        for (PageId pid : locked)
+            releasePageLock(tid, pid);
+    }
+
+    private void releasePageLock(TransactionId tid, PageId pid) {
+        pageLocks.computeIfPresent(pid, (k, lock) -> {
+            lock.releaseLock(tid);
+            return lock.free() ? null : lock;
+        });
+    }
+
+    /**
+     * Release the lock of a transaction on a page, if it holds one on the
+     * page itself rather than on its table.
+     */
+    void release(TransactionId tid, PageId pid) {
+        TransactionLocks txn = transactions.get(tid);
+        if (txn == null)
+            return;
+        synchronized (txn) {
+            txn.pages.remove(pid);
+            txn.written.remove(pid);
+            Set<PageId> locked = txn.pageLocks.get(pid.getTableId());
+            if (locked == null || !locked.remove(pid))
+                return;
+        }
+        releasePageLock(tid, pid);
+    }
+
+    /**
+     * Release every lock of a transaction.
+     */
+    void releaseAll(TransactionId tid) {
+        TransactionLocks txn = transactions.remove(tid);
+        dependencyGraph.updateEdges(tid, null);
+        if (txn == null)
+            return;
+        synchronized (txn) {
+            for (Set<PageId> locked : txn.pageLocks.values()) {
+                for (PageId pid : locked)
+                    releasePageLock(tid, pid);
+            }
+            for (Integer table : txn.tables.keySet()) {
+                tableLocks.computeIfPresent(table, (k, lock) -> {
+                    lock.holders.remove(tid);
+                    return lock.holders.isEmpty() ? null : lock;
+                });
+            }
+        }
+    }
+
+    /**
+     * @return whether a transaction holds a lock on a page, on the page
+     *         itself or a shared or exclusive one on its table
+     */
+    boolean holdsLock(TransactionId tid, PageId pid) {
+        TransactionLocks txn = transactions.get(tid);
+        if (txn != null) {
+            synchronized (txn) {
+                LockMode held = txn.tables.get(pid.getTableId());
+                if (held != null && held.covers(LockMode.S))
+                    return true;
+            }
+        }
+        boolean[] flag = new boolean[1];
+        pageLocks.computeIfPresent(pid, (k, lock) -> {
+            flag[0] = lock.holdsLock(tid);
+            return lock;
+        });
+        return flag[0];
+    }
+
+    /**
+     * @return whether a transaction other than tid holds an exclusive lock on
+     *         a page, on the page itself or on its table
+     */
+    boolean lockedExclusivelyByOther(TransactionId tid, PageId pid) {
+        boolean[] flag = new boolean[1];
+        tableLocks.computeIfPresent(pid.getTableId(), (k, lock) -> {
+            for (Map.Entry<TransactionId, LockMode> e : lock.holders.entrySet()) {
+                if (e.getValue() == LockMode.X && !e.getKey().equals(tid))
+                    flag[0] = true;
+            }
+            return lock;
+        });
+        pageLocks.computeIfPresent(pid, (k, lock) -> {
+            if (lock.exclusiveLock != null && !lock.exclusiveLock.equals(tid))
+                flag[0] = true;
+            return lock;
+        });
+        return flag[0];
+    }
+
+    /**
+     * @return the mode of the lock of a transaction on a table, or null
+     */
+    LockMode tableMode(TransactionId tid, int tableId) {
+        TransactionLocks txn = transactions.get(tid);
+        if (txn == null)
+            return null;
+        synchronized (txn) {
+            return txn.tables.get(tableId);
+        }
+    }
+
+    /**
+     * @return the pages a transaction used under a lock it still holds
+     */
+    Set<PageId> pagesOf(TransactionId tid) {
+        TransactionLocks txn = transactions.get(tid);
+        if (txn == null)
+            return Collections.emptySet();
+        synchronized (txn) {
+            return new HashSet<>(txn.pages);
+        }
+    }
+
+    /**
+     * @return the pages a transaction used with READ_WRITE permissions
+     */
+    Set<PageId> writtenPagesOf(TransactionId tid) {
+        TransactionLocks txn = transactions.get(tid);
+        if (txn == null)
+            return Collections.emptySet();
+        synchronized (txn) {
+            return new HashSet<>(txn.written);
+        }
+    }
+
+    /**
+     * @return the number of pages some transaction holds a page lock on
+     */
+    int numLockedPages() {
+        return pageLocks.size();
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer collects the records appended to the {@link LogFile} in memory,
+ * in a ring of direct buffers, and writes them to the end of the
+ * {@link LogSegments} of the log, one large write per filled buffer, when it
+ * is flushed or when the ring is full.
+ * <p>
+ * The position of a byte in the buffer is its position in the log once it
+ * is written, so the position at which a record is appended is its LSN.
+ * Records are only read back from the segments, after flushing the buffer.
+ * <p>
+ * Not thread safe; the log file only uses it while synchronized on itself.
+ */
+class LogBuffer extends OutputStream {
+
+    /** Default size of each buffer of the ring, in bytes */
+    static final int BUFFER_SIZE = 64 * 1024;
+    /** Default number of buffers of the ring */
+    static final int NUM_BUFFERS = 8;
+
+    private final ByteBuffer[] ring;
+    // the buffer being filled; those before it are full
+    private int current = 0;
+    private LogSegments segments;
+    // position in the log up to which it is written, and of the next byte
+    // appended
+    private long flushed;
+    private long position;
+
+    LogBuffer() {
+        this(NUM_BUFFERS, BUFFER_SIZE);
+    }
+
+    LogBuffer(int buffers, int size) {
+        ring = new ByteBuffer[buffers];
+        for (int i = 0; i < buffers; i++)
+            ring[i] = ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Drop the bytes appended but not written, and append from then on at
+     * the specified position of the specified log.
+     */
+    void reset(LogSegments segments, long position) {
+        for (ByteBuffer b : ring)
+            b.clear();
+        current = 0;
+        this.segments = segments;
+        this.flushed = position;
+        this.position = position;
+    }
+
+    /**
+     * @return the position in the log of the next byte appended
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * @return the position in the log up to which the appended bytes are
+     *         written
+     */
+    long flushedPosition() {
+        return flushed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!ring[current].hasRemaining())
+            advance();
+        ring[current].put((byte) b);
+        position++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!ring[current].hasRemaining())
+                advance();
+            int n = Math.min(len, ring[current].remaining());
+            ring[current].put(b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // move on to the next buffer, writing the ring if every buffer is full
+    private void advance() throws IOException {
+        if (current == ring.length - 1)
+            flush();
+        else
+            current++;
+    }
+
+    /**
+     * Write the appended bytes to the log, without forcing them to disk.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (position == flushed)
+            return;
+        for (int i = 0; i <= current; i++)
+            ring[i].flip();
+        segments.write(flushed, ring, current + 1);
+        for (int i = 0; i <= current; i++)
+            ring[i].clear();
+        current = 0;
+        flushed = position;
+    }
+}
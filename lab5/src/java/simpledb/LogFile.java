@@ -3,7 +3,6 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,27 +38,33 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file holds a single long integer, the LSN of the last
+written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in {@link LogSegments}, fixed-size
+segment files next to the log file.  An LSN is a position in the
+sequence of segments: segment number times segment size plus offset.
+Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer representing the
+position in the log where the record began, which is the LSN of the
+record.  Records read back whose type or LSN do not match are not part
+of the log: they are the unwritten end of a segment, a record torn by
+a crash, or the old contents of a recycled segment.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of a {@link PageDelta}, the byte ranges of
+one page that the update changed with their bytes before and after it.
+The first update of a page after a checkpoint, and any later update of
+it by the same transaction, logs the full before and after images
+instead, so that redo never depends on the page on disk.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -69,12 +74,26 @@ for each active transaction.
 
 </ul>
 
+<p> Records are appended to a {@link LogBuffer} and written to the
+segments when the log is forced, when the buffer is full, and at
+checkpoints.  The flushed LSN is the position up to which the log is
+on disk; the
+BufferPool calls {@link #flushTo} before writing a page so that every
+update of the page is on disk first.
+
 */
 
 public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
+    // the segments holding the records, protected by this
+    private final LogSegments segments;
+    // the records appended but not written yet, protected by this
+    private final LogBuffer buffer = new LogBuffer();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    // the offset up to which the log is forced to disk, protected by this
+    private long flushedLSN = 0;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -93,6 +112,13 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // the number of threads replaying the log at recovery
+    private int redoThreads = Runtime.getRuntime().availableProcessors();
+
+    // the transaction that logged the last update of each page since the
+    // last checkpoint, protected by this
+    private final HashMap<PageId,Long> lastPageUpdate = new HashMap<PageId,Long>();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +131,17 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name
+        @param segmentSize The size of the segments of the log
+    */
+    LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -130,11 +165,18 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.clear();
+            appendAt(0);
         }
     }
 
+    // append the next record at the specified position of the log
+    private void appendAt(long lsn) {
+        buffer.reset(segments, lsn);
+        currentOffset = lsn;
+        flushedLSN = lsn;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,10 +200,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = buffer.position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -178,121 +220,52 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        out.writeInt(COMMIT_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
+        currentOffset = buffer.position();
         force();
         tidToFirstLogRecord.remove(tid.getId());
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the
+        byte ranges that differ between the images are logged, unless
+        the page was not updated since the last checkpoint or was last
+        updated by the same transaction.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
+        @return The LSN of the record
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page delta (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageId pid = after.getId();
+        Long last = lastPageUpdate.put(pid, tid.getId());
+        boolean full = last == null || last == tid.getId();
+        PageDelta delta = PageDelta.diff(pid, before.getPageData(), after.getPageData(), full);
+
+        long lsn = currentOffset;
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        delta.write(out);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.position();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+        return lsn;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,11 +280,11 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -323,33 +296,35 @@ public class LogFile {
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                // the next update of every page logs a full image
+                lastPageUpdate.clear();
+                startCpOffset = currentOffset;
+                out.writeInt(CHECKPOINT_RECORD);
+                out.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
                 }
+                out.writeLong(currentOffset);
+                currentOffset = buffer.position();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                //once the CP is on disk, make sure the CP location in
+                // the log file is updated
+                force();
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                raf.getChannel().force(true);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -358,99 +333,41 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption, by dropping the segments that only hold records
+        before the last checkpoint and before the first records of the
+        transactions active at it.  LSNs do not change, so no record is
+        copied. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
         long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        buffer.flush();
+        DataInputStream in = new DataInputStream(segments.reader(cpLoc));
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
+
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        int numOutstanding = in.readInt();
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord);
+        segments.truncate(minLogRecord, currentOffset);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,8 +384,80 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    return;
+                ArrayList<PageDelta> deltas = new ArrayList<PageDelta>();
+                buffer.flush();
+                LogSegments.Reader reader = segments.reader(first);
+                LogRecord record;
+                while ((record = readRecord(reader)) != null) {
+                    if (record.type == UPDATE_RECORD && record.tid == tid.getId())
+                        deltas.add(record.delta);
+                }
+                for (int i = deltas.size() - 1; i >= 0; i--)
+                    apply(deltas.get(i), false);
+            }
+        }
+    }
+
+    /** A record read back from the log */
+    private static class LogRecord {
+        int type;
+        long tid;
+        long offset;
+        PageDelta delta; // of UPDATE records
+    }
+
+    /** Read the next record of a reader.
+        @return the record, or null at the end of the log, which is
+        where the next bytes are not a complete record of the log
+    */
+    private LogRecord readRecord(LogSegments.Reader reader) throws IOException {
+        DataInputStream in = new DataInputStream(reader);
+        LogRecord record = new LogRecord();
+        record.offset = reader.position();
+        try {
+            record.type = in.readInt();
+            record.tid = in.readLong();
+            switch (record.type) {
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            case UPDATE_RECORD:
+                record.delta = PageDelta.read(in);
+                break;
+            case CHECKPOINT_RECORD:
+                int numXactions = in.readInt();
+                if (numXactions < 0)
+                    return null;
+                in.skipBytes(numXactions * 2 * LONG_SIZE);
+                break;
+            default:
+                return null;
             }
+            if (in.readLong() != record.offset)
+                return null;
+        } catch (EOFException e) {
+            return null;
+        } catch (InvalidObjectException e) {
+            // an update record that does not hold a delta
+            return null;
         }
+        return record;
+    }
+
+    /** Set a page on disk to its image after (redo) or before (undo) a
+        logged update, and drop it from the buffer pool.
+    */
+    private void apply(PageDelta delta, boolean redo) throws IOException {
+        PageId pid = delta.getPageId();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data = delta.isFull() ? null : file.readPage(pid).getPageData();
+        data = redo ? delta.redo(data) : delta.undo(data);
+        file.writePage(file.readPage(pid, data));
+        Database.getBufferPool().discardPage(pid);
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -478,6 +467,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            segments.close();
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -485,15 +475,108 @@ public class LogFile {
         }
     }
 
+    /** Set the number of threads that replay the updates of the log
+        at recovery, partitioned by page; 1 replays them serially on the
+        recovering thread.
+    */
+    public synchronized void setRedoThreads(int threads) {
+        redoThreads = Math.max(1, threads);
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        The log is read once; its updates are replayed by a number of
+        threads, see {@link #setRedoThreads}.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                buffer.flush();
+                tidToFirstLogRecord.clear();
+                lastPageUpdate.clear();
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    segments.clear();
+                    appendAt(0);
+                    return;
+                }
+
+                // the log is read from the first record of the
+                // transactions active at the checkpoint
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long start = segments.start();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    DataInputStream in = new DataInputStream(segments.reader(cpLoc + INT_SIZE + LONG_SIZE));
+                    int numXactions = in.readInt();
+                    start = cpLoc;
+                    while (numXactions-- > 0) {
+                        in.readLong();
+                        start = Math.min(start, in.readLong());
+                    }
+                }
+
+                // repeat history: redo every update since the checkpoint,
+                // which flushed the earlier ones, and the rollback of each
+                // abort, in log order per page, keeping the updates of the
+                // transactions still active
+                HashMap<Long,ArrayList<LogRecord>> active = new HashMap<Long,ArrayList<LogRecord>>();
+                RedoWorkers workers = new RedoWorkers(redoThreads);
+                LogSegments.Reader reader = segments.reader(start);
+                long end = start;
+                LogRecord record;
+                while ((record = readRecord(reader)) != null) {
+                    switch (record.type) {
+                    case COMMIT_RECORD:
+                        active.remove(record.tid);
+                        break;
+                    case ABORT_RECORD:
+                        ArrayList<LogRecord> aborted = active.remove(record.tid);
+                        if (aborted != null && record.offset >= cpLoc) {
+                            for (int i = aborted.size() - 1; i >= 0; i--)
+                                workers.submit(aborted.get(i).delta, false);
+                        }
+                        break;
+                    case UPDATE_RECORD:
+                        ArrayList<LogRecord> updates = active.get(record.tid);
+                        if (updates == null) {
+                            updates = new ArrayList<LogRecord>();
+                            active.put(record.tid, updates);
+                        }
+                        updates.add(record);
+                        if (record.offset >= cpLoc)
+                            workers.submit(record.delta, true);
+                        break;
+                    }
+                    end = reader.position();
+                }
+
+                // then undo the updates of the transactions that did not
+                // complete, newest first; each page's undo follows its redo
+                ArrayList<LogRecord> undo = new ArrayList<LogRecord>();
+                for (ArrayList<LogRecord> updates : active.values())
+                    undo.addAll(updates);
+                undo.sort((r1, r2) -> Long.compare(r2.offset, r1.offset));
+                for (LogRecord update : undo)
+                    workers.submit(update.delta, false);
+                workers.finish();
+                Set<Long> losers = active.keySet();
+
+                // drop a record the crash did not let complete, and abort
+                // the losers so that they are not undone again
+                segments.erase(end);
+                appendAt(end);
+                for (Long tid : losers) {
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = buffer.position();
+                }
+                force();
             }
          }
     }
@@ -503,8 +586,27 @@ public class LogFile {
         // some code goes here
     }
 
+    /** Write the buffered records to the log and force it to disk */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        buffer.flush();
+        segments.force();
+        flushedLSN = buffer.flushedPosition();
+    }
+
+    /** @return The position up to which the log is on disk; the records
+        with smaller LSNs are durable
+    */
+    public synchronized long getFlushedLSN() {
+        return flushedLSN;
+    }
+
+    /** Force the log to disk up to and including the record with the
+        specified LSN, unless it is already
+        @param lsn The LSN of a record returned by {@link #logWrite}
+    */
+    public synchronized void flushTo(long lsn) throws IOException {
+        if (lsn >= flushedLSN)
+            force();
     }
 
 }
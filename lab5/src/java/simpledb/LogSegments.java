@@ -0,0 +1,286 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the records of the {@link LogFile} in fixed-size
+ * segment files, preallocated when they are created. Log positions (LSNs)
+ * address the segments as one sequence of bytes: position p is at offset
+ * p % segmentSize of segment p / segmentSize, whose file is named after the
+ * log file with the segment number appended, as in log.12.
+ * <p>
+ * Truncating the log before a position drops the segments that end before
+ * it. Up to {@link #MAX_SPARE_SEGMENTS} of them are recycled, renamed to the
+ * numbers of the segments the log will need next, so that they need not be
+ * created and allocated again; the others are deleted. Recycled segments
+ * still hold old records, so readers must check the records they read, see
+ * {@link LogFile}.
+ * <p>
+ * Not thread safe; the log file only uses it while synchronized on itself.
+ */
+class LogSegments {
+
+    /** Default size of a segment, in bytes */
+    static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    /** Maximum number of segments kept for reuse after truncation */
+    static final int MAX_SPARE_SEGMENTS = 4;
+
+    private final File base;
+    private final long segmentSize;
+    // the open segments by number, and those written since the last force
+    private final TreeMap<Long, RandomAccessFile> open = new TreeMap<>();
+    private final Set<Long> written = new HashSet<>();
+    // the number of the first segment of the log
+    private long first;
+
+    /**
+     * Open the segments of a log.
+     *
+     * @param base the log file, whose name prefixes those of the segments
+     * @param segmentSize the size of each segment
+     */
+    LogSegments(File base, long segmentSize) {
+        this.base = base;
+        this.segmentSize = segmentSize;
+        long[] numbers = numbers();
+        first = numbers.length == 0 ? 0 : numbers[0];
+    }
+
+    // the numbers of the segment files that exist, in order
+    private long[] numbers() {
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        ArrayList<Long> found = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(prefix))
+                    continue;
+                try {
+                    found.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        long[] numbers = new long[found.size()];
+        for (int i = 0; i < numbers.length; i++)
+            numbers[i] = found.get(i);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private File file(long segment) {
+        return new File(base.getPath() + "." + segment);
+    }
+
+    // the open segment, created if it does not exist
+    private RandomAccessFile segment(long segment) throws IOException {
+        RandomAccessFile raf = open.get(segment);
+        if (raf == null) {
+            raf = new RandomAccessFile(file(segment), "rw");
+            if (raf.length() < segmentSize)
+                raf.setLength(segmentSize);
+            open.put(segment, raf);
+        }
+        return raf;
+    }
+
+    /**
+     * @return the position of the first byte of the log
+     */
+    long start() {
+        return first * segmentSize;
+    }
+
+    long segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Delete every segment, so that the log starts again at position 0.
+     */
+    void clear() throws IOException {
+        close();
+        for (long n : numbers())
+            file(n).delete();
+        first = 0;
+    }
+
+    /**
+     * Write the remaining bytes of some buffers at a position of the log.
+     */
+    void write(long position, ByteBuffer[] buffers, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            ByteBuffer b = buffers[i];
+            int limit = b.limit();
+            while (b.hasRemaining()) {
+                long segment = position / segmentSize;
+                long offset = position % segmentSize;
+                int n = (int) Math.min(b.remaining(), segmentSize - offset);
+                b.limit(b.position() + n);
+                FileChannel channel = segment(segment).getChannel();
+                while (b.hasRemaining())
+                    offset += channel.write(b, offset);
+                b.limit(limit);
+                written.add(segment);
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * Force the segments written since the last force to disk.
+     */
+    void force() throws IOException {
+        for (long segment : written) {
+            RandomAccessFile raf = open.get(segment);
+            if (raf != null)
+                raf.getChannel().force(true);
+        }
+        written.clear();
+    }
+
+    /**
+     * Read bytes at a position of the log.
+     *
+     * @return the number of bytes read, or -1 past the last segment
+     */
+    int read(long position, byte[] b, int off, int len) throws IOException {
+        long segment = position / segmentSize;
+        if (segment < first || (!open.containsKey(segment) && !file(segment).exists()))
+            return -1;
+        long offset = position % segmentSize;
+        int n = (int) Math.min(len, segmentSize - offset);
+        FileChannel channel = segment(segment).getChannel();
+        return channel.read(ByteBuffer.wrap(b, off, n), offset);
+    }
+
+    /**
+     * @return a stream reading the log from a position on
+     */
+    Reader reader(long position) {
+        return new Reader(position);
+    }
+
+    /**
+     * Drop the segments that end at or before a position, recycling some.
+     *
+     * @param position the position of the first byte still needed
+     * @param end the position of the end of the log
+     */
+    void truncate(long position, long end) throws IOException {
+        long[] numbers = numbers();
+        long current = end / segmentSize;
+        long last = Math.max(current, numbers.length == 0 ? 0 : numbers[numbers.length - 1]);
+        // the segments past the one holding the end are spares
+        long spares = last - current;
+        while (first < position / segmentSize) {
+            RandomAccessFile raf = open.remove(first);
+            if (raf != null)
+                raf.close();
+            written.remove(first);
+            File f = file(first);
+            if (spares < MAX_SPARE_SEGMENTS && f.renameTo(file(last + 1))) {
+                last++;
+                spares++;
+            } else {
+                f.delete();
+            }
+            first++;
+        }
+    }
+
+    /**
+     * Erase the log from a position on, so that the records written there
+     * before, which a crash may have left, are not read back as part of the
+     * log once new records are written over some of them.
+     */
+    void erase(long position) throws IOException {
+        long segment = position / segmentSize;
+        for (long n : numbers()) {
+            if (n > segment) {
+                RandomAccessFile raf = open.remove(n);
+                if (raf != null)
+                    raf.close();
+                written.remove(n);
+                file(n).delete();
+            }
+        }
+        if (!file(segment).exists())
+            return;
+        FileChannel channel = segment(segment).getChannel();
+        ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+        long offset = position % segmentSize;
+        while (offset < segmentSize) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), segmentSize - offset));
+            offset += channel.write(zeros, offset);
+        }
+        written.add(segment);
+    }
+
+    void close() throws IOException {
+        for (RandomAccessFile raf : open.values())
+            raf.close();
+        open.clear();
+        written.clear();
+    }
+
+    /**
+     * A stream over the log from some position, which keeps track of the
+     * position of the next byte it returns.
+     */
+    class Reader extends InputStream {
+        private final byte[] chunk = new byte[64 * 1024];
+        private int chunkPos = 0;
+        private int chunkLen = 0;
+        private long position;
+
+        private Reader(long position) {
+            this.position = position;
+        }
+
+        /**
+         * @return the position of the next byte read
+         */
+        long position() {
+            return position;
+        }
+
+        private boolean fill() throws IOException {
+            if (chunkPos < chunkLen)
+                return true;
+            int n = LogSegments.this.read(position, chunk, 0, chunk.length);
+            if (n <= 0)
+                return false;
+            chunkPos = 0;
+            chunkLen = n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            position++;
+            return chunk[chunkPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, chunkLen - chunkPos);
+            System.arraycopy(chunk, chunkPos, b, off, n);
+            chunkPos += n;
+            position += n;
+            return n;
+        }
+    }
+}
@@ -23,6 +23,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether t2 is looked up through an index on f2 for each tuple of t1, see {@link IndexJoin} */
+    public boolean indexJoin;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +66,14 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this LogicalJoinNode that looks up t2 through an
+     * index on f2. */
+    public LogicalJoinNode asIndexJoin() {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.indexJoin = true;
+        return j2;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
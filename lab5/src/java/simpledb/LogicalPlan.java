@@ -6,6 +6,8 @@ import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.HashSet;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -25,7 +27,10 @@ public class LogicalPlan {
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
+    private Vector<Vector<LogicalFilterNode>> disjunctions;
     private HashMap<String,DbIterator> subplanMap;
+    // the plan of each table with its filters, before any join
+    private HashMap<String,DbIterator> tablePlans;
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
@@ -42,8 +47,10 @@ public class LogicalPlan {
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
         filters = new Vector<LogicalFilterNode>();
+        disjunctions = new Vector<Vector<LogicalFilterNode>>();
         tables = new Vector<LogicalScanNode>();
         subplanMap = new HashMap<String,DbIterator>();
+        tablePlans = new HashMap<String,DbIterator>();
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
@@ -81,6 +88,15 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** Get the plan reading a table of the query, with the filters on it
+        applied, as {@link #physicalPlan} builds it before ordering the joins
+        @param alias the table alias
+        @return the plan of the table, or null if it was not built
+     */
+    DbIterator getSubplan(String alias) {
+        return tablePlans.get(alias);
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -105,6 +121,29 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a disjunction of filters over the fields of one table to the
+     *  logical plan; a tuple passes it if it passes any of them. A table with
+     *  a disjunction is read with a {@link BitmapScan}, so every field of the
+     *  disjunction must have a {@link BitmapIndex} by the time the plan is
+     *  built.
+     *   @param fields the names of the fields of the filters, as for {@link #addFilter}
+     *   @param ps the predicates of the filters
+     *   @param constantValues the constants of the filters
+     *   @throws ParsingException if a field is unknown or ambiguous, or the
+     *   fields are not all in the same table
+     */
+    public void addDisjunction(String[] fields, Predicate.Op[] ps, String[] constantValues) throws ParsingException {
+        Vector<LogicalFilterNode> disjunction = new Vector<LogicalFilterNode>();
+        for (int i = 0; i < fields.length; i++) {
+            String field = disambiguateName(fields[i]);
+            String table = field.split("[.]")[0];
+            if (!disjunction.isEmpty() && !disjunction.get(0).tableAlias.equals(table))
+                throw new ParsingException("OR expressions over several tables are currently unsupported.");
+            disjunction.addElement(new LogicalFilterNode(table, field.split("[.]")[1], ps[i], constantValues[i]));
+        }
+        disjunctions.addElement(disjunction);
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -271,8 +310,278 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Convert the constant of a filter into a Field of the given type.
+     *  @throws ParsingException if the constant is not a valid value of that type
+     */
+    static Field parseConstant(LogicalFilterNode lf, Type ftyp) throws ParsingException {
+        if (ftyp == Type.INT_TYPE) {
+            try {
+                return new IntField(Integer.parseInt(lf.c));
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Invalid integer constant " + lf.c + " in filter on " + lf.fieldQuantifiedName);
+            }
+        }
+        return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Build the filters of the plan over a table as predicates over the
+     *  fields of the table.
+     *  @param alias the alias of the table in the plan
+     *  @param td the TupleDesc of the table
+     *  @return the predicates, or null if there are none
+     *  @throws ParsingException if a filter constant is not a valid value
+     */
+    Predicate[] tablePredicates(String alias, TupleDesc td) throws ParsingException {
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias))
+                continue;
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                // reported when the filter is planned
+                continue;
+            }
+            preds.add(new Predicate(field, lf.p, parseConstant(lf, td.getFieldType(field))));
+        }
+        return preds.isEmpty() ? null : preds.toArray(new Predicate[0]);
+    }
+
+    /** Build the disjunctions of the plan over a table as predicates over the
+     *  fields of the table.
+     *  @param alias the alias of the table in the plan
+     *  @param td the TupleDesc of the table
+     *  @return the disjunctions, or null if there are none
+     *  @throws ParsingException if a field is unknown or a constant is not a
+     *    valid value
+     */
+    Predicate[][] tableDisjunctions(String alias, TupleDesc td) throws ParsingException {
+        ArrayList<Predicate[]> result = new ArrayList<Predicate[]>();
+        for (Vector<LogicalFilterNode> disjunction : disjunctions) {
+            if (!disjunction.get(0).tableAlias.equals(alias))
+                continue;
+            Predicate[] preds = new Predicate[disjunction.size()];
+            for (int i = 0; i < preds.length; i++) {
+                LogicalFilterNode lf = disjunction.get(i);
+                int field;
+                try {
+                    field = td.fieldNameToIndex(lf.fieldPureName);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+                }
+                preds[i] = new Predicate(field, lf.p, parseConstant(lf, td.getFieldType(field)));
+            }
+            result.add(preds);
+        }
+        return result.isEmpty() ? null : result.toArray(new Predicate[0][]);
+    }
+
+    /** Find the fields of a table that the plan refers to, in its select
+     *  list, filters, joins, aggregate, GROUP BY and ORDER BY.
+     *  @param alias the alias of the table in the plan
+     *  @param td the TupleDesc of the table
+     *  @return the indexes of those fields in ascending order, or null if the
+     *    plan selects every field of the table
+     */
+    int[] requiredFields(String alias, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*") || si.fname.equals(alias + ".*"))
+                return null;
+            names.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (Vector<LogicalFilterNode> disjunction : disjunctions) {
+            for (LogicalFilterNode lf : disjunction)
+                names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        names.add(aggField);
+        names.add(groupByField);
+        names.add(oByField);
+
+        TreeSet<Integer> fields = new TreeSet<Integer>();
+        String prefix = alias + ".";
+        for (String name : names) {
+            if (name == null || !name.startsWith(prefix))
+                continue;
+            try {
+                fields.add(td.fieldNameToIndex(name.substring(prefix.length())));
+            } catch (NoSuchElementException e) {
+                // reported when the plan is built
+            }
+        }
+        // the scan still has to produce one tuple per row
+        if (fields.isEmpty())
+            fields.add(0);
+        int[] result = new int[fields.size()];
+        int i = 0;
+        for (int field : fields)
+            result[i++] = field;
+        return result;
+    }
+
+    /** Pick the filter over table whose evaluation through the table's B+ tree
+     *  or one of its secondary indexes is cheapest, if that is cheaper than
+     *  scanning the whole table.
+     *  @param table the scan node of the table
+     *  @param stats the statistics of the table, may be null
+     *  @return the chosen filter, or null if the table should be scanned sequentially
+     */
+    private LogicalFilterNode chooseIndexFilter(LogicalScanNode table, TableStats stats) throws ParsingException {
+        if (stats == null) {
+            return null;
+        }
+        TupleDesc td;
+        try {
+            td = Database.getCatalog().getTupleDesc(table.t);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown table " + table.t);
+        }
+        LogicalFilterNode best = null;
+        double bestCost = stats.estimateScanCost();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias)) {
+                continue;
+            }
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue;  // reported when the filter itself is planned
+            }
+            if (!stats.hasIndex(field)) {
+                continue;
+            }
+            double cost = stats.estimateIndexScanCost(field, lf.p, parseConstant(lf, td.getFieldType(field)));
+            if (cost < bestCost) {
+                best = lf;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /** Decide whether to read a table with a {@link BitmapScan}: always if the
+     *  plan has a disjunction over the table, which only its bitmap indexes can
+     *  answer, and otherwise if its filters over fields with bitmap indexes
+     *  make reading only the pages they leave cheaper than the chosen index
+     *  scan or a sequential scan.
+     *  @param table the scan node of the table
+     *  @param stats the statistics of the table, may be null
+     *  @param indexFilter the filter chosen by {@link #chooseIndexFilter}, may be null
+     *  @throws ParsingException if a disjunction over the table has a field
+     *    without a bitmap index
+     */
+    private boolean chooseBitmapScan(LogicalScanNode table, TableStats stats, LogicalFilterNode indexFilter) throws ParsingException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Predicate[][] ors = tableDisjunctions(table.alias, td);
+        if (ors != null) {
+            for (Predicate[] disjunction : ors) {
+                if (!BitmapScan.canAnswer(table.t, disjunction))
+                    throw new ParsingException("OR expressions are only supported over fields with bitmap indexes.");
+            }
+            return true;
+        }
+        Predicate[] preds = tablePredicates(table.alias, td);
+        if (stats == null || preds == null) {
+            return false;
+        }
+        double sel = 1.0;
+        boolean indexed = false;
+        for (Predicate p : preds) {
+            if (BitmapScan.canAnswer(table.t, new Predicate[] { p })) {
+                indexed = true;
+                sel *= stats.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+            }
+        }
+        if (!indexed) {
+            return false;
+        }
+        double bestCost = stats.estimateScanCost();
+        if (indexFilter != null) {
+            int field = td.fieldNameToIndex(indexFilter.fieldPureName);
+            bestCost = Math.min(bestCost, stats.estimateIndexScanCost(field, indexFilter.p, parseConstant(indexFilter, td.getFieldType(field))));
+        }
+        return stats.estimateBitmapScanCost(sel) < bestCost;
+    }
+
+    /** Pick a secondary index of a table that holds every field of the table
+     *  the plan refers to, if reading the key range its filters bound with an
+     *  {@link IndexOnlyScan} is cheaper than the chosen index scan or a
+     *  sequential scan.
+     *  @param table the scan node of the table
+     *  @param stats the statistics of the table, may be null
+     *  @param indexFilter the filter chosen by {@link #chooseIndexFilter}, may be null
+     *  @return the chosen index, or null if none should be read alone
+     */
+    private SecondaryIndex chooseIndexOnlyScan(LogicalScanNode table, TableStats stats, LogicalFilterNode indexFilter) throws ParsingException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        int[] fields = requiredFields(table.alias, td);
+        if (stats == null || fields == null || tableDisjunctions(table.alias, td) != null) {
+            return null;
+        }
+        Predicate[] preds = tablePredicates(table.alias, td);
+        if (preds == null) {
+            preds = new Predicate[0];
+        }
+        double bestCost = stats.estimateScanCost();
+        if (indexFilter != null) {
+            int field = td.fieldNameToIndex(indexFilter.fieldPureName);
+            bestCost = Math.min(bestCost, stats.estimateIndexScanCost(field, indexFilter.p, parseConstant(indexFilter, td.getFieldType(field))));
+        }
+        SecondaryIndex best = null;
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            if (!index.covers(fields)) {
+                continue;
+            }
+            double sel = 1.0;
+            for (Predicate p : index.rangePredicates(preds)) {
+                sel *= stats.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+            }
+            double cost = stats.estimateIndexOnlyScanCost(index, sel);
+            if (cost < bestCost) {
+                best = index;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /** Decide whether to read a table in the order of the ORDER BY field through the B+ tree
+     *  the table is stored in, so that the plan needs no {@link OrderBy}: the table must be the
+     *  only one in the plan, which must have no aggregate, and the B+ tree must be keyed on the
+     *  ORDER BY field. Such a scan stops reading leaves as soon as its consumer stops taking
+     *  tuples, as for the latest rows of a table.
+     *  @param table the scan node of the table
+     *  @return true if the table should be read with an ordered {@link BTreeScan}
+     */
+    private boolean chooseOrderedScan(LogicalScanNode table) {
+        if (!hasOrderBy || hasAgg || tables.size() != 1 || !joins.isEmpty())
+            return false;
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(file instanceof BTreeFile))
+            return false;
+        String key = file.getTupleDesc().getFieldName(((BTreeFile) file).keyField());
+        return oByField.equals(table.alias + "." + key);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   A table stored in a {@link BTreeFile} is read with a {@link BTreeScan} when a filter on its key
+     *   field is estimated to be cheaper to answer through the index than by scanning the whole table,
+     *   and likewise with an {@link IndexScan} for a filter on a field with a {@link SecondaryIndex}.
+     *   Filters and disjunctions on fields with a {@link BitmapIndex} are answered with a
+     *   {@link BitmapScan} when that is cheaper still, and disjunctions always are. A table with a
+     *   secondary index holding every field the plan refers to is read from that index alone, with
+     *   an {@link IndexOnlyScan}, when that is cheaper than the other choices. A single table
+     *   stored in a {@link BTreeFile} and ordered by its key is read with a {@link BTreeScan} in
+     *   that order, ascending or descending, so that the plan needs no {@link OrderBy}.
      *  @param t The transaction that the returned DbIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -289,19 +598,65 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,LogicalFilterNode> indexFilters = new HashMap<String,LogicalFilterNode>();
+        HashSet<String> pushedFilters = new HashSet<String>();
+        boolean orderedScan = false;
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbIterator ss = null;
+            String baseTableName = Database.getCatalog().getTableName(table.t);
+            TableStats stats = baseTableStats.get(baseTableName);
+            LogicalFilterNode indexFilter = chooseIndexFilter(table, stats);
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                int tableId = Database.getCatalog().getDatabaseFile(table.t).getId();
+                DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+                SecondaryIndex covering;
+                if (chooseBitmapScan(table, stats, indexFilter)) {
+                    // the scan checks every filter of the table on the
+                    // tuples the bitmaps leave
+                    TupleDesc td = file.getTupleDesc();
+                    ss = new BitmapScan(t, tableId, table.alias, tablePredicates(table.alias, td),
+                            tableDisjunctions(table.alias, td));
+                    pushedFilters.add(table.alias);
+                } else if (chooseOrderedScan(table)) {
+                    // the scan returns the tuples in the ORDER BY order,
+                    // reading only the leaves in the range of the key filters
+                    TupleDesc td = file.getTupleDesc();
+                    ss = new BTreeScan(t, tableId, table.alias, tablePredicates(table.alias, td), !oByAsc);
+                    pushedFilters.add(table.alias);
+                    orderedScan = true;
+                } else if ((covering = chooseIndexOnlyScan(table, stats, indexFilter)) != null) {
+                    // the index holds every field the query uses, and the
+                    // scan checks every filter of the table on its entries
+                    TupleDesc td = file.getTupleDesc();
+                    ss = new IndexOnlyScan(t, covering, table.alias, requiredFields(table.alias, td),
+                            tablePredicates(table.alias, td));
+                    pushedFilters.add(table.alias);
+                } else if (indexFilter == null) {
+                    // push the filters and the fields the query uses into the
+                    // scan, so that the file only builds what is needed
+                    TupleDesc td = file.getTupleDesc();
+                    ss = new SeqScan(t, tableId, table.alias, requiredFields(table.alias, td),
+                            tablePredicates(table.alias, td));
+                    pushedFilters.add(table.alias);
+                } else {
+                    TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+                    int field = td.fieldNameToIndex(indexFilter.fieldPureName);
+                    IndexPredicate ipred = new IndexPredicate(indexFilter.p, parseConstant(indexFilter, td.getFieldType(field)));
+                    SecondaryIndex index = Database.getCatalog().getIndex(tableId, field);
+                    if (index != null)
+                        ss = new IndexScan(t, index, table.alias, ipred);
+                    else
+                        ss = new BTreeScan(t, tableId, table.alias, ipred);
+                    indexFilters.put(table.alias, indexFilter);
+                }
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
-            String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            statsMap.put(baseTableName, stats);
             filterSelectivities.put(table.alias, 1.0);
 
         }
@@ -323,18 +678,18 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = parseConstant(lf, ftyp);
 
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+            // the scan of this table already applies this filter
+            if (indexFilters.get(lf.tableAlias) != lf && !pushedFilters.contains(lf.tableAlias)) {
+                Predicate p = null;
+                try {
+                    p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+                }
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -343,7 +698,21 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // a disjunction passes the tuples that pass any of its filters
+        for (Vector<LogicalFilterNode> disjunction : disjunctions) {
+            String alias = disjunction.get(0).tableAlias;
+            TupleDesc td = Database.getCatalog().getTupleDesc(this.getTableId(alias));
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(alias)));
+            double miss = 1.0;
+            for (LogicalFilterNode lf : disjunction) {
+                int field = td.fieldNameToIndex(lf.fieldPureName);
+                miss *= 1 - s.estimateSelectivity(field, lf.p, parseConstant(lf, td.getFieldType(field)));
+            }
+            filterSelectivities.put(alias, filterSelectivities.get(alias) * (1 - miss));
+        }
         
+        tablePlans = new HashMap<String,DbIterator>(subplanMap);
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -474,7 +843,7 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !orderedScan) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
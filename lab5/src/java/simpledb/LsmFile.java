@@ -0,0 +1,844 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * LsmFile is a log-structured merge tree, a table format for tables that
+ * mostly grow, such as tables of events: inserts append to a memtable, and
+ * the memtable is flushed to a sorted {@link LsmRun} once big enough, so that
+ * the file is only ever written sequentially.
+ * <p>
+ * The memtable is a sequence of {@link LsmPage LsmPages}, which are read and
+ * written through the {@link BufferPool} like the pages of any file, so its
+ * changes are logged and recovered from the log. Its pages are numbered
+ * without reuse, and grouped in generations, each stored in a file of its
+ * own: inserts go to the last page of the newest generation, and once it
+ * holds {@link #MEMTABLE_PAGES} pages a new generation is started and the
+ * older one is flushed. A flush locks the pages of the generation with
+ * READ_WRITE permission, so that it only reads committed tuples, writes them
+ * to a run, and then retires the pages, whose updates in the log are
+ * ignored from then on.
+ * <p>
+ * Runs are organized in levels. Flushes add runs to level 0, whose runs may
+ * overlap; once it has {@link #LEVEL0_RUNS} runs, they are merged with the
+ * runs of level 1 into new runs of level 1. Each deeper level holds runs
+ * with disjoint keys, and {@link #LEVEL_RATIO} times as many pages as the
+ * one above it; a level that grows past its size has one of its runs merged
+ * with the runs it overlaps in the next level. Flushes and compactions are
+ * done by a background thread of the file. A flush aborted to break a
+ * deadlock is retried, and a failure of the thread is rethrown by the next
+ * insert, {@link #flush} or {@link #close}.
+ * <p>
+ * Deleting a tuple of the memtable removes it from its page. Deleting a
+ * tuple of a run writes a tombstone to the memtable, which cancels the tuple
+ * in scans and is dropped with it by compaction. The levels of the runs, the
+ * generations of the memtable and the next run number are recorded in a
+ * manifest, the file of the LsmFile, which is replaced atomically.
+ * <p>
+ * Tuples are returned in key order, by merging the pages of the memtable,
+ * each of which keeps its entries sorted, and the runs with an
+ * {@link LsmMergeIterator}. A lookup reads the runs from the page
+ * their sparse index gives for its key, and skips those whose bloom filter
+ * rules the key out.
+ */
+public class LsmFile implements IndexFile {
+
+    /** Pages of the memtable after which it is flushed to a run */
+    static final int MEMTABLE_PAGES = 64;
+    /** Runs of level 0 after which they are merged into level 1 */
+    static final int LEVEL0_RUNS = 4;
+    /** Pages of a run written by a compaction, after which it ends at the next key */
+    static final int RUN_PAGES = 256;
+    /** Ratio of the size of a level to that of the level above */
+    static final int LEVEL_RATIO = 10;
+    /** Times {@link #flush} retries a flush that found a page locked */
+    static final int FLUSH_ATTEMPTS = 10;
+    /** Milliseconds waited before retrying a flush that found a page locked */
+    static final int RETRY_DELAY = 20;
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+    private int memtablePages = MEMTABLE_PAGES;
+    private int runPages = RUN_PAGES;
+
+    // the first page and number of pages of each generation of the memtable,
+    // the newest last
+    private final TreeMap<Integer, Integer> generations = new TreeMap<Integer, Integer>();
+    // the runs of each level; those of level 0 newest first, the others in
+    // key order
+    private final ArrayList<ArrayList<LsmRun>> levels = new ArrayList<ArrayList<LsmRun>>();
+    private int nextRun = 0;
+
+    // serializes flushes and compactions
+    private final Object maintenance = new Object();
+    private Thread worker;
+    private boolean maintenancePending = false;
+    private boolean closed = false;
+    // the failure of the background thread, not rethrown yet
+    private Exception maintenanceError;
+
+    /**
+     * Constructs an LSM file whose manifest is the specified file, reading
+     * the manifest if it exists.
+     *
+     * @param f the manifest of the file; the memtable and the runs are
+     *        stored in files named after it
+     * @param key the field the file is keyed on
+     * @param td the tuple descriptor of tuples in the file
+     */
+    public LsmFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+        try {
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException("cannot read LSM manifest " + f, e);
+        }
+    }
+
+    /**
+     * Set the number of pages of the memtable after which it is flushed,
+     * and of a run written by a compaction.
+     */
+    synchronized void setSizes(int memtablePages, int runPages) {
+        this.memtablePages = memtablePages;
+        this.runPages = runPages;
+    }
+
+    /**
+     * Returns the manifest of this LsmFile.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    public int getId() {
+        return tableid;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the number of pages of the memtable and of the runs
+     */
+    public synchronized int numPages() {
+        int n = 0;
+        for (int pages : generations.values())
+            n += pages;
+        for (List<LsmRun> level : levels) {
+            for (LsmRun run : level)
+                n += run.numPages();
+        }
+        return n;
+    }
+
+    /**
+     * @return true for all but NOT_EQUALS and LIKE, since the runs are sorted
+     */
+    public boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /** @return the number of runs of each level */
+    synchronized int[] levelSizes() {
+        int[] sizes = new int[levels.size()];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = levels.get(i).size();
+        return sizes;
+    }
+
+    private File generationFile(int start) {
+        return new File(f.getPath() + ".mem" + start);
+    }
+
+    private File runFile(int runNo) {
+        return new File(f.getPath() + ".run" + runNo);
+    }
+
+    // read the manifest, and delete the files of generations and runs it
+    // does not list, left by a crash during a flush or a compaction
+    private synchronized void load() throws IOException {
+        generations.clear();
+        levels.clear();
+        if (f.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                nextRun = in.readInt();
+                int numGenerations = in.readInt();
+                for (int i = 0; i < numGenerations; i++) {
+                    int start = in.readInt();
+                    generations.put(start, (int) (generationFile(start).length() / BufferPool.getPageSize()));
+                }
+                int numLevels = in.readInt();
+                for (int i = 0; i < numLevels; i++) {
+                    ArrayList<LsmRun> level = new ArrayList<LsmRun>();
+                    int numRuns = in.readInt();
+                    for (int r = 0; r < numRuns; r++) {
+                        int runNo = in.readInt();
+                        level.add(LsmRun.open(runFile(runNo), tableid, runNo, keyField, td));
+                    }
+                    levels.add(level);
+                }
+            }
+        }
+        if (generations.isEmpty())
+            generations.put(0, (int) (generationFile(0).length() / BufferPool.getPageSize()));
+        if (levels.isEmpty())
+            levels.add(new ArrayList<LsmRun>());
+
+        HashSet<String> live = new HashSet<String>();
+        for (int start : generations.keySet())
+            live.add(generationFile(start).getName());
+        for (List<LsmRun> level : levels) {
+            for (LsmRun run : level)
+                live.add(run.getFile().getName());
+        }
+        File dir = f.getAbsoluteFile().getParentFile();
+        String prefix = f.getName() + ".";
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.startsWith(prefix) && (name.startsWith(prefix + "mem") || name.startsWith(prefix + "run"))
+                    && !live.contains(name))
+                files[i].delete();
+        }
+    }
+
+    // replace the manifest by one describing the current state
+    private synchronized void writeManifest() throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(nextRun);
+            out.writeInt(generations.size());
+            for (int start : generations.keySet())
+                out.writeInt(start);
+            out.writeInt(levels.size());
+            for (List<LsmRun> level : levels) {
+                out.writeInt(level.size());
+                for (LsmRun run : level)
+                    out.writeInt(run.getRunNo());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // the first page of the generation holding a page, or -1 if the page
+    // was retired by a flush
+    private synchronized int generationOf(int pageNo) {
+        Map.Entry<Integer, Integer> g = generations.floorEntry(pageNo);
+        if (g == null || pageNo >= g.getKey() + g.getValue())
+            return -1;
+        return g.getKey();
+    }
+
+    public Page readPage(PageId pid) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        int start = generationOf(pid.pageNumber());
+        // a retired page reads as empty, for recovery to redo its updates
+        // harmlessly
+        if (start >= 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(generationFile(start), "r")) {
+                raf.seek((long) (pid.pageNumber() - start) * data.length);
+                raf.readFully(data);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return readPage(pid, data);
+    }
+
+    @Override
+    public Page readPage(PageId pid, byte[] data) {
+        try {
+            return new LsmPage(new HeapPageId(tableid, pid.pageNumber()), data, td, keyField);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writePage(Page page) throws IOException {
+        int pageNo = page.getId().pageNumber();
+        int start = generationOf(pageNo);
+        if (start < 0)
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(generationFile(start), "rw")) {
+            raf.seek((long) (pageNo - start) * BufferPool.getPageSize());
+            raf.write(page.getPageData());
+        }
+    }
+
+    // the last page of the newest generation, which is appended if the
+    // generation has none
+    private synchronized int tailPage() throws IOException {
+        Map.Entry<Integer, Integer> g = generations.lastEntry();
+        if (g.getValue() == 0)
+            return appendPage();
+        return g.getKey() + g.getValue() - 1;
+    }
+
+    // append an empty page to the newest generation
+    private synchronized int appendPage() throws IOException {
+        Map.Entry<Integer, Integer> g = generations.lastEntry();
+        try (FileOutputStream out = new FileOutputStream(generationFile(g.getKey()), true)) {
+            out.write(LsmPage.createEmptyPageData());
+        }
+        generations.put(g.getKey(), g.getValue() + 1);
+        return g.getKey() + g.getValue();
+    }
+
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tupledesc is mismatch");
+        return insertEntry(tid, t, false);
+    }
+
+    // add an entry to the last page of the memtable
+    private ArrayList<Page> insertEntry(TransactionId tid, Tuple t, boolean tombstone)
+            throws DbException, IOException, TransactionAbortedException {
+        checkMaintenance();
+        while (true) {
+            int pageNo = tailPage();
+            LsmPage page = (LsmPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableid, pageNo),
+                    Permissions.READ_WRITE);
+            boolean full;
+            synchronized (this) {
+                // the page may have been flushed while waiting for its lock
+                if (generationOf(pageNo) < 0)
+                    continue;
+                full = page.getNumEmptySlots() == 0;
+                if (full && pageNo == tailPage())
+                    appendPage();
+            }
+            if (full)
+                continue;
+            page.insertEntry(t, tombstone);
+            synchronized (this) {
+                if (generations.lastEntry().getValue() >= memtablePages)
+                    requestMaintenance();
+            }
+            return new ArrayList<Page>(Collections.singletonList(page));
+        }
+    }
+
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tuple is not a member of this file");
+        if (rid.getPageId() instanceof LsmRunPageId) {
+            Tuple tombstone = new Tuple(td);
+            for (int j = 0; j < td.numFields(); j++)
+                tombstone.setField(j, t.getField(j));
+            t.setRecordId(null);
+            return insertEntry(tid, tombstone, true);
+        }
+        LsmPage page = (LsmPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<Page>(Collections.singletonList(page));
+    }
+
+    // wake the background thread to flush the memtable and compact the runs
+    private synchronized void requestMaintenance() {
+        maintenancePending = true;
+        if (worker == null && !closed) {
+            worker = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        synchronized (LsmFile.this) {
+                            while (!maintenancePending && !closed) {
+                                try {
+                                    LsmFile.this.wait();
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                            }
+                            // a closed file is still maintained as requested
+                            if (!maintenancePending)
+                                return;
+                            maintenancePending = false;
+                        }
+                        boolean done = true;
+                        try {
+                            done = maintain(false);
+                        } catch (IOException | DbException | RuntimeException e) {
+                            synchronized (LsmFile.this) {
+                                maintenanceError = e;
+                            }
+                        }
+                        if (!done) {
+                            // retry once the transactions the flush was
+                            // aborted for had time to go on
+                            try {
+                                Thread.sleep(RETRY_DELAY);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            synchronized (LsmFile.this) {
+                                maintenancePending |= !closed;
+                            }
+                        }
+                    }
+                }
+            }, "lsm-" + f.getName());
+            worker.setDaemon(true);
+            worker.start();
+        }
+        notifyAll();
+    }
+
+    // rethrow the failure of the background thread, if not rethrown yet
+    private synchronized void checkMaintenance() throws IOException, DbException {
+        Exception e = maintenanceError;
+        maintenanceError = null;
+        if (e instanceof IOException)
+            throw new IOException("background flush or compaction of " + f.getName() + " failed", e);
+        if (e != null)
+            throw new DbException("background flush or compaction of " + f.getName() + " failed: " + e);
+    }
+
+    /**
+     * Flush the memtable to a run, however big it is, and compact the runs
+     * as needed. Transactions using the memtable are not waited for: the
+     * flush gives way to them and is retried, after a growing delay.
+     *
+     * @throws DbException if the flush was aborted {@link #FLUSH_ATTEMPTS}
+     *         times, or the background thread failed since last checked
+     */
+    void flush() throws IOException, DbException {
+        checkMaintenance();
+        for (int attempt = 1; !maintain(true); attempt++) {
+            if (attempt == FLUSH_ATTEMPTS)
+                throw new DbException("flush of " + f.getName() + " was aborted " + attempt + " times");
+            try {
+                Thread.sleep(RETRY_DELAY * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("flush of " + f.getName() + " was interrupted");
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread, once done with the flushes and
+     * compactions requested. The file may still be used, and is then only
+     * flushed by {@link #flush}.
+     *
+     * @throws IOException if the background thread failed since last checked
+     * @throws DbException if the background thread failed since last checked
+     */
+    void close() throws IOException, DbException {
+        Thread w;
+        synchronized (this) {
+            closed = true;
+            w = worker;
+            worker = null;
+            notifyAll();
+        }
+        if (w != null) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkMaintenance();
+    }
+
+    // start a new generation if the newest is full, or not empty if force is
+    // set, then flush the older generations and compact the levels that
+    // outgrew their size
+    //
+    // returns false if a flush found a page locked by a transaction
+    private boolean maintain(boolean force) throws IOException, DbException {
+        synchronized (maintenance) {
+            synchronized (this) {
+                Map.Entry<Integer, Integer> g = generations.lastEntry();
+                if (g.getValue() >= memtablePages || (force && g.getValue() > 0)) {
+                    generations.put(g.getKey() + g.getValue(), 0);
+                    writeManifest();
+                }
+            }
+            while (true) {
+                int start;
+                synchronized (this) {
+                    start = generations.firstKey();
+                    if (start == generations.lastKey())
+                        break;
+                }
+                if (!flushGeneration(start))
+                    return false;
+            }
+            while (compactOnce())
+                ;
+            return true;
+        }
+    }
+
+    /**
+     * Write the tuples of an old generation of the memtable to a run of
+     * level 0, and retire its pages. The pages are locked from the oldest
+     * up, in the order scans lock them, and without waiting, so that the
+     * flush rather than a transaction is aborted when they conflict.
+     *
+     * @return false if a page was locked by a transaction, so that the flush
+     *         is retried later
+     */
+    private boolean flushGeneration(int start) throws IOException, DbException {
+        TransactionId tid = new TransactionId();
+        // the sorted entries of each page, newest first
+        ArrayList<LsmRun.PeekingIterator> sources = new ArrayList<LsmRun.PeekingIterator>();
+        int pages;
+        synchronized (this) {
+            pages = generations.get(start);
+        }
+        try {
+            for (int pageNo = start; pageNo < start + pages; pageNo++) {
+                LsmPage page = (LsmPage) Database.getBufferPool().getPageNoWait(tid,
+                        new HeapPageId(tableid, pageNo), Permissions.READ_WRITE);
+                sources.add(0, listIterator(page.entries(null)));
+            }
+            int runNo;
+            synchronized (this) {
+                runNo = nextRun++;
+            }
+            LsmRun run = LsmRun.write(runFile(runNo), tableid, runNo, keyField, td,
+                    new LsmMergeIterator(sources, keyField, true), 0);
+            synchronized (this) {
+                if (run != null)
+                    levels.get(0).add(0, run);
+                generations.remove(start);
+                writeManifest();
+            }
+            for (int pageNo = start; pageNo < start + pages; pageNo++)
+                Database.getBufferPool().discardPage(new HeapPageId(tableid, pageNo));
+            generationFile(start).delete();
+            return true;
+        } catch (TransactionAbortedException e) {
+            return false;
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    private static int compareKeys(Field a, Field b) {
+        if (LsmRun.less(a, b))
+            return -1;
+        return LsmRun.less(b, a) ? 1 : 0;
+    }
+
+    // the number of pages level i may hold before one of its runs is merged
+    // into the next level
+    private long levelLimit(int i) {
+        long limit = runPages;
+        for (int k = 0; k < i; k++)
+            limit *= LEVEL_RATIO;
+        return limit;
+    }
+
+    private static long pagesOf(List<LsmRun> runs) {
+        long pages = 0;
+        for (LsmRun run : runs)
+            pages += run.numPages();
+        return pages;
+    }
+
+    /**
+     * Merge the runs of level 0 into level 1 if it has too many, or else a
+     * run of the shallowest level that outgrew its size into the next level.
+     *
+     * @return whether a compaction was done
+     */
+    private boolean compactOnce() throws IOException {
+        ArrayList<LsmRun> inputs = new ArrayList<LsmRun>();
+        int out;
+        boolean bottom;
+        synchronized (this) {
+            if (levels.get(0).size() >= LEVEL0_RUNS) {
+                out = 1;
+                inputs.addAll(levels.get(0));
+            } else {
+                out = -1;
+                for (int i = 1; i < levels.size() && out < 0; i++) {
+                    if (pagesOf(levels.get(i)) > levelLimit(i)) {
+                        out = i + 1;
+                        // the run with the most pages, so that levels shrink fast
+                        LsmRun largest = levels.get(i).get(0);
+                        for (LsmRun run : levels.get(i)) {
+                            if (run.numPages() > largest.numPages())
+                                largest = run;
+                        }
+                        inputs.add(largest);
+                    }
+                }
+                if (out < 0)
+                    return false;
+            }
+            while (levels.size() <= out)
+                levels.add(new ArrayList<LsmRun>());
+            for (LsmRun run : levels.get(out)) {
+                for (LsmRun input : new ArrayList<LsmRun>(inputs)) {
+                    if (input.overlaps(run) && !inputs.contains(run))
+                        inputs.add(run);
+                }
+            }
+            // tombstones may only cancel tuples of deeper levels
+            bottom = true;
+            for (int i = out + 1; i < levels.size(); i++)
+                bottom &= levels.get(i).isEmpty();
+        }
+
+        ArrayList<LsmRun.PeekingIterator> sources = new ArrayList<LsmRun.PeekingIterator>();
+        ArrayList<LsmRun> outputs = new ArrayList<LsmRun>();
+        LsmMergeIterator merged = null;
+        try {
+            for (LsmRun run : inputs)
+                sources.add(run.iterator(null));
+            merged = new LsmMergeIterator(sources, keyField, !bottom);
+            while (merged.hasNext()) {
+                int runNo;
+                synchronized (this) {
+                    runNo = nextRun++;
+                }
+                outputs.add(LsmRun.write(runFile(runNo), tableid, runNo, keyField, td, merged, runPages));
+            }
+        } finally {
+            if (merged != null)
+                merged.close();
+            else
+                for (LsmRun.PeekingIterator it : sources)
+                    it.close();
+        }
+
+        synchronized (this) {
+            for (List<LsmRun> level : levels)
+                level.removeAll(inputs);
+            ArrayList<LsmRun> level = levels.get(out);
+            level.addAll(outputs);
+            Collections.sort(level, new Comparator<LsmRun>() {
+                public int compare(LsmRun a, LsmRun b) {
+                    return compareKeys(a.firstKey(), b.firstKey());
+                }
+            });
+            writeManifest();
+        }
+        for (LsmRun run : inputs)
+            run.markObsolete();
+        return true;
+    }
+
+    private static LsmRun.PeekingIterator listIterator(final List<LsmRun.Entry> entries) {
+        return new LsmRun.PeekingIterator() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < entries.size();
+            }
+
+            public LsmRun.Entry peek() {
+                return i < entries.size() ? entries.get(i) : null;
+            }
+
+            public LsmRun.Entry next() {
+                if (i >= entries.size())
+                    throw new NoSuchElementException();
+                return entries.get(i++);
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Get an iterator over all the tuples of this file, in key order.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new LsmFileIterator(this, tid, null);
+    }
+
+    /**
+     * Get the tuples whose key matches a predicate, in key order. The runs
+     * are read from the first page that may hold a matching key, and an
+     * EQUALS predicate skips the runs whose bloom filter rules its key out.
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new LsmFileIterator(this, tid, ipred);
+    }
+
+    /**
+     * Get the tuples that satisfy all of the specified predicates, holding
+     * only the specified fields. If one of the predicates is on the key
+     * field, only the tuples that may match it are read.
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+        DbFileIterator it = null;
+        for (int k = 0; preds != null && k < preds.length && it == null; k++) {
+            Predicate p = preds[k];
+            if (p.getField() == keyField && supports(p.getOp()))
+                it = indexIterator(tid, new IndexPredicate(p.getOp(), p.getOperand()));
+        }
+        if (it == null)
+            it = iterator(tid);
+        return new FilteredDbFileIterator(it, preds, fields, td);
+    }
+
+    /**
+     * Merge the entries of the memtable, read with READ_ONLY permission, and
+     * of the runs the file has when the iterator is opened.
+     */
+    private static class LsmFileIterator extends AbstractDbFileIterator {
+        private final LsmFile file;
+        private final TransactionId tid;
+        private final IndexPredicate ipred;
+        private ArrayList<LsmRun> runs;
+        private LsmMergeIterator merged;
+
+        LsmFileIterator(LsmFile file, TransactionId tid, IndexPredicate ipred) {
+            this.file = file;
+            this.tid = tid;
+            this.ipred = ipred;
+        }
+
+        // the key runs are read from
+        private Field from() {
+            if (ipred == null)
+                return null;
+            switch (ipred.getOp()) {
+            case EQUALS:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return ipred.getField();
+            default:
+                return null;
+            }
+        }
+
+        // whether no key after the specified one can match
+        private boolean past(Field key) {
+            if (ipred == null)
+                return false;
+            switch (ipred.getOp()) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                return LsmRun.less(ipred.getField(), key);
+            default:
+                return false;
+            }
+        }
+
+        private boolean matches(Tuple t) {
+            return ipred == null || t.getField(file.keyField).compare(ipred.getOp(), ipred.getField());
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            // read the memtable pages and take the runs of the same state,
+            // which a flush may change until the pages are locked
+            ArrayList<List<LsmRun.Entry>> memtable = new ArrayList<List<LsmRun.Entry>>();
+            while (true) {
+                ArrayList<Integer> pages = new ArrayList<Integer>();
+                synchronized (file) {
+                    for (Map.Entry<Integer, Integer> g : file.generations.entrySet()) {
+                        for (int i = 0; i < g.getValue(); i++)
+                            pages.add(g.getKey() + i);
+                    }
+                }
+                memtable.clear();
+                for (int pageNo : pages) {
+                    LsmPage page = (LsmPage) Database.getBufferPool().getPage(tid,
+                            new HeapPageId(file.tableid, pageNo), Permissions.READ_ONLY);
+                    // the entries of the page from the key runs are read
+                    // from to the last one that may match, newest page first
+                    List<LsmRun.Entry> entries = page.entries(from());
+                    int end = 0;
+                    while (end < entries.size() && !past(entries.get(end).tuple.getField(file.keyField)))
+                        end++;
+                    memtable.add(0, entries.subList(0, end));
+                }
+                synchronized (file) {
+                    boolean retired = false;
+                    for (int pageNo : pages)
+                        retired |= file.generationOf(pageNo) < 0;
+                    if (retired)
+                        continue;
+                    runs = new ArrayList<LsmRun>();
+                    for (List<LsmRun> level : file.levels) {
+                        for (LsmRun run : level) {
+                            if (ipred != null && ipred.getOp() == Predicate.Op.EQUALS && !run.mayContain(ipred.getField()))
+                                continue;
+                            run.acquire();
+                            runs.add(run);
+                        }
+                    }
+                    break;
+                }
+            }
+
+            ArrayList<LsmRun.PeekingIterator> sources = new ArrayList<LsmRun.PeekingIterator>();
+            for (List<LsmRun.Entry> entries : memtable)
+                sources.add(listIterator(entries));
+            try {
+                for (LsmRun run : runs)
+                    sources.add(run.iterator(from()));
+                merged = new LsmMergeIterator(sources, file.keyField, false);
+            } catch (IOException e) {
+                for (LsmRun.PeekingIterator it : sources)
+                    it.close();
+                close();
+                throw new DbException("cannot read LSM runs: " + e.getMessage());
+            }
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (merged == null)
+                return null;
+            try {
+                while (merged.hasNext()) {
+                    Tuple t = merged.next().tuple;
+                    if (past(t.getField(file.keyField)))
+                        return null;
+                    if (matches(t))
+                        return t;
+                }
+            } catch (IOException e) {
+                throw new DbException("cannot read LSM runs: " + e.getMessage());
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (merged != null)
+                merged.close();
+            merged = null;
+            if (runs != null) {
+                for (LsmRun run : runs)
+                    run.release();
+            }
+            runs = null;
+        }
+    }
+}
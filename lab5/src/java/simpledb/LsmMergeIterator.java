@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * LsmMergeIterator merges the entries of sorted sources of an
+ * {@link LsmFile}, the memtable and its runs, into a single sorted sequence
+ * of the tuples they hold.
+ * <p>
+ * The sources are ordered newest first. A tombstone deletes one tuple with
+ * the same fields from an older source, so the entries of each key are
+ * gathered from all the sources and applied from the oldest source to the
+ * newest: the tombstones of a source cancel the tuples of the older ones,
+ * and its tuples are then added. The tombstones left without a tuple to
+ * cancel are returned too when merging runs that do not include the oldest
+ * ones, whose tuples they may still delete.
+ */
+class LsmMergeIterator implements LsmRun.PeekingIterator {
+
+    private static class Source {
+        final LsmRun.PeekingIterator it;
+        final int rank;
+
+        Source(LsmRun.PeekingIterator it, int rank) {
+            this.it = it;
+            this.rank = rank;
+        }
+    }
+
+    private final int keyField;
+    private final boolean keepTombstones;
+    private final List<Source> sources = new ArrayList<Source>();
+    private final PriorityQueue<Source> heads;
+    private final ArrayDeque<LsmRun.Entry> out = new ArrayDeque<LsmRun.Entry>();
+
+    /**
+     * @param sources the sources to merge, each sorted by key, newest first
+     * @param keyField the field the entries are sorted on
+     * @param keepTombstones whether to return the tombstones that cancel no
+     *        tuple of the sources
+     */
+    LsmMergeIterator(List<LsmRun.PeekingIterator> sources, int keyField, boolean keepTombstones)
+            throws IOException {
+        this.keyField = keyField;
+        this.keepTombstones = keepTombstones;
+        this.heads = new PriorityQueue<Source>(Math.max(1, sources.size()), new Comparator<Source>() {
+            public int compare(Source a, Source b) {
+                try {
+                    Field ka = a.it.peek().tuple.getField(LsmMergeIterator.this.keyField);
+                    Field kb = b.it.peek().tuple.getField(LsmMergeIterator.this.keyField);
+                    if (LsmRun.less(ka, kb))
+                        return -1;
+                    if (LsmRun.less(kb, ka))
+                        return 1;
+                    return Integer.compare(a.rank, b.rank);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            Source s = new Source(sources.get(i), i);
+            this.sources.add(s);
+            if (s.it.hasNext())
+                heads.add(s);
+        }
+    }
+
+    public boolean hasNext() throws IOException {
+        return peek() != null;
+    }
+
+    public LsmRun.Entry peek() throws IOException {
+        while (out.isEmpty() && !heads.isEmpty())
+            mergeKey();
+        return out.peekFirst();
+    }
+
+    public LsmRun.Entry next() throws IOException {
+        LsmRun.Entry e = peek();
+        if (e == null)
+            throw new NoSuchElementException();
+        return out.removeFirst();
+    }
+
+    // gather the entries of the smallest key from all the sources and apply
+    // them, from the oldest source to the newest
+    private void mergeKey() throws IOException {
+        Field key = heads.peek().it.peek().tuple.getField(keyField);
+        TreeMap<Integer, List<LsmRun.Entry>> byRank = new TreeMap<Integer, List<LsmRun.Entry>>(
+                Collections.reverseOrder());
+        while (!heads.isEmpty() && heads.peek().it.peek().tuple.getField(keyField).equals(key)) {
+            Source s = heads.poll();
+            List<LsmRun.Entry> entries = new ArrayList<LsmRun.Entry>();
+            while (s.it.hasNext() && s.it.peek().tuple.getField(keyField).equals(key))
+                entries.add(s.it.next());
+            byRank.put(s.rank, entries);
+            if (s.it.hasNext())
+                heads.add(s);
+        }
+
+        LinkedHashMap<List<Field>, ArrayDeque<LsmRun.Entry>> live = new LinkedHashMap<List<Field>, ArrayDeque<LsmRun.Entry>>();
+        for (List<LsmRun.Entry> entries : byRank.values()) {
+            for (LsmRun.Entry e : entries) {
+                if (!e.tombstone)
+                    continue;
+                ArrayDeque<LsmRun.Entry> tuples = live.get(fieldsOf(e.tuple));
+                if (tuples != null && !tuples.isEmpty())
+                    tuples.removeFirst();
+                else if (keepTombstones)
+                    out.add(e);
+            }
+            for (LsmRun.Entry e : entries) {
+                if (!e.tombstone)
+                    live.computeIfAbsent(fieldsOf(e.tuple), k -> new ArrayDeque<LsmRun.Entry>()).add(e);
+            }
+        }
+        for (ArrayDeque<LsmRun.Entry> tuples : live.values())
+            out.addAll(tuples);
+    }
+
+    private static List<Field> fieldsOf(Tuple t) {
+        ArrayList<Field> fields = new ArrayList<Field>();
+        Iterator<Field> it = t.fields();
+        while (it.hasNext())
+            fields.add(it.next());
+        return fields;
+    }
+
+    public void close() {
+        for (Source s : sources)
+            s.it.close();
+    }
+}
@@ -0,0 +1,243 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LsmPage is a page of the memtable of an {@link LsmFile}, which holds the
+ * entries written since the memtable was last flushed, in the order they
+ * were written: tuples inserted into the file, and tombstones of tuples of
+ * its runs deleted since.
+ * <p>
+ * The format of a memtable page is a header with one bit per slot saying
+ * whether the slot is used, then one with one bit per slot saying whether
+ * its entry is a tombstone, then the slots, each as big as a tuple of the
+ * file. Memtable pages are read and written through the {@link BufferPool},
+ * so their changes are logged like those of any page.
+ * <p>
+ * A page keeps the order of its slots by the key of their entries, sorted
+ * when the page is read and kept sorted by inserts, so that scans and
+ * lookups of the memtable merge its pages rather than sort their entries.
+ */
+public class LsmPage implements Page {
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int keyField;
+    private final int numSlots;
+    private final byte[] used;
+    private final byte[] tombstones;
+    private final Tuple[] tuples;
+    // the used slots, in key order
+    private final ArrayList<Integer> sorted = new ArrayList<Integer>();
+    private TransactionId dirtier;
+    private boolean dirty = false;
+
+    private byte[] oldData;
+
+    /**
+     * Create a memtable page from its data on disk.
+     *
+     * @param id the id of the page
+     * @param data the data of the page
+     * @param td the TupleDesc of the tuples of the file
+     * @param keyField the field the file is sorted on
+     */
+    public LsmPage(HeapPageId id, byte[] data, TupleDesc td, int keyField) throws IOException {
+        this.pid = id;
+        this.td = td;
+        this.keyField = keyField;
+        this.numSlots = getMaxEntries(td);
+        this.used = new byte[(numSlots + 7) / 8];
+        this.tombstones = new byte[used.length];
+        this.tuples = new Tuple[numSlots];
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        dis.readFully(used);
+        dis.readFully(tombstones);
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSet(used, i)) {
+                dis.skipBytes(td.getSize());
+                continue;
+            }
+            Tuple t = new Tuple(td);
+            try {
+                for (int j = 0; j < td.numFields(); j++)
+                    t.setField(j, td.getFieldType(j).parse(dis));
+            } catch (java.text.ParseException e) {
+                throw new IOException("cannot parse entry " + i + " of " + id, e);
+            }
+            t.setRecordId(new RecordId(pid, i));
+            tuples[i] = t;
+            sorted.add(i);
+        }
+        Collections.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (LsmRun.less(keyOf(a), keyOf(b)))
+                    return -1;
+                return LsmRun.less(keyOf(b), keyOf(a)) ? 1 : 0;
+            }
+        });
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of entries a memtable page of a file with the
+     *         specified TupleDesc holds
+     */
+    public static int getMaxEntries(TupleDesc td) {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 2);
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    private static boolean isSet(byte[] bits, int i) {
+        return (bits[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private Field keyOf(int slot) {
+        return tuples[slot].getField(keyField);
+    }
+
+    // the position in sorted of the first entry whose key is not less than
+    // the specified one, or greater than it if after is set
+    private int search(Field key, boolean after) {
+        int lo = 0;
+        int hi = sorted.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Field k = keyOf(sorted.get(mid));
+            if (LsmRun.less(k, key) || (after && !LsmRun.less(key, k)))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static void set(byte[] bits, int i, boolean value) {
+        if (value)
+            bits[i / 8] |= (byte) (1 << (i % 8));
+        else
+            bits[i / 8] &= (byte) ~(1 << (i % 8));
+    }
+
+    /** @return the number of empty slots of this page */
+    public int getNumEmptySlots() {
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSet(used, i))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Add an entry to this page, setting the RecordId of its tuple.
+     *
+     * @param tombstone whether the entry is the tombstone of the tuple,
+     *        rather than the tuple itself
+     * @throws DbException if the page is full or the tuple has another
+     *         TupleDesc
+     */
+    public void insertEntry(Tuple t, boolean tombstone) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tupledesc is mismatch");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSet(used, i)) {
+                set(used, i, true);
+                set(tombstones, i, tombstone);
+                tuples[i] = t;
+                t.setRecordId(new RecordId(pid, i));
+                sorted.add(search(t.getField(keyField), true), i);
+                return;
+            }
+        }
+        throw new DbException("page " + pid + " is full");
+    }
+
+    /**
+     * Delete a tuple inserted into this page.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on page " + pid);
+        int i = rid.tupleno();
+        if (i < 0 || i >= numSlots || !isSet(used, i) || isSet(tombstones, i))
+            throw new DbException("tuple slot is already empty");
+        set(used, i, false);
+        sorted.remove(Integer.valueOf(i));
+        tuples[i] = null;
+        t.setRecordId(null);
+    }
+
+    /**
+     * @param from the smallest key of the entries returned, or null to
+     *        return all of them
+     * @return the entries of this page, in key order
+     */
+    List<LsmRun.Entry> entries(Field from) {
+        ArrayList<LsmRun.Entry> entries = new ArrayList<LsmRun.Entry>();
+        for (int k = from == null ? 0 : search(from, false); k < sorted.size(); k++) {
+            int i = sorted.get(k);
+            entries.add(new LsmRun.Entry(tuples[i], isSet(tombstones, i)));
+        }
+        return entries;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.write(used);
+            dos.write(tombstones);
+            byte[] empty = new byte[td.getSize()];
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSet(used, i)) {
+                    dos.write(empty);
+                    continue;
+                }
+                for (int j = 0; j < td.numFields(); j++)
+                    tuples[i].getField(j).serialize(dos);
+            }
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of an empty memtable page
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty)
+            this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    public LsmPage getBeforeImage() {
+        try {
+            return new LsmPage(pid, oldData, td, keyField);
+        } catch (IOException e) {
+            // we parsed it OK before
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData().clone();
+    }
+}
@@ -0,0 +1,369 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LsmRun is an immutable file of an {@link LsmFile} holding entries sorted by
+ * key: the tuples inserted into the file, and the tombstones of tuples
+ * deleted from older runs. Runs are written once, sequentially, by a flush of
+ * the memtable or a compaction, and deleted once merged into other runs.
+ * <p>
+ * A run is a sequence of pages, each holding the number of its entries and
+ * then the entries, each a byte saying whether it is a tombstone followed by
+ * the fields of its tuple. The pages are followed by the sparse index, the
+ * first key of each page, and by a bloom filter of the keys of the run, which
+ * are kept in memory so that finding a key reads a single page of the run,
+ * or none if the filter rules the key out. The file ends with a trailer
+ * locating them.
+ * <p>
+ * Runs are not read through the {@link BufferPool}: their pages never change,
+ * so they need no locks, and entries are read sequentially from the first
+ * page that may hold a key.
+ */
+class LsmRun {
+
+    /** An entry of a run or of the memtable */
+    static class Entry {
+        final Tuple tuple;
+        final boolean tombstone;
+
+        Entry(Tuple tuple, boolean tombstone) {
+            this.tuple = tuple;
+            this.tombstone = tombstone;
+        }
+    }
+
+    // bits of bloom filter per key, and the hashes set for each, which give a
+    // false positive rate around 1%
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASHES = 7;
+    // the number of pages, of keys and of bloom filter words, then the offset
+    // of the sparse index
+    private static final int TRAILER_SIZE = 3 * 4 + 8;
+
+    private final File f;
+    private final int tableId;
+    private final int runNo;
+    private final int keyField;
+    private final TupleDesc td;
+    private final int numPages;
+    private final Field[] firstKeys;
+    private final Field lastKey;
+    private final long[] bloom;
+    // iterators reading the run; a run merged away is deleted once none is
+    private int readers = 0;
+    private boolean obsolete = false;
+
+    private LsmRun(File f, int tableId, int runNo, int keyField, TupleDesc td, Field[] firstKeys,
+            Field lastKey, long[] bloom) {
+        this.f = f;
+        this.tableId = tableId;
+        this.runNo = runNo;
+        this.keyField = keyField;
+        this.td = td;
+        this.numPages = firstKeys.length;
+        this.firstKeys = firstKeys;
+        this.lastKey = lastKey;
+        this.bloom = bloom;
+    }
+
+    /** @return the number of entries a page of a run of tuples of td holds */
+    static int entriesPerPage(TupleDesc td) {
+        return (BufferPool.getPageSize() - 4) / (td.getSize() + 1);
+    }
+
+    /**
+     * Write a run of entries of a table.
+     *
+     * @param entries the entries of the run, sorted by key
+     * @param maxPages the number of pages after which the run ends at the
+     *        next key, or 0 for no limit
+     * @return the run written, or null if there were no entries
+     */
+    static LsmRun write(File f, int tableId, int runNo, int keyField, TupleDesc td, PeekingIterator entries,
+            int maxPages)
+            throws IOException {
+        if (!entries.hasNext())
+            return null;
+        int perPage = entriesPerPage(td);
+        ArrayList<Field> firstKeys = new ArrayList<Field>();
+        ArrayList<Integer> hashes = new ArrayList<Integer>();
+        Field lastKey = null;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            ByteArrayOutputStream page = new ByteArrayOutputStream(BufferPool.getPageSize());
+            DataOutputStream dos = new DataOutputStream(page);
+            int count = 0;
+            while (entries.hasNext()) {
+                Field key = entries.peek().tuple.getField(keyField);
+                // a key is never split across runs, so that the runs of a
+                // level do not overlap
+                if (maxPages > 0 && firstKeys.size() >= maxPages && !key.equals(lastKey))
+                    break;
+                Entry e = entries.next();
+                if (count == perPage) {
+                    writePage(out, page, count);
+                    count = 0;
+                }
+                if (count == 0)
+                    firstKeys.add(key);
+                dos.writeBoolean(e.tombstone);
+                for (int j = 0; j < td.numFields(); j++)
+                    e.tuple.getField(j).serialize(dos);
+                count++;
+                if (lastKey == null || !key.equals(lastKey))
+                    hashes.add(HashFile.hash(key));
+                lastKey = key;
+            }
+            writePage(out, page, count);
+
+            long indexOffset = (long) firstKeys.size() * BufferPool.getPageSize();
+            for (Field key : firstKeys)
+                key.serialize(out);
+            lastKey.serialize(out);
+            long[] bloom = new long[Math.max(1, (hashes.size() * BLOOM_BITS_PER_KEY + 63) / 64)];
+            for (int h : hashes)
+                addToBloom(bloom, h);
+            for (long word : bloom)
+                out.writeLong(word);
+            out.writeInt(firstKeys.size());
+            out.writeInt(hashes.size());
+            out.writeInt(bloom.length);
+            out.writeLong(indexOffset);
+            out.flush();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.getFD().sync();
+        }
+        return open(f, tableId, runNo, keyField, td);
+    }
+
+    private static void writePage(DataOutputStream out, ByteArrayOutputStream page, int count) throws IOException {
+        out.writeInt(count);
+        page.writeTo(out);
+        out.write(new byte[BufferPool.getPageSize() - 4 - page.size()]);
+        page.reset();
+    }
+
+    /**
+     * Read the sparse index and bloom filter of a run written by
+     * {@link #write}.
+     */
+    static LsmRun open(File f, int tableId, int runNo, int keyField, TupleDesc td) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            if (raf.length() < TRAILER_SIZE)
+                throw new IOException("truncated run " + f);
+            raf.seek(raf.length() - TRAILER_SIZE);
+            int numPages = raf.readInt();
+            raf.readInt(); // the number of keys
+            int bloomWords = raf.readInt();
+            long indexOffset = raf.readLong();
+            raf.seek(indexOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            Type keyType = td.getFieldType(keyField);
+            Field[] firstKeys = new Field[numPages];
+            for (int i = 0; i < numPages; i++)
+                firstKeys[i] = keyType.parse(in);
+            Field lastKey = keyType.parse(in);
+            long[] bloom = new long[bloomWords];
+            for (int i = 0; i < bloomWords; i++)
+                bloom[i] = in.readLong();
+            return new LsmRun(f, tableId, runNo, keyField, td, firstKeys, lastKey, bloom);
+        } catch (java.text.ParseException e) {
+            throw new IOException("cannot parse the index of run " + f, e);
+        }
+    }
+
+    private static void addToBloom(long[] bloom, int h) {
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = bloomBit(bloom, h, i);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // the i-th bit of a key with hash h, by double hashing
+    private static long bloomBit(long[] bloom, int h, int i) {
+        int h2 = Integer.rotateLeft(h, 16) * 0x9e3779b1 | 1;
+        return Math.floorMod(h + i * h2, (long) bloom.length * 64);
+    }
+
+    File getFile() {
+        return f;
+    }
+
+    int getRunNo() {
+        return runNo;
+    }
+
+    int numPages() {
+        return numPages;
+    }
+
+    Field firstKey() {
+        return firstKeys[0];
+    }
+
+    Field lastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return false if the run has no entry with the key, and true if it may
+     *         have one
+     */
+    boolean mayContain(Field key) {
+        if (less(key, firstKeys[0]) || less(lastKey, key))
+            return false;
+        int h = HashFile.hash(key);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = bloomBit(bloom, h, i);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the key ranges of this run and another overlap
+     */
+    boolean overlaps(LsmRun other) {
+        return !less(lastKey, other.firstKeys[0]) && !less(other.lastKey, firstKeys[0]);
+    }
+
+    static boolean less(Field a, Field b) {
+        return a.compare(Predicate.Op.LESS_THAN, b);
+    }
+
+    /**
+     * @return the first page that may hold an entry whose key is at least
+     *         the specified one, or 0 if key is null
+     */
+    private int firstPage(Field key) {
+        if (key == null)
+            return 0;
+        // the last page whose first key is below the key, since the entries
+        // with the key may start at its end
+        int lo = 0, hi = numPages;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (less(firstKeys[mid], key))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return Math.max(0, lo - 1);
+    }
+
+    /**
+     * Register a reader of the run, which keeps the file from being deleted
+     * until it is {@link #release released}.
+     */
+    synchronized void acquire() {
+        readers++;
+    }
+
+    synchronized void release() {
+        readers--;
+        deleteIfUnused();
+    }
+
+    /**
+     * Delete the file of the run once no iterator reads it.
+     */
+    synchronized void markObsolete() {
+        obsolete = true;
+        deleteIfUnused();
+    }
+
+    private void deleteIfUnused() {
+        if (obsolete && readers == 0)
+            f.delete();
+    }
+
+    /**
+     * @return an iterator over the entries of the run in key order, from
+     *         the first page that may hold the key from, or from the start
+     *         if from is null
+     */
+    PeekingIterator iterator(Field from) throws IOException {
+        return new RunIterator(firstPage(from));
+    }
+
+    /**
+     * An iterator over entries that can look at the next one without
+     * consuming it.
+     */
+    interface PeekingIterator {
+        boolean hasNext() throws IOException;
+
+        Entry peek() throws IOException;
+
+        Entry next() throws IOException;
+
+        void close();
+    }
+
+    private class RunIterator implements PeekingIterator {
+        private final RandomAccessFile raf;
+        private final DataInputStream in;
+        private final byte[] data = new byte[BufferPool.getPageSize()];
+        private DataInputStream pageIn;
+        private int page;
+        private int remaining = 0;
+        private int slot = 0;
+        private Entry next = null;
+
+        RunIterator(int page) throws IOException {
+            this.page = page;
+            raf = new RandomAccessFile(f, "r");
+            raf.seek((long) page * data.length);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), 4 * data.length));
+        }
+
+        public boolean hasNext() throws IOException {
+            return peek() != null;
+        }
+
+        public Entry peek() throws IOException {
+            if (next != null)
+                return next;
+            while (remaining == 0) {
+                if (page >= numPages)
+                    return null;
+                in.readFully(data);
+                pageIn = new DataInputStream(new ByteArrayInputStream(data));
+                remaining = pageIn.readInt();
+                slot = 0;
+                page++;
+            }
+            boolean tombstone = pageIn.readBoolean();
+            Tuple t = new Tuple(td);
+            try {
+                for (int j = 0; j < td.numFields(); j++)
+                    t.setField(j, td.getFieldType(j).parse(pageIn));
+            } catch (java.text.ParseException e) {
+                throw new IOException("cannot parse entry of run " + f, e);
+            }
+            t.setRecordId(new RecordId(new LsmRunPageId(tableId, runNo, page - 1), slot++));
+            remaining--;
+            next = new Entry(t, tombstone);
+            return next;
+        }
+
+        public Entry next() throws IOException {
+            Entry e = peek();
+            if (e == null)
+                throw new NoSuchElementException();
+            next = null;
+            return e;
+        }
+
+        public void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // the file was only read
+            }
+        }
+    }
+}
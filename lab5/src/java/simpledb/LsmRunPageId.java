@@ -0,0 +1,49 @@
+package simpledb;
+
+/**
+ * The id of a page of an {@link LsmRun}, which is only used in the
+ * RecordIds of the tuples read from the run, since runs are not read through
+ * the BufferPool.
+ */
+class LsmRunPageId implements PageId {
+    private final int tableId;
+    private final int runNo;
+    private final int pgNo;
+
+    LsmRunPageId(int tableId, int runNo, int pgNo) {
+        this.tableId = tableId;
+        this.runNo = runNo;
+        this.pgNo = pgNo;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    int getRunNo() {
+        return runNo;
+    }
+
+    public int[] serialize() {
+        return new int[] { tableId, runNo, pgNo };
+    }
+
+    public int hashCode() {
+        return (tableId * 31 + runNo) * 31 + pgNo;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof LsmRunPageId))
+            return false;
+        LsmRunPageId other = (LsmRunPageId) o;
+        return tableId == other.tableId && runNo == other.runNo && pgNo == other.pgNo;
+    }
+
+    public String toString() {
+        return "LsmRunPageId(" + tableId + ", " + runNo + ", " + pgNo + ")";
+    }
+}
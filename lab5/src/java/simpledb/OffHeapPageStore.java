@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * OffHeapPageStore is a second level cache of page data behind the
+ * {@link BufferPool}: it keeps copies of the data of clean pages evicted from
+ * the frames of the pool outside the Java heap, in direct ByteBuffers, so
+ * that a page read again is rebuilt from memory rather than read from disk.
+ * The pool itself then only needs a few frames of on-heap pages, while the
+ * store can hold many gigabytes without adding to garbage collection work.
+ * Pages are not used in place: their data is copied into the store when they
+ * are evicted, and copied out and parsed into a new page when they are read.
+ * <p>
+ * Like the frames of the pool, the store is split by page id into stripes,
+ * each with its own lock, index of the pages it holds, and slots of one page
+ * each, in direct buffers of at most CHUNK_SIZE bytes that are allocated when
+ * first used. Pages of different stripes are thus looked up and copied in
+ * parallel, and a miss only holds the lock of its stripe for the lookup. When
+ * every slot of a stripe is in use, its slots are reused in the order they
+ * were filled. Only the data of pages that match the files on disk may be put
+ * in the store; the buffer pool removes a page when it writes the page or
+ * discards it.
+ */
+class OffHeapPageStore {
+
+    /** Maximum size in bytes of each direct buffer */
+    static final int CHUNK_SIZE = 1 << 30;
+
+    private final int pageSize;
+    private final Stripe[] stripes;
+
+    /**
+     * A part of the store, holding the pages whose ids hash to it. Its
+     * fields are only used while synchronized on it.
+     */
+    private class Stripe {
+        final int numSlots;
+        final int slotsPerChunk;
+        final ByteBuffer[] chunks;
+        // the page held by each slot, or null, and the slot of each page
+        final PageId[] owners;
+        final HashMap<PageId, Integer> slots = new HashMap<PageId, Integer>();
+        // the next slot to fill
+        int next = 0;
+
+        Stripe(int numSlots) {
+            this.numSlots = numSlots;
+            this.slotsPerChunk = CHUNK_SIZE / pageSize;
+            this.chunks = new ByteBuffer[(numSlots + slotsPerChunk - 1) / slotsPerChunk];
+            this.owners = new PageId[numSlots];
+        }
+
+        // the chunk of a slot, positioned at the start of the slot
+        ByteBuffer position(int slot) {
+            int c = slot / slotsPerChunk;
+            if (chunks[c] == null) {
+                int pages = Math.min(slotsPerChunk, numSlots - c * slotsPerChunk);
+                chunks[c] = ByteBuffer.allocateDirect(pages * pageSize);
+            }
+            chunks[c].clear();
+            chunks[c].position((slot % slotsPerChunk) * pageSize);
+            return chunks[c];
+        }
+    }
+
+    /**
+     * Create a store for the data of the specified number of pages, in a
+     * single stripe.
+     *
+     * @param numPages the number of pages the store holds
+     * @param pageSize the size in bytes of each page
+     */
+    OffHeapPageStore(int numPages, int pageSize) {
+        this(numPages, pageSize, 1);
+    }
+
+    /**
+     * Create a store for the data of the specified number of pages, split
+     * into the specified number of stripes, or fewer if there are fewer
+     * pages.
+     *
+     * @param numPages the number of pages the store holds
+     * @param pageSize the size in bytes of each page
+     * @param numStripes the number of stripes, at least 1
+     */
+    OffHeapPageStore(int numPages, int pageSize, int numStripes) {
+        this.pageSize = pageSize;
+        int n = Math.max(1, Math.min(numStripes, numPages));
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Stripe(numPages / n + (i < numPages % n ? 1 : 0));
+    }
+
+    private Stripe stripeOf(PageId pid) {
+        return stripes[(pid.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * @return a copy of the stored data of the specified page, or null if the
+     *         store does not hold it
+     */
+    byte[] get(PageId pid) {
+        Stripe stripe = stripeOf(pid);
+        synchronized (stripe) {
+            Integer slot = stripe.slots.get(pid);
+            if (slot == null)
+                return null;
+            byte[] data = new byte[pageSize];
+            stripe.position(slot).get(data);
+            return data;
+        }
+    }
+
+    /**
+     * Store the data of a page, replacing the page of its stripe stored the
+     * longest if the stripe is full. Data that is not exactly one page long,
+     * such as that of a {@link BTreeRootPtrPage}, is not stored.
+     *
+     * @param pid the id of the page
+     * @param data the data of the page, as on disk
+     */
+    void put(PageId pid, byte[] data) {
+        Stripe stripe = stripeOf(pid);
+        if (data.length != pageSize || stripe.numSlots == 0)
+            return;
+        synchronized (stripe) {
+            Integer slot = stripe.slots.get(pid);
+            if (slot == null) {
+                slot = stripe.next;
+                stripe.next = (stripe.next + 1) % stripe.numSlots;
+                if (stripe.owners[slot] != null)
+                    stripe.slots.remove(stripe.owners[slot]);
+                stripe.owners[slot] = pid;
+                stripe.slots.put(pid, slot);
+            }
+            stripe.position(slot).put(data);
+        }
+    }
+
+    /**
+     * Drop the stored data of a page, if any.
+     */
+    void remove(PageId pid) {
+        Stripe stripe = stripeOf(pid);
+        synchronized (stripe) {
+            Integer slot = stripe.slots.remove(pid);
+            if (slot != null)
+                stripe.owners[slot] = null;
+        }
+    }
+
+    /**
+     * @return the number of pages held by the store
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.slots.size();
+            }
+        }
+        return size;
+    }
+}
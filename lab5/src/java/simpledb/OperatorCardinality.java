@@ -25,7 +25,13 @@ public class OperatorCardinality {
             return updateFilterCardinality((Filter) o, tableAliasToId,
                     tableStats);
         } else if (o instanceof Join) {
-            return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
+            Join j = (Join) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof IndexJoin) {
+            IndexJoin j = (IndexJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
@@ -88,7 +94,8 @@ public class OperatorCardinality {
         return false;
     }
 
-    private static boolean updateJoinCardinality(Join j,
+    private static boolean updateJoinCardinality(Operator j,
+            JoinPredicate jp, String field1Name, String field2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -98,11 +105,11 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = field1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
 
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = field2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -137,8 +144,8 @@ public class OperatorCardinality {
                     .getTableName()).estimateTableCardinality(1.0));
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                jp.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
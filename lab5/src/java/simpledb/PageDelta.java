@@ -0,0 +1,191 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PageDelta is the change an UPDATE record of the {@link LogFile} describes
+ * to one page: the byte ranges in which the page after the update differs
+ * from the page before it, with the bytes of both. Inserting or deleting a
+ * tuple only changes a header bit and the bytes of its slot, so its delta
+ * holds a few dozen bytes rather than two page images.
+ * <p>
+ * A full delta has a single range covering the whole page, and can be
+ * applied to a page whose bytes are not known, such as a torn page after a
+ * crash. Applying a delta sets bytes rather than adding to them, so redo and
+ * undo may be repeated.
+ * <p>
+ * A delta is serialized as the kind of its page id, one of HEAP_PAGE,
+ * HASH_PAGE and BTREE_PAGE, followed by the ints of the page id, then the
+ * page size and the number of ranges, then the offset and length of
+ * each range followed by its before and after bytes.
+ */
+class PageDelta {
+
+    // equal runs shorter than this do not split a range, since a range costs
+    // two ints
+    private static final int MIN_GAP = 2 * LogFile.INT_SIZE;
+
+    // the kinds of page ids
+    private static final byte HEAP_PAGE = 0;
+    private static final byte HASH_PAGE = 1;
+    private static final byte BTREE_PAGE = 2;
+
+    private final PageId pid;
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta between two images of a page, or a full one if full
+     *         is set
+     */
+    static PageDelta diff(PageId pid, byte[] before, byte[] after, boolean full) {
+        if (full)
+            return new PageDelta(pid, after.length, new int[] { 0 }, new byte[][] { before }, new byte[][] { after });
+        ArrayList<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range up to the next run of MIN_GAP equal bytes
+            for (int j = end; j < after.length && j - end < MIN_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] b = new byte[ranges.size()][];
+        byte[][] a = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            b[r] = Arrays.copyOfRange(before, range[0], range[1]);
+            a[r] = Arrays.copyOfRange(after, range[0], range[1]);
+        }
+        return new PageDelta(pid, after.length, offsets, b, a);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    /**
+     * @return whether this delta covers the whole page
+     */
+    boolean isFull() {
+        return offsets.length == 1 && offsets[0] == 0 && after[0].length == pageSize;
+    }
+
+    /**
+     * Set the ranges of a page image to their bytes after the update, in
+     * place. The image may be null if this delta is full.
+     *
+     * @return the changed image
+     */
+    byte[] redo(byte[] data) {
+        return apply(data, after);
+    }
+
+    /**
+     * Set the ranges of a page image to their bytes before the update, in
+     * place. The image may be null if this delta is full.
+     *
+     * @return the changed image
+     */
+    byte[] undo(byte[] data) {
+        return apply(data, before);
+    }
+
+    private byte[] apply(byte[] data, byte[][] bytes) {
+        if (isFull())
+            return bytes[0].clone();
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(bytes[r], 0, data, offsets[r], bytes[r].length);
+        return data;
+    }
+
+    void write(DataOutput out) throws IOException {
+        int[] ids = pid.serialize();
+        out.writeByte(kind(pid));
+        for (int id : ids)
+            out.writeInt(id);
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /**
+     * Read a delta written by {@link #write}.
+     *
+     * @throws InvalidObjectException if the bytes read are not a delta, as
+     *         when reading an incomplete record at the end of the log
+     */
+    static PageDelta read(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        PageId pid;
+        switch (kind) {
+        case HEAP_PAGE:
+            pid = new HeapPageId(in.readInt(), in.readInt());
+            break;
+        case HASH_PAGE:
+            pid = new HashPageId(in.readInt(), in.readInt());
+            break;
+        case BTREE_PAGE:
+            pid = new BTreePageId(in.readInt(), in.readInt(), in.readInt());
+            break;
+        default:
+            throw new InvalidObjectException("bad page id kind " + kind);
+        }
+        int pageSize = in.readInt();
+        int n = in.readInt();
+        if (pageSize <= 0 || n < 0 || n > pageSize)
+            throw new InvalidObjectException("bad delta of " + n + " ranges of a " + pageSize + " byte page");
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            if (offsets[r] < 0 || length < 0 || length > pageSize - offsets[r])
+                throw new InvalidObjectException("bad range at " + offsets[r] + " of " + length + " bytes");
+            before[r] = new byte[length];
+            after[r] = new byte[before[r].length];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, pageSize, offsets, before, after);
+    }
+
+    // the kind of a page id, which tells how to read it back
+    private static byte kind(PageId pid) {
+        if (pid instanceof HeapPageId)
+            return HEAP_PAGE;
+        if (pid instanceof HashPageId)
+            return HASH_PAGE;
+        if (pid instanceof BTreePageId)
+            return BTREE_PAGE;
+        throw new IllegalArgumentException("pages of " + pid + " are not logged");
+    }
+}
@@ -35,6 +35,26 @@ public class Parser {
         throw new simpledb.ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return the operator comparing B with A as the specified one compares A
+     *         with B, so that a filter written constant first, such as
+     *         5 &lt; a, becomes a &gt; 5
+     */
+    static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
     void processExpression(TransactionId tid, ZExpression wx, LogicalPlan lp)
             throws simpledb.ParsingException {
         if (wx.getOperator().equals("AND")) {
@@ -48,8 +68,35 @@ public class Parser {
 
             }
         } else if (wx.getOperator().equals("OR")) {
-            throw new simpledb.ParsingException(
-                    "OR expressions currently unsupported.");
+            Vector<ZExpression> terms = new Vector<ZExpression>();
+            disjunctionTerms(wx, terms);
+            String[] columns = new String[terms.size()];
+            Predicate.Op[] preds = new Predicate.Op[terms.size()];
+            String[] values = new String[terms.size()];
+            for (int i = 0; i < terms.size(); i++) {
+                ZExpression term = terms.elementAt(i);
+                if (term.nbOperands() != 2 || !(term.getOperand(0) instanceof ZConstant)
+                        || !(term.getOperand(1) instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Only OR expressions of filters of the form A op B are currently supported.");
+                }
+                ZConstant op1 = (ZConstant) term.getOperand(0);
+                ZConstant op2 = (ZConstant) term.getOperand(1);
+                if ((op1.getType() == ZConstant.COLUMNNAME) == (op2.getType() == ZConstant.COLUMNNAME)) {
+                    throw new simpledb.ParsingException(
+                            "Only OR expressions comparing a field with a constant are currently supported.");
+                }
+                preds[i] = getOp(term.getOperator());
+                if (op1.getType() == ZConstant.COLUMNNAME) {
+                    columns[i] = op1.getValue();
+                    values[i] = op2.getValue();
+                } else {
+                    columns[i] = op2.getValue();
+                    values[i] = op1.getValue();
+                    preds[i] = reverse(preds[i]);
+                }
+            }
+            lp.addDisjunction(columns, preds, values);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -123,6 +170,7 @@ public class Parser {
                 } else {
                     column = op2.getValue();
                     compValue = new String(op1.getValue());
+                    op = reverse(op);
                 }
 
                 lp.addFilter(column, op, compValue);
@@ -132,6 +180,22 @@ public class Parser {
 
     }
 
+    // collect the operands of nested OR expressions
+    private void disjunctionTerms(ZExpression wx, Vector<ZExpression> terms)
+            throws simpledb.ParsingException {
+        for (int i = 0; i < wx.nbOperands(); i++) {
+            if (!(wx.getOperand(i) instanceof ZExpression)) {
+                throw new simpledb.ParsingException(
+                        "Nested queries are currently unsupported.");
+            }
+            ZExpression term = (ZExpression) wx.getOperand(i);
+            if (term.getOperator().equals("OR"))
+                disjunctionTerms(term, terms);
+            else
+                terms.addElement(term);
+        }
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -365,13 +429,14 @@ public class Parser {
                     IntField f = new IntField(new Integer(zc.getValue()));
                     t.setField(i, f);
                 } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
+                    if (!td.getFieldType(i).isString()) {
                         throw new simpledb.ParsingException("Value "
                                 + zc.getValue()
                                 + " is a string, expected an integer.");
                     }
-                    StringField f = new StringField(zc.getValue(),
-                            Type.STRING_LEN);
+                    StringField f = td.getFieldType(i) == Type.VARCHAR_TYPE
+                            ? new VarcharField(zc.getValue(), Type.STRING_LEN)
+                            : new StringField(zc.getValue(), Type.STRING_LEN);
                     t.setField(i, f);
                 } else {
                     throw new simpledb.ParsingException(
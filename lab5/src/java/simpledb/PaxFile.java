@@ -0,0 +1,312 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PaxFile is an implementation of a DbFile that stores a collection of tuples
+ * in no particular order on PaxPages, which lay out the tuples of a page
+ * column by column. Pages are still read whole through the BufferPool, but a
+ * scan that only needs some of the fields of a wide table, see
+ * {@link #iterator(TransactionId, int[])}, decodes only those columns.
+ * <p>
+ * Pages are identified by HeapPageIds and hold as many tuples as HeapPages,
+ * and RecordIds are stable, as in a HeapFile.
+ *
+ * @see simpledb.PaxPage#PaxPage
+ * @see HeapFileEncoder#convertToPax
+ */
+public class PaxFile implements DbFile {
+    private final File file;
+    private final TupleDesc tupleDesc;
+    private final FreeSpaceMap freeSpace;
+
+    /**
+     * Constructs a PAX file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the TupleDesc of the tuples stored in the file
+     */
+    public PaxFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a PAX file backed by the specified file, whose free space
+     * map is also kept in a side file next to it if persistMaps is set.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the TupleDesc of the tuples stored in the file
+     * @param persistMaps
+     *            whether to keep the map in a side file
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+     */
+    public PaxFile(File f, TupleDesc td, boolean persistMaps) {
+        file = f;
+        tupleDesc = td;
+        freeSpace = new FreeSpaceMap(persistMaps ? FreeSpaceMap.fileFor(f) : null, f);
+    }
+
+    /**
+     * Returns the File backing this PaxFile on disk.
+     *
+     * @return the File backing this PaxFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this file, the hash of its absolute
+     * file name.
+     *
+     * @return an ID uniquely identifying this file.
+     */
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     *
+     * @return TupleDesc of this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int length = BufferPool.getPageSize();
+        int offset = pid.pageNumber() * length;
+        if (offset + length > file.length()) throw new IllegalArgumentException();
+
+        byte[] data = new byte[length];
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                randomAccessFile.seek(offset);
+                randomAccessFile.readFully(data);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return readPage(pid, data);
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid, byte[] data) {
+        PaxPage page;
+        try {
+            page = new PaxPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        freeSpace.update(pid.pageNumber(), page.getNumEmptySlots());
+        return page;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        PageId pid = page.getId();
+        int length = BufferPool.getPageSize();
+        freeSpace.beginWrite();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(pid.pageNumber() * length);
+            randomAccessFile.write(page.getPageData());
+        } finally {
+            randomAccessFile.close();
+        }
+        freeSpace.write(pid.pageNumber(), ((PaxPage) page).getNumEmptySlots());
+    }
+
+    /**
+     * Returns the number of pages in this PaxFile.
+     */
+    public int numPages() {
+        return (int) (file.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Inserts the tuple into a page with an empty slot, found through the
+     * free space map of this file, or into a new page appended to the file if
+     * every page is full.
+     *
+     * @see FreeSpaceMap
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        HeapPageId pid;
+        PaxPage page;
+        int pageNo;
+        while ((pageNo = freeSpace.findPage(numPages())) >= 0) {
+            pid = new HeapPageId(getId(), pageNo);
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
+            page = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() > 0) {
+                page = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                page.insertTuple(t);
+                freeSpace.update(pageNo, page.getNumEmptySlots());
+                return new ArrayList<Page>(Collections.singletonList(page));
+            }
+            // the map was out of date
+            freeSpace.update(pageNo, 0);
+            if (!held) {
+                Database.getBufferPool().releasePage(tid, pid);
+            }
+        }
+        pid = new HeapPageId(getId(), numPages());
+        page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        writePage(page);
+        page = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        freeSpace.update(pid.pageNumber(), page.getNumEmptySlots());
+
+        return new ArrayList<Page>(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        PageId pid = t.getRecordId().getPageId();
+        if (pid.getTableId() != getId())
+            throw new DbException("tuple is not in this file");
+        PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        freeSpace.update(pid.pageNumber(), page.getNumEmptySlots());
+        return new ArrayList<Page>(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] fields = new int[tupleDesc.numFields()];
+        for (int j = 0; j < fields.length; j++)
+            fields[j] = j;
+        return new PaxFileIterator(this, tid, fields, tupleDesc);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that reads only the
+     * specified fields, and decodes only their columns.
+     *
+     * @param tid the transaction the scan runs in
+     * @param fields the indexes of the fields to read, in output order
+     * @return an iterator over tuples holding only the specified fields, in
+     *         that order; their RecordIds are those of the stored tuples
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            types[k] = tupleDesc.getFieldType(fields[k]);
+            names[k] = tupleDesc.getFieldName(fields[k]);
+        }
+        return new PaxFileIterator(this, tid, fields.clone(), new TupleDesc(types, names));
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the specified predicates, holding only the specified fields. Only the
+     * columns of those fields and of the fields of the predicates are
+     * decoded.
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+        if (fields == null)
+            return DbFile.super.iterator(tid, preds, null);
+        // read the needed fields, then map the predicates and the output
+        // fields to their positions among them
+        TreeSet<Integer> needed = new TreeSet<Integer>();
+        for (int f : fields)
+            needed.add(f);
+        for (int k = 0; preds != null && k < preds.length; k++)
+            needed.add(preds[k].getField());
+        int[] read = new int[needed.size()];
+        int[] position = new int[tupleDesc.numFields()];
+        int n = 0;
+        for (int f : needed) {
+            position[f] = n;
+            read[n++] = f;
+        }
+        Predicate[] readPreds = null;
+        if (preds != null) {
+            readPreds = new Predicate[preds.length];
+            for (int k = 0; k < preds.length; k++)
+                readPreds[k] = new Predicate(position[preds[k].getField()], preds[k].getOp(), preds[k].getOperand());
+        }
+        int[] readFields = new int[fields.length];
+        for (int k = 0; k < fields.length; k++)
+            readFields[k] = position[fields[k]];
+        DbFileIterator it = iterator(tid, read);
+        return new FilteredDbFileIterator(it, readPreds, readFields, FilteredDbFileIterator.project(tupleDesc, read));
+    }
+
+}
+
+/**
+ * Helper class that implements the DbFileIterator for some of the fields of
+ * the tuples on a PaxFile, page by page
+ */
+class PaxFileIterator extends AbstractDbFileIterator {
+
+    private final PaxFile f;
+    private final TransactionId tid;
+    private final int[] fields;
+    private final TupleDesc outTd;
+    private Iterator<Tuple> it = null;
+    private int nextPage = 0;
+    private boolean open = false;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param f      - the PaxFile containing the tuples
+     * @param tid    - the transaction id
+     * @param fields - the indexes of the fields to read
+     * @param outTd  - the TupleDesc of the returned tuples
+     */
+    public PaxFileIterator(PaxFile f, TransactionId tid, int[] fields, TupleDesc outTd) {
+        this.f = f;
+        this.tid = tid;
+        this.fields = fields;
+        this.outTd = outTd;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        open = true;
+        nextPage = 0;
+        it = null;
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        if (!open)
+            return null;
+        while (it == null || !it.hasNext()) {
+            if (nextPage >= f.numPages())
+                return null;
+            PageId pid = new HeapPageId(f.getId(), nextPage++);
+            it = ((PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator(fields, outTd);
+        }
+        return it.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        open = false;
+        it = null;
+    }
+}
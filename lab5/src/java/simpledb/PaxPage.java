@@ -0,0 +1,355 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Each instance of PaxPage stores data for one page of a PaxFile and
+ * implements the Page interface that is used by BufferPool. A PaxPage holds
+ * as many tuples as a HeapPage of the same table, but stores them column by
+ * column, so that a scan of a few columns only decodes those.
+ *
+ * @see PaxFile
+ * @see BufferPool
+ */
+public class PaxPage implements Page {
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final byte header[];
+    final int numSlots;
+    // offset in the page of the minipage of each column
+    private final int[] columnOffsets;
+    // the fields of each column by slot, null until the column is decoded
+    private final Field[][] columns;
+    // the data the page was read from, until every column is decoded
+    private byte[] data;
+    private int numEmptySlots;
+    TransactionId dirtyTid = null;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk.
+     * The format of a PaxPage is the header of a HeapPage, a bitmap of the
+     * slots in use, followed by one minipage per field of the TupleDesc. The
+     * minipage of a field holds the value of that field for each slot in turn,
+     * in its fixed-width encoding; the number of slots is the same as on a
+     * HeapPage:
+     * <p>
+     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     * <p>
+     * Columns are decoded from the data on first use.
+     *
+     * @see HeapPage#HeapPage
+     * @see BufferPool#getPageSize()
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples(td);
+        this.header = Arrays.copyOf(data, getHeaderSize(numSlots));
+        this.columnOffsets = getColumnOffsets(types(td), numSlots);
+        this.columns = new Field[td.numFields()][];
+        this.data = data;
+        for (int i = 0; i < numSlots; i++)
+            if (!isSlotUsed(i))
+                numEmptySlots++;
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of tuples on a page of a table with the specified
+     *         TupleDesc
+     */
+    static int getNumTuples(TupleDesc td) {
+        return BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+    }
+
+    private static Type[] types(TupleDesc td) {
+        Type[] types = new Type[td.numFields()];
+        for (int j = 0; j < types.length; j++)
+            types[j] = td.getFieldType(j);
+        return types;
+    }
+
+    private static int getHeaderSize(int numSlots) {
+        return (numSlots + 7) / 8;
+    }
+
+    private static int[] getColumnOffsets(Type[] types, int numSlots) {
+        int[] offsets = new int[types.length];
+        int offset = getHeaderSize(numSlots);
+        for (int j = 0; j < types.length; j++) {
+            offsets[j] = offset;
+            offset += numSlots * types[j].getLen();
+        }
+        return offsets;
+    }
+
+    /**
+     * Rearrange the data of a HeapPage into the format of a PaxPage of the
+     * same table. The header is the same, and each field of each record is
+     * moved to the minipage of its column.
+     *
+     * @param heapData the data of a HeapPage
+     * @param types the types of the fields of the table
+     * @return the data of a PaxPage holding the same tuples in the same slots
+     */
+    static byte[] fromHeapPageData(byte[] heapData, Type[] types) {
+        int tupleSize = 0;
+        for (Type t : types)
+            tupleSize += t.getLen();
+        int numSlots = heapData.length * 8 / (tupleSize * 8 + 1);
+        int headerSize = getHeaderSize(numSlots);
+        int[] offsets = getColumnOffsets(types, numSlots);
+
+        byte[] paxData = new byte[heapData.length];
+        System.arraycopy(heapData, 0, paxData, 0, headerSize);
+        for (int i = 0; i < numSlots; i++) {
+            int from = headerSize + i * tupleSize;
+            for (int j = 0; j < types.length; j++) {
+                int len = types[j].getLen();
+                System.arraycopy(heapData, from, paxData, offsets[j] + i * len, len);
+                from += len;
+            }
+        }
+        return paxData;
+    }
+
+    /**
+     * Decode the specified column from the page data, if it was not already.
+     * @return the fields of the column by slot, null for empty slots
+     */
+    private synchronized Field[] column(int j) {
+        if (columns[j] != null)
+            return columns[j];
+        Type type = td.getFieldType(j);
+        int len = type.getLen();
+        Field[] fields = new Field[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            DataInputStream dis = new DataInputStream(
+                    new ByteArrayInputStream(data, columnOffsets[j] + i * len, len));
+            try {
+                fields[i] = type.parse(dis);
+            } catch (ParseException e) {
+                throw new NoSuchElementException("parsing error in column " + j + " of page " + pid.pageNumber());
+            }
+        }
+        columns[j] = fields;
+        return fields;
+    }
+
+    // decode every column, after which the page data is no longer needed
+    private synchronized void decodeAll() {
+        if (data == null)
+            return;
+        for (int j = 0; j < columns.length; j++)
+            column(j);
+        data = null;
+    }
+
+    /**
+     * @return true if the specified column has been decoded from the page data
+     */
+    synchronized boolean isDecoded(int j) {
+        return columns[j] != null;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new PaxPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page. Passing
+     * it to the PaxPage constructor produces an identical PaxPage.
+     *
+     * @see #PaxPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public synchronized byte[] getPageData() {
+        // the page data is dropped on the first change, so while it is still
+        // here it holds exactly the contents of the page
+        if (data != null)
+            return data.clone();
+        decodeAll();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.write(header);
+            for (int j = 0; j < columns.length; j++) {
+                int len = td.getFieldType(j).getLen();
+                for (int i = 0; i < numSlots; i++) {
+                    if (isSlotUsed(i))
+                        columns[j][i].serialize(dos);
+                    else
+                        dos.write(new byte[len]);
+                }
+            }
+            // padding
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * PaxPage.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        int len = BufferPool.getPageSize();
+        return new byte[len]; //all 0
+    }
+
+    /**
+     * Delete the specified tuple from the page;  the tuple should be updated to reflect
+     *   that it is no longer stored on any page.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId recordId = t.getRecordId();
+        if (recordId == null || !recordId.getPageId().equals(this.pid))
+            throw new DbException("Page ID not match for deletion");
+        int slot = recordId.tupleno();
+        if (!isSlotUsed(slot)) throw new DbException("Tuple not on this page or already empty");
+        decodeAll();
+        markSlotUsed(slot, false);
+        for (Field[] column : columns)
+            column[slot] = null;
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     *  that it is now stored on this page.
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (numEmptySlots == 0) throw new DbException("Not enough place in page");
+        if (!t.getTupleDesc().equals(td)) throw new DbException("Tuple Desc not match");
+        decodeAll();
+        for (int i = 0; i < numSlots; ++i) {
+            if (!isSlotUsed(i)) {
+                t.setRecordId(new RecordId(pid, i));
+                for (int j = 0; j < columns.length; j++)
+                    columns[j][i] = t.getField(j);
+                markSlotUsed(i, true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtyTid = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return dirtyTid;
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        return numEmptySlots;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        if (i < 0 || i >= numSlots) return false;
+        return (header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (isSlotUsed(i) == value) return;
+        if (value) header[i / 8] |= 1 << (i % 8);
+        else header[i / 8] &= ~(1 << (i % 8));
+        numEmptySlots += value ? -1 : 1;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        int[] fields = new int[td.numFields()];
+        for (int j = 0; j < fields.length; j++)
+            fields[j] = j;
+        return iterator(fields, td);
+    }
+
+    /**
+     * Iterate over the tuples on this page, reading only the specified
+     * fields. Only the columns of those fields are decoded.
+     *
+     * @param fields the indexes of the fields to read, in output order
+     * @param outTd the TupleDesc of the returned tuples, whose ith field is
+     *        field fields[i] of the table
+     * @return an iterator over tuples with only the specified fields, and the
+     *         RecordId of the tuple they were read from
+     */
+    public synchronized Iterator<Tuple> iterator(int[] fields, TupleDesc outTd) {
+        Field[][] cols = new Field[fields.length][];
+        for (int k = 0; k < fields.length; k++)
+            cols[k] = column(fields[k]);
+        ArrayList<Tuple> filledTuples = new ArrayList<Tuple>(numSlots - numEmptySlots);
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            Tuple t = new Tuple(outTd);
+            for (int k = 0; k < fields.length; k++)
+                t.setField(k, cols[k][i]);
+            t.setRecordId(new RecordId(pid, i));
+            filledTuples.add(t);
+        }
+        return Collections.unmodifiableList(filledTuples).iterator();
+    }
+}
@@ -112,6 +112,72 @@ public class Predicate implements Serializable {
         return tupleField.compare(op, operand);
     }
 
+    /**
+     * Compares a field in its fixed-width serialized form, as written by
+     * {@link Field#serialize} at the specified offset of data, to the operand,
+     * without parsing it into a Field. Strings are compared character by
+     * character on their serialized bytes, which agrees with
+     * {@link StringField#compare} for the single-byte characters StringField
+     * serializes.
+     *
+     * @param data the serialized data
+     * @param offset the offset of the field in data
+     * @param type the type of the field
+     * @return true if the comparison is true, false otherwise.
+     */
+    boolean filter(byte[] data, int offset, Type type) {
+        int cmp;
+        if (type == Type.INT_TYPE && operand instanceof IntField) {
+            cmp = Integer.compare(readInt(data, offset), ((IntField) operand).getValue());
+        } else if (type.isString() && operand instanceof StringField) {
+            String s = ((StringField) operand).getValue();
+            int len = Math.max(0, Math.min(readInt(data, offset), Type.STRING_LEN));
+            if (op == Op.LIKE)
+                return new String(data, offset + 4, len).indexOf(s) >= 0;
+            cmp = compareBytes(data, offset + 4, len, s);
+        } else {
+            try {
+                return type.parse(new java.io.DataInputStream(new java.io.ByteArrayInputStream(
+                        data, offset, type.getLen()))).compare(op, operand);
+            } catch (java.text.ParseException e) {
+                return false;
+            }
+        }
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        }
+        return false;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    // compare len bytes of data as characters to s, like String.compareTo
+    private static int compareBytes(byte[] data, int offset, int len, String s) {
+        int n = Math.min(len, s.length());
+        for (int i = 0; i < n; i++) {
+            int c = (data[offset + i] & 0xFF) - s.charAt(i);
+            if (c != 0)
+                return c;
+        }
+        return len - s.length();
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
@@ -9,10 +9,14 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
+    static final String BITMAP_SCAN = "bitmap scan";
+    static final String INDEX_ONLY_SCAN = "index-only scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -26,7 +30,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         DbIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof IndexJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,17 +69,43 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan
+                || queryPlan instanceof IndexScan || queryPlan instanceof BitmapScan
+                || queryPlan instanceof IndexOnlyScan) {
+            String scan, tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                scan = SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof BTreeScan) {
+                BTreeScan s = (BTreeScan) queryPlan;
+                scan = INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof IndexScan) {
+                IndexScan s = (IndexScan) queryPlan;
+                scan = INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof BitmapScan) {
+                BitmapScan s = (BitmapScan) queryPlan;
+                scan = BITMAP_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else {
+                IndexOnlyScan s = (IndexOnlyScan) queryPlan;
+                scan = INDEX_ONLY_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", scan, tableName + alias);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -107,18 +137,19 @@ public class QueryPlanVisualizer {
             Operator plan = (Operator) queryPlan;
             DbIterator[] children = plan.getChildren();
 
-            if (plan instanceof Join) {
-                Join j = (Join) plan;
-                TupleDesc td = j.getTupleDesc();
-                JoinPredicate jp = j.getJoinPredicate();
+            if (plan instanceof Join || plan instanceof IndexJoin) {
+                TupleDesc td = plan.getTupleDesc();
+                JoinPredicate jp = plan instanceof Join ? ((Join) plan).getJoinPredicate()
+                        : ((IndexJoin) plan).getJoinPredicate();
+                String join = plan instanceof Join ? JOIN : INDEX_JOIN;
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", join,
+                        field1 + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = JOIN.length() / 2;
+                if (join.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = join.length() / 2;
 
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + adjustDepth + 3, children[0],
@@ -128,7 +159,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - JOIN.length() / 2;
+                        - join.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
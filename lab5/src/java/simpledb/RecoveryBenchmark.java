@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * RecoveryBenchmark measures the restart time of the log: it logs a number
+ * of transactions inserting tuples into random pages of a heap file, none of
+ * whose pages are flushed, followed by one that does not complete, and then
+ * times the recovery of the table from the log with 1, 2, 4 and up to
+ * {@link #MAX_THREADS} redo threads. The checksum of the table after each
+ * recovery is reported, so that runs may be checked to agree. Run it as
+ * <pre>
+ * java -classpath dist/simpledb.jar simpledb.SimpleDb recoverybenchmark pages transactions [updates]
+ * </pre>
+ * where pages is the number of pages of the table, transactions the number
+ * of transactions logged, and updates the number of pages each of them
+ * updates.
+ */
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws DbException, IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: recoverybenchmark pages transactions [updates]");
+            return;
+        }
+        int pages = Integer.parseInt(args[0]);
+        int transactions = Integer.parseInt(args[1]);
+        int updates = args.length == 3 ? Integer.parseInt(args[2]) : 4;
+
+        File tableFile = File.createTempFile("recovery", ".dat");
+        tableFile.deleteOnExit();
+        HeapFile table = createTable(tableFile, pages);
+        File logFile = File.createTempFile("recovery", ".log");
+        logFile.deleteOnExit();
+        LogFile log = new LogFile(logFile);
+        logUpdates(log, table, transactions, updates, new Random(0));
+        log.force();
+        System.out.println("Recovering " + pages + " pages from " + transactions + " transactions updating "
+                + updates + " pages each, " + (log.currentOffset >> 20) + " MB of log");
+
+        // warm up the code and the file system cache
+        recover(tableFile, pages, logFile, 1);
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            long elapsed = recover(tableFile, pages, logFile, threads);
+            System.out.printf("%2d redo threads: %d ms, table checksum %08x%n",
+                    threads, elapsed / 1000000, checksum(tableFile));
+        }
+        new LogSegments(logFile, LogSegments.SEGMENT_SIZE).clear();
+    }
+
+    /** The largest number of redo threads the benchmark runs */
+    static final int MAX_THREADS = 16;
+
+    // recover a table whose pages were lost from the log, so that every
+    // page is restored, and return the nanoseconds taken
+    private static long recover(File tableFile, int pages, File logFile, int threads) throws IOException {
+        createTable(tableFile, pages);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        LogFile restarted = new LogFile(logFile);
+        restarted.setRedoThreads(threads);
+        long start = System.nanoTime();
+        restarted.recover();
+        return System.nanoTime() - start;
+    }
+
+    // write a table of empty pages, or replace its pages by empty ones
+    private static HeapFile createTable(File f, int pages) throws IOException {
+        HeapFile table = Utility.openHeapFile(2, f);
+        byte[] empty = HeapPage.createEmptyPageData();
+        for (int i = 0; i < pages; i++)
+            table.writePage(table.readPage(new HeapPageId(table.getId(), i), empty));
+        return table;
+    }
+
+    private static long checksum(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(f.toPath()));
+        return crc.getValue();
+    }
+
+    /**
+     * Log transactions that each insert a tuple into some random pages of a
+     * table and commit, followed by one that does not complete. The pages of
+     * the table are not changed.
+     *
+     * @return the image of each page updated once the updates of the
+     *         committed transactions are installed
+     */
+    static Map<PageId, byte[]> logUpdates(LogFile log, HeapFile table, int transactions, int updates,
+            Random rand) throws DbException, IOException {
+        HashMap<PageId, byte[]> images = new HashMap<PageId, byte[]>();
+        for (int i = 0; i <= transactions; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            HashMap<PageId, byte[]> updated = new HashMap<PageId, byte[]>();
+            for (int u = 0; u < updates; u++) {
+                PageId pid = new HeapPageId(table.getId(), rand.nextInt(table.numPages()));
+                byte[] data = updated.get(pid);
+                if (data == null)
+                    data = images.get(pid);
+                HeapPage before = data == null ? (HeapPage) table.readPage(pid) : (HeapPage) table.readPage(pid, data);
+                HeapPage after = (HeapPage) table.readPage(pid, before.getPageData());
+                if (after.getNumEmptySlots() == 0)
+                    continue;
+                after.insertTuple(Utility.getHeapTuple(new int[] { i, u }));
+                log.logWrite(tid, before, after);
+                updated.put(pid, after.getPageData());
+            }
+            // the last transaction is lost in the crash
+            if (i < transactions) {
+                log.logCommit(tid);
+                images.putAll(updated);
+            }
+        }
+        return images;
+    }
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * RedoWorkers applies the page deltas recovery reads from the {@link LogFile}
+ * on a number of threads. Deltas are partitioned by the hash of their page
+ * id, so the deltas of a page are applied by one worker in the order they
+ * are submitted, while the deltas of different pages are applied in
+ * parallel.
+ * <p>
+ * Each worker keeps the images of the pages it changed, writing the least
+ * recently changed to their files when it holds more than its share of
+ * {@link #MAX_CACHED_PAGES}, and the others once all deltas are applied, so
+ * a page updated many times is read and written once. With a single worker
+ * the deltas are applied on the submitting thread.
+ * <p>
+ * Deltas are submitted by one thread, which then calls {@link #finish}.
+ */
+class RedoWorkers {
+
+    /** Number of changed pages the workers keep in all before writing */
+    static final int MAX_CACHED_PAGES = 4096;
+    // deltas a worker may have pending before the submitting thread waits
+    private static final int QUEUE_SIZE = 1024;
+
+    private static class Task {
+        final PageDelta delta;
+        final boolean redo;
+
+        Task(PageDelta delta, boolean redo) {
+            this.delta = delta;
+            this.redo = redo;
+        }
+    }
+
+    // marks the end of the deltas of a worker
+    private static final Task DONE = new Task(null, false);
+
+    private class Worker implements Runnable {
+        final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        // the images of the pages changed, least recently used first
+        final LinkedHashMap<PageId, byte[]> pages = new LinkedHashMap<PageId, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, byte[]> eldest) {
+                if (size() <= cachedPages)
+                    return false;
+                write(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+        Exception error;
+
+        void apply(Task task) {
+            PageId pid = task.delta.getPageId();
+            byte[] data = pages.get(pid);
+            if (data == null && !task.delta.isFull())
+                data = file(pid).readPage(pid).getPageData();
+            data = task.redo ? task.delta.redo(data) : task.delta.undo(data);
+            pages.put(pid, data);
+        }
+
+        void finish() {
+            for (Map.Entry<PageId, byte[]> e : pages.entrySet())
+                write(e.getKey(), e.getValue());
+            pages.clear();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Task task = queue.take(); task != DONE; task = queue.take()) {
+                    // keep draining after a failure so the submitter does not
+                    // wait for room forever
+                    if (error == null) {
+                        try {
+                            apply(task);
+                        } catch (Exception e) {
+                            error = e;
+                        }
+                    }
+                }
+                if (error == null)
+                    finish();
+            } catch (InterruptedException e) {
+                error = e;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    private final Worker[] workers;
+    private final Thread[] threads;
+    // the number of pages each worker keeps
+    private final int cachedPages;
+
+    /**
+     * Start a number of workers.
+     */
+    RedoWorkers(int n) {
+        workers = new Worker[Math.max(1, n)];
+        threads = new Thread[workers.length];
+        cachedPages = Math.max(1, MAX_CACHED_PAGES / workers.length);
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new Worker();
+        if (workers.length == 1)
+            return;
+        for (int i = 0; i < workers.length; i++) {
+            threads[i] = new Thread(workers[i], "redo-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    private static DbFile file(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId());
+    }
+
+    private static void write(PageId pid, byte[] data) {
+        DbFile file = file(pid);
+        try {
+            file.writePage(file.readPage(pid, data));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    /**
+     * Apply a delta after those submitted before for its page.
+     *
+     * @param redo whether to redo the delta, or to undo it
+     */
+    void submit(PageDelta delta, boolean redo) throws IOException {
+        Task task = new Task(delta, redo);
+        if (workers.length == 1) {
+            workers[0].apply(task);
+            return;
+        }
+        int h = delta.getPageId().hashCode();
+        Worker worker = workers[Math.floorMod(h ^ (h >>> 16), workers.length)];
+        try {
+            worker.queue.put(task);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while submitting redo work", e);
+        }
+    }
+
+    /**
+     * Wait for every delta submitted to be applied, and write the pages
+     * changed to their files.
+     *
+     * @throws IOException if a worker failed to apply a delta
+     */
+    void finish() throws IOException {
+        if (workers.length == 1) {
+            workers[0].finish();
+            return;
+        }
+        boolean interrupted = false;
+        for (Worker worker : workers) {
+            while (true) {
+                try {
+                    worker.queue.put(DONE);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        for (Worker worker : workers) {
+            if (worker.error != null)
+                throw new IOException("redo failed", worker.error);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * RoaringBitmap is a compressed set of non-negative ints, split in chunks by
+ * their high 16 bits. Each chunk holds the low 16 bits of its values in a
+ * container: a sorted array while it holds at most {@link #ARRAY_MAX} values,
+ * and a bitmap of 2^16 bits beyond that. Sparse sets thus take two bytes per
+ * value, and dense ones one bit, and intersections and unions work a chunk
+ * at a time on the containers of both sets.
+ * <p>
+ * The bitmaps returned by {@link #and} and {@link #or} share no container
+ * with their arguments, which may be changed afterwards.
+ */
+public class RoaringBitmap {
+
+    /** Number of values beyond which a container is a bitmap */
+    static final int ARRAY_MAX = 4096;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    /**
+     * Add a value to the set.
+     */
+    public void add(int x) {
+        checkValue(x);
+        char key = (char) (x >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertAt(i, key, new ArrayContainer());
+        }
+        containers[i] = containers[i].add((char) x);
+    }
+
+    /**
+     * Remove a value from the set, if it is there.
+     */
+    public void remove(int x) {
+        if (x < 0)
+            return;
+        int i = find((char) (x >>> 16));
+        if (i < 0)
+            return;
+        containers[i] = containers[i].remove((char) x);
+        if (containers[i].cardinality() == 0)
+            removeAt(i);
+    }
+
+    public boolean contains(int x) {
+        if (x < 0)
+            return false;
+        int i = find((char) (x >>> 16));
+        return i >= 0 && containers[i].contains((char) x);
+    }
+
+    /**
+     * @return the number of values in the set
+     */
+    public int cardinality() {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            n += containers[i].cardinality();
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the smallest value of the set not less than from, or -1 if
+     *         there is none
+     */
+    public int next(int from) {
+        if (from < 0)
+            from = 0;
+        int i = find((char) (from >>> 16));
+        if (i >= 0) {
+            int low = containers[i].next(from & 0xFFFF);
+            if (low >= 0)
+                return (keys[i] << 16) | low;
+            i++;
+        } else {
+            i = -i - 1;
+        }
+        if (i >= size)
+            return -1;
+        return (keys[i] << 16) | containers[i].next(0);
+    }
+
+    /**
+     * @return the values of the set, in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int next = RoaringBitmap.this.next(0);
+
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            public int nextInt() {
+                if (next < 0)
+                    throw new NoSuchElementException();
+                int x = next;
+                next = x == Integer.MAX_VALUE ? -1 : RoaringBitmap.this.next(x + 1);
+                return x;
+            }
+        };
+    }
+
+    /**
+     * @return a copy of this set
+     */
+    public RoaringBitmap copy() {
+        RoaringBitmap b = new RoaringBitmap();
+        b.keys = Arrays.copyOf(keys, Math.max(4, size));
+        b.containers = new Container[b.keys.length];
+        for (int i = 0; i < size; i++)
+            b.containers[i] = containers[i].copy();
+        b.size = size;
+        return b;
+    }
+
+    /**
+     * @return the values in both sets
+     */
+    public static RoaringBitmap and(RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Container c = a.containers[i].and(b.containers[j]);
+                if (c.cardinality() > 0)
+                    result.insertAt(result.size, a.keys[i], c);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the values in either set
+     */
+    public static RoaringBitmap or(RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < a.size || j < b.size) {
+            if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.insertAt(result.size, a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i >= a.size || a.keys[i] > b.keys[j]) {
+                result.insertAt(result.size, b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.insertAt(result.size, a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        PrimitiveIterator.OfInt it = iterator();
+        while (it.hasNext()) {
+            sb.append(it.nextInt());
+            if (it.hasNext())
+                sb.append(", ");
+        }
+        return sb.append("}").toString();
+    }
+
+    private static void checkValue(int x) {
+        if (x < 0)
+            throw new IllegalArgumentException("negative value " + x);
+    }
+
+    // the index of the chunk of a key, or -(insertion point) - 1
+    private int find(char key) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key)
+                lo = mid + 1;
+            else if (keys[mid] > key)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -lo - 1;
+    }
+
+    private void insertAt(int i, char key, Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = c;
+        size++;
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        containers[--size] = null;
+    }
+
+    /**
+     * The low 16 bits of the values of one chunk. Adding and removing change
+     * a container in place and return the container holding the result,
+     * which differs when it changes representation.
+     */
+    private static abstract class Container {
+        abstract Container add(char x);
+
+        abstract Container remove(char x);
+
+        abstract boolean contains(char x);
+
+        abstract int cardinality();
+
+        /** @return the smallest value not less than from, or -1 */
+        abstract int next(int from);
+
+        abstract Container copy();
+
+        Container and(Container other) {
+            if (this instanceof BitmapContainer && other instanceof BitmapContainer)
+                return ((BitmapContainer) this).and((BitmapContainer) other);
+            ArrayContainer array = (ArrayContainer) (this instanceof ArrayContainer ? this : other);
+            Container rest = array == this ? other : this;
+            ArrayContainer result = new ArrayContainer();
+            for (int k = 0; k < array.cardinality; k++) {
+                if (rest.contains(array.values[k]))
+                    result.append(array.values[k]);
+            }
+            return result;
+        }
+
+        Container or(Container other) {
+            if (this instanceof BitmapContainer && other instanceof BitmapContainer)
+                return ((BitmapContainer) this).or((BitmapContainer) other);
+            if (this instanceof ArrayContainer && other instanceof ArrayContainer)
+                return ((ArrayContainer) this).or((ArrayContainer) other);
+            ArrayContainer array = (ArrayContainer) (this instanceof ArrayContainer ? this : other);
+            BitmapContainer result = (BitmapContainer) (array == this ? other : this).copy();
+            for (int k = 0; k < array.cardinality; k++)
+                result.add(array.values[k]);
+            return result;
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+        char[] values = new char[4];
+        int cardinality = 0;
+
+        // add a value greater than all others
+        void append(char x) {
+            if (cardinality == values.length)
+                values = Arrays.copyOf(values, cardinality * 2);
+            values[cardinality++] = x;
+        }
+
+        private int find(char x) {
+            return Arrays.binarySearch(values, 0, cardinality, x);
+        }
+
+        Container add(char x) {
+            int i = find(x);
+            if (i >= 0)
+                return this;
+            if (cardinality == ARRAY_MAX)
+                return toBitmap().add(x);
+            i = -i - 1;
+            if (cardinality == values.length)
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = x;
+            cardinality++;
+            return this;
+        }
+
+        Container remove(char x) {
+            int i = find(x);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        boolean contains(char x) {
+            return find(x) >= 0;
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        int next(int from) {
+            int i = find((char) from);
+            if (i < 0)
+                i = -i - 1;
+            return i < cardinality ? values[i] : -1;
+        }
+
+        Container copy() {
+            ArrayContainer c = new ArrayContainer();
+            c.values = Arrays.copyOf(values, Math.max(4, cardinality));
+            c.cardinality = cardinality;
+            return c;
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer b = new BitmapContainer();
+            for (int k = 0; k < cardinality; k++)
+                b.add(values[k]);
+            return b;
+        }
+
+        Container or(ArrayContainer other) {
+            ArrayContainer result = new ArrayContainer();
+            result.values = new char[Math.max(4, cardinality + other.cardinality)];
+            int i = 0, j = 0;
+            while (i < cardinality || j < other.cardinality) {
+                if (j >= other.cardinality || (i < cardinality && values[i] < other.values[j]))
+                    result.values[result.cardinality++] = values[i++];
+                else if (i >= cardinality || values[i] > other.values[j])
+                    result.values[result.cardinality++] = other.values[j++];
+                else {
+                    result.values[result.cardinality++] = values[i++];
+                    j++;
+                }
+            }
+            return result.cardinality > ARRAY_MAX ? result.toBitmap() : result;
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        final long[] words = new long[1 << 10];
+        int cardinality = 0;
+
+        Container add(char x) {
+            long bit = 1L << x;
+            if ((words[x >>> 6] & bit) == 0) {
+                words[x >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        Container remove(char x) {
+            long bit = 1L << x;
+            if ((words[x >>> 6] & bit) != 0) {
+                words[x >>> 6] &= ~bit;
+                cardinality--;
+            }
+            return cardinality <= ARRAY_MAX ? toArray() : this;
+        }
+
+        boolean contains(char x) {
+            return (words[x >>> 6] & (1L << x)) != 0;
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        int next(int from) {
+            int w = from >>> 6;
+            if (w >= words.length)
+                return -1;
+            long word = words[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == words.length)
+                    return -1;
+                word = words[w];
+            }
+            return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+
+        Container copy() {
+            BitmapContainer c = new BitmapContainer();
+            System.arraycopy(words, 0, c.words, 0, words.length);
+            c.cardinality = cardinality;
+            return c;
+        }
+
+        ArrayContainer toArray() {
+            ArrayContainer a = new ArrayContainer();
+            a.values = new char[Math.max(4, cardinality)];
+            for (int x = next(0); x >= 0; x = x + 1 < (1 << 16) ? next(x + 1) : -1)
+                a.values[a.cardinality++] = (char) x;
+            return a;
+        }
+
+        Container and(BitmapContainer other) {
+            BitmapContainer result = new BitmapContainer();
+            for (int w = 0; w < words.length; w++) {
+                result.words[w] = words[w] & other.words[w];
+                result.cardinality += Long.bitCount(result.words[w]);
+            }
+            return result.cardinality <= ARRAY_MAX ? result.toArray() : result;
+        }
+
+        Container or(BitmapContainer other) {
+            BitmapContainer result = new BitmapContainer();
+            for (int w = 0; w < words.length; w++) {
+                result.words[w] = words[w] | other.words[w];
+                result.cardinality += Long.bitCount(result.words[w]);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * SecondaryIndex is a B+ tree or hash index over one field of a
+ * {@link HeapFile} table. Each entry of the index is a tuple (key, pageNo,
+ * tupleNo) pointing at the heap tuple with that key, so the index is keyed on
+ * field 0 of its entries.
+ * <p>
+ * A B+ tree index may also be keyed on several fields, in lexicographic
+ * order: its key is then the {@link CompositeKey} of their values, and it
+ * answers predicates over a prefix of them (see {@link #entryIterator}).
+ * Its entries may also carry included fields of the table after tupleNo, so
+ * that a query reading only the key and included fields is answered by an
+ * {@link IndexOnlyScan} without reading the table.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex} and kept in sync by
+ * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}, under the
+ * same transaction as the change to the table itself.
+ */
+public class SecondaryIndex {
+
+    /** Position of the key in an index entry */
+    static final int KEY = 0;
+    /** Position of the heap page number in an index entry */
+    static final int PAGE_NO = 1;
+    /** Position of the heap slot number in an index entry */
+    static final int TUPLE_NO = 2;
+    /** Position of the first included field in an index entry */
+    static final int INCLUDED = 3;
+
+    /**
+     * Number of entries inserted per transaction when building an index on
+     * an int field; wider entries are inserted in proportionally smaller
+     * batches, so that a batch dirties about as many pages
+     */
+    static final int BUILD_BATCH_SIZE = 500;
+
+    private final int tableId;
+    private final int field;
+    private final int[] keyFields;
+    private final int[] includedFields;
+    private final IndexFile file;
+
+    /**
+     * Constructor.
+     *
+     * @param tableId
+     *            the id of the indexed HeapFile table
+     * @param field
+     *            the index of the indexed field in the table
+     * @param file
+     *            the index file holding the entries; its TupleDesc must be
+     *            {@link #getEntryDesc} of the field's type, keyed on field 0
+     */
+    public SecondaryIndex(int tableId, int field, IndexFile file) {
+        this(tableId, new int[] { field }, new int[0], file);
+    }
+
+    /**
+     * Constructor of an index keyed on several fields, carrying included
+     * fields.
+     *
+     * @param tableId
+     *            the id of the indexed HeapFile table
+     * @param keyFields
+     *            the indexes of the fields the index is keyed on, in order
+     * @param includedFields
+     *            the indexes of the other fields the entries carry
+     * @param file
+     *            the index file holding the entries; its TupleDesc must be
+     *            {@link #getEntryDesc(TupleDesc, int[], int[])} of the fields,
+     *            keyed on field 0
+     */
+    public SecondaryIndex(int tableId, int[] keyFields, int[] includedFields, IndexFile file) {
+        this.tableId = tableId;
+        this.field = keyFields[0];
+        this.keyFields = keyFields.clone();
+        this.includedFields = includedFields.clone();
+        this.file = file;
+    }
+
+    /**
+     * Creates an index over the specified field of a table, stored in the
+     * specified file, registers it in the catalog and fills it with an entry
+     * for every tuple currently in the table.
+     * <p>
+     * The entries are sorted by key and inserted in batches of
+     * {@link #BUILD_BATCH_SIZE}, each in its own committed transaction, so
+     * that building an index over a large table does not need a BufferPool
+     * big enough to hold the whole index. The table must not be modified
+     * while its index is being built.
+     *
+     * @param tableId
+     *            the id of the table to index
+     * @param field
+     *            the index of the field to index
+     * @param f
+     *            the file backing the index; existing contents are discarded
+     * @return the new index
+     */
+    public static SecondaryIndex create(int tableId, int field, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        Type keyType = Database.getCatalog().getTupleDesc(tableId).getFieldType(field);
+        return build(new SecondaryIndex(tableId, field, new BTreeFile(clear(f), KEY, getEntryDesc(keyType))));
+    }
+
+    /**
+     * Creates a hash index over the specified field of a table, like
+     * {@link #create}. A hash index answers only equality predicates, reading
+     * a single bucket of the index for each.
+     *
+     * @param tableId
+     *            the id of the table to index
+     * @param field
+     *            the index of the field to index
+     * @param f
+     *            the file backing the index; existing contents are discarded
+     * @return the new index
+     */
+    public static SecondaryIndex createHash(int tableId, int field, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        Type keyType = Database.getCatalog().getTupleDesc(tableId).getFieldType(field);
+        return build(new SecondaryIndex(tableId, field, new HashFile(clear(f), KEY, getEntryDesc(keyType))));
+    }
+
+    /**
+     * Creates a B+ tree index keyed on several fields of a table, in
+     * lexicographic order, whose entries carry included fields, like
+     * {@link #create}.
+     *
+     * @param tableId
+     *            the id of the table to index
+     * @param keyFields
+     *            the indexes of the fields to index, in order
+     * @param includedFields
+     *            the indexes of the other fields the entries carry
+     * @param f
+     *            the file backing the index; existing contents are discarded
+     * @return the new index
+     * @throws DbException if no key over the fields fits in a string field,
+     *         or a tuple of the table has a key that does not
+     */
+    public static SecondaryIndex create(int tableId, int[] keyFields, int[] includedFields, File f)
+            throws DbException, IOException, TransactionAbortedException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        if (keyFields.length > 1) {
+            Type[] types = new Type[keyFields.length];
+            for (int k = 0; k < keyFields.length; k++)
+                types[k] = td.getFieldType(keyFields[k]);
+            CompositeKey.checkTypes(types);
+        }
+        return build(new SecondaryIndex(tableId, keyFields, includedFields,
+                new BTreeFile(clear(f), KEY, getEntryDesc(td, keyFields, includedFields))));
+    }
+
+    private static File clear(File f) throws IOException {
+        if (f.exists() && !f.delete())
+            throw new IOException("cannot overwrite index file " + f);
+        return f;
+    }
+
+    // register an empty index and insert the entries of the table into it
+    private static SecondaryIndex build(SecondaryIndex index)
+            throws DbException, IOException, TransactionAbortedException {
+        int tableId = index.getTableId();
+
+        // read and sort the entries of all the tuples in the table
+        ArrayList<Tuple> entries = new ArrayList<Tuple>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            entries.add(index.entryFor(it.next()));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(entries, new Comparator<Tuple>() {
+            public int compare(Tuple t1, Tuple t2) {
+                Field k1 = t1.getField(KEY);
+                Field k2 = t2.getField(KEY);
+                if (k1.compare(Predicate.Op.LESS_THAN, k2))
+                    return -1;
+                return k1.compare(Predicate.Op.GREATER_THAN, k2) ? 1 : 0;
+            }
+        });
+
+        Database.getCatalog().addIndex(index);
+        int batch = Math.max(1, BUILD_BATCH_SIZE * getEntryDesc(Type.INT_TYPE).getSize()
+                / index.getFile().getTupleDesc().getSize());
+        for (int start = 0; start < entries.size(); start += batch) {
+            tid = new TransactionId();
+            int end = Math.min(entries.size(), start + batch);
+            for (Tuple entry : entries.subList(start, end)) {
+                Database.getBufferPool().insertTuple(tid, index.getFile().getId(), entry);
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return index;
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index on a field of the
+     *         specified type
+     */
+    public static TupleDesc getEntryDesc(Type keyType) {
+        return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "pageNo", "tupleNo" });
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index on the specified
+     *         fields of a table, carrying the specified included fields
+     */
+    public static TupleDesc getEntryDesc(TupleDesc td, int[] keyFields, int[] includedFields) {
+        Type keyType = keyFields.length > 1 ? Type.STRING_TYPE : td.getFieldType(keyFields[0]);
+        Type[] types = new Type[INCLUDED + includedFields.length];
+        String[] names = new String[types.length];
+        TupleDesc entry = getEntryDesc(keyType);
+        for (int i = 0; i < INCLUDED; i++) {
+            types[i] = entry.getFieldType(i);
+            names[i] = entry.getFieldName(i);
+        }
+        for (int i = 0; i < includedFields.length; i++) {
+            types[INCLUDED + i] = td.getFieldType(includedFields[i]);
+            names[INCLUDED + i] = td.getFieldName(includedFields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /** @return the id of the indexed table */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the index of the indexed field, the first if there are several */
+    public int getField() {
+        return field;
+    }
+
+    /** @return the indexes of the fields the index is keyed on, in order */
+    public int[] getKeyFields() {
+        return keyFields.clone();
+    }
+
+    /** @return the indexes of the other fields the entries carry */
+    public int[] getIncludedFields() {
+        return includedFields.clone();
+    }
+
+    /** @return whether the index is keyed on several fields */
+    public boolean isComposite() {
+        return keyFields.length > 1;
+    }
+
+    /**
+     * @return whether the entries of the index hold every specified field of
+     *         the table, as a key or included field
+     */
+    public boolean covers(int[] fields) {
+        for (int f : fields) {
+            if (!contains(keyFields, f) && !contains(includedFields, f))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] fields, int f) {
+        for (int g : fields) {
+            if (g == f)
+                return true;
+        }
+        return false;
+    }
+
+    /** @return the index file holding the entries of this index */
+    public IndexFile getFile() {
+        return file;
+    }
+
+    /**
+     * Builds the index entry of a tuple of the indexed table.
+     *
+     * @param t
+     *            a tuple stored in the table, so that its RecordId is set
+     */
+    Tuple entryFor(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        Tuple entry = new Tuple(file.getTupleDesc());
+        entry.setField(KEY, keyOf(t));
+        entry.setField(PAGE_NO, new IntField(rid.getPageId().pageNumber()));
+        entry.setField(TUPLE_NO, new IntField(rid.tupleno()));
+        for (int i = 0; i < includedFields.length; i++)
+            entry.setField(INCLUDED + i, t.getField(includedFields[i]));
+        return entry;
+    }
+
+    // the key of the entry of a tuple of the indexed table
+    private Field keyOf(Tuple t) throws DbException {
+        if (!isComposite())
+            return t.getField(field);
+        Field[] values = new Field[keyFields.length];
+        for (int k = 0; k < keyFields.length; k++)
+            values[k] = t.getField(keyFields[k]);
+        return CompositeKey.encode(values);
+    }
+
+    /**
+     * Rebuilds the fields of a tuple of the indexed table that an entry
+     * holds, as a tuple of the table's TupleDesc whose other fields are
+     * null.
+     */
+    Tuple tableTuple(Tuple entry) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        Tuple t = new Tuple(td);
+        if (isComposite()) {
+            Type[] types = new Type[keyFields.length];
+            for (int k = 0; k < keyFields.length; k++)
+                types[k] = td.getFieldType(keyFields[k]);
+            Field[] values = CompositeKey.decode((StringField) entry.getField(KEY), types);
+            for (int k = 0; k < keyFields.length; k++)
+                t.setField(keyFields[k], values[k]);
+        } else {
+            t.setField(field, entry.getField(KEY));
+        }
+        for (int i = 0; i < includedFields.length; i++)
+            t.setField(includedFields[i], entry.getField(INCLUDED + i));
+        t.setRecordId(recordIdOf(entry));
+        return t;
+    }
+
+    /**
+     * Picks the predicates over the table that bound the keys of the
+     * entries matching them: equalities over the first key fields, then
+     * an equality or range predicate over the next key field, if any.
+     *
+     * @return the picked predicates, in key field order
+     */
+    Predicate[] rangePredicates(Predicate[] preds) {
+        ArrayList<Predicate> range = new ArrayList<Predicate>();
+        for (int k = 0; k < keyFields.length; k++) {
+            Predicate next = null;
+            for (Predicate p : preds) {
+                if (p.getField() != keyFields[k])
+                    continue;
+                if (p.getOp() == Predicate.Op.EQUALS) {
+                    next = p;
+                    break;
+                }
+                if (next == null && p.getOp() != Predicate.Op.NOT_EQUALS && p.getOp() != Predicate.Op.LIKE
+                        && file.supports(p.getOp()))
+                    next = p;
+            }
+            if (next == null)
+                break;
+            range.add(next);
+            if (next.getOp() != Predicate.Op.EQUALS)
+                break;
+        }
+        return range.toArray(new Predicate[0]);
+    }
+
+    /**
+     * Get the entries of this index whose keys are in the range bounded by
+     * the {@link #rangePredicates} of some predicates over the table, or all
+     * of them if none bound the keys, in key order. The entries may still
+     * fail the other predicates.
+     *
+     * @param tid
+     *            the transaction id
+     * @param preds
+     *            predicates over fields of the indexed table
+     */
+    DbFileIterator entryIterator(TransactionId tid, Predicate[] preds) throws DbException {
+        Predicate[] range = rangePredicates(preds);
+        if (range.length == 0)
+            return file.iterator(tid);
+        Predicate last = range[range.length - 1];
+        if (!isComposite())
+            return file.indexIterator(tid, new IndexPredicate(last.getOp(), last.getOperand()));
+        Field[] prefix = new Field[range.length - 1];
+        for (int k = 0; k < prefix.length; k++)
+            prefix[k] = range[k].getOperand();
+        StringField[] bounds = CompositeKey.range(prefix, last.getOp(), last.getOperand());
+        return new KeyRangeIterator(
+                file.indexIterator(tid, new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, bounds[0])), bounds[1]);
+    }
+
+    /**
+     * @return the id of the heap tuple an entry of this index points to
+     */
+    RecordId recordIdOf(Tuple entry) {
+        int pageNo = ((IntField) entry.getField(PAGE_NO)).getValue();
+        int tupleNo = ((IntField) entry.getField(TUPLE_NO)).getValue();
+        return new RecordId(new HeapPageId(tableId, pageNo), tupleNo);
+    }
+
+    /**
+     * Get the tuples of the indexed table whose indexed field matches the
+     * specified predicate, in the order of that field. Each matching entry is
+     * followed by a fetch of its heap page with READ_ONLY permission.
+     *
+     * @param tid
+     *            the transaction id
+     * @param ipred
+     *            the predicate on the indexed field
+     * @return an iterator over the matching tuples of the table
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new SecondaryIndexIterator(this, tid, ipred);
+    }
+
+    /**
+     * Check that a tuple about to be inserted into the indexed table has an
+     * entry in this index, before the table is changed.
+     *
+     * @throws DbException if the key of the tuple is too long
+     */
+    void checkInsert(Tuple t) throws DbException {
+        keyOf(t);
+    }
+
+    /**
+     * Adds the entry of a tuple just inserted into the indexed table.
+     *
+     * @return the pages of the index dirtied by the insert
+     */
+    ArrayList<Page> insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return file.insertTuple(tid, entryFor(t));
+    }
+
+    /**
+     * Removes the entry of a tuple just deleted from the indexed table.
+     *
+     * @return the pages of the index dirtied by the delete
+     * @throws DbException
+     *             if the index has no entry for the tuple
+     */
+    ArrayList<Page> delete(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple target = entryFor(t);
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, target.getField(KEY)));
+        Tuple match = null;
+        it.open();
+        while (match == null && it.hasNext()) {
+            Tuple entry = it.next();
+            if (entry.getField(PAGE_NO).equals(target.getField(PAGE_NO))
+                    && entry.getField(TUPLE_NO).equals(target.getField(TUPLE_NO)))
+                match = entry;
+        }
+        it.close();
+        if (match == null)
+            throw new DbException("no entry for " + t.getRecordId() + " in index on field " + field);
+        return file.deleteTuple(tid, match);
+    }
+}
+
+/**
+ * Helper class that looks up matching entries in a SecondaryIndex and
+ * fetches the heap tuples they point to
+ */
+class SecondaryIndexIterator extends AbstractDbFileIterator {
+
+    private final SecondaryIndex index;
+    private final TransactionId tid;
+    private final DbFileIterator entries;
+
+    public SecondaryIndexIterator(SecondaryIndex index, TransactionId tid, IndexPredicate ipred) {
+        this.index = index;
+        this.tid = tid;
+        this.entries = index.getFile().indexIterator(tid, ipred);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        entries.open();
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        while (entries.hasNext()) {
+            RecordId rid = index.recordIdOf(entries.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+            Tuple t = page.getTuple(rid.tupleno());
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        entries.close();
+    }
+}
+
+/**
+ * Helper class that returns the entries of an index file iterator, which
+ * returns them in key order, until the first whose key is not less than an
+ * upper bound.
+ */
+class KeyRangeIterator extends AbstractDbFileIterator {
+
+    private final DbFileIterator entries;
+    private final Field upper;
+
+    public KeyRangeIterator(DbFileIterator entries, Field upper) {
+        this.entries = entries;
+        this.upper = upper;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        entries.open();
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        if (!entries.hasNext())
+            return null;
+        Tuple entry = entries.next();
+        return entry.getField(SecondaryIndex.KEY).compare(Predicate.Op.LESS_THAN, upper) ? entry : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        entries.close();
+    }
+}
@@ -15,6 +15,10 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator it;
+    // the fields of the table returned by this scan, or null for all of them
+    private final int[] fields;
+    // predicates every returned tuple satisfies, or null
+    private final Predicate[] predicates;
 
 
     /**
@@ -35,10 +39,57 @@ public class SeqScan implements DbIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan that returns only the specified fields of
+     * each tuple of the table, in the specified order. The projection is
+     * pushed down into the file, so that a {@link PaxFile}, for instance, only
+     * decodes the columns of those fields.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, see
+     *            {@link #SeqScan(TransactionId, int, String)}
+     * @param fields
+     *            the indexes of the fields of the table to return, or null
+     *            for all of them
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
+        this(tid, tableid, tableAlias, fields, null);
+    }
 
+    /**
+     * Creates a sequential scan that returns the specified fields of the
+     * tuples of the table that satisfy all of the specified predicates. Both
+     * are pushed down into the file, which may skip pages or evaluate the
+     * predicates before building tuples; a {@link HeapFile}, for instance,
+     * skips pages through its zone map and compares fields on the page data.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, see
+     *            {@link #SeqScan(TransactionId, int, String)}
+     * @param fields
+     *            the indexes of the fields of the table to return, or null
+     *            for all of them
+     * @param predicates
+     *            predicates over fields of the table, or null
+     * @see DbFile#iterator(TransactionId, Predicate[], int[])
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields, Predicate[] predicates) {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.fields = fields == null ? null : fields.clone();
+        this.predicates = predicates == null ? null : predicates.clone();
     }
 
     /**
@@ -59,6 +110,26 @@ public class SeqScan implements DbIterator {
         return tableAlias;
     }
 
+    /** @return the id of the table this operator scans */
+    int getTableId() {
+        return tableId;
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /** @return the fields of the table this scan returns, or null for all */
+    int[] getFields() {
+        return fields;
+    }
+
+    /** @return the predicates the tuples this scan returns satisfy, or null */
+    Predicate[] getPredicates() {
+        return predicates;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -83,7 +154,11 @@ public class SeqScan implements DbIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (fields == null && predicates == null)
+            it = file.iterator(tid);
+        else
+            it = file.iterator(tid, predicates, fields);
         it.open();
     }
 
@@ -99,7 +174,16 @@ public class SeqScan implements DbIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return Database.getCatalog().getTupleDesc(tableId);
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        int n = fields == null ? td.numFields() : fields.length;
+        String[] names = new String[n];
+        Type[] types = new Type[n];
+        for (int i = 0; i < n; i++) {
+            int field = fields == null ? i : fields[i];
+            names[i] = tableAlias + "." + td.getFieldName(field);
+            types[i] = td.getFieldType(field);
+        }
+        return new TupleDesc(types, names);
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -0,0 +1,37 @@
+package simpledb;
+
+import java.io.File;
+
+/**
+ * SideFiles handles the side files that heap files persisting their maps keep
+ * next to their data file: the {@link FreeSpaceMap} and the {@link ZoneMap}.
+ * A side file is created by the first page write of its data file, and only
+ * holds data derived from it. Files opened without persisted maps, such as
+ * temporary tables, keep their maps in memory and never create side files.
+ * Whoever drops or replaces a data file deletes its side files with
+ * {@link #delete}; a side file that no longer matches its data file is also
+ * discarded when it is read.
+ */
+public class SideFiles {
+
+    private SideFiles() {
+    }
+
+    /**
+     * @return the side files of a data file, whether they exist or not
+     */
+    static File[] of(File dataFile) {
+        return new File[] { FreeSpaceMap.fileFor(dataFile), ZoneMap.fileFor(dataFile) };
+    }
+
+    /**
+     * Delete the side files of a data file that is dropped, or replaced by a
+     * new file at the same path.
+     *
+     * @param dataFile the data file
+     */
+    public static void delete(File dataFile) {
+        for (File f : of(dataFile))
+            f.delete();
+    }
+}
@@ -5,7 +5,7 @@ public class SimpleDb {
     public static void main (String args[])
             throws DbException, TransactionAbortedException, IOException {
         // convert a file
-        if(args[0].equals("convert")) {
+        if(args[0].equals("convert") || args[0].equals("convertpax")) {
         try {
             if (args.length<3 || args.length>5){
                 System.err.println("Unexpected number of arguments to convert ");
@@ -34,6 +34,8 @@ public class SimpleDb {
                             ts[index++]=Type.INT_TYPE;
                         else if (s.toLowerCase().equals("string"))
                                 ts[index++]=Type.STRING_TYPE;
+                        else if (s.toLowerCase().equals("varchar"))
+                                ts[index++]=Type.VARCHAR_TYPE;
                             else {
                                 System.err.println("Unknown type " + s);
                                 return;
@@ -43,7 +45,11 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+            if (args[0].equals("convertpax"))
+                HeapFileEncoder.convertToPax(sourceTxtFile,targetDatFile,
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+            else
+                HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
                         BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
 
         } catch (IOException e) {
@@ -90,6 +96,27 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("benchmark")) {
+            String[] newargs = new String[args.length-1];
+            for (int i = 1; i < args.length; ++i) {
+                newargs[i-1] = args[i];
+            }
+            BufferPoolBenchmark.main(newargs);
+        }
+        else if (args[0].equals("recoverybenchmark")) {
+            String[] newargs = new String[args.length-1];
+            for (int i = 1; i < args.length; ++i) {
+                newargs[i-1] = args[i];
+            }
+            RecoveryBenchmark.main(newargs);
+        }
+        else if (args[0].equals("btreebenchmark")) {
+            String[] newargs = new String[args.length-1];
+            for (int i = 1; i < args.length; ++i) {
+                newargs[i-1] = args[i];
+            }
+            BTreePageBenchmark.main(newargs);
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
@@ -0,0 +1,260 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedHeapFile is an implementation of a DbFile that stores a collection
+ * of tuples in no particular order, like HeapFile, but on SlottedPages, whose
+ * records take only the bytes their fields need. Tables with VARCHAR fields
+ * holding short values fit many more tuples per page this way.
+ * <p>
+ * Pages are identified by HeapPageIds, and the RecordId of a tuple does not
+ * change while it stays in the file.
+ *
+ * @see simpledb.SlottedPage#SlottedPage
+ */
+public class SlottedHeapFile implements DbFile {
+
+    /** Bytes of free space per unit recorded in the free space map */
+    static final int FREE_SPACE_UNIT = 32;
+
+    private final File file;
+    private final TupleDesc tupleDesc;
+    private final FreeSpaceMap freeSpace;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the TupleDesc of the tuples stored in the file
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a slotted heap file backed by the specified file, whose free
+     * space map is also kept in a side file next to it if persistMaps is set.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this file.
+     * @param td
+     *            the TupleDesc of the tuples stored in the file
+     * @param persistMaps
+     *            whether to keep the map in a side file
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+     */
+    public SlottedHeapFile(File f, TupleDesc td, boolean persistMaps) {
+        file = f;
+        tupleDesc = td;
+        freeSpace = new FreeSpaceMap(persistMaps ? FreeSpaceMap.fileFor(f) : null, f);
+    }
+
+    /**
+     * Returns the File backing this SlottedHeapFile on disk.
+     *
+     * @return the File backing this SlottedHeapFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this file, the hash of its absolute
+     * file name.
+     *
+     * @return an ID uniquely identifying this file.
+     */
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     *
+     * @return TupleDesc of this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int length = BufferPool.getPageSize();
+        int offset = pid.pageNumber() * length;
+        if (offset + length > file.length()) throw new IllegalArgumentException();
+
+        byte[] data = new byte[length];
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                randomAccessFile.seek(offset);
+                randomAccessFile.readFully(data);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return readPage(pid, data);
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid, byte[] data) {
+        SlottedPage page;
+        try {
+            page = new SlottedPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        freeSpace.update(pid.pageNumber(), units(page.getFreeSpace()));
+        return page;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        PageId pid = page.getId();
+        int length = BufferPool.getPageSize();
+        freeSpace.beginWrite();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(pid.pageNumber() * length);
+            randomAccessFile.write(page.getPageData());
+        } finally {
+            randomAccessFile.close();
+        }
+        freeSpace.write(pid.pageNumber(), units(((SlottedPage) page).getFreeSpace()));
+    }
+
+    /**
+     * Returns the number of pages in this SlottedHeapFile.
+     */
+    public int numPages() {
+        return (int) (file.length() / BufferPool.getPageSize());
+    }
+
+    // whole units of free space in the specified number of bytes
+    private static int units(int freeBytes) {
+        return Math.max(0, freeBytes) / FREE_SPACE_UNIT;
+    }
+
+    /**
+     * Inserts the tuple into a page with room for its record, found through
+     * the free space map of this file, or into a new page appended to the
+     * file if no page has room.
+     *
+     * @throws DbException if the tuple would not fit even on an empty page
+     * @see FreeSpaceMap
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int needed = SlottedPage.recordSize(tupleDesc, t) + SlottedPage.SLOT_SIZE;
+        if (needed > BufferPool.getPageSize() - SlottedPage.HEADER_SIZE)
+            throw new DbException("tuple of " + needed + " bytes does not fit on a page");
+
+        HeapPageId pid;
+        SlottedPage page;
+        int pageNo;
+        int neededUnits = Math.min((needed + FREE_SPACE_UNIT - 1) / FREE_SPACE_UNIT, FreeSpaceMap.MAX_COUNT);
+        while ((pageNo = freeSpace.findPage(numPages(), neededUnits)) >= 0) {
+            pid = new HeapPageId(getId(), pageNo);
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
+            page = (SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.hasRoomFor(t)) {
+                page = (SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                page.insertTuple(t);
+                freeSpace.update(pageNo, units(page.getFreeSpace()));
+                return new ArrayList<Page>(Collections.singletonList(page));
+            }
+            // the map was out of date, or the page has room for a smaller record
+            freeSpace.update(pageNo, Math.min(units(page.getFreeSpace()), neededUnits - 1));
+            if (!held) {
+                Database.getBufferPool().releasePage(tid, pid);
+            }
+        }
+        pid = new HeapPageId(getId(), numPages());
+        page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        writePage(page);
+        page = (SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        freeSpace.update(pid.pageNumber(), units(page.getFreeSpace()));
+
+        return new ArrayList<Page>(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        PageId pid = t.getRecordId().getPageId();
+        if (pid.getTableId() != getId())
+            throw new DbException("tuple is not in this file");
+        SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        freeSpace.update(pid.pageNumber(), units(page.getFreeSpace()));
+        return new ArrayList<Page>(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new SlottedHeapFileIterator(this, tid);
+    }
+
+}
+
+/**
+ * Helper class that implements the DbFileIterator for tuples on a
+ * SlottedHeapFile, page by page
+ */
+class SlottedHeapFileIterator extends AbstractDbFileIterator {
+
+    private final SlottedHeapFile f;
+    private final TransactionId tid;
+    private Iterator<Tuple> it = null;
+    private int nextPage = 0;
+    private boolean open = false;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param f   - the SlottedHeapFile containing the tuples
+     * @param tid - the transaction id
+     */
+    public SlottedHeapFileIterator(SlottedHeapFile f, TransactionId tid) {
+        this.f = f;
+        this.tid = tid;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        open = true;
+        nextPage = 0;
+        it = null;
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        if (!open)
+            return null;
+        while (it == null || !it.hasNext()) {
+            if (nextPage >= f.numPages())
+                return null;
+            PageId pid = new HeapPageId(f.getId(), nextPage++);
+            it = ((SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+        }
+        return it.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        open = false;
+        it = null;
+    }
+}
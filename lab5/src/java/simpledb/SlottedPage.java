@@ -0,0 +1,295 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Each instance of SlottedPage stores data for one page of a SlottedHeapFile
+ * and implements the Page interface that is used by BufferPool. Unlike a
+ * HeapPage, whose slots all take the fixed size of the TupleDesc, a
+ * SlottedPage stores variable-length records, so that a VARCHAR field only
+ * takes the bytes of its value.
+ *
+ * @see SlottedHeapFile
+ * @see BufferPool
+ */
+public class SlottedPage implements Page {
+
+    /** Bytes taken by the slot count at the start of the page */
+    static final int HEADER_SIZE = 4;
+
+    /** Bytes taken by one entry of the slot directory */
+    static final int SLOT_SIZE = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    // tuples by slot number, null for an empty slot; never ends with null
+    final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    // total size of the records on this page
+    private int recordBytes = 0;
+    TransactionId dirtyTid = null;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk.
+     * The format of a SlottedPage is a 4 byte count of slots, followed by the
+     * slot directory, and the records themselves at the end of the page. Each
+     * slot of the directory is an unsigned 2 byte offset of its record in the
+     * page, 0 for an empty slot, and an unsigned 2 byte record length; this
+     * limits pages to 64KB. A record is the compact encoding of each of its
+     * fields in turn, see {@link Type#serializeCompact}.
+     * <p>
+     * Records are kept parsed in memory and laid out again, back to back from
+     * the end of the page, whenever the page is written; this compacts the
+     * holes left by deleted or moved records, so the free space of a page is
+     * always the single gap between its directory and its records.
+     *
+     * @see Database#getCatalog
+     * @see Catalog#getTupleDesc
+     * @see BufferPool#getPageSize()
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        ByteBuffer buf = ByteBuffer.wrap(data);
+
+        int numSlots = buf.getInt(0);
+        if (numSlots < 0 || HEADER_SIZE + numSlots * SLOT_SIZE > data.length)
+            throw new IOException("bad slot count " + numSlots + " on page " + id.pageNumber());
+        for (int i = 0; i < numSlots; i++) {
+            int offset = buf.getShort(HEADER_SIZE + i * SLOT_SIZE) & 0xFFFF;
+            int length = buf.getShort(HEADER_SIZE + i * SLOT_SIZE + 2) & 0xFFFF;
+            if (offset == 0) {
+                tuples.add(null);
+                continue;
+            }
+            if (offset + length > data.length)
+                throw new IOException("record " + i + " runs past the end of page " + id.pageNumber());
+            tuples.add(readTuple(new DataInputStream(new ByteArrayInputStream(data, offset, length)), i));
+            recordBytes += length;
+        }
+        trimSlots();
+
+        setBeforeImage();
+    }
+
+    private Tuple readTuple(DataInputStream dis, int slotId) throws IOException {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parseCompact(dis));
+        } catch (ParseException e) {
+            throw new IOException("parsing error in record " + slotId + " of page " + pid.pageNumber());
+        }
+        return t;
+    }
+
+    /**
+     * @return the number of bytes a tuple with the specified TupleDesc takes as
+     *         a record of a SlottedPage, not counting its slot
+     */
+    static int recordSize(TupleDesc td, Tuple t) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            size += td.getFieldType(i).getCompactLen(t.getField(i));
+        return size;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new SlottedPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * its records packed at the end of the page in slot order.
+     * <p>
+     * Passing the result to the SlottedPage constructor produces an identical
+     * SlottedPage.
+     *
+     * @see #SlottedPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        buf.putInt(0, tuples.size());
+        int end = data.length;
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple t = tuples.get(i);
+            if (t == null)
+                continue;
+            baos.reset();
+            try {
+                for (int j = 0; j < td.numFields(); j++)
+                    td.getFieldType(j).serializeCompact(t.getField(j), dos);
+                dos.flush();
+            } catch (IOException e) {
+                // this really shouldn't happen
+                e.printStackTrace();
+            }
+            int length = baos.size();
+            end -= length;
+            System.arraycopy(baos.toByteArray(), 0, data, end, length);
+            buf.putShort(HEADER_SIZE + i * SLOT_SIZE, (short) end);
+            buf.putShort(HEADER_SIZE + i * SLOT_SIZE + 2, (short) length);
+        }
+        return data;
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedPage, which has no slots.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        int len = BufferPool.getPageSize();
+        return new byte[len]; //all 0
+    }
+
+    /**
+     * @return the number of bytes not taken by the slot directory or the
+     *         records of this page
+     */
+    public int getFreeSpace() {
+        return BufferPool.getPageSize() - HEADER_SIZE - tuples.size() * SLOT_SIZE - recordBytes;
+    }
+
+    /**
+     * @return true if the specified tuple fits on this page
+     */
+    public boolean hasRoomFor(Tuple t) {
+        int needed = recordSize(td, t);
+        if (firstEmptySlot() < 0)
+            needed += SLOT_SIZE;
+        return needed <= getFreeSpace();
+    }
+
+    /**
+     * Delete the specified tuple from the page. The slot of the tuple stays
+     * in the directory, so that the RecordIds of the other tuples on the page
+     * do not change, unless it is the last one.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId recordId = t.getRecordId();
+        if (recordId == null || !recordId.getPageId().equals(this.pid))
+            throw new DbException("Page ID not match for deletion");
+        int slot = recordId.tupleno();
+        if (slot < 0 || slot >= tuples.size() || tuples.get(slot) == null)
+            throw new DbException("Tuple not on this page or already empty");
+        recordBytes -= recordSize(td, tuples.get(slot));
+        tuples.set(slot, null);
+        trimSlots();
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot or in a
+     * new slot at the end of the directory; the tuple is updated to reflect
+     * that it is now stored on this page.
+     * @throws DbException if the page does not have room for the tuple or
+     *         tupledesc is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) throw new DbException("Tuple Desc not match");
+        if (!hasRoomFor(t)) throw new DbException("Not enough place in page");
+        int slot = firstEmptySlot();
+        if (slot < 0) {
+            slot = tuples.size();
+            tuples.add(null);
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        tuples.set(slot, t);
+        recordBytes += recordSize(td, t);
+    }
+
+    private int firstEmptySlot() {
+        return tuples.indexOf(null);
+    }
+
+    // drop the empty slots at the end of the directory
+    private void trimSlots() {
+        while (!tuples.isEmpty() && tuples.get(tuples.size() - 1) == null)
+            tuples.remove(tuples.size() - 1);
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtyTid = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return dirtyTid;
+    }
+
+    /**
+     * @return the number of slots in the directory of this page, used or not
+     */
+    public int getNumSlots() {
+        return tuples.size();
+    }
+
+    /**
+     * @return the tuple stored in slot i, or null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        if (i < 0 || i >= tuples.size())
+            return null;
+        return tuples.get(i);
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        ArrayList<Tuple> filledTuples = new ArrayList<Tuple>();
+        for (Tuple t : tuples) {
+            if (t != null)
+                filledTuples.add(t);
+        }
+        return Collections.unmodifiableList(filledTuples).iterator();
+    }
+}
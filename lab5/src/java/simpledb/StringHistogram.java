@@ -89,4 +89,12 @@ public class StringHistogram {
     public double avgSelectivity() {
         return hist.avgSelectivity();
     }
+
+    /**
+     * @return the expected selectivity of an equality predicate whose value
+     *         is drawn from the values histogrammed
+     */
+    public double avgEqualsSelectivity() {
+        return hist.avgEqualsSelectivity();
+    }
 }
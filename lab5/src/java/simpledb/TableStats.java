@@ -64,7 +64,19 @@ public class TableStats {
     private int tableId, ioCostPerPage;
     private TupleDesc schema;
     private int totalTuples = 0;
-    private HeapFile table;
+    private DbFile table;
+    private int numPages;
+    // the pages holding the tuples of a table stored in an index file
+    private int leafPages;
+    private int indexHeight = 0;
+    private int indexField = -1;
+    private ConcurrentHashMap<Integer, Integer> secondaryIndexHeights;
+    private ConcurrentHashMap<Integer, Integer> secondaryIndexPages;
+    // the index file of each indexed field, primary or secondary
+    private ConcurrentHashMap<Integer, IndexFile> indexFiles;
+    // the height and pages of every secondary index, including composite ones
+    private ConcurrentHashMap<SecondaryIndex, Integer> indexHeights;
+    private ConcurrentHashMap<SecondaryIndex, Integer> indexPages;
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -95,10 +107,69 @@ public class TableStats {
         this.ioCostPerPage = ioCostPerPage;
         this.fieldToIntHistogram = new ConcurrentHashMap<>();
         this.fieldToStringHistogram = new ConcurrentHashMap<>();
-        this.table = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        this.table = Database.getCatalog().getDatabaseFile(tableId);
         this.schema = table.getTupleDesc();
         Transaction transaction = new Transaction();
         createHistograms(table.iterator(transaction.getId()));
+        if (table instanceof HeapFile) {
+            this.numPages = ((HeapFile) table).numPages();
+        } else if (table instanceof SlottedHeapFile) {
+            this.numPages = ((SlottedHeapFile) table).numPages();
+        } else if (table instanceof PaxFile) {
+            this.numPages = ((PaxFile) table).numPages();
+        }
+        this.indexFiles = new ConcurrentHashMap<>();
+        if (table instanceof IndexFile) {
+            IndexFile index = (IndexFile) table;
+            this.numPages = index.numPages();
+            this.indexField = index.keyField();
+            try {
+                this.indexHeight = height(index, transaction.getId());
+                this.leafPages = leafPages(index, transaction.getId());
+                indexFiles.put(indexField, index);
+            } catch (TransactionAbortedException | DbException e) {
+                e.printStackTrace();
+                this.indexField = -1;
+            }
+        }
+        this.secondaryIndexHeights = new ConcurrentHashMap<>();
+        this.secondaryIndexPages = new ConcurrentHashMap<>();
+        this.indexHeights = new ConcurrentHashMap<>();
+        this.indexPages = new ConcurrentHashMap<>();
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableid)) {
+            try {
+                int height = height(index.getFile(), transaction.getId());
+                indexHeights.put(index, height);
+                int leaves = leafPages(index.getFile(), transaction.getId());
+                indexPages.put(index, leaves);
+                if (index.isComposite())
+                    continue;
+                secondaryIndexHeights.put(index.getField(), height);
+                secondaryIndexPages.put(index.getField(), leaves);
+                indexFiles.put(index.getField(), index.getFile());
+            } catch (TransactionAbortedException | DbException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // the levels of pages a lookup reads, of which the last holds the tuples;
+    // a hash file reads the header page, which stays cached, and one bucket
+    private static int height(IndexFile index, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        if (index instanceof BTreeFile)
+            return ((BTreeFile) index).height(tid);
+        return 1;
+    }
+
+    // the pages holding the entries of an index, which a range of keys is a
+    // fraction of: the leaves of a B+ tree, without its internal and header
+    // pages, and the buckets of a hash file
+    private static int leafPages(IndexFile index, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        if (index instanceof BTreeFile)
+            return ((BTreeFile) index).numLeafPages(tid);
+        return index.numPages();
     }
 
 
@@ -131,7 +202,7 @@ public class TableStats {
             for (int fieldIndex = 0; fieldIndex < schema.numFields(); fieldIndex++) {
                 if (schema.getFieldType(fieldIndex).equals(Type.INT_TYPE)) {
                     fieldToIntHistogram.put(fieldIndex, new IntHistogram(NUM_HIST_BINS, fieldMinValues[fieldIndex], fieldMaxValues[fieldIndex]));
-                } else if (schema.getFieldType(fieldIndex).equals(Type.STRING_TYPE)) {
+                } else if (schema.getFieldType(fieldIndex).isString()) {
                     fieldToStringHistogram.put(fieldIndex, new StringHistogram(NUM_HIST_BINS));
                 }
             }
@@ -144,7 +215,7 @@ public class TableStats {
                     if (schema.getFieldType(fieldIndex).equals(Type.INT_TYPE)) {
                         int currentValue = ((IntField) currentTuple.getField(fieldIndex)).getValue();
                         fieldToIntHistogram.get(fieldIndex).addValue(currentValue);
-                    } else if (schema.getFieldType(fieldIndex).equals(Type.STRING_TYPE)) {
+                    } else if (schema.getFieldType(fieldIndex).isString()) {
                         String currentValue = ((StringField) currentTuple.getField(fieldIndex)).getValue();
                         fieldToStringHistogram.get(fieldIndex).addValue(currentValue);
                     }
@@ -169,7 +240,120 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return table.numPages() * ioCostPerPage;
+        return numPages * ioCostPerPage;
+    }
+
+    /**
+     * @return true if the table is a B+ tree or hash file keyed on the
+     *         specified field, or has a {@link SecondaryIndex} on it, so that
+     *         a predicate over it can be answered with an index scan
+     */
+    public boolean hasIndex(int field) {
+        return indexFiles.containsKey(field);
+    }
+
+    /**
+     * Estimates the cost of answering <tt>field op constant</tt> with a
+     * {@link BTreeScan} or an {@link IndexScan}: one page per internal level
+     * of the tree, plus the leaf pages holding the matching entries, which are
+     * assumed to make up the same fraction of the leaves as the predicate's
+     * selectivity. A secondary index also pays for one heap page fetch per
+     * matching tuple, up to the number of pages in the table.
+     * <p>
+     * Predicates that cannot use the index (no index on the field, or an
+     * operator the index does not {@link IndexFile#supports support}) cost
+     * Double.MAX_VALUE.
+     *
+     * @param field
+     *            The field over which the predicate ranges
+     * @param op
+     *            The logical operation in the predicate
+     * @param constant
+     *            The value against which the field is compared
+     * @return The estimated cost of the index scan
+     */
+    public double estimateIndexScanCost(int field, Predicate.Op op, Field constant) {
+        if (!hasIndex(field) || !indexFiles.get(field).supports(op)) {
+            return Double.MAX_VALUE;
+        }
+        return indexCost(field, estimateSelectivity(field, op, constant));
+    }
+
+    /**
+     * Estimates the cost of looking up the tuples with one value of a field
+     * through its index, as an {@link IndexJoin} does for each tuple of its
+     * outer child, like {@link #estimateIndexScanCost} for an equality with
+     * a value drawn from the values of the field.
+     *
+     * @param field
+     *            The field looked up
+     * @return The estimated cost of one lookup, or Double.MAX_VALUE if no
+     *         index on the field supports equality
+     */
+    public double estimateIndexLookupCost(int field) {
+        if (!hasIndex(field) || !indexFiles.get(field).supports(Predicate.Op.EQUALS)) {
+            return Double.MAX_VALUE;
+        }
+        double sel;
+        if (fieldToIntHistogram.containsKey(field)) {
+            sel = fieldToIntHistogram.get(field).avgEqualsSelectivity();
+        } else if (fieldToStringHistogram.containsKey(field)) {
+            sel = fieldToStringHistogram.get(field).avgEqualsSelectivity();
+        } else {
+            sel = 1.0;
+        }
+        return indexCost(field, sel);
+    }
+
+    /**
+     * Estimates the cost of a {@link BitmapScan} whose predicates match a
+     * fraction of the tuples: combining the bitmaps reads no page, and each
+     * page holding a matching tuple is then read once. The tuples are assumed
+     * to be spread over the pages at random, so that sel * totalTuples of them
+     * fall on numPages * (1 - (1 - 1/numPages)^(sel * totalTuples)) pages.
+     *
+     * @param sel
+     *            The selectivity of the predicates the bitmaps answer
+     * @return The estimated cost of the bitmap scan
+     */
+    public double estimateBitmapScanCost(double sel) {
+        if (numPages == 0)
+            return 0;
+        double pages = numPages * (1 - Math.pow(1 - 1.0 / numPages, sel * totalTuples));
+        return Math.ceil(pages) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of an {@link IndexOnlyScan} of a secondary index of
+     * the table whose key range holds a fraction of the entries: one page per
+     * internal level of the tree, plus that fraction of its leaf pages, and
+     * no table page.
+     *
+     * @param index
+     *            A secondary index of the table
+     * @param sel
+     *            The selectivity of the predicates bounding the key range, 1
+     *            if the whole index is read
+     * @return The estimated cost of the index-only scan, or Double.MAX_VALUE
+     *         if the index was created after these statistics
+     */
+    public double estimateIndexOnlyScanCost(SecondaryIndex index, double sel) {
+        if (!indexHeights.containsKey(index))
+            return Double.MAX_VALUE;
+        double leafPages = Math.max(1, Math.ceil(sel * indexPages.get(index)));
+        return (Math.max(0, indexHeights.get(index) - 1) + leafPages) * ioCostPerPage;
+    }
+
+    // the cost of reading the entries of an index on a field that a fraction
+    // of the tuples match, and the heap pages they point to
+    private double indexCost(int field, double sel) {
+        if (indexField >= 0 && indexField == field) {
+            double leaves = Math.max(1, Math.ceil(sel * leafPages));
+            return (Math.max(0, indexHeight - 1) + leaves) * ioCostPerPage;
+        }
+        double leafPages = Math.max(1, Math.ceil(sel * secondaryIndexPages.get(field)));
+        double heapPages = Math.min(numPages, Math.ceil(sel * totalTuples));
+        return (Math.max(0, secondaryIndexHeights.get(field) - 1) + leafPages + heapPages) * ioCostPerPage;
     }
 
     /**
@@ -9,15 +9,28 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly whether the transaction only reads, in which case it
+     *        runs as a snapshot that takes no locks
+     * @see BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly)
+            Database.getBufferPool().beginSnapshot(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -42,6 +42,50 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+    }, VARCHAR_TYPE() {
+        @Override
+        public int getLen() {
+            return STRING_LEN+4;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                int strLen = dis.readInt();
+                byte bs[] = new byte[strLen];
+                dis.readFully(bs);
+                dis.skipBytes(STRING_LEN-strLen);
+                return new VarcharField(new String(bs), STRING_LEN);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public int getCompactLen(Field f) {
+            return 4 + ((StringField) f).getValue().length();
+        }
+
+        @Override
+        public void serializeCompact(Field f, DataOutputStream dos) throws IOException {
+            String s = ((StringField) f).getValue();
+            dos.writeInt(s.length());
+            dos.writeBytes(s);
+        }
+
+        @Override
+        public Field parseCompact(DataInputStream dis) throws ParseException {
+            try {
+                int strLen = dis.readInt();
+                if (strLen < 0 || strLen > STRING_LEN)
+                    throw new ParseException("bad string length " + strLen, 0);
+                byte bs[] = new byte[strLen];
+                dis.readFully(bs);
+                return new VarcharField(new String(bs), STRING_LEN);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +104,41 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return the number of bytes f takes in the compact encoding used by
+   *   variable-length records, see {@link #serializeCompact}. Only
+   *   VARCHAR_TYPE is shorter there than in its fixed-width encoding.
+   * @param f a field of this type
+   */
+    public int getCompactLen(Field f) {
+        return getLen();
+    }
+
+  /**
+   * Write f in the compact encoding of this type, which takes
+   * {@link #getCompactLen} bytes.
+   * @param f a field of this type
+   * @param dos The output stream to write to
+   */
+    public void serializeCompact(Field f, DataOutputStream dos) throws IOException {
+        f.serialize(dos);
+    }
+
+  /**
+   * @return a Field of this type read from the compact encoding written by
+   *   {@link #serializeCompact}
+   * @param dis The input stream to read from
+   * @throws ParseException if the data read is not of the appropriate type
+   */
+    public Field parseCompact(DataInputStream dis) throws ParseException {
+        return parse(dis);
+    }
+
+  /**
+   * @return true if fields of this type hold strings, and so are StringFields
+   */
+    public boolean isString() {
+        return this == STRING_TYPE || this == VARCHAR_TYPE;
+    }
+
 }
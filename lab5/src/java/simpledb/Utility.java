@@ -107,6 +107,7 @@ public class Utility {
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
         fos.close();
+        SideFiles.delete(f);
 
         HeapFile hf = openHeapFile(cols, f);
         HeapPageId pid = new HeapPageId(hf.getId(), 0);
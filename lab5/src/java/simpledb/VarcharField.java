@@ -0,0 +1,34 @@
+package simpledb;
+
+/**
+ * Instance of Field that stores a String of at most a fixed length. It behaves
+ * like a StringField, and is padded to the same fixed width on the fixed-size
+ * pages of HeapFile and BTreeFile, but takes only its actual length on the
+ * variable-length records of SlottedHeapFile.
+ *
+ * @see Type#VARCHAR_TYPE
+ * @see SlottedPage
+ */
+public class VarcharField extends StringField {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param s
+	 *            The value of this field.
+	 * @param maxSize
+	 *            The maximum size of this string
+	 */
+	public VarcharField(String s, int maxSize) {
+		super(s, maxSize);
+	}
+
+	/**
+	 * @return the Type for this Field
+	 */
+	public Type getType() {
+		return Type.VARCHAR_TYPE;
+	}
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * VersionStore keeps the prior committed versions of pages that snapshot
+ * transactions of a {@link BufferPool} may still read.
+ * <p>
+ * Every commit is stamped with a timestamp from a logical clock, and a
+ * snapshot with the timestamp of the last commit applied when it began.
+ * While any snapshot is active, a commit keeps the committed image each page
+ * it writes had before, stamped with the commit's timestamp, and a snapshot
+ * reads a page as the oldest version stamped after it began, or as the
+ * current committed image if there is none. Versions are dropped once no
+ * active snapshot began before their commit.
+ * <p>
+ * Commits run between {@link #beginCommit} and {@link #endCommit}, which
+ * exclude the start of snapshots but not each other, so that a snapshot sees
+ * either all or none of the pages of a commit.
+ */
+class VersionStore {
+
+    private static class Version {
+        final long timestamp;
+        final Page page;
+
+        Version(long timestamp, Page page) {
+            this.timestamp = timestamp;
+            this.page = page;
+        }
+    }
+
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+    private final AtomicLong clock = new AtomicLong();
+    // the timestamp of each active snapshot
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // the versions of each page, oldest first, only changed inside compute
+    // methods of the map, which drop empty lists, and only used while
+    // synchronized on the list
+    private final ConcurrentHashMap<PageId, ArrayList<Version>> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Start a snapshot for a transaction, which sees every commit applied so
+     * far and none applied later.
+     */
+    void beginSnapshot(TransactionId tid) {
+        commitLock.writeLock().lock();
+        try {
+            snapshots.put(tid, clock.get());
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether a transaction is an active snapshot
+     */
+    boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * End the snapshot of a transaction, if it has one, and drop the versions
+     * no other snapshot needs.
+     */
+    void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) == null)
+            return;
+        long oldest = Long.MAX_VALUE;
+        for (long timestamp : snapshots.values())
+            oldest = Math.min(oldest, timestamp);
+        final long oldestSnapshot = oldest;
+        for (PageId pid : versions.keySet()) {
+            versions.computeIfPresent(pid, (k, list) -> {
+                synchronized (list) {
+                    // only snapshots that began before a version's commit
+                    // read it
+                    while (!list.isEmpty() && list.get(0).timestamp <= oldestSnapshot)
+                        list.remove(0);
+                    return list.isEmpty() ? null : list;
+                }
+            });
+        }
+    }
+
+    /**
+     * Start applying a commit.
+     *
+     * @return the timestamp of the commit
+     */
+    long beginCommit() {
+        commitLock.readLock().lock();
+        return clock.incrementAndGet();
+    }
+
+    /**
+     * Finish applying the commit started by the last call to
+     * {@link #beginCommit} of this thread.
+     */
+    void endCommit() {
+        commitLock.readLock().unlock();
+    }
+
+    /**
+     * Keep the committed image a page had before the commit with the
+     * specified timestamp, if some snapshot may read it. Must be called
+     * before the commit changes the committed image.
+     */
+    void keep(PageId pid, Page before, long timestamp) {
+        if (snapshots.isEmpty())
+            return;
+        versions.compute(pid, (k, list) -> {
+            if (list == null)
+                list = new ArrayList<>();
+            synchronized (list) {
+                list.add(new Version(timestamp, before));
+            }
+            return list;
+        });
+    }
+
+    /**
+     * @return the image of a page a snapshot reads, or null if it reads the
+     *         current committed image, which the caller must read before
+     *         calling this
+     */
+    Page find(TransactionId tid, PageId pid) {
+        Long snapshot = snapshots.get(tid);
+        ArrayList<Version> list = versions.get(pid);
+        if (snapshot == null || list == null)
+            return null;
+        synchronized (list) {
+            for (Version v : list) {
+                if (v.timestamp > snapshot)
+                    return v.page;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of page versions kept
+     */
+    int size() {
+        int n = 0;
+        for (ArrayList<Version> list : versions.values()) {
+            synchronized (list) {
+                n += list.size();
+            }
+        }
+        return n;
+    }
+}
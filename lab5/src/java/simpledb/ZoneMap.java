@@ -0,0 +1,351 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * ZoneMap keeps, for each page of a HeapFile, a lower and an upper bound of
+ * the values of each field on the page, so that a scan with pushed-down
+ * predicates can skip pages none of whose tuples can match, without reading
+ * them. Bounds of INT_TYPE fields are the exact minimum and maximum; string
+ * fields are bounded by prefixes of PREFIX_LEN characters.
+ * <p>
+ * Like the {@link FreeSpaceMap}, the map lives in memory, and files that
+ * persist their maps also keep it in a side file next to the heap file,
+ * updated there whenever a page is written, with the exact bounds of the page
+ * as written. In memory, inserts widen the bounds of their
+ * page as they happen; deletes and aborts leave them wider than needed, which
+ * is safe. Pages the map has not seen yet are never skipped.
+ * <p>
+ * Since skipping a page on stale bounds would lose tuples, the side file
+ * starts with a header that records the length of the heap file and a
+ * generation, which is odd while pages are being written. The heap file marks
+ * a write as started with {@link #beginWrite} before writing a page, and
+ * {@link #write} records the bounds of the page and the new length of the heap
+ * file. A side file whose header does not match the heap file, or that was
+ * left in the middle of a write, is discarded when the map is created.
+ */
+class ZoneMap {
+
+    /** Number of leading characters of strings kept as bounds */
+    static final int PREFIX_LEN = 8;
+
+    // upper bounds of truncated strings end with this, above any character
+    // StringField serializes
+    private static final char TOP = '\uffff';
+
+    // the format of the side file, at its start
+    private static final int MAGIC = 0x5a4d0001;
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte EMPTY = 1;
+    private static final byte KNOWN = 2;
+
+    private final File file;
+    private final File heapFile;
+    private final TupleDesc td;
+    private final int entrySize;
+    // the bounds of each page, null if unknown; a Zone with null bounds for
+    // an empty page
+    private final ArrayList<Zone> zones = new ArrayList<Zone>();
+    // the generation in the header of the side file, and the number of page
+    // writes begun and not recorded yet
+    private long generation = 0;
+    private int writing = 0;
+
+    private static class Zone {
+        final Field[] lo;
+        final Field[] hi;
+
+        Zone(Field[] lo, Field[] hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+    }
+
+    /**
+     * Create the zone map stored in the specified side file. If the file is
+     * missing or does not match the heap file, every page starts out unknown,
+     * and a mismatched file is deleted.
+     *
+     * @param file the side file, or null to keep the map in memory only
+     * @param heapFile the heap file the map describes
+     * @param td the TupleDesc of the heap file
+     */
+    ZoneMap(File file, File heapFile, TupleDesc td) {
+        this.file = file;
+        this.heapFile = heapFile;
+        this.td = td;
+        int size = 1;
+        for (int i = 0; i < td.numFields(); i++)
+            size += td.getFieldType(i).isString() ? 2 * (2 + PREFIX_LEN) : 2 * td.getFieldType(i).getLen();
+        this.entrySize = size;
+        if (file != null && file.exists()) {
+            boolean valid = false;
+            try {
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (file.length() >= HEADER_SIZE && dis.readInt() == MAGIC
+                            && dis.readLong() == heapFile.length()) {
+                        generation = dis.readLong();
+                        if (generation % 2 == 0) {
+                            for (long n = (file.length() - HEADER_SIZE) / entrySize; n > 0; n--)
+                                zones.add(readZone(dis));
+                            valid = true;
+                        }
+                    }
+                } finally {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                valid = false;
+            }
+            if (!valid) {
+                zones.clear();
+                generation = 0;
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the side file in which the zone map of heapFile is stored
+     */
+    static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".zm");
+    }
+
+    /**
+     * Check whether any tuple of a page may satisfy all the specified
+     * predicates, whose fields are fields of the heap file.
+     *
+     * @param pageNo the page number
+     * @param preds the predicates, possibly null
+     * @return false if the bounds of the page rule out every tuple
+     */
+    synchronized boolean mayMatch(int pageNo, Predicate[] preds) {
+        if (preds == null || pageNo >= zones.size() || zones.get(pageNo) == null)
+            return true;
+        Zone zone = zones.get(pageNo);
+        if (zone.lo == null)
+            return false;
+        for (Predicate p : preds) {
+            if (!mayMatch(zone.lo[p.getField()], zone.hi[p.getField()], p.getOp(), p.getOperand()))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean mayMatch(Field lo, Field hi, Predicate.Op op, Field v) {
+        switch (op) {
+        case EQUALS:
+            return lo.compare(Predicate.Op.LESS_THAN_OR_EQ, v) && hi.compare(Predicate.Op.GREATER_THAN_OR_EQ, v);
+        case NOT_EQUALS:
+            return !(lo.equals(v) && hi.equals(v));
+        case GREATER_THAN:
+            return hi.compare(Predicate.Op.GREATER_THAN, v);
+        case GREATER_THAN_OR_EQ:
+            return hi.compare(Predicate.Op.GREATER_THAN_OR_EQ, v);
+        case LESS_THAN:
+            return lo.compare(Predicate.Op.LESS_THAN, v);
+        case LESS_THAN_OR_EQ:
+            return lo.compare(Predicate.Op.LESS_THAN_OR_EQ, v);
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @return whether the map holds bounds of the specified page
+     */
+    synchronized boolean isKnown(int pageNo) {
+        return pageNo < zones.size() && zones.get(pageNo) != null;
+    }
+
+    /**
+     * Widen the bounds of a page in memory to cover a tuple inserted on it.
+     *
+     * @param pageNo the page number
+     * @param t the inserted tuple
+     */
+    synchronized void widen(int pageNo, Tuple t) {
+        if (pageNo >= zones.size() || zones.get(pageNo) == null)
+            return;
+        Zone zone = zones.get(pageNo);
+        if (zone.lo == null) {
+            zone = new Zone(new Field[td.numFields()], new Field[td.numFields()]);
+            for (int i = 0; i < td.numFields(); i++) {
+                zone.lo[i] = lower(t.getField(i));
+                zone.hi[i] = upper(t.getField(i));
+            }
+            zones.set(pageNo, zone);
+            return;
+        }
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (zone.lo[i].compare(Predicate.Op.GREATER_THAN, f))
+                zone.lo[i] = lower(f);
+            if (zone.hi[i].compare(Predicate.Op.LESS_THAN, f))
+                zone.hi[i] = upper(f);
+        }
+    }
+
+    /**
+     * Record the exact bounds of a page in memory.
+     *
+     * @param pageNo the page number
+     * @param tuples the tuples on the page
+     */
+    synchronized void update(int pageNo, Iterator<Tuple> tuples) {
+        while (zones.size() <= pageNo)
+            zones.add(null);
+        zones.set(pageNo, new Zone(null, null));
+        while (tuples.hasNext())
+            widen(pageNo, tuples.next());
+    }
+
+    /**
+     * Mark the side file as being written, before a page of the heap file is
+     * written, so that the map is discarded if the page write is not followed
+     * by {@link #write}.
+     */
+    synchronized void beginWrite() throws IOException {
+        writing++;
+        if (file == null || generation % 2 == 1)
+            return;
+        generation++;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            writeHeader(raf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Record the exact bounds of a page that was just written to disk, in
+     * memory and in the side file, along with the new length of the heap file.
+     *
+     * @param pageNo the page number
+     * @param tuples the tuples on the page as written
+     */
+    synchronized void write(int pageNo, Iterator<Tuple> tuples) throws IOException {
+        update(pageNo, tuples);
+        if (writing > 0)
+            writing--;
+        if (file == null)
+            return;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(entrySize);
+        writeZone(new DataOutputStream(baos), zones.get(pageNo));
+        if (writing == 0 && generation % 2 == 1)
+            generation++;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long offset = HEADER_SIZE + (long) pageNo * entrySize;
+            if (raf.length() < offset) {
+                // pages the side file has never seen are unknown
+                raf.setLength(Math.max(raf.length(), HEADER_SIZE));
+                raf.seek(raf.length());
+                raf.write(new byte[(int) (offset - raf.length())]);
+            }
+            raf.seek(offset);
+            raf.write(baos.toByteArray());
+            writeHeader(raf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeHeader(RandomAccessFile raf) throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeLong(heapFile.length());
+        raf.writeLong(generation);
+    }
+
+    private Field lower(Field f) {
+        if (!f.getType().isString())
+            return f;
+        String s = ((StringField) f).getValue();
+        if (s.length() <= PREFIX_LEN)
+            return f;
+        return new StringField(s.substring(0, PREFIX_LEN), Type.STRING_LEN);
+    }
+
+    private Field upper(Field f) {
+        if (!f.getType().isString())
+            return f;
+        String s = ((StringField) f).getValue();
+        if (s.length() <= PREFIX_LEN)
+            return f;
+        return new StringField(s.substring(0, PREFIX_LEN) + TOP, Type.STRING_LEN + 1);
+    }
+
+    private void writeZone(DataOutputStream dos, Zone zone) throws IOException {
+        dos.writeByte(zone == null ? UNKNOWN : zone.lo == null ? EMPTY : KNOWN);
+        for (int i = 0; i < td.numFields(); i++) {
+            Field lo = zone == null || zone.lo == null ? null : zone.lo[i];
+            Field hi = zone == null || zone.lo == null ? null : zone.hi[i];
+            if (td.getFieldType(i).isString()) {
+                writePrefix(dos, lo);
+                writePrefix(dos, hi);
+            } else if (lo == null) {
+                dos.write(new byte[2 * td.getFieldType(i).getLen()]);
+            } else {
+                lo.serialize(dos);
+                hi.serialize(dos);
+            }
+        }
+        dos.flush();
+    }
+
+    // a prefix of at most PREFIX_LEN characters, and whether it is followed by TOP
+    private static void writePrefix(DataOutputStream dos, Field f) throws IOException {
+        String s = f == null ? "" : ((StringField) f).getValue();
+        boolean top = s.length() > PREFIX_LEN;
+        if (top)
+            s = s.substring(0, PREFIX_LEN);
+        dos.writeByte(s.length());
+        dos.writeByte(top ? 1 : 0);
+        dos.writeBytes(s);
+        dos.write(new byte[PREFIX_LEN - s.length()]);
+    }
+
+    private Zone readZone(DataInputStream dis) throws IOException {
+        byte state = dis.readByte();
+        Field[] lo = new Field[td.numFields()];
+        Field[] hi = new Field[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            Type type = td.getFieldType(i);
+            if (type.isString()) {
+                lo[i] = readPrefix(dis);
+                hi[i] = readPrefix(dis);
+            } else {
+                try {
+                    lo[i] = type.parse(dis);
+                    hi[i] = type.parse(dis);
+                } catch (java.text.ParseException e) {
+                    throw new IOException("bad zone map entry");
+                }
+            }
+        }
+        if (state == UNKNOWN)
+            return null;
+        if (state == EMPTY)
+            return new Zone(null, null);
+        return new Zone(lo, hi);
+    }
+
+    private static Field readPrefix(DataInputStream dis) throws IOException {
+        int len = dis.readUnsignedByte();
+        boolean top = dis.readByte() != 0;
+        byte[] bs = new byte[PREFIX_LEN];
+        dis.readFully(bs);
+        if (len > PREFIX_LEN)
+            throw new IOException("bad zone map entry");
+        String s = new String(bs, 0, len);
+        return top ? new StringField(s + TOP, Type.STRING_LEN + 1) : new StringField(s, Type.STRING_LEN);
+    }
+}
@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private BTreeFile bf;
+	private ArrayList<ArrayList<Integer>> tuples;
+
+	/**
+	 * Set up an empty B+ tree keyed on field 1 and a list of random tuples
+	 */
+	@Before
+	public void setUp() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 1);
+		tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeUtility.generateRandomTuples(2, 30000, 1000, null, tuples);
+	}
+
+	private void load(BTreeBulkLoader loader) throws Exception {
+		for (ArrayList<Integer> tuple : tuples) {
+			loader.add(BTreeUtility.getBTreeTuple(tuple));
+		}
+		loader.finish();
+	}
+
+	/**
+	 * Check that the file holds exactly the generated tuples, in key order
+	 */
+	private void checkContents(TransactionId tid) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		Field prev = null;
+		while (it.hasNext()) {
+			Field key = it.next().getField(1);
+			if (prev != null)
+				assertTrue(key.compare(Op.GREATER_THAN_OR_EQ, prev));
+			prev = key;
+		}
+		it.close();
+	}
+
+	/**
+	 * Tuples sorted with several spilled runs end up in a valid, searchable tree
+	 */
+	@Test
+	public void externalSort() throws Exception {
+		load(new BTreeBulkLoader(bf, 1.0, 1000));
+		TransactionId tid = new TransactionId();
+		checkContents(tid);
+
+		int key = tuples.get(0).get(1);
+		int expected = 0;
+		for (ArrayList<Integer> tuple : tuples) {
+			if (tuple.get(1) == key)
+				expected++;
+		}
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		int count = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(expected, count);
+		assertTrue(bf.height(tid) >= 2);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * More runs than the fan-in are merged into longer runs, in several
+	 * passes, before the final merge
+	 */
+	@Test
+	public void multiPassMerge() throws Exception {
+		// 300 runs merged 4 at a time take 4 passes to get down to 2
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf, 1.0, 100, 4);
+		load(loader);
+		assertEquals(4, loader.mergePasses());
+		TransactionId tid = new TransactionId();
+		checkContents(tid);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A lower fill factor spreads the same tuples over more leaves, which
+	 * later inserts can fill without splitting
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		load(new BTreeBulkLoader(bf, 0.5, BTreeBulkLoader.DEFAULT_RUN_SIZE));
+		int leaves = (int) Math.ceil(30000.0 / (BTreeUtility.getNumTuplesPerPage(2) / 2));
+
+		// leaves plus the internal pages above them
+		int pages = bf.numPages();
+		assertTrue(pages >= leaves);
+		assertTrue(pages <= leaves + 3);
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 20; i++) {
+			ArrayList<Integer> tuple = new ArrayList<Integer>();
+			tuple.add(i);
+			tuple.add(500);
+			tuples.add(tuple);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(tuple));
+		}
+		assertEquals(pages, bf.numPages());
+		checkContents(tid);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Load from a text file
+	 */
+	@Test
+	public void textFile() throws Exception {
+		File in = File.createTempFile("bulk", ".txt");
+		in.deleteOnExit();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+		for (ArrayList<Integer> tuple : tuples) {
+			bw.write(tuple.get(0) + "," + tuple.get(1) + "\n");
+		}
+		bw.close();
+
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.addAll(in, ',');
+		loader.finish();
+		TransactionId tid = new TransactionId();
+		checkContents(tid);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * An empty load leaves a usable empty tree
+	 */
+	@Test
+	public void empty() throws Exception {
+		new BTreeBulkLoader(bf).finish();
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -130,6 +130,18 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		it.close();
 	}
 
+	/**
+	 * Unit test for BTreeFile.numLeafPages()
+	 */
+	@Test
+	public void numLeafPages() throws Exception {
+		// two leaf pages under an internal root page
+		BTreeFile twoLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 520,
+				null, null, 0);
+		assertEquals(3, twoLeafPageFile.numPages());
+		assertEquals(2, twoLeafPageFile.numLeafPages(tid));
+	}
+
 	/**
 	 * Unit test for BTreeFile.indexIterator()
 	 */
@@ -201,6 +213,232 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	// the keys of the tuples taken from an iterator
+	private static ArrayList<Integer> keys(DbFileIterator it) throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		it.open();
+		while(it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * Unit test for BTreeFile.indexIterator() over two-sided ranges, in
+	 * ascending and descending order, with keys repeated across leaves
+	 */
+	@Test public void rangeIterator() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 10000, 1000, null, tuples, 0);
+		ArrayList<Integer> sorted = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples)
+			sorted.add(t.get(0));
+		Collections.sort(sorted);
+
+		int[][] ranges = { {100, 200}, {-5, 3}, {995, 2000}, {500, 500}, {300, 299} };
+		for (int[] r : ranges) {
+			for (int inclusive = 0; inclusive < 2; inclusive++) {
+				IndexPredicate lower = new IndexPredicate(inclusive == 1 ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN,
+						new IntField(r[0]));
+				IndexPredicate upper = new IndexPredicate(inclusive == 1 ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN,
+						new IntField(r[1]));
+				ArrayList<Integer> expected = new ArrayList<Integer>();
+				for (int k : sorted) {
+					if (lower.equals(new IndexPredicate(lower.getOp(), new IntField(k)))
+							&& upper.equals(new IndexPredicate(upper.getOp(), new IntField(k))))
+						expected.add(k);
+				}
+				assertEquals(expected, keys(bigFile.indexIterator(tid, lower, upper, false)));
+				Collections.reverse(expected);
+				assertEquals(expected, keys(bigFile.indexIterator(tid, lower, upper, true)));
+			}
+		}
+
+		// one-sided and unbounded descending scans
+		IndexPredicate upper = new IndexPredicate(Op.LESS_THAN, new IntField(40));
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (int k : sorted) {
+			if (k < 40)
+				expected.add(k);
+		}
+		Collections.reverse(expected);
+		assertEquals(expected, keys(bigFile.indexIterator(tid, null, upper, true)));
+		expected = new ArrayList<Integer>(sorted);
+		Collections.reverse(expected);
+		assertEquals(expected, keys(bigFile.indexIterator(tid, null, null, true)));
+	}
+
+	/**
+	 * A descending scan taking only the last few tuples locks only the
+	 * right-most leaf
+	 */
+	@Test public void descendingScanStopsEarly() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 10000, null, tuples, 0);
+		ArrayList<Integer> sorted = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples)
+			sorted.add(t.get(0));
+		Collections.sort(sorted, Collections.reverseOrder());
+
+		DbFileIterator it = bigFile.indexIterator(tid, null, null, true);
+		it.open();
+		for (int i = 0; i < 10; i++)
+			assertEquals(sorted.get(i), ((IntField) it.next().getField(0)).getValue(), 0);
+		it.close();
+
+		int locked = 0;
+		for (int p = 1; p <= bigFile.numPages(); p++) {
+			if (Database.getBufferPool().holdsLock(tid, new BTreePageId(bigFile.getId(), p, BTreePageId.LEAF)))
+				locked++;
+		}
+		assertTrue(bigFile.numPages() > 10);
+		assertEquals(1, locked);
+	}
+
+	// the number of leaves of f locked by t
+	private static int lockedLeaves(BTreeFile f, TransactionId t) {
+		int locked = 0;
+		for (int p = 1; p <= f.numPages(); p++) {
+			if (Database.getBufferPool().holdsLock(t, new BTreePageId(f.getId(), p, BTreePageId.LEAF)))
+				locked++;
+		}
+		return locked;
+	}
+
+	/**
+	 * A filtered scan with several bounds on each side of the key reads
+	 * only the leaves between the tightest bound of each side
+	 */
+	@Test public void tightestBounds() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 10000, 1000, null, tuples, 0);
+		ArrayList<Integer> sorted = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples)
+			sorted.add(t.get(0));
+		Collections.sort(sorted);
+		int[] fields = { 0, 1 };
+
+		// k > 5 and k >= 990, ascending
+		Predicate[] preds = { new Predicate(0, Op.GREATER_THAN, new IntField(5)),
+				new Predicate(0, Op.GREATER_THAN_OR_EQ, new IntField(990)) };
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (int k : sorted) {
+			if (k >= 990)
+				expected.add(k);
+		}
+		TransactionId t1 = new TransactionId();
+		assertEquals(expected, keys(bigFile.iterator(t1, preds, fields, false)));
+		assertTrue(bigFile.numPages() > 10);
+		assertTrue(lockedLeaves(bigFile, t1) <= 2);
+		Database.getBufferPool().transactionComplete(t1);
+
+		// k <= 500 and k < 10 and k < 10, descending
+		preds = new Predicate[] { new Predicate(0, Op.LESS_THAN_OR_EQ, new IntField(500)),
+				new Predicate(0, Op.LESS_THAN, new IntField(10)),
+				new Predicate(0, Op.LESS_THAN, new IntField(10)) };
+		expected.clear();
+		for (int k : sorted) {
+			if (k < 10)
+				expected.add(k);
+		}
+		Collections.reverse(expected);
+		TransactionId t2 = new TransactionId();
+		assertEquals(expected, keys(bigFile.iterator(t2, preds, fields, true)));
+		assertTrue(lockedLeaves(bigFile, t2) <= 2);
+		Database.getBufferPool().transactionComplete(t2);
+
+		// equal keys keep the strict bound
+		IndexPredicate strict = new IndexPredicate(Op.GREATER_THAN, new IntField(7));
+		IndexPredicate loose = new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(7));
+		assertSame(strict, BTreeSearchIterator.tighterLowerBound(loose, strict));
+		assertSame(strict, BTreeSearchIterator.tighterLowerBound(strict, loose));
+	}
+
+	/**
+	 * Unit test for the optimistic descent of BTreeFile.findLeafPage(): a lookup
+	 * latches the internal pages but only locks the leaf
+	 */
+	@Test public void findLeafPageLocksOnlyLeaf() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeLeafPage leaf = bigFile.findLeafPage(tid, Permissions.READ_ONLY, new IntField(0));
+		assertTrue(Database.getBufferPool().holdsLock(tid, leaf.getId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+		Database.getBufferPool().transactionComplete(tid);
+
+		// once a transaction that wrote an internal page completes, descents
+		// are optimistic again
+		TransactionId writer = new TransactionId();
+		bigFile.getPage(writer, new HashMap<PageId, Page>(), rootId, Permissions.READ_WRITE);
+		Database.getBufferPool().transactionComplete(writer);
+		tid = new TransactionId();
+		leaf = bigFile.findLeafPage(tid, Permissions.READ_ONLY, new IntField(0));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+	}
+
+	/**
+	 * Readers descending to a part of the tree that an uncommitted split did not
+	 * change neither lock nor wait for the internal pages the split write locked
+	 */
+	@Test public void findLeafPageDuringSplit() throws Exception {
+		BufferPool.setPageSize(1024);
+		try {
+			final BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 30000, null, null, 0);
+			assertEquals(3, bigFile.height(tid));
+			Database.getBufferPool().transactionComplete(tid);
+
+			// append keys beyond the others until a leaf splits, without committing
+			TransactionId writer = new TransactionId();
+			int pages = bigFile.numPages();
+			for (int i = 0; bigFile.numPages() == pages; i++) {
+				Tuple t = new Tuple(bigFile.getTupleDesc());
+				t.setField(0, new IntField(BTreeUtility.MAX_RAND_VALUE + i));
+				t.setField(1, new IntField(i));
+				Database.getBufferPool().insertTuple(writer, bigFile.getId(), t);
+			}
+
+			tid = new TransactionId();
+			ArrayList<BTreePageId> split = new ArrayList<BTreePageId>();
+			for (int p = 1; p <= bigFile.numPages(); p++) {
+				BTreePageId pid = new BTreePageId(bigFile.getId(), p, BTreePageId.INTERNAL);
+				if (Database.getBufferPool().isLockedExclusivelyByOther(tid, pid))
+					split.add(pid);
+			}
+			assertFalse(split.isEmpty());
+
+			final BTreeLeafPage[] found = new BTreeLeafPage[1];
+			final Exception[] error = new Exception[1];
+			Thread reader = new Thread() {
+				public void run() {
+					try {
+						found[0] = bigFile.findLeafPage(tid, Permissions.READ_ONLY, new IntField(-1));
+					} catch (Exception e) {
+						error[0] = e;
+					}
+				}
+			};
+			reader.start();
+			reader.join(10000);
+			assertFalse("the reader waited for the split", reader.isAlive());
+			assertNull(error[0]);
+			assertNull(found[0].getLeftSiblingId());
+			for (int p = 1; p <= bigFile.numPages(); p++) {
+				BTreePageId pid = new BTreePageId(bigFile.getId(), p, BTreePageId.INTERNAL);
+				assertFalse(Database.getBufferPool().holdsLock(tid, pid));
+			}
+			Database.getBufferPool().transactionComplete(writer);
+		} finally {
+			BufferPool.resetPageSize();
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
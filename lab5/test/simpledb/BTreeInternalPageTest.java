@@ -313,6 +313,42 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChildId(), against a linear scan of the entries
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(page.iterator().next().getLeftChild(), page.findChildId(null));
+
+		for (int key = 0; key < 70000; key += 97) {
+			for (int k : new int[] { key, EXAMPLE_VALUES[key % EXAMPLE_VALUES.length][1] }) {
+				Field f = new IntField(k);
+				BTreePageId expected = null;
+				Iterator<BTreeEntry> it = page.iterator();
+				while (it.hasNext()) {
+					BTreeEntry e = it.next();
+					expected = e.getRightChild();
+					if (e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) {
+						expected = e.getLeftChild();
+						break;
+					}
+				}
+				assertEquals(expected, page.findChildId(f));
+			}
+		}
+
+		// the directory follows changes to the page
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry first = it.next();
+		BTreeEntry second = it.next();
+		page.deleteKeyAndLeftChild(first);
+		assertEquals(second.getLeftChild(), page.findChildId(first.getKey()));
+
+		BTreePageId emptyId = new BTreePageId(-1, -1, BTreePageId.INTERNAL);
+		BTreeInternalPage empty = new BTreeInternalPage(emptyId, BTreeInternalPage.createEmptyPageData(), 0);
+		assertEquals(null, empty.findChildId(new IntField(1)));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
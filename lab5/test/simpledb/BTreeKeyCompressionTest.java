@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeKeyCompressionTest extends SimpleDbTestBase {
+    private static final int ROWS = 4000;
+
+    private BTreeFile bf;
+
+    /**
+     * Set up an empty B+ tree of (string, int) tuples keyed on the string
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("strings", ".dat");
+        f.deleteOnExit();
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new String[] { "k", "v" });
+        bf = new BTreeFile(f, 0, td);
+        Database.getCatalog().addTable(bf, "strings");
+    }
+
+    // keys sharing long prefixes, in the order of i
+    private static String key(int i) {
+        return String.format("account/region-%d/customer-%06d", i / 1000, i);
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(bf.getTupleDesc());
+        t.setField(0, new StringField(key(i), Type.STRING_LEN));
+        t.setField(1, new IntField(i));
+        return t;
+    }
+
+    // check the values in the tree are those given, in key order
+    private void checkContents(ArrayList<Integer> values) throws Exception {
+        Collections.sort(values);
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        for (int v : values) {
+            assertTrue(it.hasNext());
+            Tuple t = it.next();
+            assertEquals(key(v), ((StringField) t.getField(0)).getValue());
+            assertEquals(v, ((IntField) t.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+        it.close();
+
+        Random rand = new Random(5);
+        for (int n = 0; n < 50; n++) {
+            int v = rand.nextInt(ROWS);
+            it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS,
+                    new StringField(key(v), Type.STRING_LEN)));
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                assertEquals(v, ((IntField) it.next().getField(1)).getValue());
+                count++;
+            }
+            it.close();
+            assertEquals(Collections.binarySearch(values, v) >= 0 ? 1 : 0, count);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Separators are the shortest keys between the keys they separate
+     */
+    @Test public void separators() {
+        assertEquals(new StringField("apr", Type.STRING_LEN), BTreePage.separator(
+                new StringField("apple", Type.STRING_LEN), new StringField("apricot", Type.STRING_LEN)));
+        assertEquals(new StringField("ab", Type.STRING_LEN), BTreePage.separator(
+                new StringField("ab", Type.STRING_LEN), new StringField("abc", Type.STRING_LEN)));
+        assertEquals(new StringField("b", Type.STRING_LEN), BTreePage.separator(
+                new StringField("azz", Type.STRING_LEN), new StringField("b", Type.STRING_LEN)));
+        assertEquals(new IntField(3), BTreePage.separator(new IntField(3), new IntField(9)));
+    }
+
+    /**
+     * Inserts and deletes in random order keep the tree ordered, in fewer
+     * pages than the uncompressed layout needs leaves, and the pages read
+     * back from disk as written
+     */
+    @Test public void insertDelete() throws Exception {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < ROWS; i++)
+            values.add(i);
+        Collections.shuffle(values, new Random(3));
+
+        TransactionId tid = new TransactionId();
+        for (int n = 0; n < ROWS; n++) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(values.get(n)));
+            if (n % 200 == 199) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        checkContents(values);
+
+        int maxTuples = new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+                BTreePage.createEmptyPageData(), 0).getMaxTuples();
+        assertTrue(bf.numPages() * 3 < ROWS / maxTuples);
+        assertEquals(2, bf.height(new TransactionId()));
+
+        // delete two thirds of the tuples, re-reading the pages from disk
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        ArrayList<Integer> kept = new ArrayList<Integer>();
+        tid = new TransactionId();
+        int deleted = 0;
+        for (int v : values) {
+            if (v % 3 == 0) {
+                kept.add(v);
+                continue;
+            }
+            DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS,
+                    new StringField(key(v), Type.STRING_LEN)));
+            it.open();
+            Tuple t = it.next();
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+            if (++deleted % 200 == 0) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        checkContents(kept);
+    }
+
+    /**
+     * Pages encoded from more tuples or entries than fit hold as many of the
+     * first in key order as fit by their encoded size, more than the
+     * uncompressed layout holds, and read back as encoded
+     */
+    @Test public void encodedPagesReadBack() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+        for (int i = 0; i < ROWS; i++) {
+            tuples.add(tuple(i));
+            entries.add(new BTreeEntry(tuple(i).getField(0), new BTreePageId(bf.getId(), i + 1, BTreePageId.LEAF),
+                    new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF)));
+        }
+        Collections.shuffle(tuples, new Random(7));
+        Collections.shuffle(entries, new Random(7));
+
+        BTreePageId leafId = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+        BTreeLeafPage leaf = new BTreeLeafPage(leafId, BTreeFileEncoder.convertToLeafPage(tuples,
+                BufferPool.getPageSize(), 2, new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, 0), 0);
+        int maxTuples = new BTreeLeafPage(leafId, BTreePage.createEmptyPageData(), 0).getMaxTuples();
+        assertTrue(leaf.getNumTuples() > 2 * maxTuples);
+        assertTrue(leaf.getNumTuples() < ROWS);
+        Iterator<Tuple> it = leaf.iterator();
+        for (int i = 0; i < leaf.getNumTuples(); i++) {
+            Tuple t = it.next();
+            assertEquals(key(i), ((StringField) t.getField(0)).getValue());
+            assertEquals(i, ((IntField) t.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+        assertEquals(leaf.getNumTuples(), new BTreeLeafPage(leafId, leaf.getPageData(), 0).getNumTuples());
+
+        BTreePageId internalId = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+        BTreeInternalPage internal = new BTreeInternalPage(internalId, BTreeFileEncoder.convertToInternalPage(
+                entries, BufferPool.getPageSize(), Type.STRING_TYPE, BTreePageId.LEAF), 0);
+        int maxEntries = new BTreeInternalPage(internalId, BTreePage.createEmptyPageData(), 0).getMaxEntries();
+        assertTrue(internal.getNumEntries() > 2 * maxEntries);
+        assertTrue(internal.getNumEntries() < ROWS);
+        Iterator<BTreeEntry> eit = internal.iterator();
+        for (int i = 0; i < internal.getNumEntries(); i++) {
+            BTreeEntry e = eit.next();
+            assertEquals(key(i), ((StringField) e.getKey()).getValue());
+            assertEquals(i + 2, e.getRightChild().pageNumber());
+        }
+        assertFalse(eit.hasNext());
+    }
+
+    /**
+     * A bulk loaded tree packs its pages by their encoded size, in fewer
+     * pages than the uncompressed layout needs leaves
+     */
+    @Test public void bulkLoad() throws Exception {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < ROWS; i++)
+            values.add(i);
+        Collections.shuffle(values, new Random(3));
+
+        // small runs, so the sorted tuples are merged from disk twice
+        BTreeBulkLoader loader = new BTreeBulkLoader(bf, 1.0, ROWS / 3);
+        for (int v : values)
+            loader.add(tuple(v));
+        loader.finish();
+        checkContents(values);
+
+        int maxTuples = new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+                BTreePage.createEmptyPageData(), 0).getMaxTuples();
+        assertTrue(bf.numPages() * 3 < ROWS / maxTuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeKeyCompressionTest.class);
+    }
+}
@@ -336,6 +336,41 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	// check the key directory a page keeps matches one built from its slots
+	private static void checkKeyDirectory(BTreeLeafPage page) {
+		BTreeKeyDirectory kept = page.getKeyDirectory();
+		BTreeKeyDirectory built = page.buildKeyDirectory();
+		assertEquals(built.size(), kept.size());
+		for (int i = 0; i < built.size(); i++) {
+			assertEquals(built.slot(i), kept.slot(i));
+			Field key = page.getTuple(kept.slot(i)).getField(0);
+			assertEquals(built.lowerBound(key), kept.lowerBound(key));
+			assertEquals(built.upperBound(key), kept.upperBound(key));
+		}
+	}
+
+	/**
+	 * Inserts and deletes keep the key directory of the page up to date,
+	 * without rebuilding it
+	 */
+	@Test public void keyDirectoryKeptUpToDate() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+		BTreeKeyDirectory d = page.getKeyDirectory();
+		Random rand = new Random(11);
+		ArrayList<Tuple> added = new ArrayList<Tuple>();
+		for (int n = 0; n < 2000; n++) {
+			if (page.getNumEmptySlots() > 0 && (added.isEmpty() || rand.nextInt(3) > 0)) {
+				Tuple t = BTreeUtility.getBTreeTuple(rand.nextInt(50), 2);
+				page.insertTuple(t);
+				added.add(t);
+			} else {
+				page.deleteTuple(added.remove(rand.nextInt(added.size())));
+			}
+			checkKeyDirectory(page);
+		}
+		assertTrue(d == page.getKeyDirectory());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
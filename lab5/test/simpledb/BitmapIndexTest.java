@@ -0,0 +1,289 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BitmapIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int VALUES = 8;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    /**
+     * Set up a table "t" of three columns, whose last two have VALUES
+     * distinct values and a bitmap index each
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(3, ROWS, VALUES, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "t");
+        BitmapIndex.create(hf.getId(), 1);
+        BitmapIndex.create(hf.getId(), 2);
+    }
+
+    private static TreeSet<Integer> toSet(RoaringBitmap b) {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        PrimitiveIterator.OfInt it = b.iterator();
+        while (it.hasNext())
+            set.add(it.nextInt());
+        return set;
+    }
+
+    /**
+     * Sets with sparse and dense chunks match a TreeSet through adds,
+     * removes, intersections and unions
+     */
+    @Test public void roaring() {
+        Random rand = new Random(7);
+        RoaringBitmap a = new RoaringBitmap();
+        RoaringBitmap b = new RoaringBitmap();
+        TreeSet<Integer> sa = new TreeSet<Integer>();
+        TreeSet<Integer> sb = new TreeSet<Integer>();
+        for (int i = 0; i < 20000; i++) {
+            // a is dense in its first chunk, b sparse over many
+            int x = rand.nextInt(1 << 16);
+            int y = rand.nextInt(1 << 22);
+            a.add(x);
+            sa.add(x);
+            b.add(y);
+            sb.add(y);
+        }
+        for (int i = 0; i < 1000; i++) {
+            int x = rand.nextInt(1 << 16);
+            a.remove(x);
+            sa.remove(x);
+        }
+        assertEquals(sa.size(), a.cardinality());
+        assertEquals(sa, toSet(a));
+        assertEquals(sb, toSet(b));
+
+        TreeSet<Integer> and = new TreeSet<Integer>(sa);
+        and.retainAll(sb);
+        assertEquals(and, toSet(RoaringBitmap.and(a, b)));
+        TreeSet<Integer> or = new TreeSet<Integer>(sa);
+        or.addAll(sb);
+        RoaringBitmap union = RoaringBitmap.or(a, b);
+        assertEquals(or, toSet(union));
+        assertEquals(or.size(), union.cardinality());
+
+        // the results share nothing with their arguments
+        union.remove(sa.first());
+        assertTrue(a.contains(sa.first()));
+    }
+
+    private int countMatches(Predicate[] preds, Predicate[][] disjunctions) throws Exception {
+        TransactionId tid = new TransactionId();
+        BitmapScan scan = new BitmapScan(tid, hf.getId(), "t", preds, disjunctions);
+        int count = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            for (Predicate p : preds)
+                assertTrue(p.filter(t));
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static Predicate eq(int field, int value) {
+        return new Predicate(field, Predicate.Op.EQUALS, new IntField(value));
+    }
+
+    /**
+     * Conjunctions and disjunctions are answered from the bitmaps, also
+     * after tuples are deleted and their slots reused, whose bits are
+     * cleared by the commit of the delete
+     */
+    @Test public void andOr() throws Exception {
+        int both = 0, either = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) == 3 && t.get(2) == 5)
+                both++;
+            if (t.get(1) == 1 || t.get(2) == 2)
+                either++;
+        }
+        assertEquals(both, countMatches(new Predicate[] { eq(1, 3), eq(2, 5) }, null));
+        assertEquals(either, countMatches(new Predicate[0], new Predicate[][] { { eq(1, 1), eq(2, 2) } }));
+
+        // delete the tuples with c1 = 3, and reuse their slots for c1 = 4
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(1)).getValue() == 3)
+                deleted.add(t);
+        }
+        it.close();
+        for (Tuple t : deleted)
+            Database.getBufferPool().deleteTuple(tid, t);
+        BitmapIndex index = Database.getCatalog().getBitmapIndex(hf.getId(), 1);
+        assertEquals(deleted.size(), index.lookup(Predicate.Op.EQUALS, new IntField(3)).cardinality());
+        for (int i = 0; i < deleted.size(); i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, 4, 5 }));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(0, index.lookup(Predicate.Op.EQUALS, new IntField(3)).cardinality());
+
+        int fours = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) == 4 && t.get(2) == 5)
+                fours++;
+        }
+        assertEquals(0, countMatches(new Predicate[] { eq(1, 3) }, null));
+        assertEquals(fours + deleted.size(), countMatches(new Predicate[] { eq(1, 4), eq(2, 5) }, null));
+    }
+
+    private int cardinality(int field, int value) {
+        return Database.getCatalog().getBitmapIndex(hf.getId(), field).lookup(Predicate.Op.EQUALS,
+                new IntField(value)).cardinality();
+    }
+
+    /**
+     * An abort clears the bits of the tuples it inserted and keeps those of
+     * the tuples it deleted
+     */
+    @Test public void abort() throws Exception {
+        int twos = cardinality(1, 2);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(1)).getValue() == 2)
+                deleted.add(t);
+        }
+        it.close();
+        for (Tuple t : deleted)
+            Database.getBufferPool().deleteTuple(tid, t);
+        // an insert into a slot freed by the transaction, then deleted again
+        Tuple t = Utility.getHeapTuple(new int[] { 0, VALUES, VALUES });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(1, cardinality(1, VALUES));
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(0, cardinality(1, VALUES));
+        for (int i = 0; i < 10; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, VALUES, 0 }));
+        assertEquals(10, cardinality(1, VALUES));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        assertEquals(twos, cardinality(1, 2));
+        assertEquals(0, cardinality(1, VALUES));
+        assertEquals(twos, countMatches(new Predicate[] { eq(1, 2) }, null));
+    }
+
+    /**
+     * The bitmaps are not persisted: an index built again from its table,
+     * as when the database is opened, holds the bits the running index
+     * reached through inserts and deletes
+     */
+    @Test public void rebuild() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(2)).getValue() == 1)
+                deleted.add(t);
+        }
+        it.close();
+        for (Tuple t : deleted)
+            Database.getBufferPool().deleteTuple(tid, t);
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, i % 3, 7 }));
+        Database.getBufferPool().transactionComplete(tid);
+
+        BitmapIndex running = Database.getCatalog().getBitmapIndex(hf.getId(), 2);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().addTable(hf, "t");
+        assertNull(Database.getCatalog().getBitmapIndex(hf.getId(), 2));
+        BitmapIndex rebuilt = BitmapIndex.create(hf.getId(), 2);
+        assertEquals(running.numValues(), rebuilt.numValues());
+        for (int v = 0; v <= VALUES; v++)
+            assertEquals(toSet(running.lookup(Predicate.Op.EQUALS, new IntField(v))),
+                    toSet(rebuilt.lookup(Predicate.Op.EQUALS, new IntField(v))));
+    }
+
+    /**
+     * The parser accepts an OR expression over fields with bitmap indexes,
+     * which the planner answers with a bitmap scan
+     */
+    @Test public void planDisjunction() throws Exception {
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if ((t.get(1) == 1 || t.get(2) < 2) && t.get(0) > 3)
+                expected++;
+        }
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0 FROM t WHERE (t.c1 = 1 OR t.c2 < 2) AND t.c0 > 3;");
+        DbIterator it = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) it).getChildren()[0] instanceof BitmapScan);
+
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Filters written constant first compare the field the other way round,
+     * in disjunctions and in plain filters
+     */
+    @Test public void constantFirst() throws Exception {
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if ((t.get(2) < 2 || t.get(1) >= 6) && t.get(0) > 3)
+                expected++;
+        }
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0 FROM t WHERE (2 > t.c2 OR 6 <= t.c1) AND 3 < t.c0;");
+        DbIterator it = lp.physicalPlan(tid, stats, false);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BitmapIndexTest.class);
+    }
+}
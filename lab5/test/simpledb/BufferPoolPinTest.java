@@ -0,0 +1,119 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private static final int PAGES = 6;
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        int perPage = BufferPool.getPageSize() * 8 / (2 * Type.INT_TYPE.getLen() * 8 + 1);
+        hf = SystemTestUtil.createRandomHeapFile(2, PAGES * perPage, null, null);
+        assertEquals(PAGES, hf.numPages());
+    }
+
+    private PageId page(int pageNo) {
+        return new HeapPageId(hf.getId(), pageNo);
+    }
+
+    /**
+     * A pinned page stays in the pool while other pages are read through it,
+     * and may be evicted once it is unpinned
+     */
+    @Test public void pinnedPageStays() throws Exception {
+        Database.resetBufferPool(3);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        Page pinned = bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        for (int i = 0; i < 2; i++) {
+            for (int p = 1; p < PAGES; p++)
+                bp.getPage(tid, page(p), Permissions.READ_ONLY);
+        }
+        assertSame(pinned, bp.getPage(tid, page(0), Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, page(0));
+        for (int i = 0; i < 2; i++) {
+            for (int p = 1; p < PAGES; p++)
+                bp.getPage(tid, page(p), Permissions.READ_ONLY);
+        }
+        assertNotSame(pinned, bp.getPage(tid, page(0), Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A pool whose pages are all pinned cannot read another page, until the
+     * transaction holding the pins completes
+     */
+    @Test public void allPinned() throws Exception {
+        Database.resetBufferPool(2);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, page(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, page(2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        bp.getPage(tid, page(2), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A scan pins only the page it is reading, and unpins it when closed
+     */
+    @Test public void scanPinsOnePage() throws Exception {
+        Database.resetBufferPool(2);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+        bp.unpinPage(tid, page(0));
+
+        // both frames are free to hold other pages again
+        bp.getPage(tid, page(PAGES - 2), Permissions.READ_ONLY);
+        bp.getPage(tid, page(PAGES - 1), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Locks no transaction holds leave no entry behind
+     */
+    @Test public void lockTableBounded() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 100; i++) {
+            TransactionId tid = new TransactionId();
+            for (int p = 0; p < PAGES; p++)
+                bp.getPage(tid, page(p), i % 2 == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+            assertEquals(PAGES, bp.numLockedPages());
+            bp.releasePage(tid, page(0));
+            assertEquals(PAGES - 1, bp.numLockedPages());
+            bp.transactionComplete(tid);
+        }
+        assertEquals(0, bp.numLockedPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
@@ -0,0 +1,253 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompositeIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int VALUES = 64;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private SecondaryIndex index;
+
+    /**
+     * Set up a table "t" of six columns with an index keyed on (c1, c2) that
+     * includes c0
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(6, ROWS, VALUES, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "t");
+        File f = File.createTempFile("t_c1_c2", ".idx");
+        f.deleteOnExit();
+        index = SecondaryIndex.create(hf.getId(), new int[] { 1, 2 }, new int[] { 0 }, f);
+    }
+
+    private static int compareLexicographic(Field[] a, Field[] b) {
+        for (int k = 0; k < a.length; k++) {
+            if (a[k].compare(Predicate.Op.LESS_THAN, b[k]))
+                return -1;
+            if (a[k].compare(Predicate.Op.GREATER_THAN, b[k]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Keys sort like the values they encode, in lexicographic order, and
+     * decode back to them
+     */
+    @Test public void encoding() throws Exception {
+        Random rand = new Random(11);
+        Type[] types = new Type[] { Type.STRING_TYPE, Type.INT_TYPE };
+        String[] strings = { "", "a", "ab", "abc", "b", "B", " ", "\u0000", "a\u0001", "\u0002b", "|", "}",
+                "~", "\u007f", "\u00e9t\u00e9", "\u4e2d", "\uffff" };
+        int[] ints = { Integer.MIN_VALUE, -5, -1, 0, 1, 5, Integer.MAX_VALUE };
+        Field[][] values = new Field[200][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new Field[] { new StringField(strings[rand.nextInt(strings.length)], Type.STRING_LEN),
+                    new IntField(ints[rand.nextInt(ints.length)]) };
+        }
+        for (Field[] a : values) {
+            StringField ka = CompositeKey.encode(a);
+            assertArrayEquals(a, CompositeKey.decode(ka, types));
+            for (Field[] b : values) {
+                int expected = compareLexicographic(a, b);
+                StringField kb = CompositeKey.encode(b);
+                assertEquals(expected < 0, ka.compare(Predicate.Op.LESS_THAN, kb));
+                assertEquals(expected == 0, ka.equals(kb));
+            }
+        }
+    }
+
+    /**
+     * Tuples whose composite key is too long are rejected before the table is
+     * changed, and keys that cannot fit are rejected when the index is created
+     */
+    @Test public void keyLength() throws Exception {
+        File hfFile = File.createTempFile("strings", ".dat");
+        hfFile.deleteOnExit();
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new String[] { "s", "i" });
+        HeapFile sf = new HeapFile(hfFile, td);
+        Database.getCatalog().addTable(sf, "s");
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(td);
+        t.setField(0, new StringField("\u00e9t\u00e9", Type.STRING_LEN));
+        t.setField(1, new IntField(1));
+        Database.getBufferPool().insertTuple(tid, sf.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+        File f = File.createTempFile("s_s_i", ".idx");
+        f.deleteOnExit();
+        SecondaryIndex si = SecondaryIndex.create(sf.getId(), new int[] { 0, 1 }, new int[0], f);
+
+        tid = new TransactionId();
+        t = new Tuple(td);
+        t.setField(0, new StringField(new String(new char[40]).replace('\0', '\u00e9'), Type.STRING_LEN));
+        t.setField(1, new IntField(2));
+        try {
+            Database.getBufferPool().insertTuple(tid, sf.getId(), t);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // the key takes 169 characters
+        }
+        DbFileIterator it = sf.iterator(tid);
+        it.open();
+        assertEquals(1, ((IntField) it.next().getField(1)).getValue());
+        assertFalse(it.hasNext());
+        it.close();
+        it = si.entryIterator(tid, new Predicate[] { new Predicate(0, Predicate.Op.EQUALS,
+                new StringField("\u00e9t\u00e9", Type.STRING_LEN)) });
+        it.open();
+        assertEquals("\u00e9t\u00e9", ((StringField) si.tableTuple(it.next()).getField(0)).getValue());
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        int[] keyFields = new int[16];
+        for (int k = 0; k < keyFields.length; k++)
+            keyFields[k] = k;
+        HeapFile wide = SystemTestUtil.createRandomHeapFile(16, 10, null, null);
+        Database.getCatalog().addTable(wide, "wide");
+        try {
+            SecondaryIndex.create(wide.getId(), keyFields, new int[0], f);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // 16 ints take 128 characters
+        }
+    }
+
+    private int count(Predicate[] preds) {
+        int count = 0;
+        for (ArrayList<Integer> t : tuples) {
+            boolean match = true;
+            for (Predicate p : preds)
+                match &= new IntField(t.get(p.getField())).compare(p.getOp(), p.getOperand());
+            if (match)
+                count++;
+        }
+        return count;
+    }
+
+    private int scan(Predicate[] preds) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t", new int[] { 0, 1, 2 }, preds);
+        int count = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            for (Predicate p : preds)
+                assertTrue(p.filter(t));
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static Predicate pred(int field, Predicate.Op op, int value) {
+        return new Predicate(field, op, new IntField(value));
+    }
+
+    /**
+     * Predicates over a prefix of the key fields are answered from the
+     * entries alone, also after the table is changed
+     */
+    @Test public void prefixRanges() throws Exception {
+        Predicate[][] cases = {
+            {},
+            { pred(1, Predicate.Op.EQUALS, 3) },
+            { pred(1, Predicate.Op.GREATER_THAN, 60) },
+            { pred(1, Predicate.Op.EQUALS, 3), pred(2, Predicate.Op.EQUALS, 5) },
+            { pred(1, Predicate.Op.EQUALS, 3), pred(2, Predicate.Op.LESS_THAN, 20) },
+            { pred(1, Predicate.Op.EQUALS, 3), pred(2, Predicate.Op.GREATER_THAN_OR_EQ, 20) },
+            { pred(1, Predicate.Op.EQUALS, 3), pred(2, Predicate.Op.LESS_THAN_OR_EQ, 20),
+                    pred(0, Predicate.Op.GREATER_THAN, 30) },
+            // only the first key field bounds the range
+            { pred(2, Predicate.Op.EQUALS, 5) },
+        };
+        assertEquals(2, index.rangePredicates(cases[4]).length);
+        assertEquals(0, index.rangePredicates(cases[7]).length);
+        for (Predicate[] preds : cases)
+            assertEquals(count(preds), scan(preds));
+
+        // insert tuples with the key (3, 5), and delete one of the existing
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, 3, 5, 0, 0, 0 }));
+            tuples.add(new ArrayList<Integer>(java.util.Arrays.asList(i, 3, 5, 0, 0, 0)));
+        }
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(1)).getValue() == 3 && ((IntField) t.getField(2)).getValue() == 5) {
+                Database.getBufferPool().deleteTuple(tid, t);
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                for (int i = 0; i < 6; i++)
+                    row.add(((IntField) t.getField(i)).getValue());
+                tuples.remove(row);
+                break;
+            }
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(count(cases[3]), scan(cases[3]));
+    }
+
+    /**
+     * The planner answers a query over the key and included fields with an
+     * index-only scan, which returns the same tuples as the table
+     */
+    @Test public void planIndexOnly() throws Exception {
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) == 3 && t.get(2) < 20 && t.get(0) > 10)
+                expected++;
+        }
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0, t.c2 FROM t WHERE t.c1 = 3 AND t.c2 < 20 AND t.c0 > 10;");
+        DbIterator it = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) it).getChildren()[0] instanceof IndexOnlyScan);
+
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a query reading a field the index does not hold reads the table
+        tid = new TransactionId();
+        lp = new Parser().generateLogicalPlan(tid, "SELECT t.c3 FROM t WHERE t.c1 = 3;");
+        it = lp.physicalPlan(tid, stats, false);
+        assertFalse(((Operator) it).getChildren()[0] instanceof IndexOnlyScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompositeIndexTest.class);
+    }
+}
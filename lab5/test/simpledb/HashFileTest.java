@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashFileTest extends SimpleDbTestBase {
+    private static final int KEYS = 1000;
+    private static final int COPIES = 5;
+
+    private HashFile hash;
+
+    /**
+     * Set up a hash table "h" keyed on its first column, holding COPIES
+     * tuples for each of KEYS keys
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("hash", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        hash = new HashFile(f, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hash, "h");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < KEYS * COPIES; i++) {
+            Database.getBufferPool().insertTuple(tid, hash.getId(), Utility.getHeapTuple(new int[] { i % KEYS, i }));
+            if (i % 250 == 249) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int countLookup(TransactionId tid, int key) throws Exception {
+        DbFileIterator it = hash.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * The file splits buckets as it grows, and finds every tuple of a key
+     * afterwards
+     */
+    @Test public void insertLookup() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashHeaderPage header = (HashHeaderPage) Database.getBufferPool().getPage(tid,
+                new HashPageId(hash.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(header.numBuckets() > 1);
+        for (int key = 0; key < KEYS; key += 37)
+            assertEquals(COPIES, countLookup(tid, key));
+        assertEquals(0, countLookup(tid, KEYS));
+
+        DbFileIterator it = hash.iterator(tid);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(KEYS * COPIES, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Deleted tuples are no longer found, and their slots are reused
+     */
+    @Test public void deleteInsert() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hash.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(3)));
+        ArrayList<Tuple> matches = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            matches.add(it.next());
+        it.close();
+        for (Tuple t : matches)
+            Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(0, countLookup(tid, 3));
+
+        int pages = hash.numPages();
+        Database.getBufferPool().insertTuple(tid, hash.getId(), Utility.getHeapTuple(new int[] { 3, -1 }));
+        assertEquals(1, countLookup(tid, 3));
+        assertEquals(pages, hash.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An equality join on a field with a secondary hash index looks up the
+     * indexed table for each tuple of the other
+     */
+    @Test public void indexJoin() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10000, 500, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "t");
+        File f = File.createTempFile("t_c1", ".idx");
+        f.deleteOnExit();
+        SecondaryIndex index = SecondaryIndex.createHash(hf.getId(), 1, f);
+        assertTrue(index.getFile() instanceof HashFile);
+        ArrayList<ArrayList<Integer>> outer = new ArrayList<ArrayList<Integer>>();
+        HeapFile of = SystemTestUtil.createRandomHeapFile(2, 10, 500, null, outer, "c");
+        Database.getCatalog().addTable(of, "o");
+
+        int expected = 0;
+        for (ArrayList<Integer> o : outer) {
+            for (ArrayList<Integer> t : tuples) {
+                if (o.get(0).equals(t.get(1)))
+                    expected++;
+            }
+        }
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        stats.put("o", new TableStats(of.getId(), TableStats.IOCOSTPERPAGE));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addScan(of.getId(), "o");
+        lp.addJoin("o.c0", "t.c1", Predicate.Op.EQUALS);
+        lp.addProjectField("t.c0", null);
+        DbIterator it = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) it).getChildren()[0] instanceof IndexJoin);
+
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Index joins are only costed when the plan of the inner table is a scan
+     * the join can look up, as it is only built then
+     */
+    @Test public void indexJoinCostNeedsSeqScan() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10000, 5000, null, new ArrayList<ArrayList<Integer>>(), "c");
+        Database.getCatalog().addTable(hf, "t");
+        File f = File.createTempFile("t_c1", ".idx");
+        f.deleteOnExit();
+        SecondaryIndex.createHash(hf.getId(), 1, f);
+        HeapFile of = SystemTestUtil.createRandomHeapFile(2, 10, 500, null, new ArrayList<ArrayList<Integer>>(), "c");
+        Database.getCatalog().addTable(of, "o");
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        stats.put("o", new TableStats(of.getId(), TableStats.IOCOSTPERPAGE));
+        LogicalJoinNode j = new LogicalJoinNode("o", "t", "c0", "c1", Predicate.Op.EQUALS);
+        TransactionId tid = new TransactionId();
+        for (boolean filtered : new boolean[] { false, true }) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(hf.getId(), "t");
+            lp.addScan(of.getId(), "o");
+            lp.addJoin("o.c0", "t.c1", Predicate.Op.EQUALS);
+            // an equality on the indexed field makes t an index scan
+            if (filtered)
+                lp.addFilter("t.c1", Predicate.Op.EQUALS, "7");
+            lp.addProjectField("t.c0", null);
+            DbIterator it = lp.physicalPlan(tid, stats, false);
+            double cost = new JoinOptimizer(lp, new Vector<LogicalJoinNode>()).estimateIndexJoinCost(j, 10, 1, stats);
+            assertEquals(filtered, cost == Double.MAX_VALUE);
+            assertEquals(!filtered, ((Operator) it).getChildren()[0] instanceof IndexJoin);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashFileTest.class);
+    }
+}
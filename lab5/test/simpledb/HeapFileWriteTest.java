@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +46,76 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for the free space map used by HeapFile.insertTuple()
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        // full pages are skipped without being locked
+        tid = new TransactionId();
+        HeapPageId first = new HeapPageId(empty.getId(), 0);
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, t.getRecordId().getPageId().pageNumber());
+        assertFalse(Database.getBufferPool().holdsLock(tid, first));
+
+        // room made by a delete is reused
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, first, Permissions.READ_WRITE);
+        Tuple victim = page.iterator().next();
+        empty.deleteTuple(tid, victim);
+        t = Utility.getHeapTuple(2, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * Only heap files that persist their maps create a free space map side
+     * file, with their first page write, and the side file is discarded once
+     * it no longer matches the heap file
+     */
+    @Test public void freeSpaceMapFile() throws Exception {
+        File f = File.createTempFile("fsm", ".dat");
+        f.deleteOnExit();
+        try {
+            HeapFile hf = Utility.openHeapFile(2, f);
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData()));
+            assertFalse(FreeSpaceMap.fileFor(f).exists());
+
+            hf = new HeapFile(f, Utility.getTupleDesc(2), true);
+            assertFalse(FreeSpaceMap.fileFor(f).exists());
+            for (int i = 0; i < 2; i++)
+                hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData()));
+            assertTrue(FreeSpaceMap.fileFor(f).exists());
+            FreeSpaceMap map = new FreeSpaceMap(FreeSpaceMap.fileFor(f), f);
+            assertEquals(FreeSpaceMap.MAX_COUNT, map.get(1));
+
+            // a page appended without the map
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            raf.setLength(raf.length() + BufferPool.getPageSize());
+            raf.close();
+            map = new FreeSpaceMap(FreeSpaceMap.fileFor(f), f);
+            assertEquals(FreeSpaceMap.UNKNOWN, map.get(1));
+            assertFalse(FreeSpaceMap.fileFor(f).exists());
+
+            // room written again, then a page write that never completed
+            map.write(1, 0);
+            assertEquals(0, new FreeSpaceMap(FreeSpaceMap.fileFor(f), f).get(1));
+            map.beginWrite();
+            assertEquals(FreeSpaceMap.UNKNOWN, new FreeSpaceMap(FreeSpaceMap.fileFor(f), f).get(1));
+
+            // a replaced heap file
+            map.write(1, 0);
+            Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+            assertEquals(FreeSpaceMap.UNKNOWN, new FreeSpaceMap(FreeSpaceMap.fileFor(f), f).get(1));
+        } finally {
+            SideFiles.delete(f);
+        }
+    }
+
     /**
      * JUnit suite target
      */
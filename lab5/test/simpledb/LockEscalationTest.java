@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.LockManager.LockMode;
+import simpledb.TestUtil.LockGrabber;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockEscalationTest extends SimpleDbTestBase {
+    private static final int PAGES = 12;
+    private static final int THRESHOLD = 4;
+
+    /** Time to wait before checking that a lock is still awaited, in ms */
+    private static final int TIMEOUT = 100;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        int perPage = BufferPool.getPageSize() * 8 / (2 * Type.INT_TYPE.getLen() * 8 + 1);
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, PAGES * perPage, null, tuples);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setLockEscalationThreshold(THRESHOLD);
+    }
+
+    private PageId page(int p) {
+        return new HeapPageId(hf.getId(), p);
+    }
+
+    /**
+     * A scan past the threshold ends up holding a shared table lock instead
+     * of page locks, which still lets other transactions read the table
+     */
+    @Test public void scanEscalates() throws Exception {
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        assertEquals(LockMode.S, bp.tableLockMode(tid, hf.getId()));
+        assertEquals(0, bp.numLockedPages());
+        for (int p = 0; p < PAGES; p++)
+            assertTrue(bp.holdsLock(tid, page(p)));
+
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, page(0), Permissions.READ_ONLY);
+        bp.transactionComplete(reader);
+
+        LockGrabber writer = new LockGrabber(new TransactionId(), page(PAGES - 1), Permissions.READ_WRITE);
+        writer.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(writer.acquired());
+        bp.transactionComplete(tid);
+        writer.join();
+        assertTrue(writer.acquired());
+    }
+
+    /**
+     * A transaction writing many pages escalates to an exclusive table lock
+     */
+    @Test public void writerEscalates() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int p = 0; p <= THRESHOLD; p++)
+            bp.getPage(tid, page(p), Permissions.READ_WRITE);
+        assertEquals(LockMode.X, bp.tableLockMode(tid, hf.getId()));
+        assertEquals(0, bp.numLockedPages());
+
+        LockGrabber reader = new LockGrabber(new TransactionId(), page(PAGES - 1), Permissions.READ_ONLY);
+        reader.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(reader.acquired());
+        bp.transactionComplete(tid);
+        reader.join();
+        assertTrue(reader.acquired());
+    }
+
+    /**
+     * Readers and writers of different pages share the table through
+     * intention locks, and a reader does not escalate while a writer holds
+     * its intention lock
+     */
+    @Test public void intentionLocks() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.getPage(writer, page(PAGES - 1), Permissions.READ_WRITE);
+        assertEquals(LockMode.IX, bp.tableLockMode(writer, hf.getId()));
+
+        TransactionId reader = new TransactionId();
+        for (int p = 0; p < PAGES - 1; p++)
+            bp.getPage(reader, page(p), Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, bp.tableLockMode(reader, hf.getId()));
+        assertEquals(PAGES, bp.numLockedPages());
+
+        bp.transactionComplete(writer);
+        bp.transactionComplete(reader);
+        assertEquals(0, bp.numLockedPages());
+        assertNull(bp.tableLockMode(reader, hf.getId()));
+    }
+
+    /**
+     * A transaction that writes a table it escalated to a shared lock adds an
+     * intention exclusive lock and locks the pages it writes, and aborting it
+     * restores them
+     */
+    @Test public void upgradeAfterEscalation() throws Exception {
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        HeapPage page = (HeapPage) bp.getPage(tid, page(0), Permissions.READ_WRITE);
+        assertEquals(LockMode.SIX, bp.tableLockMode(tid, hf.getId()));
+        assertEquals(1, bp.numLockedPages());
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        page.markDirty(true, tid);
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockEscalationTest.class);
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    /**
+     * Bytes are written at the position the buffer starts at, when the ring
+     * is full or when it is flushed, across the segments of the log
+     */
+    @Test public void ringWrites() throws Exception {
+        File f = File.createTempFile("logbuffer", ".dat");
+        f.deleteOnExit();
+        LogSegments segments = new LogSegments(f, 24);
+        LogBuffer buffer = new LogBuffer(2, 16);
+        buffer.reset(segments, 8);
+
+        byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        buffer.write(data, 0, 20);
+        assertEquals(8, buffer.flushedPosition());
+        buffer.write(data, 20, 20);
+        // the ring filled up once
+        assertEquals(8 + 32, buffer.flushedPosition());
+        assertEquals(8 + 40, buffer.position());
+        buffer.flush();
+        assertEquals(8 + 40, buffer.flushedPosition());
+
+        byte[] read = new byte[40];
+        new DataInputStream(segments.reader(8)).readFully(read);
+        assertArrayEquals(data, read);
+        segments.clear();
+    }
+
+    /**
+     * Records get increasing LSNs, and are only forced when asked to
+     */
+    @Test public void flushedLSN() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = new HeapPage(new HeapPageId(SystemTestUtil.createRandomHeapFile(2, 1, null, null).getId(), 0),
+                HeapPage.createEmptyPageData());
+        long first = log.logWrite(tid, page, page);
+        long second = log.logWrite(tid, page, page);
+        assertTrue(first < second);
+        assertTrue(log.getFlushedLSN() <= first);
+
+        log.flushTo(first);
+        assertTrue(log.getFlushedLSN() > second);
+        assertEquals(log.getFlushedLSN(), log.currentOffset);
+    }
+
+    /**
+     * The buffer pool forces the update of a page to the log before writing
+     * the page
+     */
+    @Test public void writeAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        long before = Database.getLogFile().getFlushedLSN();
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getLogFile().getFlushedLSN() > before);
+        assertEquals(Database.getLogFile().getFlushedLSN(), Database.getLogFile().currentOffset);
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
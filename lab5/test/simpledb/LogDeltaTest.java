@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogDeltaTest extends SimpleDbTestBase {
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 20, null, tuples);
+    }
+
+    // insert a tuple in a transaction of its own, committed or not
+    private Transaction insert(int value, boolean commit) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value, 2));
+        if (commit)
+            t.commit();
+        return t;
+    }
+
+    private void check() throws Exception {
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The first update of a page logs its images, and later ones only the
+     * bytes they change
+     */
+    @Test public void updatesLogDeltas() throws Exception {
+        LogFile log = Database.getLogFile();
+        insert(1, true);
+        long first = log.currentOffset;
+        assertTrue(first > 2 * BufferPool.getPageSize());
+
+        insert(2, true);
+        long second = log.currentOffset - first;
+        assertTrue("logged " + second + " bytes", second < 200);
+    }
+
+    /**
+     * Aborting a transaction whose page was flushed restores the page on
+     * disk from the log
+     */
+    @Test public void rollbackFlushedPage() throws Exception {
+        insert(1, true);
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(1, 2)));
+        Transaction t = insert(2, false);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        check();
+    }
+
+    /**
+     * Recovery redoes the committed updates whose pages were lost, undoes
+     * those of transactions that did not complete, and aborts them so that
+     * recovering again changes nothing
+     */
+    @Test public void recover() throws Exception {
+        insert(1, true);
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(1, 2)));
+        insert(2, false);
+        Database.getBufferPool().flushAllPages();
+
+        // the committed page is lost, and the uncommitted one is on disk
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        raf.write(new byte[BufferPool.getPageSize()]);
+        raf.close();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+        check();
+
+        insert(3, true);
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(3, 2)));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+        check();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogDeltaTest.class);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private static File tempLog() throws Exception {
+        File f = File.createTempFile("logsegments", ".log");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static File segment(File log, long n) {
+        return new File(log.getPath() + "." + n);
+    }
+
+    /**
+     * Truncation drops the segments before the position still needed, and
+     * keeps them as the next segments of the log
+     */
+    @Test public void truncateRecycles() throws Exception {
+        File f = tempLog();
+        LogSegments segments = new LogSegments(f, 1024);
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        segments.write(0, new ByteBuffer[] { ByteBuffer.wrap(data) }, 1);
+        assertTrue(segment(f, 4).exists());
+        assertEquals(1024, segment(f, 4).length());
+
+        segments.truncate(3000, 5000);
+        assertEquals(2048, segments.start());
+        assertFalse(segment(f, 0).exists());
+        assertFalse(segment(f, 1).exists());
+        assertTrue(segment(f, 5).exists());
+        assertTrue(segment(f, 6).exists());
+
+        byte[] read = new byte[5000 - 2048];
+        new DataInputStream(segments.reader(2048)).readFully(read);
+        for (int i = 0; i < read.length; i++)
+            assertEquals(data[2048 + i], read[i]);
+        segments.clear();
+        assertFalse(segment(f, 2).exists());
+    }
+
+    /**
+     * A checkpoint truncates the log, which recovers past the recycled
+     * segments and keeps appending at increasing LSNs
+     */
+    @Test public void checkpointTruncates() throws Exception {
+        File f = tempLog();
+        LogFile log = new LogFile(f, 4096);
+        for (int i = 0; i < 1000; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        long end = log.currentOffset;
+        assertTrue(end > 3 * 4096);
+        log.logCheckpoint();
+        assertFalse(segment(f, 0).exists());
+        log.force();
+
+        LogFile recovered = new LogFile(f, 4096);
+        recovered.recover();
+        assertTrue(recovered.currentOffset > end);
+        TransactionId tid = new TransactionId();
+        recovered.logXactionBegin(tid);
+        recovered.logCommit(tid);
+        assertTrue(recovered.getFlushedLSN() > end);
+        recovered.shutdown();
+        new LogSegments(f, 4096).clear();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HashMap<String, TableStats> stats;
+	private int tableId;
+
+	/**
+	 * Set up a B+ tree table "t" keyed on c0, large enough that an index
+	 * lookup is cheaper than a full scan
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+		BTreeFile named = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(named, "t");
+		tableId = named.getId();
+
+		stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(tableId, TableStats.IOCOSTPERPAGE));
+	}
+
+	private int countMatches(int field, int value) {
+		int count = 0;
+		for (ArrayList<Integer> tuple : tuples) {
+			if (tuple.get(field) == value)
+				count++;
+		}
+		return count;
+	}
+
+	private DbIterator plan(String field, Predicate.Op op, int value,
+			TransactionId tid) throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableId, "t");
+		lp.addFilter(field, op, String.valueOf(value));
+		lp.addProjectField("t.c1", null);
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	/**
+	 * An equality filter on the key field is answered with a BTreeScan
+	 */
+	@Test
+	public void keyFilterUsesIndex() throws Exception {
+		int key = tuples.get(0).get(0);
+		TransactionId tid = new TransactionId();
+		DbIterator it = plan("t.c0", Predicate.Op.EQUALS, key, tid);
+
+		DbIterator[] children = ((Operator) it).getChildren();
+		assertTrue(children[0] instanceof BTreeScan);
+
+		int count = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(countMatches(0, key), count);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A filter on a field without an index is pushed into the sequential scan
+	 */
+	@Test
+	public void nonKeyFilterUsesSeqScan() throws Exception {
+		int value = tuples.get(0).get(1);
+		TransactionId tid = new TransactionId();
+		DbIterator it = plan("t.c1", Predicate.Op.EQUALS, value, tid);
+
+		assertTrue(((Operator) it).getChildren()[0] instanceof SeqScan);
+
+		int count = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(countMatches(1, value), count);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Ordering by the key field reads the table in key order with a BTreeScan,
+	 * and needs no OrderBy, also when the order is descending
+	 */
+	@Test
+	public void orderByKeyUsesOrderedScan() throws Exception {
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (ArrayList<Integer> tuple : tuples) {
+			if (tuple.get(0) < 30000)
+				expected.add(tuple.get(0));
+		}
+		Collections.sort(expected, Collections.reverseOrder());
+
+		TransactionId tid = new TransactionId();
+		LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+				"SELECT t.c0 FROM t WHERE t.c0 < 30000 ORDER BY t.c0 DESC;");
+		DbIterator it = lp.physicalPlan(tid, stats, false);
+		DbIterator scan = ((Operator) it).getChildren()[0];
+		assertTrue(scan instanceof BTreeScan);
+		assertTrue(((BTreeScan) scan).isDescending());
+
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		it.open();
+		while (it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		it.close();
+		assertEquals(expected, keys);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LogicalPlanTest.class);
+	}
+}
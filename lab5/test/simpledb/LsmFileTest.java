@@ -0,0 +1,300 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LsmFileTest extends SimpleDbTestBase {
+    private static final int KEYS = 1000;
+    private static final int COPIES = 3;
+
+    private File f;
+    private LsmFile lsm;
+
+    /**
+     * Set up an LSM table "l" keyed on its first column, with small
+     * memtables and runs
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("lsm", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        lsm = new LsmFile(f, 0, Utility.getTupleDesc(2));
+        lsm.setSizes(2, 2);
+        Database.getCatalog().addTable(lsm, "l");
+    }
+
+    // insert COPIES tuples for each of KEYS keys, in an order unrelated to
+    // the keys
+    private void insertAll() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < KEYS * COPIES; i++) {
+            int key = (i * 7919) % KEYS;
+            Database.getBufferPool().insertTuple(tid, lsm.getId(), Utility.getHeapTuple(new int[] { key, i }));
+            if (i % 250 == 249) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // the keys of the tuples an iterator returns, checking they are sorted
+    private ArrayList<Integer> keys(DbFileIterator it) throws Exception {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        it.open();
+        while (it.hasNext()) {
+            int key = ((IntField) it.next().getField(0)).getValue();
+            if (!keys.isEmpty())
+                assertTrue(keys.get(keys.size() - 1) <= key);
+            keys.add(key);
+        }
+        it.close();
+        return keys;
+    }
+
+    private int countLookup(TransactionId tid, int key) throws Exception {
+        ArrayList<Integer> keys = keys(lsm.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key))));
+        for (int k : keys)
+            assertEquals(key, k);
+        return keys.size();
+    }
+
+    /**
+     * Tuples are returned in key order from the memtable, and from the runs
+     * it is flushed to
+     */
+    @Test public void insertScan() throws Exception {
+        insertAll();
+        TransactionId tid = new TransactionId();
+        assertEquals(KEYS * COPIES, keys(lsm.iterator(tid)).size());
+        Database.getBufferPool().transactionComplete(tid);
+
+        lsm.flush();
+        int runs = 0;
+        for (int n : lsm.levelSizes())
+            runs += n;
+        assertTrue(runs > 1);
+        tid = new TransactionId();
+        assertEquals(KEYS * COPIES, keys(lsm.iterator(tid)).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Lookups and range scans find the tuples of their keys in the runs of
+     * every level
+     */
+    @Test public void lookup() throws Exception {
+        insertAll();
+        lsm.flush();
+        assertTrue(lsm.levelSizes().length > 1);
+        TransactionId tid = new TransactionId();
+        for (int key = 0; key < KEYS; key += 37)
+            assertEquals(COPIES, countLookup(tid, key));
+        assertEquals(0, countLookup(tid, KEYS));
+        assertEquals(10 * COPIES, keys(lsm.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(KEYS - 10)))).size());
+        assertEquals(10 * COPIES, keys(lsm.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(10)))).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Deleting tuples of runs writes tombstones that hide them, through
+     * flushes and compactions, while tuples of the memtable are removed
+     */
+    @Test public void deleteTombstones() throws Exception {
+        insertAll();
+        lsm.flush();
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, lsm.getId(), Utility.getHeapTuple(new int[] { 3, -1 }));
+        DbFileIterator it = lsm.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(3)));
+        ArrayList<Tuple> matches = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            matches.add(it.next());
+        it.close();
+        assertEquals(COPIES + 1, matches.size());
+        for (Tuple t : matches)
+            Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(0, countLookup(tid, 3));
+        Database.getBufferPool().transactionComplete(tid);
+
+        lsm.flush();
+        tid = new TransactionId();
+        assertEquals(0, countLookup(tid, 3));
+        assertEquals(COPIES, countLookup(tid, 4));
+        assertEquals((KEYS - 1) * COPIES, keys(lsm.iterator(tid)).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Committed inserts to the memtable whose pages were lost are redone
+     * by recovery
+     */
+    @Test public void recover() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(t.getId(), lsm.getId(), Utility.getHeapTuple(new int[] { i, i }));
+        t.commit();
+
+        RandomAccessFile raf = new RandomAccessFile(new File(f.getPath() + ".mem0"), "rw");
+        raf.write(new byte[BufferPool.getPageSize()]);
+        raf.close();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+
+        TransactionId tid = new TransactionId();
+        assertEquals(100, keys(lsm.iterator(tid)).size());
+        assertEquals(1, countLookup(tid, 42));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Memtable pages keep their entries in key order through inserts and
+     * deletes, and sort them again when read from their data
+     */
+    @Test public void pageEntriesSorted() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        LsmPage page = new LsmPage(new HeapPageId(lsm.getId(), 0), LsmPage.createEmptyPageData(), td, 0);
+        int n = Math.min(LsmPage.getMaxEntries(td), 50);
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = Utility.getHeapTuple(new int[] { (i * 17) % n, i });
+            page.insertEntry(t, false);
+            inserted.add(t);
+        }
+        page.deleteTuple(inserted.get(3));
+        LsmPage read = new LsmPage(page.getId(), page.getPageData(), td, 0);
+        for (LsmPage p : new LsmPage[] { page, read }) {
+            List<LsmRun.Entry> entries = p.entries(null);
+            assertEquals(n - 1, entries.size());
+            for (int i = 1; i < entries.size(); i++)
+                assertTrue(key(entries.get(i - 1)) <= key(entries.get(i)));
+            List<LsmRun.Entry> from = p.entries(new IntField(n / 2));
+            // the keys are distinct, and the deleted one is below n / 2
+            assertEquals(n - n / 2, from.size());
+            assertEquals(n / 2, key(from.get(0)));
+        }
+    }
+
+    private static int key(LsmRun.Entry e) {
+        return ((IntField) e.tuple.getField(0)).getValue();
+    }
+
+    /**
+     * A flush that finds memtable pages locked by transactions gives way to
+     * them, and is retried until the memtable is flushed
+     */
+    @Test public void flushGivesWayToTransactions() throws Exception {
+        lsm.setSizes(100, 2);
+        int committed = 2 * LsmPage.getMaxEntries(Utility.getTupleDesc(2)) + 1;
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < committed; i++)
+            Database.getBufferPool().insertTuple(tid, lsm.getId(), Utility.getHeapTuple(new int[] { i, i }));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // deletes lock the first two pages; the transaction of the first one
+        // then reads the last, which the flush would lock next if it waited
+        // for the pages in its way
+        TransactionId deleter = new TransactionId();
+        deleteFirst(deleter, 1);
+        TransactionId writer = new TransactionId();
+        deleteFirst(writer, 0);
+        final Exception[] error = new Exception[1];
+        Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    lsm.flush();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        flusher.start();
+        Thread.sleep(100);
+        Database.getBufferPool().getPage(writer, new HeapPageId(lsm.getId(), 2), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(writer);
+        Database.getBufferPool().transactionComplete(deleter);
+        flusher.join();
+        assertNull(error[0]);
+
+        int runs = 0;
+        for (int n : lsm.levelSizes())
+            runs += n;
+        assertEquals(1, runs);
+        tid = new TransactionId();
+        assertEquals(committed - 2, keys(lsm.iterator(tid)).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Scans opened while the background thread flushes the memtable pages
+     * they read are never aborted for the flush
+     */
+    @Test public void scanDuringFlush() throws Exception {
+        lsm.setSizes(4, 8);
+        int perPage = LsmPage.getMaxEntries(Utility.getTupleDesc(2));
+        int inserted = 0;
+        for (int batch = 0; batch < 100; batch++) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < perPage; i++, inserted++)
+                Database.getBufferPool().insertTuple(tid, lsm.getId(), Utility.getHeapTuple(new int[] { inserted, i }));
+            Database.getBufferPool().transactionComplete(tid);
+            tid = new TransactionId();
+            assertEquals(inserted, keys(lsm.iterator(tid)).size());
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        lsm.close();
+    }
+
+    private void deleteFirst(TransactionId tid, int pageNo) throws Exception {
+        LsmPage page = (LsmPage) Database.getBufferPool().getPage(tid, new HeapPageId(lsm.getId(), pageNo),
+                Permissions.READ_ONLY);
+        Database.getBufferPool().deleteTuple(tid, page.entries(null).get(0).tuple);
+    }
+
+    /**
+     * A failure of the background thread is rethrown by the next insert or
+     * by close
+     */
+    @Test public void backgroundFailureRethrown() throws Exception {
+        // the first run cannot be written, as its path is a directory
+        File run = new File(f.getPath() + ".run0");
+        run.mkdir();
+        run.deleteOnExit();
+        boolean failed = false;
+        try {
+            insertAll();
+        } catch (IOException e) {
+            failed = true;
+        }
+        try {
+            lsm.close();
+        } catch (IOException e) {
+            assertFalse(failed);
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LsmFileTest.class);
+    }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OffHeapPageStoreTest extends SimpleDbTestBase {
+    private static final int PAGES = 6;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        int perPage = BufferPool.getPageSize() * 8 / (2 * Type.INT_TYPE.getLen() * 8 + 1);
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, PAGES * perPage, null, tuples);
+    }
+
+    /**
+     * The store keeps copies of the data it is given, and reuses the slot
+     * filled first when it is full
+     */
+    @Test public void putAndGet() throws Exception {
+        int size = BufferPool.getPageSize();
+        OffHeapPageStore store = new OffHeapPageStore(2, size);
+        byte[][] data = new byte[3][size];
+        for (int i = 0; i < 3; i++) {
+            Arrays.fill(data[i], (byte) (i + 1));
+            store.put(new HeapPageId(1, i), data[i]);
+        }
+        assertEquals(2, store.size());
+        assertNull(store.get(new HeapPageId(1, 0)));
+        assertArrayEquals(data[2], store.get(new HeapPageId(1, 2)));
+
+        data[1][0] = 0;
+        assertEquals(2, store.get(new HeapPageId(1, 1))[0]);
+        store.remove(new HeapPageId(1, 1));
+        assertNull(store.get(new HeapPageId(1, 1)));
+
+        store.put(new HeapPageId(1, 3), new byte[size - 1]);
+        assertNull(store.get(new HeapPageId(1, 3)));
+    }
+
+    /**
+     * A striped store keeps the pages of each stripe apart, and threads
+     * putting and getting pages of different stripes see their own data
+     */
+    @Test public void stripes() throws Exception {
+        final int size = BufferPool.getPageSize();
+        final OffHeapPageStore store = new OffHeapPageStore(64, size, 4);
+        Thread[] threads = new Thread[4];
+        final boolean[] ok = new boolean[threads.length];
+        for (int n = 0; n < threads.length; n++) {
+            final int table = n;
+            threads[n] = new Thread() {
+                public void run() {
+                    boolean match = true;
+                    for (int round = 0; round < 200; round++) {
+                        for (int i = 0; i < 8; i++) {
+                            byte[] data = new byte[size];
+                            Arrays.fill(data, (byte) (table * 8 + i));
+                            store.put(new HeapPageId(table, i), data);
+                        }
+                        for (int i = 0; i < 8; i++) {
+                            byte[] data = store.get(new HeapPageId(table, i));
+                            match &= data == null || data[size - 1] == (byte) (table * 8 + i);
+                        }
+                    }
+                    ok[table] = match;
+                }
+            };
+            threads[n].start();
+        }
+        for (int n = 0; n < threads.length; n++) {
+            threads[n].join();
+            assertTrue(ok[n]);
+        }
+        assertTrue(store.size() <= 64);
+        assertTrue(store.size() > 0);
+    }
+
+    /**
+     * Pages evicted from the frames of an off-heap pool are read again from
+     * the store, not from disk
+     */
+    @Test public void evictedPagesKept() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2, PAGES);
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+        assertEquals(PAGES - 2, bp.numOffHeapPages());
+
+        // the first page was evicted, so clearing it on disk goes unnoticed
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        raf.write(new byte[BufferPool.getPageSize()]);
+        raf.close();
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages written by a commit are read again with their changes
+     */
+    @Test public void committedChangesKept() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2, PAGES);
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        bp.deleteTuple(tid, t);
+        tuples.remove(SystemTestUtil.tupleToList(t));
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OffHeapPageStoreTest.class);
+    }
+}
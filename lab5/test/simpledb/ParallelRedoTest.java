@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ParallelRedoTest extends SimpleDbTestBase {
+    private static final int PAGES = 40;
+
+    private File tableFile;
+    private HeapFile table;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tableFile = File.createTempFile("redo", ".dat");
+        tableFile.deleteOnExit();
+        loseTable();
+    }
+
+    // replace every page of the table by an empty one, as if the pages
+    // written since they were empty were lost in a crash
+    private void loseTable() throws Exception {
+        table = Utility.openHeapFile(2, tableFile);
+        byte[] empty = HeapPage.createEmptyPageData();
+        for (int i = 0; i < PAGES; i++)
+            table.writePage(table.readPage(new HeapPageId(table.getId(), i), empty));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private void recoverWith(int threads, Map<PageId, byte[]> images) throws Exception {
+        Database.getLogFile().setRedoThreads(threads);
+        Database.getLogFile().recover();
+        for (int i = 0; i < PAGES; i++) {
+            PageId pid = new HeapPageId(table.getId(), i);
+            byte[] expected = images.containsKey(pid) ? images.get(pid) : HeapPage.createEmptyPageData();
+            assertArrayEquals("page " + i, expected, table.readPage(pid).getPageData());
+        }
+    }
+
+    /**
+     * Redo on several threads installs the committed updates of every page
+     * in log order and undoes the incomplete transaction, like serial redo
+     */
+    @Test public void parallelMatchesSerial() throws Exception {
+        Map<PageId, byte[]> images = RecoveryBenchmark.logUpdates(Database.getLogFile(), table, 200, 3, new Random(1));
+        assertTrue(images.size() > PAGES / 2);
+        recoverWith(4, images);
+
+        loseTable();
+        recoverWith(1, images);
+    }
+
+    /**
+     * The updates of a transaction aborted before the crash are rolled back
+     * again at its abort record, before the later updates of its pages
+     */
+    @Test public void abortedUpdatesStayUndone() throws Exception {
+        Map<PageId, byte[]> images = RecoveryBenchmark.logUpdates(Database.getLogFile(), table, 50, 3, new Random(2));
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        PageId pid = new HeapPageId(table.getId(), 0);
+        HeapPage before = (HeapPage) table.readPage(pid,
+                images.containsKey(pid) ? images.get(pid) : HeapPage.createEmptyPageData());
+        HeapPage after = (HeapPage) table.readPage(pid, before.getPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] { -1, -1 }));
+        Database.getLogFile().logWrite(tid, before, after);
+        Database.getLogFile().logAbort(tid);
+        images.put(pid, before.getPageData());
+
+        loseTable();
+        recoverWith(4, images);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelRedoTest.class);
+    }
+}
@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxFileTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 1000;
+
+    private TupleDesc td;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private PaxFile pf;
+
+    /**
+     * Convert a text file of ROWS tuples with COLUMNS int fields into a
+     * PaxFile
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        td = Utility.getTupleDesc(COLUMNS, "f");
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File in = File.createTempFile("pax", ".txt");
+        in.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            for (int j = 0; j < COLUMNS; j++) {
+                tuple.add(i * COLUMNS + j);
+                bw.write((j > 0 ? "," : "") + (i * COLUMNS + j));
+            }
+            bw.write("\n");
+            tuples.add(tuple);
+        }
+        bw.close();
+
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convertToPax(in, f, BufferPool.getPageSize(), COLUMNS, Utility.getTypes(COLUMNS), ',');
+        pf = new PaxFile(f, td);
+        Database.getCatalog().addTable(pf, "pax");
+    }
+
+    /**
+     * A converted file holds the tuples of the text file
+     */
+    @Test public void convertAndScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals((ROWS + PaxPage.getNumTuples(td) - 1) / PaxPage.getNumTuples(td), pf.numPages());
+        SystemTestUtil.matchTuples(pf, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A projected scan returns the requested fields in order, and decodes
+     * only their columns
+     */
+    @Test public void projectedScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = pf.iterator(tid, new int[] { 7, 2 });
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(2, t.getTupleDesc().numFields());
+            assertEquals("f7", t.getTupleDesc().getFieldName(0));
+            int row = t.getRecordId().getPageId().pageNumber() * PaxPage.getNumTuples(td) + t.getRecordId().tupleno();
+            assertEquals(new IntField(row * COLUMNS + 7), t.getField(0));
+            assertEquals(new IntField(row * COLUMNS + 2), t.getField(1));
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS, count);
+
+        PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(pf.getId(), 0), Permissions.READ_ONLY);
+        for (int j = 0; j < COLUMNS; j++)
+            assertEquals(j == 2 || j == 7, page.isDecoded(j));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserted and deleted tuples are written back in the PAX format
+     */
+    @Test public void insertAndDelete() throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        DbFileIterator it = pf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 10 && it.hasNext(); i++)
+            deleted.add(it.next());
+        it.close();
+        for (Tuple t : deleted) {
+            Database.getBufferPool().deleteTuple(tid, t);
+            tuples.remove(0);
+        }
+        for (int i = 0; i < 20; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            for (int j = 0; j < COLUMNS; j++)
+                tuple.add(-i * COLUMNS - j);
+            tuples.add(tuple);
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < COLUMNS; j++)
+                t.setField(j, new IntField(tuple.get(j)));
+            Database.getBufferPool().insertTuple(tid, pf.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(pf, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A query plan over a PaxFile scans only the fields the query uses
+     */
+    @Test public void queryPlan() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(pf.getId(), "p");
+        lp.addFilter("p.f3", Predicate.Op.LESS_THAN, "50");
+        lp.addProjectField("p.f1", null);
+        assertArrayEquals(new int[] { 1, 3 }, lp.requiredFields("p", td));
+
+        Map<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("pax", new TableStats(pf.getId(), 1000));
+        TransactionId tid = new TransactionId();
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        while (plan.hasNext())
+            values.add(((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+        assertEquals(5, values.size());
+        for (int i = 0; i < 5; i++)
+            assertTrue(values.contains(i * COLUMNS + 1));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxFileTest.class);
+    }
+}
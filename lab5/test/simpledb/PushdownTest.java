@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PushdownTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000, null, tuples);
+    }
+
+    private static ArrayList<ArrayList<Integer>> scan(DbFileIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    // the fields of the tuples with field 0 above lo and field 1 below hi
+    private ArrayList<ArrayList<Integer>> expected(int lo, int hi, int[] fields) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) <= lo || t.get(1) >= hi)
+                continue;
+            ArrayList<Integer> projected = new ArrayList<Integer>();
+            for (int f : fields)
+                projected.add(t.get(f));
+            result.add(projected);
+        }
+        return result;
+    }
+
+    private static void assertSameTuples(ArrayList<ArrayList<Integer>> expected,
+            ArrayList<ArrayList<Integer>> actual) {
+        Collections.sort(expected, Comparator.comparing(Object::toString));
+        Collections.sort(actual, Comparator.comparing(Object::toString));
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * A HeapFile returns only the matching tuples, with the requested fields
+     * in order and the RecordIds of the stored tuples
+     */
+    @Test public void heapFilterAndProject() throws Exception {
+        Predicate[] preds = {
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(300)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(600)) };
+        int[] fields = { 2, 0 };
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid, preds, fields);
+        it.open();
+        ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(2, t.getTupleDesc().numFields());
+            assertEquals(hf.getTupleDesc().getFieldName(2), t.getTupleDesc().getFieldName(0));
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    t.getRecordId().getPageId(), Permissions.READ_ONLY);
+            assertEquals(page.getTuple(t.getRecordId().tupleno()).getField(0), t.getField(1));
+            actual.add(SystemTestUtil.tupleToList(t));
+        }
+        it.close();
+        assertSameTuples(expected(300, 600, fields), actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Pages changed since they were read are filtered on their tuples
+     */
+    @Test public void changedPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<Integer> inserted = new ArrayList<Integer>(Arrays.asList(5000, 5001, 5002));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 5000, 5001, 5002 }));
+        tuples.add(inserted);
+
+        Predicate[] preds = { new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(5000)) };
+        ArrayList<ArrayList<Integer>> actual = scan(hf.iterator(tid, preds, null));
+        assertEquals(Collections.singletonList(inserted), actual);
+
+        int[] fields = { 0, 1 };
+        preds = new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(900)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100000)) };
+        assertSameTuples(expected(900, 100000, fields), scan(hf.iterator(tid, preds, fields)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * String predicates are evaluated on the page data like on StringFields
+     */
+    @Test public void stringPredicates() throws Exception {
+        String[] names = { "ant", "bee", "beetle", "cat", "", "b" };
+        File in = File.createTempFile("pushdown", ".txt");
+        in.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+        for (int i = 0; i < names.length; i++)
+            bw.write(i + "," + names[i] + "\n");
+        bw.close();
+        File f = File.createTempFile("pushdown", ".dat");
+        f.deleteOnExit();
+        Type[] types = { Type.INT_TYPE, Type.STRING_TYPE };
+        HeapFileEncoder.convert(in, f, BufferPool.getPageSize(), 2, types);
+        HeapFile sf = new HeapFile(f, new TupleDesc(types, new String[] { "id", "name" }));
+        Database.getCatalog().addTable(sf, "names");
+
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.LIKE }) {
+            StringField operand = new StringField("bee", Type.STRING_LEN);
+            int expected = 0;
+            for (String name : names) {
+                if (new StringField(name, Type.STRING_LEN).compare(op, operand))
+                    expected++;
+            }
+            Predicate[] preds = { new Predicate(1, op, operand) };
+            DbFileIterator it = sf.iterator(tid, preds, new int[] { 1 });
+            int count = 0;
+            it.open();
+            while (it.hasNext()) {
+                assertTrue(it.next().getField(0).compare(op, operand));
+                count++;
+            }
+            it.close();
+            assertEquals(op.toString(), expected, count);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A BTreeFile reads only the range of a predicate on its key, and applies
+     * the other predicates and the projection
+     */
+    @Test public void btreeKeyRange() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(3, ROWS, 1000, null, tuples, 0);
+        Predicate[] preds = {
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(600)),
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(300)) };
+        int[] fields = { 2, 0 };
+        TransactionId tid = new TransactionId();
+        assertSameTuples(expected(300, 600, fields), scan(bf.iterator(tid, preds, fields)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PushdownTest.class);
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HeapFile hf;
+	private SecondaryIndex index;
+
+	/**
+	 * Set up a heap table "t" with an index on its second column c1
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<ArrayList<Integer>>();
+		hf = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples, "c");
+		Database.getCatalog().addTable(hf, "t");
+
+		File f = File.createTempFile("t_c1", ".idx");
+		f.deleteOnExit();
+		index = SecondaryIndex.create(hf.getId(), 1, f);
+	}
+
+	private int countMatches(int value) {
+		int count = 0;
+		for (ArrayList<Integer> tuple : tuples) {
+			if (tuple.get(1) == value)
+				count++;
+		}
+		return count;
+	}
+
+	private int countLookup(TransactionId tid, int value) throws Exception {
+		DbFileIterator it = index.indexIterator(tid,
+				new IndexPredicate(Predicate.Op.EQUALS, new IntField(value)));
+		int count = 0;
+		it.open();
+		while (it.hasNext()) {
+			assertEquals(value, ((IntField) it.next().getField(1)).getValue());
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/**
+	 * The index is registered in the catalog and finds every existing tuple
+	 */
+	@Test
+	public void lookup() throws Exception {
+		assertSame(index, Database.getCatalog().getIndex(hf.getId(), 1));
+		assertNull(Database.getCatalog().getIndex(hf.getId(), 0));
+
+		TransactionId tid = new TransactionId();
+		int value = tuples.get(0).get(1);
+		assertEquals(countMatches(value), countLookup(tid, value));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool keep the index in sync
+	 */
+	@Test
+	public void insertDelete() throws Exception {
+		TransactionId tid = new TransactionId();
+		int value = -42;
+		Tuple t = Utility.getHeapTuple(new int[] { 7, value });
+		Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		assertEquals(1, countLookup(tid, value));
+
+		Database.getBufferPool().deleteTuple(tid, t);
+		assertEquals(0, countLookup(tid, value));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A selective filter on the indexed field is answered with an IndexScan
+	 */
+	@Test
+	public void plannerUsesIndex() throws Exception {
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+
+		int value = tuples.get(0).get(1);
+		TransactionId tid = new TransactionId();
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Predicate.Op.EQUALS, String.valueOf(value));
+		lp.addProjectField("t.c0", null);
+		DbIterator it = lp.physicalPlan(tid, stats, false);
+		assertTrue(((Operator) it).getChildren()[0] instanceof IndexScan);
+
+		int count = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(countMatches(value), count);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
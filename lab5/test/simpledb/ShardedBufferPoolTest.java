@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ShardedBufferPoolTest extends SimpleDbTestBase {
+    private static final int PAGES = 12;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        int perPage = BufferPool.getPageSize() * 8 / (2 * Type.INT_TYPE.getLen() * 8 + 1);
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, PAGES * perPage, null, tuples);
+    }
+
+    /**
+     * A shard with no frame to spare takes one from another shard, so that a
+     * transaction can dirty as many pages as the pool holds, whatever shards
+     * they fall in
+     */
+    @Test public void shardsShareFrames() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4, 0, 4);
+        TransactionId tid = new TransactionId();
+        for (int p = 0; p < 4; p++) {
+            HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), p), Permissions.READ_WRITE);
+            page.markDirty(true, tid);
+        }
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 4), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // every page is dirty
+        }
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Concurrent scans through a small sharded pool all read every tuple
+     */
+    @Test public void concurrentScans() throws Exception {
+        Database.resetBufferPool(10, 0, 2);
+        Thread[] threads = new Thread[8];
+        final Throwable[] errors = new Throwable[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int pass = 0; pass < 3; pass++) {
+                        TransactionId tid = new TransactionId();
+                        SystemTestUtil.matchTuples(hf, tid, tuples);
+                        Database.getBufferPool().transactionComplete(tid);
+                    }
+                } catch (Throwable e) {
+                    errors[n] = e;
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (errors[i] != null)
+                throw new AssertionError(errors[i]);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ShardedBufferPoolTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+    private TupleDesc td;
+    private SlottedHeapFile sf;
+
+    /**
+     * Set up an empty slotted file with an int and a VARCHAR field
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.VARCHAR_TYPE },
+                new String[] { "id", "name" });
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        sf = new SlottedHeapFile(f, td);
+        Database.getCatalog().addTable(sf, "slotted");
+    }
+
+    private Tuple tuple(int id) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new VarcharField(name(id), Type.STRING_LEN));
+        return t;
+    }
+
+    private static String name(int id) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < id % 40; i++)
+            sb.append((char) ('a' + i % 26));
+        return sb.toString();
+    }
+
+    /**
+     * Tuples inserted through the BufferPool are all found by a scan, and take
+     * far fewer pages than fixed-width HeapPages would
+     */
+    @Test public void insertAndScan() throws Exception {
+        int n = 2000;
+        for (int i = 0; i < n; i += 500) {
+            TransactionId tid = new TransactionId();
+            for (int j = i; j < i + 500; j++)
+                Database.getBufferPool().insertTuple(tid, sf.getId(), tuple(j));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+
+        TransactionId tid = new TransactionId();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        DbFileIterator it = sf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals(Type.VARCHAR_TYPE, t.getField(1).getType());
+            assertEquals(name(id), ((StringField) t.getField(1)).getValue());
+            ids.add(id);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        Collections.sort(ids);
+        assertEquals(n, ids.size());
+        for (int i = 0; i < n; i++)
+            assertEquals(i, (int) ids.get(i));
+
+        int fixedPerPage = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        int fixedPages = (n + fixedPerPage - 1) / fixedPerPage;
+        assertTrue(sf.numPages() * 3 < fixedPages);
+    }
+
+    /**
+     * Deleting a tuple leaves the RecordIds of the others alone, and its slot
+     * is reused by the next insert
+     */
+    @Test public void deleteKeepsRecordIds() throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 20; i++) {
+            Tuple t = tuple(i);
+            Database.getBufferPool().insertTuple(tid, sf.getId(), t);
+            tuples.add(t);
+        }
+        Database.getBufferPool().deleteTuple(tid, tuples.get(5));
+        Database.getBufferPool().deleteTuple(tid, tuples.get(19));
+
+        SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(sf.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(19, page.getNumSlots());
+        assertNull(page.getTuple(5));
+        for (int i = 0; i < 19; i++) {
+            if (i == 5)
+                continue;
+            assertEquals(i, tuples.get(i).getRecordId().tupleno());
+            assertEquals(tuples.get(i), page.getTuple(i));
+        }
+
+        Tuple t = tuple(100);
+        Database.getBufferPool().insertTuple(tid, sf.getId(), t);
+        assertEquals(5, t.getRecordId().tupleno());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A page read back from its own data has the same tuples in the same slots
+     */
+    @Test public void pageDataRoundTrip() throws Exception {
+        HeapPageId pid = new HeapPageId(sf.getId(), 0);
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        int i = 0;
+        while (page.hasRoomFor(tuple(i)))
+            page.insertTuple(tuple(i++));
+        assertTrue(page.getFreeSpace() < SlottedPage.recordSize(td, tuple(i)) + SlottedPage.SLOT_SIZE);
+        try {
+            page.insertTuple(tuple(i));
+            fail("expected DbException on a full page");
+        } catch (DbException e) {
+            // expected
+        }
+        for (int j = 0; j < i; j += 3)
+            page.deleteTuple(page.getTuple(j));
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        assertEquals(page.getNumSlots(), copy.getNumSlots());
+        assertEquals(page.getFreeSpace(), copy.getFreeSpace());
+        for (int j = 0; j < page.getNumSlots(); j++)
+            assertEquals(page.getTuple(j), copy.getTuple(j));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotTest extends SimpleDbTestBase {
+    private static final int PAGES = 12;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        int perPage = BufferPool.getPageSize() * 8 / (2 * Type.INT_TYPE.getLen() * 8 + 1);
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, PAGES * perPage, null, tuples);
+        bp = Database.resetBufferPool(4);
+    }
+
+    // delete the first tuple of the file on behalf of tid
+    private ArrayList<Integer> deleteFirst(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        bp.deleteTuple(tid, t);
+        return SystemTestUtil.tupleToList(t);
+    }
+
+    /**
+     * A snapshot reads pages a writer holds locks on without waiting, and
+     * keeps seeing them as they were when it began after the writer commits
+     * and the pages are evicted, until it completes and the versions are
+     * dropped
+     */
+    @Test public void readersIgnoreWriters() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        TransactionId writer = new TransactionId();
+        ArrayList<Integer> deleted = deleteFirst(writer);
+
+        SystemTestUtil.matchTuples(hf, snapshot, tuples);
+        bp.transactionComplete(writer);
+        assertEquals(1, bp.numPageVersions());
+        SystemTestUtil.matchTuples(hf, snapshot, tuples);
+        assertEquals(0, bp.numLockedPages());
+
+        bp.transactionComplete(snapshot);
+        assertEquals(0, bp.numPageVersions());
+        tuples.remove(deleted);
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A snapshot sees the commits that completed before it began, and
+     * commits keep no versions while no snapshot is active
+     */
+    @Test public void earlierCommitsSeen() throws Exception {
+        TransactionId writer = new TransactionId();
+        tuples.remove(deleteFirst(writer));
+        bp.transactionComplete(writer);
+        assertEquals(0, bp.numPageVersions());
+
+        Transaction t = new Transaction(true);
+        t.start();
+        SystemTestUtil.matchTuples(hf, t.getId(), tuples);
+        t.commit();
+        assertFalse(bp.isSnapshot(t.getId()));
+    }
+
+    /**
+     * Snapshots may not write
+     */
+    @Test public void snapshotsCannotWrite() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        try {
+            bp.getPage(snapshot, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(snapshot);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
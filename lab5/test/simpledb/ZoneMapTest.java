@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private File file;
+    private HeapFile hf;
+    private int perPage;
+
+    /**
+     * Create a heap file whose first field increases with the row number, so
+     * that each page holds a separate range of values, and whose maps are
+     * persisted
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(ROWS - i);
+            tuples.add(tuple);
+        }
+        file = File.createTempFile("zone", ".dat");
+        file.deleteOnExit();
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        hf = new HeapFile(file, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(hf, "zone");
+        perPage = BufferPool.getPageSize() * 8 / (hf.getTupleDesc().getSize() * 8 + 1);
+
+        // a first scan fills in the zone map
+        TransactionId tid = new TransactionId();
+        count(hf.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    @After public void tearDown() {
+        SideFiles.delete(file);
+    }
+
+    private static int count(DbFileIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A scan with a range predicate only reads the pages that can match, and
+     * returns only the matching tuples
+     */
+    @Test public void skipPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        int from = ROWS - perPage - 10;
+        Predicate[] preds = { new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(from)) };
+        int n = count(hf.iterator(tid, preds, null));
+        int first = from / perPage;
+        assertEquals(ROWS - 1 - from, n);
+
+        for (int p = 0; p < hf.numPages(); p++)
+            assertEquals(p >= first, Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), p)));
+
+        // the second field decreases, so no page has a value below 0
+        preds = new Predicate[] { new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(0)) };
+        assertEquals(0, count(hf.iterator(tid, preds, null)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserts widen the bounds of their page right away, and the bounds are
+     * persisted when the page is written
+     */
+    @Test public void insertWidens() throws Exception {
+        Predicate[] preds = { new Predicate(0, Predicate.Op.EQUALS, new IntField(-1)) };
+        TransactionId tid = new TransactionId();
+        assertEquals(0, count(hf.iterator(tid, preds, null)));
+
+        Tuple t = Utility.getHeapTuple(new int[] { -1, -1 });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        int page = t.getRecordId().getPageId().pageNumber();
+        DbFileIterator it = hf.iterator(tid, preds, null);
+        it.open();
+        boolean found = false;
+        while (it.hasNext())
+            found |= it.next().getField(0).equals(new IntField(-1));
+        it.close();
+        assertTrue(found);
+        Database.getBufferPool().transactionComplete(tid);
+
+        ZoneMap map = new ZoneMap(ZoneMap.fileFor(file), file, hf.getTupleDesc());
+        assertTrue(map.mayMatch(page, preds));
+        assertFalse(map.mayMatch(page, new Predicate[] { new Predicate(0, Predicate.Op.EQUALS, new IntField(-2)) }));
+    }
+
+    /**
+     * String fields are bounded by prefixes
+     */
+    @Test public void stringPrefixes() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE });
+        File f = File.createTempFile("zone", ".dat");
+        f.deleteOnExit();
+        ZoneMap map = new ZoneMap(ZoneMap.fileFor(f), f, td);
+        ZoneMap.fileFor(f).deleteOnExit();
+
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (String s : new String[] { "apple", "banana-split-sundae", "cherry" }) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(s, Type.STRING_LEN));
+            tuples.add(t);
+        }
+        map.write(0, tuples.iterator());
+        map = new ZoneMap(ZoneMap.fileFor(f), f, td);
+
+        assertTrue(map.mayMatch(0, new Predicate[] { new Predicate(0, Predicate.Op.EQUALS,
+                new StringField("banana-split-sundae", Type.STRING_LEN)) }));
+        assertTrue(map.mayMatch(0, new Predicate[] { new Predicate(0, Predicate.Op.GREATER_THAN,
+                new StringField("cherries", Type.STRING_LEN)) }));
+        assertFalse(map.mayMatch(0, new Predicate[] { new Predicate(0, Predicate.Op.GREATER_THAN,
+                new StringField("cherry", Type.STRING_LEN)) }));
+        assertFalse(map.mayMatch(0, new Predicate[] { new Predicate(0, Predicate.Op.LESS_THAN,
+                new StringField("apple", Type.STRING_LEN)) }));
+        assertFalse(map.mayMatch(0, new Predicate[] { new Predicate(0, Predicate.Op.EQUALS,
+                new StringField("aardvark", Type.STRING_LEN)) }));
+    }
+
+    /**
+     * The map is discarded when its side file does not match the heap file:
+     * after the heap file changed behind its back, or a page write that did
+     * not complete
+     */
+    @Test public void staleMapDiscarded() throws Exception {
+        Predicate[] preds = { new Predicate(0, Predicate.Op.EQUALS, new IntField(-1)) };
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.writePage(hf.readPage(pid));
+        ZoneMap map = new ZoneMap(ZoneMap.fileFor(file), file, hf.getTupleDesc());
+        assertTrue(map.isKnown(0));
+        assertFalse(map.mayMatch(0, preds));
+
+        // a page appended without the map
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() + BufferPool.getPageSize());
+        raf.close();
+        map = new ZoneMap(ZoneMap.fileFor(file), file, hf.getTupleDesc());
+        assertFalse(map.isKnown(0));
+        assertTrue(map.mayMatch(0, preds));
+        assertFalse(ZoneMap.fileFor(file).exists());
+
+        // bounds written again, then a page write that never completed
+        map.write(0, ((HeapPage) hf.readPage(pid)).iterator());
+        assertTrue(new ZoneMap(ZoneMap.fileFor(file), file, hf.getTupleDesc()).isKnown(0));
+        map.beginWrite();
+        map = new ZoneMap(ZoneMap.fileFor(file), file, hf.getTupleDesc());
+        assertFalse(map.isKnown(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}